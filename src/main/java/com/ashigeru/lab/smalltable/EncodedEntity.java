@@ -0,0 +1,354 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link EntityOutput#writeEntity(Entity)}で符号化した内容を、復号せずに直接参照する{@link Entity}。
+ * <p>
+ * プロパティを参照するたびにバッファ上の形状を先頭から走査し、要求されたプロパティの値のみを復号する。
+ * そのため、一部のプロパティのみを参照する場合は、プロパティ名や値の配列を生成しない。
+ * 整数の値は{@link #getInt(String, int)}で参照すれば、オブジェクトを生成せずに取り出せる。
+ * </p>
+ * <p>
+ * すべてのプロパティを必要とする操作 (比較やプロパティの列挙、直列化) は、
+ * 内容を一度だけ{@link Entity}に展開して、以降はその結果を利用する。
+ * </p>
+ * <p>
+ * バッファの内容は絶対位置で読み出すため、同じバッファを複数のスレッドから同時に参照できる。
+ * ただし、このオブジェクトを利用している間、対象の領域を変更してはならない。
+ * </p>
+ * @author ashigeru
+ */
+final class EncodedEntity extends Entity {
+
+    private static final long serialVersionUID = -6023571849036254517L;
+
+    /**
+     * 形状の番号のうち、形状の内容が直後に続くことを表すもの。
+     */
+    private static final int INLINE = 0;
+
+    private final transient ByteBuffer buffer;
+
+    /**
+     * エンティティの先頭の位置。
+     */
+    private final transient int offset;
+
+    /**
+     * 形状の先頭の位置。
+     */
+    private final transient int shapeOffset;
+
+    /**
+     * 展開した内容、まだ展開していない場合は{@code null}。
+     */
+    private transient volatile Entity materialized;
+
+    private EncodedEntity(Entity.Reference self, ByteBuffer buffer, int offset, int shapeOffset) {
+        super(self);
+        assert buffer != null;
+        assert offset >= 0;
+        assert shapeOffset > offset;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.shapeOffset = shapeOffset;
+    }
+
+    /**
+     * 指定の位置に符号化されたエンティティを参照するインスタンスを返す。
+     * @param buffer 対象のバッファ
+     * @param offset エンティティの先頭の位置
+     * @return 生成したインスタンス
+     * @throws IOException 内容がこのクラスで参照できる形式でない場合
+     */
+    static EncodedEntity wrap(ByteBuffer buffer, int offset) throws IOException {
+        assert buffer != null;
+        assert offset >= 0;
+        Entity.Reference self = new Entity.Reference(readVarLong(buffer, offset));
+        int shapeOffset = skipVarLong(buffer, offset);
+        if (buffer.get(shapeOffset) != INLINE) {
+            throw new IOException(MessageFormat.format(
+                    "Entity {0} does not have its own shape",
+                    self));
+        }
+        return new EncodedEntity(self, buffer, offset, shapeOffset);
+    }
+
+    @Override
+    public Map<String, Object> getPropertyMap() {
+        return new PropertyMap();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int position = find(name);
+        return position < 0 ? null : readValue(position);
+    }
+
+    @Override
+    public boolean isInt(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int position = find(name);
+        return position >= 0 && buffer.get(position) == EntityOutput.TAG_INT;
+    }
+
+    @Override
+    public int getInt(String name, int defaultValue) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int position = find(name);
+        if (position < 0) {
+            return defaultValue;
+        }
+        if (buffer.get(position) != EntityOutput.TAG_INT) {
+            throw new IllegalStateException(MessageFormat.format(
+                    "Property \"{0}\" is not an Integer: {1}",
+                    name,
+                    readValue(position)));
+        }
+        return decodeInt(readVarLong(buffer, position + 1));
+    }
+
+    @Override
+    Shape getShape() {
+        return materialize().getShape();
+    }
+
+    @Override
+    Object getSlotObject(int slot) {
+        return materialize().getSlotObject(slot);
+    }
+
+    @Override
+    int getSlotInt(int slot) {
+        return materialize().getSlotInt(slot);
+    }
+
+    @Override
+    Entity materialize() {
+        Entity result = materialized;
+        if (result == null) {
+            ByteBuffer source = buffer.duplicate();
+            source.position(offset);
+            try {
+                result = new EntityInput(source).readEntity();
+            }
+            catch (IOException e) {
+                throw broken(e);
+            }
+            materialized = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return materialize().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return materialize().equals(obj);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return materialize();
+    }
+
+    private int getPropertyCount() {
+        return (int) readVarLong(buffer, shapeOffset + 1);
+    }
+
+    /**
+     * 指定の名前をもつプロパティの値の位置を返す。
+     * @param name プロパティの名前
+     * @return 値の先頭 (タグ) の位置、存在しない場合は負の値
+     */
+    private int find(Object name) {
+        if ((name instanceof String) == false) {
+            return -1;
+        }
+        int position = shapeOffset + 1;
+        int count = (int) readVarLong(buffer, position);
+        position = skipVarLong(buffer, position);
+        int slot = -1;
+        for (int i = 0; i < count; i++) {
+            // 名前はすべてこのエンティティで初めて現れるため、番号ではなく内容が続く
+            if (buffer.get(position) != INLINE) {
+                throw broken(null);
+            }
+            position++;
+            int length = (int) readVarLong(buffer, position);
+            position = skipVarLong(buffer, position);
+            if (slot < 0 && matches(position, length, (String) name)) {
+                slot = i;
+            }
+            position += length;
+        }
+        if (slot < 0) {
+            return -1;
+        }
+        for (int i = 0; i < slot; i++) {
+            position = skipValue(position);
+        }
+        return position;
+    }
+
+    private boolean matches(int position, int length, String name) {
+        assert name != null;
+        // 多くのプロパティ名はASCIIのみからなるため、符号化せずに比較する
+        int end = position + length;
+        int current = position;
+        for (int i = 0, n = name.length(); i < n; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                return matchesEncoded(position, length, name);
+            }
+            if (current >= end || buffer.get(current++) != c) {
+                return false;
+            }
+        }
+        return current == end;
+    }
+
+    private boolean matchesEncoded(int position, int length, String name) {
+        assert name != null;
+        byte[] bytes = name.getBytes(EntityOutput.ENCODING);
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipValue(int position) {
+        int tag = buffer.get(position);
+        switch (tag) {
+        case EntityOutput.TAG_INT:
+        case EntityOutput.TAG_REFERENCE:
+            return skipVarLong(buffer, position + 1);
+        case EntityOutput.TAG_STRING:
+            int length = (int) readVarLong(buffer, position + 1);
+            return skipVarLong(buffer, position + 1) + length;
+        default:
+            throw broken(null);
+        }
+    }
+
+    private Object readValue(int position) {
+        int tag = buffer.get(position);
+        switch (tag) {
+        case EntityOutput.TAG_INT:
+            return Integer.valueOf(decodeInt(readVarLong(buffer, position + 1)));
+        case EntityOutput.TAG_STRING:
+            int length = (int) readVarLong(buffer, position + 1);
+            int start = skipVarLong(buffer, position + 1);
+            if (buffer.hasArray()) {
+                return new String(buffer.array(), buffer.arrayOffset() + start, length, EntityOutput.ENCODING);
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, EntityOutput.ENCODING);
+        case EntityOutput.TAG_REFERENCE:
+            return new Entity.Reference(readVarLong(buffer, position + 1));
+        default:
+            throw broken(null);
+        }
+    }
+
+    private IllegalStateException broken(IOException cause) {
+        return new IllegalStateException(MessageFormat.format(
+                "Entity {0} is broken",
+                getSelfReference()), cause);
+    }
+
+    private static int decodeInt(long encoded) {
+        int value = (int) encoded;
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(ByteBuffer buffer, int position) {
+        long result = 0L;
+        int current = position;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = buffer.get(current++);
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("Malformed variable length integer");
+    }
+
+    private static int skipVarLong(ByteBuffer buffer, int position) {
+        int current = position;
+        while ((buffer.get(current) & 0x80) != 0) {
+            current++;
+        }
+        return current + 1;
+    }
+
+    /**
+     * {@link EncodedEntity#getPropertyMap()}が返す、変更できないビュー。
+     * <p>
+     * 名前による参照は符号化された内容を直接走査し、列挙する場合のみ内容を展開する。
+     * </p>
+     */
+    private final class PropertyMap extends AbstractMap<String, Object> {
+
+        @Override
+        public int size() {
+            return getPropertyCount();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public Object get(Object key) {
+            int position = find(key);
+            return position < 0 ? null : readValue(position);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return materialize().getPropertyMap().entrySet();
+        }
+    }
+}
@@ -20,9 +20,16 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.MessageFormat;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * {@code smalltable}上のオブジェクトの内容を表現する。
@@ -35,6 +42,11 @@ import java.util.Map;
  * <li> {@link String} </li>
  * </ul>
  * <p>
+ * プロパティは、プロパティ名の組ごとに共有される形状と、値を位置ごとに並べた配列で保持する。
+ * 同じ処理で作成されたエンティティの多くは同じプロパティ名の組をもつため、プロパティ名や表を個別に保持しない。
+ * また、整数の値は{@link Integer}に変換せずに保持し、{@link #getInt(String, int)}で変換せずに取り出せる。
+ * </p>
+ * <p>
  * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
  * </p>
  * @author ashigeru
@@ -49,20 +61,56 @@ public class Entity implements Serializable {
     private transient Entity.Reference self;
 
     /**
-     * このエンティティが保持するプロパティの一覧。
+     * このエンティティが保持するプロパティ名の組。
      */
-    private transient Map<String, Object> properties;
+    private transient Shape shape;
+
+    /**
+     * このエンティティが保持する整数以外のプロパティの値。{@link #shape}の位置の順に並び、整数の位置は{@code null}となる。
+     */
+    private transient Object[] values;
+
+    /**
+     * このエンティティが保持する整数のプロパティの値。{@link #shape}の位置の順に並ぶ。
+     * 整数のプロパティをもたない場合は{@code null}となる。
+     */
+    private transient int[] ints;
+
+    /**
+     * 内容から計算したハッシュ値、まだ計算していない場合は{@code 0}。
+     */
+    private transient int hashCode;
 
     /**
      * インスタンスを生成する。
      * @param self 自身への参照
-     * @param properties プロパティの一覧
+     * @param shape プロパティ名の組
+     * @param values 整数以外のプロパティの値
+     * @param ints 整数のプロパティの値、存在しない場合は{@code null}
+     */
+    Entity(Entity.Reference self, Shape shape, Object[] values, int[] ints) {
+        assert self != null;
+        assert shape != null;
+        assert values != null;
+        assert values.length == shape.size();
+        assert ints == null || ints.length == shape.size();
+        this.self = self;
+        this.shape = shape;
+        this.values = values;
+        this.ints = ints;
+    }
+
+    /**
+     * 値をサブクラスが独自に保持するインスタンスを生成する。
+     * <p>
+     * サブクラスはこのクラスのプロパティを参照するすべてのメソッドを再定義する必要がある。
+     * </p>
+     * @param self 自身への参照
+     * @see EncodedEntity
      */
-    Entity(Entity.Reference self, Map<String, Object> properties) {
+    Entity(Entity.Reference self) {
         assert self != null;
-        assert properties != null;
         this.self = self;
-        this.properties = Collections.unmodifiableMap(new HashMap<String, Object>(properties));
     }
 
     /**
@@ -78,15 +126,114 @@ public class Entity implements Serializable {
      * @return このエンティティが保有するプロパティの一覧
      */
     public Map<String, Object> getPropertyMap() {
-        return properties;
+        return new PropertyMap();
+    }
+
+    /**
+     * 指定の名前をもつプロパティの値を返す。
+     * @param name プロパティの名前
+     * @return 対応する値、存在しない場合は{@code null}
+     */
+    public Object getProperty(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int slot = shape.indexOf(name);
+        return slot < 0 ? null : getValue(slot);
+    }
+
+    /**
+     * 指定の名前をもつプロパティが整数の値をもつ場合のみ{@code true}を返す。
+     * @param name プロパティの名前
+     * @return 整数の値をもつ場合のみ{@code true}
+     */
+    public boolean isInt(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int slot = shape.indexOf(name);
+        return slot >= 0 && values[slot] == null;
+    }
+
+    /**
+     * 指定の名前をもつ整数のプロパティの値を返す。
+     * @param name プロパティの名前
+     * @param defaultValue プロパティが存在しない場合の値
+     * @return 対応する値、存在しない場合は{@code defaultValue}
+     * @throws IllegalStateException 対象のプロパティが整数以外の値をもつ場合
+     */
+    public int getInt(String name, int defaultValue) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int slot = shape.indexOf(name);
+        if (slot < 0) {
+            return defaultValue;
+        }
+        if (values[slot] != null) {
+            throw new IllegalStateException(MessageFormat.format(
+                    "Property \"{0}\" is not an Integer: {1}",
+                    name,
+                    values[slot]));
+        }
+        return ints[slot];
+    }
+
+    /**
+     * このエンティティが保持するプロパティ名の組を返す。
+     * @return プロパティ名の組
+     */
+    Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * 指定の位置に格納された整数以外の値を返す。
+     * @param slot 値の位置
+     * @return 対応する値、整数の場合は{@code null}
+     */
+    Object getSlotObject(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * 指定の位置に格納された整数の値を返す。
+     * @param slot 値の位置、{@link #getSlotObject(int)}が{@code null}を返すものに限る
+     * @return 対応する値
+     */
+    int getSlotInt(int slot) {
+        assert values[slot] == null;
+        return ints[slot];
+    }
+
+    /**
+     * 値をすべて展開したエンティティを返す。
+     * @return 値をすべて展開したエンティティ、このオブジェクトがすでに展開されている場合は自身
+     */
+    Entity materialize() {
+        return this;
+    }
+
+    private Object getValue(int slot) {
+        Object value = values[slot];
+        if (value != null) {
+            return value;
+        }
+        return Integer.valueOf(ints[slot]);
     }
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + self.hashCode();
-        result = prime * result + properties.hashCode();
+        int result = hashCode;
+        if (result == 0) {
+            final int prime = 31;
+            result = 1;
+            result = prime * result + self.hashCode();
+            result = prime * result + shape.hashCode();
+            result = prime * result + Arrays.hashCode(values);
+            result = prime * result + Arrays.hashCode(ints);
+            hashCode = result;
+        }
         return result;
     }
 
@@ -95,14 +242,23 @@ public class Entity implements Serializable {
         if (this == obj) {
             return true;
         }
-        if (obj == null) {
+        if ((obj instanceof Entity) == false) {
+            return false;
+        }
+        Entity other = ((Entity) obj).materialize();
+        if (getClass() != other.getClass()) {
+            return false;
+        }
+        if (hashCode != 0 && other.hashCode != 0 && hashCode != other.hashCode) {
+            return false;
+        }
+        if (shape.isCompatible(other.shape) == false) {
             return false;
         }
-        if (getClass() != obj.getClass()) {
+        if (Arrays.equals(values, other.values) == false) {
             return false;
         }
-        Entity other = (Entity) obj;
-        if (properties.equals(other.properties) == false) {
+        if (Arrays.equals(ints, other.ints) == false) {
             return false;
         }
         if (self.equals(other.self) == false) {
@@ -113,24 +269,82 @@ public class Entity implements Serializable {
 
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
         stream.defaultReadObject();
-        this.self = (Entity.Reference) stream.readObject();
+        Entity.Reference reference = (Entity.Reference) stream.readObject();
         int propertyCount = stream.readInt();
-        Map<String, Object> props = new HashMap<String, Object>();
+        Builder builder = Builder.create(reference);
         for (int i = 0; i < propertyCount; i++) {
             String name = stream.readUTF();
             Object value = stream.readObject();
-            props.put(name, value);
+            builder.add(name, value);
         }
-        this.properties = Collections.unmodifiableMap(props);
+        Entity restored = builder.toEntity();
+        this.self = restored.self;
+        this.shape = restored.shape;
+        this.values = restored.values;
+        this.ints = restored.ints;
     }
 
     private void writeObject(ObjectOutputStream stream) throws IOException {
         stream.defaultWriteObject();
         stream.writeObject(self);
-        stream.writeInt(properties.size());
-        for (Map.Entry<String, Object> entry : properties.entrySet()) {
-            stream.writeUTF(entry.getKey());
-            stream.writeObject(entry.getValue());
+        stream.writeInt(values.length);
+        for (int i = 0; i < values.length; i++) {
+            stream.writeUTF(shape.getName(i));
+            stream.writeObject(getValue(i));
+        }
+    }
+
+    /**
+     * {@link Entity#getPropertyMap()}が返す、変更できないビュー。
+     */
+    private final class PropertyMap extends AbstractMap<String, Object> {
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return shape.indexOf(key) >= 0;
+        }
+
+        @Override
+        public Object get(Object key) {
+            int slot = shape.indexOf(key);
+            return slot < 0 ? null : getValue(slot);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return values.length;
+                }
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        private int next = 0;
+                        @Override
+                        public boolean hasNext() {
+                            return next < values.length;
+                        }
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            if (next >= values.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int slot = next++;
+                            return new SimpleImmutableEntry<String, Object>(shape.getName(slot), getValue(slot));
+                        }
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
         }
     }
 
@@ -145,7 +359,19 @@ public class Entity implements Serializable {
 
         private Reference self;
 
-        private Map<String, Object> properties;
+        private Set<String> seen;
+
+        private List<String> names;
+
+        /**
+         * 追加した順に並ぶ整数以外の値、整数の位置は{@code null}となる。
+         */
+        private List<Object> objects;
+
+        /**
+         * 追加した順に並ぶ整数の値、整数をひとつも追加していない場合は{@code null}。
+         */
+        private int[] ints;
 
         /**
          * インスタンスを生成する。
@@ -153,7 +379,9 @@ public class Entity implements Serializable {
          */
         private Builder(Entity.Reference self) {
             this.self = self;
-            this.properties = new HashMap<String, Object>();
+            this.seen = new HashSet<String>();
+            this.names = new ArrayList<String>();
+            this.objects = new ArrayList<Object>();
         }
 
         /**
@@ -183,18 +411,45 @@ public class Entity implements Serializable {
             if (value == null) {
                 throw new IllegalArgumentException("value is null"); //$NON-NLS-1$
             }
-            return add0(name, value);
+            if (value instanceof Integer) {
+                return add0(name, null, ((Integer) value).intValue());
+            }
+            return add0(name, value, 0);
         }
 
-        private Builder add0(String name, Object value) {
+        /**
+         * 指定の名前を持ち、値として指定の整数を持つプロパティを追加する。
+         * @param name 追加するプロパティの名前
+         * @param value 追加するプロパティの値
+         * @return このオブジェクト
+         * @throws IllegalArgumentException 指定の名前を持つプロパティがすでに追加されている場合
+         */
+        public Builder addInt(String name, int value) {
+            if (name == null) {
+                throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+            }
+            return add0(name, null, value);
+        }
+
+        private Builder add0(String name, Object value, int intValue) {
             assert name != null;
-            assert value != null;
-            if (properties.containsKey(name)) {
+            if (seen.add(name) == false) {
                 throw new IllegalArgumentException(MessageFormat.format(
                     "The property \"{0}\" already exists", //$NON-NLS-N$
                     name));
             }
-            properties.put(name, value);
+            int index = names.size();
+            names.add(name);
+            objects.add(value);
+            if (value == null) {
+                if (ints == null) {
+                    ints = new int[Math.max(8, index + 1)];
+                }
+                else if (index >= ints.length) {
+                    ints = Arrays.copyOf(ints, Math.max(ints.length * 2, index + 1));
+                }
+                ints[index] = intValue;
+            }
             return this;
         }
 
@@ -203,7 +458,21 @@ public class Entity implements Serializable {
          * @return 構築した{@link Entity}
          */
         public Entity toEntity() {
-            return new Entity(self, properties);
+            Shape shape = Shape.of(names);
+            int size = names.size();
+            Object[] values = new Object[size];
+            int[] slots = ints == null ? null : new int[size];
+            for (int i = 0; i < size; i++) {
+                int slot = shape.indexOf(names.get(i));
+                Object value = objects.get(i);
+                if (value == null) {
+                    slots[slot] = ints[i];
+                }
+                else {
+                    values[slot] = value;
+                }
+            }
+            return new Entity(self, shape, values, slots);
         }
     }
 
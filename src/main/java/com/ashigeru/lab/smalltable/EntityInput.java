@@ -0,0 +1,365 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link EntityOutput}で書き出した内容を読み出す。
+ * <p>
+ * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ */
+public final class EntityInput {
+
+    private final DataInput input;
+
+    /**
+     * 読み出したプロパティ名の一覧。読み出した順に並ぶ。
+     */
+    private final List<String> names;
+
+    /**
+     * 読み出したプロパティ名の組の一覧。読み出した順に並ぶ。
+     */
+    private final List<Shape> shapes;
+
+    /**
+     * インスタンスを生成する。
+     * @param input 読み出し元
+     */
+    public EntityInput(DataInput input) {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null"); //$NON-NLS-1$
+        }
+        this.input = input;
+        this.names = new ArrayList<String>();
+        this.shapes = new ArrayList<Shape>();
+    }
+
+    /**
+     * バッファの現在の位置から読み出すインスタンスを生成する。
+     * <p>
+     * 内容はバッファから直接読み出され、読み出した分だけバッファの位置が進む。
+     * </p>
+     * @param buffer 読み出し元
+     */
+    public EntityInput(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer is null"); //$NON-NLS-1$
+        }
+        this.input = new BufferInput(buffer);
+        this.names = new ArrayList<String>();
+        this.shapes = new ArrayList<Shape>();
+    }
+
+    /**
+     * {@link EntityOutput#writeVarLong(long)}で書き出した値を読み出す。
+     * @return 読み出した値
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public long readVarLong() throws IOException {
+        long result = 0L;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = input.readByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * {@link EntityOutput#writeVarInt(int)}で書き出した値を読み出す。
+     * @return 読み出した値
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public int readVarInt() throws IOException {
+        int encoded = (int) readVarLong();
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    /**
+     * {@link EntityOutput#writeString(String)}で書き出した文字列を読み出す。
+     * @return 読み出した文字列
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public String readString() throws IOException {
+        int length = readSize();
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, EntityOutput.ENCODING);
+    }
+
+    /**
+     * {@link EntityOutput#writeName(String)}で書き出した文字列を読み出す。
+     * @return 読み出した文字列
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public String readName() throws IOException {
+        long index = readVarLong();
+        if (index == 0) {
+            String name = readString();
+            names.add(name);
+            return name;
+        }
+        if (index > names.size()) {
+            throw new IOException(MessageFormat.format(
+                    "Unknown name index: {0}",
+                    index - 1));
+        }
+        return names.get((int) (index - 1));
+    }
+
+    /**
+     * {@link EntityOutput#writeReference(Entity.Reference)}で書き出した参照を読み出す。
+     * @return 読み出した参照、または{@code null}
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public Entity.Reference readReference() throws IOException {
+        long value = readVarLong();
+        return value == 0 ? null : new Entity.Reference(value - 1);
+    }
+
+    /**
+     * {@link EntityOutput#writeEntity(Entity)}で書き出したエンティティを読み出す。
+     * @return 読み出したエンティティ
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public Entity readEntity() throws IOException {
+        Entity.Reference self = new Entity.Reference(readVarLong());
+        Shape shape = readShape();
+        int size = shape.size();
+        Object[] values = new Object[size];
+        int[] ints = null;
+        for (int i = 0; i < size; i++) {
+            int tag = input.readByte();
+            switch (tag) {
+            case EntityOutput.TAG_INT:
+                if (ints == null) {
+                    ints = new int[size];
+                }
+                ints[i] = readVarInt();
+                break;
+            case EntityOutput.TAG_STRING:
+                values[i] = readString();
+                break;
+            case EntityOutput.TAG_REFERENCE:
+                values[i] = new Entity.Reference(readVarLong());
+                break;
+            default:
+                throw new IOException(MessageFormat.format(
+                        "Unknown property tag: {0}",
+                        tag));
+            }
+        }
+        return new Entity(self, shape, values, ints);
+    }
+
+    /**
+     * バッファの指定の位置に{@link EntityOutput#writeEntity(Entity)}で書き出したエンティティを、復号せずに参照する。
+     * <p>
+     * 返すエンティティはプロパティを参照するたびに符号化された内容を走査し、要求された値のみを復号する。
+     * 名前や形状の表を参照できないため、対象のエンティティは新しい{@link EntityOutput}に最初に書き出したものに限る。
+     * また、返したエンティティを利用している間、バッファの対象の領域を変更してはならない。
+     * </p>
+     * <p>
+     * バッファの位置や上限は変更せず、また参照もしない。
+     * </p>
+     * @param buffer 対象のバッファ
+     * @param offset エンティティの先頭の位置
+     * @return 符号化された内容を参照するエンティティ
+     * @throws IOException 対象のエンティティが形状の内容をもたない場合
+     */
+    public static Entity wrapEntity(ByteBuffer buffer, int offset) throws IOException {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer is null"); //$NON-NLS-1$
+        }
+        if (offset < 0 || offset >= buffer.capacity()) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "offset is out of range: {0}",
+                    offset));
+        }
+        return EncodedEntity.wrap(buffer, offset);
+    }
+
+    private Shape readShape() throws IOException {
+        long index = readVarLong();
+        if (index != 0) {
+            if (index > shapes.size()) {
+                throw new IOException(MessageFormat.format(
+                        "Unknown shape index: {0}",
+                        index - 1));
+            }
+            return shapes.get((int) (index - 1));
+        }
+        int size = readSize();
+        List<String> members = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            String name = readName();
+            // 値の位置と一致させるため、書き出し時と同じ昇順である必要がある
+            if (i > 0 && members.get(i - 1).compareTo(name) >= 0) {
+                throw new IOException(MessageFormat.format(
+                        "Property names must be sorted: {0}",
+                        members));
+            }
+            members.add(name);
+        }
+        Shape shape = Shape.of(members);
+        shapes.add(shape);
+        return shape;
+    }
+
+    /**
+     * 要素の個数や長さとして書き出した値を読み出す。
+     * @return 読み出した値
+     * @throws IOException 読み出しに失敗した場合、または値が{@code int}の範囲に収まらない場合
+     */
+    public int readSize() throws IOException {
+        long size = readVarLong();
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IOException(MessageFormat.format(
+                    "Invalid size: {0}",
+                    size));
+        }
+        return (int) size;
+    }
+
+    /**
+     * バッファを{@link DataInput}として読み出す。
+     * @author ashigeru
+     */
+    private static final class BufferInput implements DataInput {
+
+        private final ByteBuffer buffer;
+
+        BufferInput(ByteBuffer buffer) {
+            assert buffer != null;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            try {
+                buffer.get(b, off, len);
+            }
+            catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public int skipBytes(int n) {
+            int skip = Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            try {
+                return buffer.get();
+            }
+            catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            try {
+                return buffer.getShort();
+            }
+            catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return (char) readShort();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            try {
+                return buffer.getInt();
+            }
+            catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            try {
+                return buffer.getLong();
+            }
+            catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        @Override
+        public String readLine() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String readUTF() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
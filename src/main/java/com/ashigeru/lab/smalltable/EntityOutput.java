@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * エンティティとその構成要素を、コンパクトなバイナリ形式で書き出す。
+ * <p>
+ * 整数は可変長で、プロパティ名とプロパティ名の組は初出時のみ内容を書き出し、
+ * 以降は書き出した順の番号で参照する。
+ * そのため、書き出した内容は同じ順序で{@link EntityInput}から読み出す必要がある。
+ * </p>
+ * <p>
+ * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ */
+public final class EntityOutput {
+
+    /**
+     * 文字列の符号化方式。
+     */
+    static final Charset ENCODING = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    /**
+     * 整数のプロパティを表すタグ。
+     */
+    static final int TAG_INT = 0;
+
+    /**
+     * 文字列のプロパティを表すタグ。
+     */
+    static final int TAG_STRING = 1;
+
+    /**
+     * 参照のプロパティを表すタグ。
+     */
+    static final int TAG_REFERENCE = 2;
+
+    private final DataOutput output;
+
+    /**
+     * 書き出したプロパティ名と、その番号。
+     */
+    private final Map<String, Integer> names;
+
+    /**
+     * 書き出したプロパティ名の組と、その番号。
+     */
+    private final Map<Shape, Integer> shapes;
+
+    /**
+     * インスタンスを生成する。
+     * @param output 書き出し先
+     */
+    public EntityOutput(DataOutput output) {
+        if (output == null) {
+            throw new IllegalArgumentException("output is null"); //$NON-NLS-1$
+        }
+        this.output = output;
+        this.names = new HashMap<String, Integer>();
+        this.shapes = new HashMap<Shape, Integer>();
+    }
+
+    /**
+     * 符号なしの整数を、7ビットごとの可変長で書き出す。
+     * @param value 書き出す値 (符号なしとして扱う)
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void writeVarLong(long value) throws IOException {
+        long rest = value;
+        while ((rest & ~0x7fL) != 0) {
+            output.writeByte((int) ((rest & 0x7f) | 0x80));
+            rest >>>= 7;
+        }
+        output.writeByte((int) rest);
+    }
+
+    /**
+     * 符号つきの整数を、絶対値の小さいものほど短くなるように書き出す。
+     * @param value 書き出す値
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void writeVarInt(int value) throws IOException {
+        writeVarLong(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+    }
+
+    /**
+     * 任意の文字列を書き出す。
+     * @param value 書き出す文字列
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("value is null"); //$NON-NLS-1$
+        }
+        byte[] bytes = value.getBytes(ENCODING);
+        writeVarLong(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * プロパティ名や名前つき参照の名前など、繰り返し現れる文字列を書き出す。
+     * <p>
+     * 同じ文字列を二回目以降に書き出す場合、その内容の代わりに番号のみを書き出す。
+     * </p>
+     * @param name 書き出す文字列
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void writeName(String name) throws IOException {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        Integer index = names.get(name);
+        if (index != null) {
+            writeVarLong(index.intValue() + 1L);
+        }
+        else {
+            names.put(name, names.size());
+            writeVarLong(0L);
+            writeString(name);
+        }
+    }
+
+    /**
+     * 参照を書き出す。
+     * @param reference 書き出す参照、または{@code null}
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void writeReference(Entity.Reference reference) throws IOException {
+        writeVarLong(reference == null ? 0L : reference.value + 1);
+    }
+
+    /**
+     * エンティティを書き出す。
+     * @param entity 書き出すエンティティ
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void writeEntity(Entity entity) throws IOException {
+        if (entity == null) {
+            throw new IllegalArgumentException("entity is null"); //$NON-NLS-1$
+        }
+        writeVarLong(entity.getSelfReference().value);
+        Shape shape = entity.getShape();
+        writeShape(shape);
+        for (int i = 0, n = shape.size(); i < n; i++) {
+            Object value = entity.getSlotObject(i);
+            if (value == null) {
+                output.writeByte(TAG_INT);
+                writeVarInt(entity.getSlotInt(i));
+            }
+            else if (value instanceof String) {
+                output.writeByte(TAG_STRING);
+                writeString((String) value);
+            }
+            else if (value instanceof Entity.Reference) {
+                output.writeByte(TAG_REFERENCE);
+                writeVarLong(((Entity.Reference) value).value);
+            }
+            else {
+                throw new IllegalArgumentException(MessageFormat.format(
+                        "Property type {0} is not supported",
+                        value.getClass().getName()));
+            }
+        }
+    }
+
+    private void writeShape(Shape shape) throws IOException {
+        assert shape != null;
+        Integer index = shapes.get(shape);
+        if (index != null) {
+            writeVarLong(index.intValue() + 1L);
+            return;
+        }
+        shapes.put(shape, shapes.size());
+        writeVarLong(0L);
+        writeVarLong(shape.size());
+        for (int i = 0, n = shape.size(); i < n; i++) {
+            writeName(shape.getName(i));
+        }
+    }
+}
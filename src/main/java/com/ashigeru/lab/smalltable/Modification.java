@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * セッションで作成または更新されたエンティティと、その中で変更されたプロパティの一覧。
+ * <p>
+ * 変更されたプロパティが分かっている場合、他のセッションが同じエンティティの別のプロパティを変更していても、
+ * 保存時に双方の変更を合成できる。
+ * 新しく作成されたエンティティなど、エンティティ全体を変更したものとして扱う場合はプロパティの一覧を指定しない。
+ * </p>
+ * <p>
+ * 整数のプロパティへの加算は、変更とは別に加算した値を指定する。
+ * 加算は保存時に最新のエンティティに対して適用されるため、他のセッションによる同じプロパティへの加算とは衝突しない。
+ * </p>
+ * <p>
+ * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ */
+public class Modification {
+
+    private final Entity entity;
+
+    private final Set<String> properties;
+
+    private final Map<String, Integer> additions;
+
+    /**
+     * エンティティ全体を変更したものとして、インスタンスを生成する。
+     * @param entity 変更後のエンティティ
+     */
+    public Modification(Entity entity) {
+        if (entity == null) {
+            throw new IllegalArgumentException("entity is null"); //$NON-NLS-1$
+        }
+        this.entity = entity;
+        this.properties = null;
+        this.additions = Collections.emptyMap();
+    }
+
+    /**
+     * 指定のプロパティのみを変更したものとして、インスタンスを生成する。
+     * @param entity 変更後のエンティティ
+     * @param properties 変更されたプロパティ名の一覧、削除されたプロパティも含む
+     */
+    public Modification(Entity entity, Set<String> properties) {
+        this(entity, properties, Collections.<String, Integer>emptyMap());
+    }
+
+    /**
+     * 指定のプロパティの変更と、整数のプロパティへの加算を行ったものとして、インスタンスを生成する。
+     * <p>
+     * 変更後のエンティティは、開始時点のプロパティの値に加算を適用したものである必要がある。
+     * </p>
+     * @param entity 変更後のエンティティ
+     * @param properties 変更されたプロパティ名の一覧、削除されたプロパティも含む
+     * @param additions 加算を行ったプロパティ名と、加算した値の表
+     * @throws IllegalArgumentException 変更と加算に同じプロパティが含まれる場合
+     */
+    public Modification(Entity entity, Set<String> properties, Map<String, Integer> additions) {
+        if (entity == null) {
+            throw new IllegalArgumentException("entity is null"); //$NON-NLS-1$
+        }
+        if (properties == null) {
+            throw new IllegalArgumentException("properties is null"); //$NON-NLS-1$
+        }
+        if (additions == null) {
+            throw new IllegalArgumentException("additions is null"); //$NON-NLS-1$
+        }
+        for (String name : additions.keySet()) {
+            if (properties.contains(name)) {
+                throw new IllegalArgumentException(MessageFormat.format(
+                        "The property \"{0}\" is both changed and added",
+                        name));
+            }
+        }
+        this.entity = entity;
+        this.properties = Collections.unmodifiableSet(new HashSet<String>(properties));
+        this.additions = Collections.unmodifiableMap(new HashMap<String, Integer>(additions));
+    }
+
+    /**
+     * 変更後のエンティティを返す。
+     * @return 変更後のエンティティ
+     */
+    public Entity getEntity() {
+        return entity;
+    }
+
+    /**
+     * 変更されたプロパティ名の一覧を返す。
+     * @return 変更されたプロパティ名の一覧、エンティティ全体を変更した場合は{@code null}
+     */
+    public Set<String> getChangedProperties() {
+        return properties;
+    }
+
+    /**
+     * 整数のプロパティに加算した値の一覧を返す。
+     * @return プロパティ名と加算した値の表、エンティティ全体を変更した場合は空の表
+     */
+    public Map<String, Integer> getAddedProperties() {
+        return additions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "Modification{entity=%s, properties=%s, additions=%s}",
+                entity.getSelfReference(),
+                properties,
+                additions);
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * {@code long}から{@code long}への、構造を共有する永続的なハッシュ表。
+ * <p>
+ * {@link PersistentMap}と同様のトライであるが、それぞれのノードはキーと値を{@code long}の配列に直接保持し、
+ * 子ノードのみを別の配列に保持する。そのため、エントリごとにオブジェクトを生成しない。
+ * キーは全単射なハッシュ関数で攪拌するため、異なるキーが衝突することはない。
+ * </p>
+ * <p>
+ * このオブジェクトは不変である。
+ * </p>
+ * @author ashigeru
+ */
+public final class PersistentLongMap implements Serializable {
+
+    private static final long serialVersionUID = 2584402919628226153L;
+
+    private static final Node EMPTY_NODE = new Node(0, 0, new long[0], new long[0], new Node[0]);
+
+    private static final PersistentLongMap EMPTY = new PersistentLongMap(EMPTY_NODE, 0);
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private transient Node root;
+
+    private transient int size;
+
+    private PersistentLongMap(Node root, int size) {
+        assert root != null;
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * 空の表を返す。
+     * @return 空の表
+     */
+    public static PersistentLongMap empty() {
+        return EMPTY;
+    }
+
+    /**
+     * この表に含まれるエントリの個数を返す。
+     * @return エントリの個数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 指定のキーに対応する値を返す。
+     * @param key 対象のキー
+     * @param defaultValue キーが存在しない場合に返す値
+     * @return 対応する値、存在しない場合は{@code defaultValue}
+     */
+    public long get(long key, long defaultValue) {
+        long hash = hash(key);
+        Node node = root;
+        for (int shift = 0; true; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.dataMap & bit) != 0) {
+                int index = index(node.dataMap, bit);
+                return node.keys[index] == key ? node.values[index] : defaultValue;
+            }
+            if ((node.nodeMap & bit) == 0) {
+                return defaultValue;
+            }
+            node = node.nodes[index(node.nodeMap, bit)];
+        }
+    }
+
+    /**
+     * 指定のキーが含まれる場合に{@code true}を返す。
+     * @param key 対象のキー
+     * @return 指定のキーが含まれる場合に{@code true}
+     */
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        Node node = root;
+        for (int shift = 0; true; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.dataMap & bit) != 0) {
+                return node.keys[index(node.dataMap, bit)] == key;
+            }
+            if ((node.nodeMap & bit) == 0) {
+                return false;
+            }
+            node = node.nodes[index(node.nodeMap, bit)];
+        }
+    }
+
+    /**
+     * 指定のキーに指定の値を対応づけた、新しい表を返す。
+     * @param key 対象のキー
+     * @param value 対応づける値
+     * @return 変更後の表
+     */
+    public PersistentLongMap with(long key, long value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.with(key, value, hash(key), 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentLongMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * 指定のキーに対するエントリを取り除いた、新しい表を返す。
+     * @param key 対象のキー
+     * @return 変更後の表
+     */
+    public PersistentLongMap without(long key) {
+        Node newRoot = root.without(key, hash(key), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot.isEmpty()) {
+            return EMPTY;
+        }
+        return new PersistentLongMap(newRoot, size - 1);
+    }
+
+    /**
+     * この表のエントリを走査するカーソルを返す。
+     * @return エントリを走査するカーソル
+     */
+    public Cursor cursor() {
+        return new Cursor(root);
+    }
+
+    /**
+     * キーを攪拌する全単射なハッシュ関数。
+     */
+    static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int bit(long hash, int shift) {
+        return 1 << (int) ((hash >>> shift) & MASK);
+    }
+
+    static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        stream.defaultWriteObject();
+        stream.writeInt(size);
+        for (Cursor cursor = cursor(); cursor.next();) {
+            stream.writeLong(cursor.getKey());
+            stream.writeLong(cursor.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        int count = stream.readInt();
+        PersistentLongMap result = EMPTY;
+        for (int i = 0; i < count; i++) {
+            long key = stream.readLong();
+            long value = stream.readLong();
+            result = result.with(key, value);
+        }
+        this.root = result.root;
+        this.size = result.size;
+    }
+
+    private Object readResolve() {
+        return size == 0 ? EMPTY : this;
+    }
+
+    /**
+     * トライのノード。
+     * <p>
+     * {@link #dataMap}に対応する位置のエントリを{@link #keys}と{@link #values}に、
+     * {@link #nodeMap}に対応する位置の子ノードを{@link #nodes}に、それぞれ位置の昇順に保持する。
+     * </p>
+     */
+    private static final class Node {
+
+        final int dataMap;
+
+        final int nodeMap;
+
+        final long[] keys;
+
+        final long[] values;
+
+        final Node[] nodes;
+
+        Node(int dataMap, int nodeMap, long[] keys, long[] values, Node[] nodes) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.keys = keys;
+            this.values = values;
+            this.nodes = nodes;
+        }
+
+        boolean isEmpty() {
+            return dataMap == 0 && nodeMap == 0;
+        }
+
+        boolean isSingleton() {
+            return nodeMap == 0 && keys.length == 1;
+        }
+
+        Node with(long key, long value, long hash, int shift, boolean[] added) {
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                if (keys[index] == key) {
+                    if (values[index] == value) {
+                        return this;
+                    }
+                    long[] newValues = values.clone();
+                    newValues[index] = value;
+                    return new Node(dataMap, nodeMap, keys, newValues, nodes);
+                }
+
+                // 同じ位置に別のキーがあるので、そのエントリを子ノードに移す
+                added[0] = true;
+                Node child = merge(keys[index], values[index], key, value, hash, shift + BITS);
+                return new Node(
+                        dataMap ^ bit,
+                        nodeMap | bit,
+                        removeAt(keys, index),
+                        removeAt(values, index),
+                        insertAt(nodes, index(nodeMap, bit), child));
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = index(nodeMap, bit);
+                Node child = nodes[index].with(key, value, hash, shift + BITS, added);
+                if (child == nodes[index]) {
+                    return this;
+                }
+                Node[] newNodes = nodes.clone();
+                newNodes[index] = child;
+                return new Node(dataMap, nodeMap, keys, values, newNodes);
+            }
+            added[0] = true;
+            int index = index(dataMap, bit);
+            return new Node(
+                    dataMap | bit,
+                    nodeMap,
+                    insertAt(keys, index, key),
+                    insertAt(values, index, value),
+                    nodes);
+        }
+
+        Node without(long key, long hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                if (keys[index] != key) {
+                    return this;
+                }
+                return new Node(dataMap ^ bit, nodeMap, removeAt(keys, index), removeAt(values, index), nodes);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = index(nodeMap, bit);
+                Node child = nodes[index].without(key, hash, shift + BITS);
+                if (child == nodes[index]) {
+                    return this;
+                }
+                if (child.isEmpty()) {
+                    return new Node(dataMap, nodeMap ^ bit, keys, values, removeAt(nodes, index));
+                }
+                if (child.isSingleton()) {
+                    // エントリがひとつだけになった子ノードは、このノードに引き上げる
+                    int dataIndex = index(dataMap, bit);
+                    return new Node(
+                            dataMap | bit,
+                            nodeMap ^ bit,
+                            insertAt(keys, dataIndex, child.keys[0]),
+                            insertAt(values, dataIndex, child.values[0]),
+                            removeAt(nodes, index));
+                }
+                Node[] newNodes = nodes.clone();
+                newNodes[index] = child;
+                return new Node(dataMap, nodeMap, keys, values, newNodes);
+            }
+            return this;
+        }
+
+        private static Node merge(long k1, long v1, long k2, long v2, long h2, int shift) {
+            long h1 = hash(k1);
+            int b1 = bit(h1, shift);
+            int b2 = bit(h2, shift);
+            if (b1 == b2) {
+                Node child = merge(k1, v1, k2, v2, h2, shift + BITS);
+                return new Node(0, b1, new long[0], new long[0], new Node[] { child });
+            }
+            if (index(b1 | b2, b1) == 0) {
+                return new Node(b1 | b2, 0, new long[] { k1, k2 }, new long[] { v1, v2 }, new Node[0]);
+            }
+            return new Node(b1 | b2, 0, new long[] { k2, k1 }, new long[] { v2, v1 }, new Node[0]);
+        }
+
+        private static long[] insertAt(long[] array, int index, long value) {
+            long[] result = new long[array.length + 1];
+            System.arraycopy(array, 0, result, 0, index);
+            result[index] = value;
+            System.arraycopy(array, index, result, index + 1, array.length - index);
+            return result;
+        }
+
+        private static long[] removeAt(long[] array, int index) {
+            long[] result = new long[array.length - 1];
+            System.arraycopy(array, 0, result, 0, index);
+            System.arraycopy(array, index + 1, result, index, result.length - index);
+            return result;
+        }
+
+        private static Node[] insertAt(Node[] array, int index, Node value) {
+            Node[] result = new Node[array.length + 1];
+            System.arraycopy(array, 0, result, 0, index);
+            result[index] = value;
+            System.arraycopy(array, index, result, index + 1, array.length - index);
+            return result;
+        }
+
+        private static Node[] removeAt(Node[] array, int index) {
+            Node[] result = new Node[array.length - 1];
+            System.arraycopy(array, 0, result, 0, index);
+            System.arraycopy(array, index + 1, result, index, result.length - index);
+            return result;
+        }
+    }
+
+    /**
+     * {@link PersistentLongMap}のエントリを、オブジェクトを生成せずに走査するカーソル。
+     * <pre><code>
+     * for (PersistentLongMap.Cursor cursor = map.cursor(); cursor.next();) {
+     *     long key = cursor.getKey();
+     *     long value = cursor.getValue();
+     *     ...
+     * }
+     * </code></pre>
+     * @author ashigeru
+     */
+    public static final class Cursor {
+
+        private Node[] stack = new Node[16];
+
+        private int[] positions = new int[16];
+
+        private int depth;
+
+        private Node current;
+
+        private int index;
+
+        Cursor(Node root) {
+            stack[0] = root;
+            positions[0] = -1;
+            depth = 1;
+        }
+
+        /**
+         * 次のエントリに進む。
+         * @return 次のエントリが存在する場合に{@code true}
+         */
+        public boolean next() {
+            while (depth > 0) {
+                int top = depth - 1;
+                Node node = stack[top];
+                int position = positions[top] + 1;
+                positions[top] = position;
+                if (position < node.keys.length) {
+                    current = node;
+                    index = position;
+                    return true;
+                }
+                int child = position - node.keys.length;
+                if (child < node.nodes.length) {
+                    stack[depth] = node.nodes[child];
+                    positions[depth] = -1;
+                    depth++;
+                    continue;
+                }
+                stack[top] = null;
+                depth--;
+            }
+            current = null;
+            return false;
+        }
+
+        /**
+         * 現在のエントリのキーを返す。
+         * @return 現在のエントリのキー
+         * @throws NoSuchElementException 現在のエントリが存在しない場合
+         */
+        public long getKey() {
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            return current.keys[index];
+        }
+
+        /**
+         * 現在のエントリの値を返す。
+         * @return 現在のエントリの値
+         * @throws NoSuchElementException 現在のエントリが存在しない場合
+         */
+        public long getValue() {
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            return current.values[index];
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * 構造を共有する永続的なハッシュ表 (Hash Array Mapped Trie)。
+ * <p>
+ * このオブジェクトは不変であり、{@link #with(Object, Object)}や{@link #without(Object)}は
+ * 変更を適用した新しい表を返す。
+ * 変更前と変更後の表は、変更のあった経路以外のノードをすべて共有するため、
+ * 1件の変更にかかる時間と領域は表の大きさに対して対数的である。
+ * </p>
+ * <p>
+ * キーおよび値に{@code null}を含めることはできない。
+ * 特別な指定がない限り、すべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+    private static final long serialVersionUID = -6237166218133914512L;
+
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(null, 0);
+
+    /**
+     * ハッシュ値のうち、ノードの一段で消費するビット数。
+     */
+    static final int BITS = 5;
+
+    /**
+     * ノードの一段で消費するビットを取り出すマスク。
+     */
+    static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * トライの根。空の表では{@code null}となる。
+     */
+    private transient Node root;
+
+    /**
+     * この表に含まれるエントリの個数。
+     */
+    private transient int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * 空の表を返す。
+     * @param <K> キーの型
+     * @param <V> 値の型
+     * @return 空の表
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * 指定の表と同じ内容を持つ表を返す。
+     * <p>
+     * 値が{@code null}であるようなエントリは無視される。
+     * </p>
+     * @param <K> キーの型
+     * @param <V> 値の型
+     * @param map 複製する表
+     * @return 指定の表と同じ内容を持つ表
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> of(Map<? extends K, ? extends V> map) {
+        if (map == null) {
+            throw new IllegalArgumentException("map is null"); //$NON-NLS-1$
+        }
+        if (map instanceof PersistentMap<?, ?>) {
+            return (PersistentMap<K, V>) map;
+        }
+        PersistentMap<K, V> result = empty();
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            if (entry.getValue() != null) {
+                result = result.with(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        return (V) root.find(0, hash(key), key);
+    }
+
+    /**
+     * 指定のキーに指定の値を対応づけた、新しい表を返す。
+     * <p>
+     * すでに同一の値が対応づけられている場合、この表自身を返す。
+     * </p>
+     * @param key 対象のキー
+     * @param value 対応づける値
+     * @return 変更後の表
+     */
+    public PersistentMap<K, V> with(K key, V value) {
+        if (key == null) {
+            throw new IllegalArgumentException("key is null"); //$NON-NLS-1$
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("value is null"); //$NON-NLS-1$
+        }
+        boolean[] added = new boolean[1];
+        Node base = root == null ? BitmapNode.EMPTY : root;
+        Node newRoot = base.assoc(0, hash(key), key, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * 指定のキーに対するエントリを取り除いた、新しい表を返す。
+     * <p>
+     * 指定のキーが含まれない場合、この表自身を返す。
+     * </p>
+     * @param key 対象のキー
+     * @return 変更後の表
+     */
+    public PersistentMap<K, V> without(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key is null"); //$NON-NLS-1$
+        }
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.without(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return empty();
+        }
+        return new PersistentMap<K, V>(newRoot, size - 1);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator<K, V>(root);
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    static int hash(Object key) {
+        assert key != null;
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        stream.defaultWriteObject();
+        stream.writeInt(size);
+        for (Map.Entry<K, V> entry : entrySet()) {
+            stream.writeObject(entry.getKey());
+            stream.writeObject(entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        int count = stream.readInt();
+        PersistentMap<K, V> result = empty();
+        for (int i = 0; i < count; i++) {
+            K key = (K) stream.readObject();
+            V value = (V) stream.readObject();
+            result = result.with(key, value);
+        }
+        this.root = result.root;
+        this.size = result.size;
+    }
+
+    private Object readResolve() {
+        return size == 0 ? EMPTY : this;
+    }
+
+    /**
+     * トライのノード。
+     * <p>
+     * {@link #array}はキーと値の組を交互に保持し、キーが{@code null}の組は値の位置に子ノードを保持する。
+     * </p>
+     */
+    abstract static class Node {
+
+        final Object[] array;
+
+        Node(Object[] array) {
+            assert array != null;
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(int shift, int hash, Object key, Object value, boolean[] added);
+
+        abstract Node without(int shift, int hash, Object key);
+    }
+
+    /**
+     * ハッシュ値の一部をビットマップで索引づけるノード。
+     */
+    static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+
+        BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = index(bit);
+            Object k = array[index * 2];
+            Object v = array[index * 2 + 1];
+            if (k == null) {
+                return ((Node) v).find(shift + BITS, hash, key);
+            }
+            if (key.equals(k)) {
+                return v;
+            }
+            return null;
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                // 空いている位置に新しい組を挿入
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, index * 2);
+                newArray[index * 2] = key;
+                newArray[index * 2 + 1] = value;
+                System.arraycopy(array, index * 2, newArray, index * 2 + 2, array.length - index * 2);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            Object k = array[index * 2];
+            Object v = array[index * 2 + 1];
+            if (k == null) {
+                Node child = ((Node) v).assoc(shift + BITS, hash, key, value, added);
+                if (child == v) {
+                    return this;
+                }
+                return new BitmapNode(bitmap, replace(array, index * 2 + 1, child));
+            }
+            if (key.equals(k)) {
+                if (value == v) {
+                    return this;
+                }
+                return new BitmapNode(bitmap, replace(array, index * 2 + 1, value));
+            }
+
+            // 同じ位置に別のキーがあるので、一段掘り下げる
+            added[0] = true;
+            Node child = createNode(shift + BITS, k, v, hash, key, value);
+            Object[] newArray = replace(array, index * 2 + 1, child);
+            newArray[index * 2] = null;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        Node without(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object k = array[index * 2];
+            Object v = array[index * 2 + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(shift + BITS, hash, key);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    return new BitmapNode(bitmap, replace(array, index * 2 + 1, child));
+                }
+            }
+            else if (key.equals(k) == false) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index * 2);
+            System.arraycopy(array, index * 2 + 2, newArray, index * 2, newArray.length - index * 2);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private static Node createNode(int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = hash(k1);
+            if (h1 == h2) {
+                return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+            }
+            boolean[] added = new boolean[1];
+            return EMPTY
+                .assoc(shift, h1, k1, v1, added)
+                .assoc(shift, h2, k2, v2, added);
+        }
+    }
+
+    /**
+     * ハッシュ値が完全に一致するキーを線形に保持するノード。
+     */
+    static final class CollisionNode extends Node {
+
+        final int hash;
+
+        CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        @Override
+        Object find(int shift, int h, Object key) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return null;
+            }
+            return array[index + 1];
+        }
+
+        @Override
+        Node assoc(int shift, int h, Object key, Object value, boolean[] added) {
+            if (h != hash) {
+                // ハッシュ値が異なる場合は、ビットマップノードで包んでから追加する
+                return new BitmapNode(bit(hash, shift), new Object[] { null, this })
+                    .assoc(shift, h, key, value, added);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (array[index + 1] == value) {
+                    return this;
+                }
+                return new CollisionNode(hash, replace(array, index + 1, value));
+            }
+            Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node without(int shift, int h, Object key) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, newArray.length - index);
+            return new CollisionNode(hash, newArray);
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    static Object[] replace(Object[] array, int index, Object value) {
+        Object[] copy = array.clone();
+        copy[index] = value;
+        return copy;
+    }
+
+    /**
+     * トライを深さ優先で走査する反復子。
+     * @param <K> キーの型
+     * @param <V> 値の型
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        private Object[][] arrays = new Object[8][];
+
+        private int[] positions = new int[8];
+
+        private int depth;
+
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                arrays[0] = root.array;
+                depth = 1;
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            while (depth > 0) {
+                int top = depth - 1;
+                Object[] array = arrays[top];
+                int position = positions[top];
+                if (position >= array.length) {
+                    arrays[top] = null;
+                    positions[top] = 0;
+                    depth--;
+                    continue;
+                }
+                positions[top] = position + 2;
+                Object k = array[position];
+                Object v = array[position + 1];
+                if (k == null) {
+                    push(((Node) v).array);
+                }
+                else {
+                    next = new SimpleImmutableEntry<K, V>((K) k, (V) v);
+                    return;
+                }
+            }
+            next = null;
+        }
+
+        private void push(Object[] array) {
+            if (depth == arrays.length) {
+                Object[][] newArrays = new Object[depth * 2][];
+                System.arraycopy(arrays, 0, newArrays, 0, depth);
+                arrays = newArrays;
+                int[] newPositions = new int[depth * 2];
+                System.arraycopy(positions, 0, newPositions, 0, depth);
+                positions = newPositions;
+            }
+            arrays[depth] = array;
+            positions[depth] = 0;
+            depth++;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
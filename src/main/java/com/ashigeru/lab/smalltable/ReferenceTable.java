@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * {@link Revision}が保持する、エンティティへの参照からエンティティの識別子への永続的な表。
+ * <p>
+ * 実装は不変でなければならず、{@link #update(Map)}は変更を適用した新しい表を返す。
+ * バックエンドは識別子の表現に合わせた実装を提供できる。
+ * </p>
+ * <p>
+ * 特別な指定がない限り、すべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ * @param <T> エンティティ識別子の種類
+ */
+public interface ReferenceTable<T> extends Serializable {
+
+    /**
+     * 指定の参照に対応する識別子を返す。
+     * @param reference 対象の参照
+     * @return 対応する識別子、存在しない場合は{@code null}
+     */
+    T get(Entity.Reference reference);
+
+    /**
+     * この表に含まれる参照の個数を返す。
+     * @return 参照の個数
+     */
+    int size();
+
+    /**
+     * この表に指定の変更を適用した、新しい表を返す。
+     * @param delta 参照と識別子の変更一覧、削除された参照については識別子を{@code null}で表す
+     * @return 変更後の表
+     */
+    ReferenceTable<T> update(Map<Entity.Reference, T> delta);
+
+    /**
+     * この表の内容を{@link Map}として返す。
+     * @return この表の内容 (変更できない)
+     */
+    Map<Entity.Reference, T> asMap();
+}
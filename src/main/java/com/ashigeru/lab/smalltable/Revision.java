@@ -16,8 +16,11 @@
 package com.ashigeru.lab.smalltable;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -37,13 +40,40 @@ public class Revision<T> implements Serializable {
 
     /**
      * 名前つき参照の一覧表。
+     * <p>
+     * 前後のリビジョンとほとんどのノードを共有する。
+     * </p>
      */
-    private Map<String, Entity.Reference> bindings;
+    private PersistentMap<String, Entity.Reference> bindings;
 
     /**
      * エンティティへの参照をエンティティへの実体にマッピングする表。
+     * <p>
+     * 前後のリビジョンとほとんどのノードを共有する。
+     * </p>
+     */
+    private ReferenceTable<T> entities;
+
+    /**
+     * このリビジョンの直前のリビジョン。
+     * <p>
+     * 直前のリビジョンが存在しない、または追跡できない場合 (直列化された後など) は{@code null}となる。
+     * </p>
      */
-    private Map<Entity.Reference, T> entities;
+    private transient volatile Revision<T> parent;
+
+    /**
+     * 直前のリビジョンからこのリビジョンを作成した変更。
+     * <p>
+     * {@link #parent}が{@code null}の場合は{@code null}となる。
+     * </p>
+     */
+    private transient Revision.Delta<T> delta;
+
+    /**
+     * 起点となるリビジョンからこのリビジョンまでに適用された変更の個数。
+     */
+    private long generation;
 
     /**
      * インスタンスを生成する。
@@ -58,8 +88,25 @@ public class Revision<T> implements Serializable {
         if (entities == null) {
             throw new IllegalArgumentException("entities is null"); //$NON-NLS-1$
         }
-        this.bindings = new HashMap<String, Reference>(bindings);
-        this.entities = new HashMap<Reference, T>(entities);
+        this.bindings = PersistentMap.of(bindings);
+        this.entities = new MapTable<T>(PersistentMap.of(entities));
+    }
+
+    /**
+     * インスタンスを生成する。
+     * @param bindings このリビジョンから利用可能な名前つき参照の一覧表
+     * @param entities このリビジョンから利用可能なエンティティへの参照とその実体への表
+     */
+    public Revision(Map<String, Entity.Reference> bindings, ReferenceTable<T> entities) {
+        this();
+        if (bindings == null) {
+            throw new IllegalArgumentException("bindings is null"); //$NON-NLS-1$
+        }
+        if (entities == null) {
+            throw new IllegalArgumentException("entities is null"); //$NON-NLS-1$
+        }
+        this.bindings = PersistentMap.of(bindings);
+        this.entities = entities;
     }
 
     /**
@@ -69,6 +116,45 @@ public class Revision<T> implements Serializable {
         return;
     }
 
+    /**
+     * このリビジョンの直前のリビジョンを返す。
+     * @return 直前のリビジョン、存在しないまたは追跡できない場合は{@code null}
+     */
+    public Revision<T> getParent() {
+        return parent;
+    }
+
+    /**
+     * 直前のリビジョンからこのリビジョンを作成した変更を返す。
+     * @return 直前のリビジョンからの変更、直前のリビジョンを追跡できない場合は{@code null}
+     */
+    public Revision.Delta<T> getDelta() {
+        if (parent == null) {
+            return null;
+        }
+        return delta;
+    }
+
+    /**
+     * このリビジョンより前のリビジョンを追跡しないようにする。
+     * <p>
+     * 以降、このリビジョンより前のリビジョンは{@link #getParent()}から参照できなくなり、
+     * 他から参照されていなければ破棄される。
+     * それらのリビジョンからこのリビジョン以降への変更は、リビジョンの内容をすべて比較して計算される。
+     * </p>
+     */
+    public void truncateHistory() {
+        this.parent = null;
+    }
+
+    /**
+     * 起点となるリビジョンからこのリビジョンまでに適用された変更の個数を返す。
+     * @return このリビジョンの世代
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
     /**
      * このリビジョンにおいて指定の名前がつけられた参照を返す。
      * @param name 対象の名前
@@ -81,6 +167,30 @@ public class Revision<T> implements Serializable {
         return bindings.get(name);
     }
 
+    /**
+     * このリビジョンにおける名前つき参照の一覧表を返す。
+     * @return 名前つき参照の一覧表 (変更できない)
+     */
+    public Map<String, Entity.Reference> getBindingMap() {
+        return bindings;
+    }
+
+    /**
+     * このリビジョンにおける、エンティティへの参照とその識別子の表を返す。
+     * @return エンティティへの参照とその識別子の表 (変更できない)
+     */
+    public Map<Entity.Reference, T> getEntityMap() {
+        return entities.asMap();
+    }
+
+    /**
+     * このリビジョンにおける、エンティティへの参照とその識別子の表を返す。
+     * @return エンティティへの参照とその識別子の表
+     */
+    public ReferenceTable<T> getEntityTable() {
+        return entities;
+    }
+
     /**
      * このリビジョンにおいて指定の参照に対するエンティティの識別子を返す。
      * @param reference 対象の参照
@@ -95,6 +205,11 @@ public class Revision<T> implements Serializable {
 
     /**
      * このリビジョンを起点として、指定のリビジョンまでの変更を計算して返す。
+     * <p>
+     * 指定のリビジョンが直前のリビジョンをたどってこのリビジョンに到達できる場合、
+     * その間の変更のみを合成するため、この呼び出しは間に行われた変更の大きさに比例した時間で完了する。
+     * そうでない場合、2つのリビジョンの内容をすべて比較する。
+     * </p>
      * @param target 変更後のリビジョン
      * @return このリビジョンから指定のリビジョンまでの変更情報
      */
@@ -102,9 +217,51 @@ public class Revision<T> implements Serializable {
         if (target == null) {
             throw new IllegalArgumentException("target is null"); //$NON-NLS-1$
         }
+        List<Revision.Delta<T>> chain = collectDeltas(target);
+        if (chain != null) {
+            return compose(chain);
+        }
         Map<String, Reference> bindingDelta = difference(bindings, target.bindings);
-        Map<Reference, T> entityDelta = difference(entities, target.entities);
-        return new Revision.Delta<T>(bindingDelta, entityDelta);
+        Map<Reference, T> entityDelta = difference(entities.asMap(), target.entities.asMap());
+        return new Revision.Delta<T>(
+                bindingDelta,
+                entityDelta,
+                Collections.<Reference, Set<String>>emptyMap(),
+                Collections.<Reference, Map<String, Integer>>emptyMap(),
+                false);
+    }
+
+    private List<Revision.Delta<T>> collectDeltas(Revision<T> target) {
+        assert target != null;
+        List<Revision.Delta<T>> results = new ArrayList<Revision.Delta<T>>();
+        Revision<T> current = target;
+        while (current != this) {
+            Revision<T> p = current.parent;
+            if (current.generation <= generation || p == null) {
+                // このリビジョンの子孫ではない、または追跡できない
+                return null;
+            }
+            results.add(current.delta);
+            current = p;
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    private static <T> Revision.Delta<T> compose(List<Revision.Delta<T>> chain) {
+        assert chain != null;
+        Map<String, Reference> bindingDelta = new HashMap<String, Reference>();
+        Map<Reference, T> entityDelta = new HashMap<Reference, T>();
+        Map<Reference, Set<String>> propertyDelta = new HashMap<Reference, Set<String>>();
+        Map<Reference, Map<String, Integer>> additionDelta = new HashMap<Reference, Map<String, Integer>>();
+
+        // 古い順に重ねていき、同じキーについては新しい変更で上書きする
+        for (Revision.Delta<T> d : chain) {
+            bindingDelta.putAll(d.bindings);
+            Delta.mergeProperties(entityDelta, propertyDelta, additionDelta, d);
+            entityDelta.putAll(d.entities);
+        }
+        return new Revision.Delta<T>(bindingDelta, entityDelta, propertyDelta, additionDelta, false);
     }
 
     private static <K extends Comparable<K>, V> Map<K, V> difference(Map<K, V> from, Map<K, V> to) {
@@ -143,7 +300,12 @@ public class Revision<T> implements Serializable {
 
     /**
      * このリビジョンに指定の変更情報を適用した、新しいリビジョンを返す。
-     * @param delta 対象の変更情報
+     * <p>
+     * 新しいリビジョンはこのリビジョンと変更のない部分を共有するため、
+     * この呼び出しは変更の大きさに比例した時間で完了する。
+     * また、新しいリビジョンはこのリビジョンを直前のリビジョンとして記憶する。
+     * </p>
+     * @param delta 対象の変更情報、以降は変更してはならない
      * @return 対象の変更情報を適用した新しいリビジョン
      */
     public Revision<T> apply(Revision.Delta<T> delta) {
@@ -152,28 +314,76 @@ public class Revision<T> implements Serializable {
         }
         Revision<T> results = new Revision<T>();
         results.bindings = apply(bindings, delta.bindings);
-        results.entities = apply(entities, delta.entities);
+        results.entities = entities.update(delta.entities);
+        results.parent = this;
+        results.delta = delta;
+        results.generation = generation + 1;
         return results;
     }
 
-    private static <K extends Comparable<K>, V> Map<K, V> apply(Map<K, V> origin, Map<K, V> delta) {
+    private static <K extends Comparable<K>, V> PersistentMap<K, V> apply(
+            PersistentMap<K, V> origin,
+            Map<K, V> delta) {
         assert origin != null;
         assert delta != null;
-        if (delta.isEmpty()) {
-            return origin;
-        }
-        Map<K, V> result = new HashMap<K, V>(origin);
+        PersistentMap<K, V> result = origin;
         for (Map.Entry<K, V> entry : delta.entrySet()) {
             if (entry.getValue() == null) {
-                result.remove(entry.getKey());
+                result = result.without(entry.getKey());
             }
             else {
-                result.put(entry.getKey(), entry.getValue());
+                result = result.with(entry.getKey(), entry.getValue());
             }
         }
         return result;
     }
 
+    /**
+     * {@link PersistentMap}による{@link ReferenceTable}の実装。
+     * @param <T> エンティティ識別子の種類
+     */
+    private static final class MapTable<T> implements ReferenceTable<T> {
+
+        private static final long serialVersionUID = 6502254581458429315L;
+
+        private final PersistentMap<Entity.Reference, T> map;
+
+        MapTable(PersistentMap<Entity.Reference, T> map) {
+            assert map != null;
+            this.map = map;
+        }
+
+        @Override
+        public T get(Reference reference) {
+            if (reference == null) {
+                throw new IllegalArgumentException("reference is null"); //$NON-NLS-1$
+            }
+            return map.get(reference);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public ReferenceTable<T> update(Map<Reference, T> delta) {
+            if (delta == null) {
+                throw new IllegalArgumentException("delta is null"); //$NON-NLS-1$
+            }
+            PersistentMap<Reference, T> result = apply(map, delta);
+            if (result == map) {
+                return this;
+            }
+            return new MapTable<T>(result);
+        }
+
+        @Override
+        public Map<Reference, T> asMap() {
+            return map;
+        }
+    }
+
     /**
      * リビジョン間の差分。
      * <p>
@@ -186,13 +396,19 @@ public class Revision<T> implements Serializable {
 
         private static final long serialVersionUID = -9193626137447698064L;
 
+        private static final int FILTER_BITS_PER_ELEMENT = 16;
+
+        private static final int MAX_FILTER_WORDS = 1 << 20;
+
+        private static final Set<String> NO_NAMES = Collections.emptySet();
+
         /**
          * 変更があった名前つき参照の表。
          * <p>
          * 削除された名前つき参照については、名前に対する値が{@code null}となる。
          * </p>
          */
-        Map<String, Entity.Reference> bindings;
+        private Map<String, Entity.Reference> bindings;
 
         /**
          * 変更があったエンティティの識別子表。
@@ -200,7 +416,33 @@ public class Revision<T> implements Serializable {
          * 削除された識別子については、参照に対する識別子が{@code null}となる。
          * </p>
          */
-        Map<Entity.Reference, T> entities;
+        private Map<Entity.Reference, T> entities;
+
+        /**
+         * エンティティごとの、変更があったプロパティ名の一覧。
+         * <p>
+         * ここに含まれない参照については、エンティティ全体が変更されたものとみなす。
+         * </p>
+         */
+        private Map<Entity.Reference, Set<String>> properties;
+
+        /**
+         * エンティティごとの、整数のプロパティに加算した値の一覧。
+         * <p>
+         * 加算は互いに交換可能であるため、同じプロパティへの加算どうしは衝突しない。
+         * ここに含まれるプロパティは、{@link #properties}には含まれない。
+         * </p>
+         */
+        private Map<Entity.Reference, Map<String, Integer>> additions;
+
+        /**
+         * 変更があった名前つき参照の名前と、エンティティの参照を要素とするブルームフィルタ。
+         * <p>
+         * ビット数は2の冪乗で、必要になった時点で計算される。
+         * それぞれの表は生成時に複製した変更できないものであるため、一度計算したフィルタは常に有効である。
+         * </p>
+         */
+        private transient volatile long[] filter;
 
         /**
          * インスタンスを生成する。
@@ -208,18 +450,179 @@ public class Revision<T> implements Serializable {
          * @param entities 変更があったエンティティの識別子表。削除された識別子については、参照に対する識別子を{@code null}で表す
          */
         public Delta(Map<String, Entity.Reference> bindings, Map<Entity.Reference, T> entities) {
+            this(bindings, entities, Collections.<Entity.Reference, Set<String>>emptyMap());
+        }
+
+        /**
+         * エンティティごとに変更があったプロパティを指定して、インスタンスを生成する。
+         * <p>
+         * 変更があったプロパティが指定されていないエンティティや、削除されたエンティティについては、
+         * エンティティ全体が変更されたものとみなす。
+         * </p>
+         * @param bindings 変更があった名前つき参照の表。削除された名前つき参照については、名前に対する値を{@code null}で表す
+         * @param entities 変更があったエンティティの識別子表。削除された識別子については、参照に対する識別子を{@code null}で表す
+         * @param properties エンティティへの参照と、そのエンティティで変更があったプロパティ名の一覧の表
+         */
+        public Delta(
+                Map<String, Entity.Reference> bindings,
+                Map<Entity.Reference, T> entities,
+                Map<Entity.Reference, Set<String>> properties) {
+            this(bindings, entities, properties, Collections.<Entity.Reference, Map<String, Integer>>emptyMap());
+        }
+
+        /**
+         * エンティティごとに変更があったプロパティと、整数のプロパティへの加算を指定して、インスタンスを生成する。
+         * <p>
+         * 加算は、変更があったプロパティが指定されたエンティティについてのみ有効である。
+         * </p>
+         * @param bindings 変更があった名前つき参照の表。削除された名前つき参照については、名前に対する値を{@code null}で表す
+         * @param entities 変更があったエンティティの識別子表。削除された識別子については、参照に対する識別子を{@code null}で表す
+         * @param properties エンティティへの参照と、そのエンティティで変更があったプロパティ名の一覧の表
+         * @param additions エンティティへの参照と、そのエンティティの整数のプロパティに加算した値の表
+         */
+        public Delta(
+                Map<String, Entity.Reference> bindings,
+                Map<Entity.Reference, T> entities,
+                Map<Entity.Reference, Set<String>> properties,
+                Map<Entity.Reference, Map<String, Integer>> additions) {
+            this(bindings, entities, properties, additions, true);
+        }
+
+        /**
+         * インスタンスを生成する。
+         * @param bindings 変更があった名前つき参照の表
+         * @param entities 変更があったエンティティの識別子表
+         * @param properties エンティティへの参照と、そのエンティティで変更があったプロパティ名の一覧の表
+         * @param additions エンティティへの参照と、そのエンティティの整数のプロパティに加算した値の表
+         * @param copy 指定の表を複製する場合は{@code true}、
+         *     この変更のためだけに作成した表をそのまま利用する場合は{@code false}
+         */
+        private Delta(
+                Map<String, Entity.Reference> bindings,
+                Map<Entity.Reference, T> entities,
+                Map<Entity.Reference, Set<String>> properties,
+                Map<Entity.Reference, Map<String, Integer>> additions,
+                boolean copy) {
             if (bindings == null) {
                 throw new IllegalArgumentException("bindings is null"); //$NON-NLS-1$
             }
             if (entities == null) {
                 throw new IllegalArgumentException("entities is null"); //$NON-NLS-1$
             }
-            this.bindings = bindings;
-            this.entities = entities;
+            if (properties == null) {
+                throw new IllegalArgumentException("properties is null"); //$NON-NLS-1$
+            }
+            if (additions == null) {
+                throw new IllegalArgumentException("additions is null"); //$NON-NLS-1$
+            }
+            if (copy) {
+                // 呼び出し元が後から表を変更しても、この変更やブルームフィルタに影響しないようにする
+                this.bindings = Collections.unmodifiableMap(new HashMap<String, Entity.Reference>(bindings));
+                this.entities = Collections.unmodifiableMap(new HashMap<Entity.Reference, T>(entities));
+                this.properties = copyProperties(properties);
+                this.additions = copyAdditions(additions);
+            }
+            else {
+                this.bindings = Collections.unmodifiableMap(bindings);
+                this.entities = Collections.unmodifiableMap(entities);
+                this.properties = Collections.unmodifiableMap(properties);
+                this.additions = Collections.unmodifiableMap(additions);
+            }
+        }
+
+        private static Map<Entity.Reference, Set<String>> copyProperties(
+                Map<Entity.Reference, Set<String>> properties) {
+            assert properties != null;
+            if (properties.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<Entity.Reference, Set<String>> results = new HashMap<Entity.Reference, Set<String>>();
+            for (Map.Entry<Entity.Reference, Set<String>> entry : properties.entrySet()) {
+                Set<String> names = entry.getValue();
+                results.put(entry.getKey(), names == null
+                        ? null
+                        : Collections.unmodifiableSet(new HashSet<String>(names)));
+            }
+            return Collections.unmodifiableMap(results);
+        }
+
+        private static Map<Entity.Reference, Map<String, Integer>> copyAdditions(
+                Map<Entity.Reference, Map<String, Integer>> additions) {
+            assert additions != null;
+            if (additions.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<Entity.Reference, Map<String, Integer>> results = new HashMap<Entity.Reference, Map<String, Integer>>();
+            for (Map.Entry<Entity.Reference, Map<String, Integer>> entry : additions.entrySet()) {
+                Map<String, Integer> added = entry.getValue();
+                results.put(entry.getKey(), added == null
+                        ? null
+                        : Collections.unmodifiableMap(new HashMap<String, Integer>(added)));
+            }
+            return Collections.unmodifiableMap(results);
+        }
+
+        /**
+         * 変更があった名前つき参照の表を返す。
+         * <p>
+         * 削除された名前つき参照については、名前に対する値が{@code null}となる。
+         * </p>
+         * @return 変更があった名前つき参照の表
+         */
+        public Map<String, Entity.Reference> getBindingMap() {
+            return bindings;
+        }
+
+        /**
+         * 変更があったエンティティの識別子表を返す。
+         * <p>
+         * 削除された識別子については、参照に対する識別子が{@code null}となる。
+         * </p>
+         * @return 変更があったエンティティの識別子表
+         */
+        public Map<Entity.Reference, T> getEntityMap() {
+            return entities;
+        }
+
+        /**
+         * 指定のエンティティについて、変更があったプロパティ名の一覧を返す。
+         * @param reference 対象のエンティティへの参照
+         * @return 変更があったプロパティ名の一覧 (変更できない)、
+         *     エンティティ全体が変更された場合や、この変更にエンティティが含まれない場合は{@code null}
+         */
+        public Set<String> getChangedProperties(Entity.Reference reference) {
+            if (reference == null) {
+                throw new IllegalArgumentException("reference is null"); //$NON-NLS-1$
+            }
+            if (entities.get(reference) == null || properties == null) {
+                // 削除された場合は常にエンティティ全体の変更とする
+                return null;
+            }
+            Set<String> names = properties.get(reference);
+            if (names == null) {
+                return null;
+            }
+            return Collections.unmodifiableSet(names);
+        }
+
+        /**
+         * 指定のエンティティについて、整数のプロパティに加算した値の一覧を返す。
+         * @param reference 対象のエンティティへの参照
+         * @return プロパティ名と加算した値の表 (変更できない)、
+         *     エンティティ全体が変更された場合や、加算を行っていない場合は空の表
+         */
+        public Map<String, Integer> getAddedProperties(Entity.Reference reference) {
+            if (reference == null) {
+                throw new IllegalArgumentException("reference is null"); //$NON-NLS-1$
+            }
+            return Collections.unmodifiableMap(getAddedProperties0(reference));
         }
 
         /**
          * この変更に、指定された名前つき参照またはエンティティの参照がひとつでも含まれる場合に{@code true}を返す。
+         * <p>
+         * 指定されたエンティティは、それぞれエンティティ全体が変更されたものとみなす。
+         * </p>
          * @param bindingsChanged 名前つき参照の名前一覧
          * @param entityChanged エンティティの識別子表の参照一覧
          * @return いずれかの名前、または参照が含まれる場合に{@code true}
@@ -231,30 +634,315 @@ public class Revision<T> implements Serializable {
             if (entityChanged == null) {
                 throw new IllegalArgumentException("entityChanged is null"); //$NON-NLS-1$
             }
-            if (conflictsAny(bindings.keySet(), bindingsChanged)) {
+            long[] f = getFilter();
+            if (conflictsWithBindings(f, bindingsChanged)) {
                 return true;
             }
-            if (conflictsAny(entities.keySet(), entityChanged)) {
+            for (Entity.Reference reference : entityChanged) {
+                if (mightContain(f, hashReference(reference)) && conflictsOn(reference, null, NO_NAMES)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * この変更が、指定された名前つき参照、またはエンティティのプロパティの変更と衝突する場合に{@code true}を返す。
+         * <p>
+         * 同じエンティティを変更していても、互いに異なるプロパティのみを変更している場合は衝突とみなさない。
+         * いずれかがエンティティ全体を変更している場合は衝突となる。
+         * </p>
+         * @param bindingsChanged 名前つき参照の名前一覧
+         * @param entityChanged エンティティへの参照と、変更されたプロパティ名の一覧の表。
+         *     エンティティ全体を変更した場合はプロパティ名の一覧を{@code null}で表す
+         * @return 衝突する場合に{@code true}
+         */
+        public boolean conflictsWith(Set<String> bindingsChanged, Map<Entity.Reference, Set<String>> entityChanged) {
+            return conflictsWith(bindingsChanged, entityChanged, Collections.<Entity.Reference, Set<String>>emptyMap());
+        }
+
+        /**
+         * この変更が、指定された名前つき参照、またはエンティティのプロパティの変更や加算と衝突する場合に{@code true}を返す。
+         * <p>
+         * 同じエンティティを変更していても、互いに異なるプロパティのみを変更している場合は衝突とみなさない。
+         * また、同じプロパティへの加算どうしは衝突とみなさない。
+         * いずれかがエンティティ全体を変更している場合は衝突となる。
+         * </p>
+         * @param bindingsChanged 名前つき参照の名前一覧
+         * @param entityChanged エンティティへの参照と、変更されたプロパティ名の一覧の表。
+         *     エンティティ全体を変更した場合はプロパティ名の一覧を{@code null}で表す
+         * @param entityAdded エンティティへの参照と、加算を行ったプロパティ名の一覧の表
+         * @return 衝突する場合に{@code true}
+         */
+        public boolean conflictsWith(
+                Set<String> bindingsChanged,
+                Map<Entity.Reference, Set<String>> entityChanged,
+                Map<Entity.Reference, Set<String>> entityAdded) {
+            if (bindingsChanged == null) {
+                throw new IllegalArgumentException("bindingsChanged is null"); //$NON-NLS-1$
+            }
+            if (entityChanged == null) {
+                throw new IllegalArgumentException("entityChanged is null"); //$NON-NLS-1$
+            }
+            if (entityAdded == null) {
+                throw new IllegalArgumentException("entityAdded is null"); //$NON-NLS-1$
+            }
+            long[] f = getFilter();
+            if (conflictsWithBindings(f, bindingsChanged)) {
                 return true;
             }
+            for (Map.Entry<Entity.Reference, Set<String>> entry : entityChanged.entrySet()) {
+                Entity.Reference reference = entry.getKey();
+                Set<String> added = entityAdded.get(reference);
+                if (mightContain(f, hashReference(reference))
+                        && conflictsOn(reference, entry.getValue(), added == null ? NO_NAMES : added)) {
+                    return true;
+                }
+            }
             return false;
         }
 
-        private static <K> boolean conflictsAny(Set<K> a, Set<K> b) {
+        /**
+         * この変更と指定の変更が衝突する場合に{@code true}を返す。
+         * <p>
+         * 2つの変更が同一の名前つき参照を含む場合や、同一のエンティティの同一のプロパティを変更している場合は衝突となる。
+         * いずれかがエンティティ全体を変更している場合も衝突となる。
+         * 同一のプロパティへの加算どうしは衝突しないが、加算と変更は衝突する。
+         * </p>
+         * @param other 比較する変更
+         * @return 2つの変更が衝突する場合に{@code true}
+         */
+        public boolean conflictsWith(Delta<T> other) {
+            if (other == null) {
+                throw new IllegalArgumentException("other is null"); //$NON-NLS-1$
+            }
+            return overlaps(other);
+        }
+
+        /**
+         * この変更と指定の変更が衝突する場合に{@code true}を返す。
+         * <p>
+         * まず互いのブルームフィルタを比較し、共通するビットがなければ直ちに{@code false}を返す。
+         * そうでなければ、小さい方の変更の要素を大きい方のフィルタで検査し、
+         * フィルタに含まれうる要素についてのみ実際の表を検査する。
+         * </p>
+         * @param other 比較する変更
+         * @return 2つの変更が衝突する場合に{@code true}
+         */
+        private boolean overlaps(Delta<T> other) {
+            assert other != null;
+            if (mayIntersect(getFilter(), other.getFilter()) == false) {
+                return false;
+            }
+            Delta<T> small;
+            Delta<T> large;
+            if (bindings.size() + entities.size() < other.bindings.size() + other.entities.size()) {
+                small = this;
+                large = other;
+            }
+            else {
+                small = other;
+                large = this;
+            }
+            long[] f = large.getFilter();
+            if (large.conflictsWithBindings(f, small.bindings.keySet())) {
+                return true;
+            }
+            for (Entity.Reference reference : small.entities.keySet()) {
+                if (mightContain(f, hashReference(reference))
+                        && large.conflictsOn(
+                                reference,
+                                small.getChangedProperties0(reference),
+                                small.getAddedProperties0(reference).keySet())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean conflictsWithBindings(long[] f, Set<String> names) {
+            assert f != null;
+            assert names != null;
+            for (String name : names) {
+                if (mightContain(f, hashBinding(name)) && bindings.containsKey(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean conflictsOn(Entity.Reference reference, Set<String> changed, Set<String> added) {
+            assert reference != null;
+            assert added != null;
+            if (entities.containsKey(reference) == false) {
+                return false;
+            }
+            Set<String> mine = getChangedProperties0(reference);
+            if (mine == null || changed == null) {
+                return true;
+            }
+            // 変更どうし、または変更と加算が同じプロパティを対象にしていれば衝突する
+            if (intersects(mine, changed) || intersects(mine, added)) {
+                return true;
+            }
+            return intersects(getAddedProperties0(reference).keySet(), changed);
+        }
+
+        private static boolean intersects(Set<String> a, Set<String> b) {
             assert a != null;
             assert b != null;
-            if (a.size() < b.size()) {
-                for (K k : a) {
-                    if (b.contains(k)) {
-                        return true;
-                    }
+            Set<String> small = a.size() < b.size() ? a : b;
+            Set<String> large = small == a ? b : a;
+            for (String name : small) {
+                if (large.contains(name)) {
+                    return true;
                 }
             }
-            else {
-                for (K k : b) {
-                    if (a.contains(k)) {
-                        return true;
+            return false;
+        }
+
+        private Set<String> getChangedProperties0(Entity.Reference reference) {
+            assert reference != null;
+            if (properties == null || entities.get(reference) == null) {
+                return null;
+            }
+            return properties.get(reference);
+        }
+
+        private Map<String, Integer> getAddedProperties0(Entity.Reference reference) {
+            assert reference != null;
+            if (additions == null || getChangedProperties0(reference) == null) {
+                return Collections.emptyMap();
+            }
+            Map<String, Integer> added = additions.get(reference);
+            if (added == null) {
+                return Collections.emptyMap();
+            }
+            return added;
+        }
+
+        /**
+         * 指定の変更を重ねた場合の、エンティティごとの変更があったプロパティ名と加算の一覧を計算する。
+         * <p>
+         * この呼び出しは、{@code next}の識別子表を{@code entities}に重ねる前に行う必要がある。
+         * </p>
+         * @param entities これまでに重ねた識別子表
+         * @param properties これまでに重ねたプロパティ名の一覧、結果で上書きされる
+         * @param additions これまでに重ねた加算の一覧、結果で上書きされる
+         * @param next 重ねる変更
+         */
+        static <T> void mergeProperties(
+                Map<Entity.Reference, T> entities,
+                Map<Entity.Reference, Set<String>> properties,
+                Map<Entity.Reference, Map<String, Integer>> additions,
+                Delta<T> next) {
+            assert entities != null;
+            assert properties != null;
+            assert additions != null;
+            assert next != null;
+            for (Entity.Reference reference : next.entities.keySet()) {
+                Set<String> names = next.getChangedProperties0(reference);
+                Map<String, Integer> added = next.getAddedProperties0(reference);
+                if (names == null) {
+                    // エンティティ全体の変更となる
+                    properties.remove(reference);
+                    additions.remove(reference);
+                }
+                else if (entities.containsKey(reference) == false) {
+                    properties.put(reference, names);
+                    if (added.isEmpty() == false) {
+                        additions.put(reference, added);
+                    }
+                }
+                else if (properties.containsKey(reference)) {
+                    // どちらもプロパティのみの変更であれば、その和集合となる
+                    Set<String> union = new HashSet<String>(properties.get(reference));
+                    union.addAll(names);
+                    properties.put(reference, union);
+
+                    // 加算は足し合わせ、後から変更されたプロパティは変更として扱う
+                    Map<String, Integer> sum = new HashMap<String, Integer>();
+                    Map<String, Integer> current = additions.get(reference);
+                    if (current != null) {
+                        sum.putAll(current);
+                    }
+                    for (Map.Entry<String, Integer> entry : added.entrySet()) {
+                        Integer value = sum.get(entry.getKey());
+                        int base = value == null ? 0 : value.intValue();
+                        sum.put(entry.getKey(), Integer.valueOf(base + entry.getValue().intValue()));
+                    }
+                    sum.keySet().removeAll(union);
+                    if (sum.isEmpty()) {
+                        additions.remove(reference);
                     }
+                    else {
+                        additions.put(reference, sum);
+                    }
+                }
+            }
+        }
+
+        private long[] getFilter() {
+            long[] f = filter;
+            if (f == null) {
+                f = buildFilter();
+                filter = f;
+            }
+            return f;
+        }
+
+        private long[] buildFilter() {
+            // 要素あたり16ビット程度を割り当てる
+            long bits = Math.max(64L, (bindings.size() + entities.size()) * (long) FILTER_BITS_PER_ELEMENT);
+            int words = 1;
+            while (words * 64L < bits && words < MAX_FILTER_WORDS) {
+                words <<= 1;
+            }
+            long[] f = new long[words];
+            for (String name : bindings.keySet()) {
+                addToFilter(f, hashBinding(name));
+            }
+            for (Entity.Reference reference : entities.keySet()) {
+                addToFilter(f, hashReference(reference));
+            }
+            return f;
+        }
+
+        private static long hashBinding(String name) {
+            assert name != null;
+            // 参照のハッシュ値と重なりにくいように、名前のハッシュ値を上位にずらしてから攪拌する
+            return PersistentLongMap.hash(((long) name.hashCode() << 32) ^ 0x5bd1e995L);
+        }
+
+        private static long hashReference(Entity.Reference reference) {
+            assert reference != null;
+            return PersistentLongMap.hash(reference.value);
+        }
+
+        private static void addToFilter(long[] f, long hash) {
+            long mask = f.length * 64L - 1;
+            int h1 = (int) (hash & mask);
+            int h2 = (int) ((hash >>> 32) & mask);
+            f[h1 >>> 6] |= 1L << h1;
+            f[h2 >>> 6] |= 1L << h2;
+        }
+
+        private static boolean mightContain(long[] f, long hash) {
+            long mask = f.length * 64L - 1;
+            int h1 = (int) (hash & mask);
+            int h2 = (int) ((hash >>> 32) & mask);
+            return (f[h1 >>> 6] & (1L << h1)) != 0
+                && (f[h2 >>> 6] & (1L << h2)) != 0;
+        }
+
+        private static boolean mayIntersect(long[] a, long[] b) {
+            // ビット数は2の冪乗なので、大きい方のフィルタを小さい方の大きさに畳み込んで比較できる
+            long[] large = a.length >= b.length ? a : b;
+            long[] small = a.length >= b.length ? b : a;
+            int mask = small.length - 1;
+            for (int i = 0; i < large.length; i++) {
+                if ((large[i] & small[i & mask]) != 0) {
+                    return true;
                 }
             }
             return false;
@@ -263,9 +951,12 @@ public class Revision<T> implements Serializable {
         /**
          * この変更に指定した変更を合成した、新しい変更を返す。
          * <p>
-         * 2つの変更は互いに疎でなければならない。
-         * つまり、同一の名前つき参照および識別子表上の参照において、2つに共通する変更があってはならない。
-         * そのような変更を衝突と呼び、衝突を含む場合にこの呼び出しは{@code null}を返す。
+         * 2つの変更は互いに衝突してはならない ({@link #conflictsWith(Delta)})。
+         * 衝突を含む場合にこの呼び出しは{@code null}を返す。
+         * </p>
+         * <p>
+         * 同一のエンティティの異なるプロパティを変更している場合、指定した変更のエンティティの識別子を採用する。
+         * そのため、指定した変更のエンティティは、この変更によるプロパティの変更をあらかじめ取り込んでいる必要がある。
          * </p>
          * @param other 合成する変更
          * @return 合成後の変更、いずれかの変更が衝突する場合には{@code null}
@@ -274,10 +965,7 @@ public class Revision<T> implements Serializable {
             if (other == null) {
                 throw new IllegalArgumentException("other is null"); //$NON-NLS-1$
             }
-            if (conflictsAny(bindings.keySet(), other.bindings.keySet())) {
-                return null;
-            }
-            if (conflictsAny(entities.keySet(), other.entities.keySet())) {
+            if (overlaps(other)) {
                 return null;
             }
             Map<String, Entity.Reference> newBindings = new HashMap<String, Reference>();
@@ -286,9 +974,18 @@ public class Revision<T> implements Serializable {
 
             Map<Entity.Reference, T> newEntities = new HashMap<Reference, T>();
             newEntities.putAll(entities);
+            Map<Entity.Reference, Set<String>> newProperties = new HashMap<Reference, Set<String>>();
+            if (properties != null) {
+                newProperties.putAll(properties);
+            }
+            Map<Entity.Reference, Map<String, Integer>> newAdditions = new HashMap<Reference, Map<String, Integer>>();
+            if (additions != null) {
+                newAdditions.putAll(additions);
+            }
+            mergeProperties(newEntities, newProperties, newAdditions, other);
             newEntities.putAll(other.entities);
 
-            return new Delta<T>(newBindings, newEntities);
+            return new Delta<T>(newBindings, newEntities, newProperties, newAdditions, false);
         }
     }
 }
@@ -16,6 +16,7 @@
 package com.ashigeru.lab.smalltable;
 
 import java.util.Collection;
+import java.util.Set;
 
 /**
  * {@code smalltable}を操作するためのセッション。
@@ -55,7 +56,25 @@ public interface Session {
 
     /**
      * 現在のセッションを永続化する。
-     * @param entities このセッションで作成または更新されたエンティティの一覧
+     * <p>
+     * 他のセッションが同じエンティティの異なるプロパティを変更していた場合、双方の変更は合成される。
+     * </p>
+     * <p>
+     * 保存に成功した場合、このセッションは保存したリビジョンを起点として継続して利用できる。
+     * 以降の{@link #resolve(Entity.Reference)}や{@link #getBound(String)}は、保存したリビジョンの内容を返す。
+     * </p>
+     * @param modifications このセッションで作成または更新されたエンティティと、変更されたプロパティの一覧
+     * @return 保存前の起点から保存したリビジョンまでに変更されたエンティティへの参照の一覧
+     *     (このセッションによる変更と、同時に行われた他のセッションによる変更の両方を含む)
      */
-    void save(Collection<? extends Entity> entities);
+    Set<Entity.Reference> save(Collection<? extends Modification> modifications);
+
+    /**
+     * 現在のセッションを終了し、セッションが利用していた資源を解放する。
+     * <p>
+     * 保存後も継続して利用できるセッションは、終了するまで起点のリビジョンを保持し続ける。
+     * 終了したセッションは利用できない。すでに終了している場合、この呼び出しは何も行わない。
+     * </p>
+     */
+    void close();
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link Entity}が保持するプロパティ名の組と、それぞれの値を格納する位置の対応。
+ * <p>
+ * 同じプロパティ名の組をもつエンティティは、同一の形状を共有する。
+ * プロパティ名は昇順に並べられ、その位置がそのまま値の位置となる。
+ * </p>
+ * @author ashigeru
+ */
+final class Shape {
+
+    /**
+     * 共有する形状の最大数。
+     * <p>
+     * これを超えた形状は共有されず、エンティティごとに作成される。
+     * </p>
+     */
+    private static final int MAX_SHARED_SHAPES = 4096;
+
+    /**
+     * 共有されている形状の一覧。
+     */
+    private static final ConcurrentMap<Shape, Shape> SHARED = new ConcurrentHashMap<Shape, Shape>();
+
+    /**
+     * プロパティをもたない形状。
+     */
+    static final Shape EMPTY = of(new String[0]);
+
+    /**
+     * 昇順に並べられたプロパティ名の一覧。
+     */
+    private final String[] names;
+
+    private final int hashCode;
+
+    private Shape(String[] names) {
+        assert names != null;
+        this.names = names;
+        this.hashCode = Arrays.hashCode(names);
+    }
+
+    /**
+     * 指定のプロパティ名の組に対する形状を返す。
+     * @param names プロパティ名の一覧 (重複を含まない)
+     * @return 対応する形状
+     */
+    static Shape of(Collection<String> names) {
+        assert names != null;
+        return of(names.toArray(new String[names.size()]));
+    }
+
+    private static Shape of(String[] names) {
+        assert names != null;
+        Arrays.sort(names);
+        Shape created = new Shape(names);
+        Shape shared = SHARED.get(created);
+        if (shared != null) {
+            return shared;
+        }
+        if (SHARED.size() >= MAX_SHARED_SHAPES) {
+            return created;
+        }
+        shared = SHARED.putIfAbsent(created, created);
+        return shared == null ? created : shared;
+    }
+
+    /**
+     * この形状がもつプロパティの個数を返す。
+     * @return プロパティの個数
+     */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * 指定の位置に格納されるプロパティの名前を返す。
+     * @param slot 値の位置
+     * @return プロパティの名前
+     */
+    String getName(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * 指定の名前をもつプロパティの値の位置を返す。
+     * @param name プロパティの名前
+     * @return 値の位置、この形状が指定のプロパティをもたない場合は負の値
+     */
+    int indexOf(Object name) {
+        if ((name instanceof String) == false) {
+            return -1;
+        }
+        return Arrays.binarySearch(names, name);
+    }
+
+    /**
+     * 指定の形状が、この形状と同じプロパティ名の組をもつ場合のみ{@code true}を返す。
+     * @param other 比較する形状
+     * @return 同じプロパティ名の組をもつ場合のみ{@code true}
+     */
+    boolean isCompatible(Shape other) {
+        assert other != null;
+        if (this == other) {
+            return true;
+        }
+        return hashCode == other.hashCode && Arrays.equals(names, other.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        return isCompatible((Shape) obj);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Shape%s", Arrays.toString(names));
+    }
+}
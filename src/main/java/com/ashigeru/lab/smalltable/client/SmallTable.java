@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.Set;
 
 import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
 import com.ashigeru.lab.smalltable.Session;
 
 /**
@@ -49,6 +50,14 @@ public class SmallTable {
      */
     private Map<Entity.Reference, StObject> objects;
 
+    /**
+     * 前回の保存以降に変更操作が行われたオブジェクトの一覧。
+     * <p>
+     * 保存後もテーブルを継続して利用する場合に、キャッシュされたすべてのオブジェクトを検査しないようにする。
+     * </p>
+     */
+    private Map<Entity.Reference, StObject> touched;
+
     /**
      * インスタンスを生成する。
      * @param session このテーブルの情報を持つセッション
@@ -60,6 +69,7 @@ public class SmallTable {
         this.session = session;
         this.created = new HashSet<Entity.Reference>();
         this.objects = new HashMap<Entity.Reference, StObject>();
+        this.touched = new HashMap<Entity.Reference, StObject>();
     }
 
     /**
@@ -111,43 +121,87 @@ public class SmallTable {
         Entity.Reference reference = session.allocateReference();
         StObject object = new StObject(this, reference);
         objects.put(reference, object);
+        created.add(reference);
+        touched.put(reference, object);
         return object;
     }
 
     /**
      * このテーブルへのこれまでの変更を保存する。
      * <p>
-     * FIXME これ以降はこのオブジェクトを利用できない。トイ実装なのでそのあたりのチェックはやっていない
+     * 保存に成功した場合、このテーブルは保存したリビジョンを起点として継続して利用できる。
+     * 保存したオブジェクトや、他のセッションによって変更されていたオブジェクトは最新の内容に更新され、
+     * それ以外のオブジェクトはそのまま再利用される。
      * </p>
      * <p>
      * FIXME 現在のつくりだと保存に失敗した場合にどうしようもなくなるから、何とかする方法を考えたいね
      * </p>
+     */
+    public void save() {
+        List<Modification> modified = computeModified();
+        Set<Entity.Reference> changed = session.save(modified);
+        refresh(changed);
+        created.clear();
+        touched.clear();
+    }
+
+    private void refresh(Set<Entity.Reference> changed) {
+        assert changed != null;
+        // 変更されていないオブジェクトは、キャッシュされたものをそのまま利用する
+        for (Entity.Reference reference : changed) {
+            StObject object = objects.get(reference);
+            if (object == null) {
+                continue;
+            }
+            Entity entity = session.resolve(reference);
+            if (entity == null) {
+                // 削除されたものはキャッシュから外す
+                objects.remove(reference);
+            }
+            else {
+                object.reset(entity);
+            }
+        }
+    }
+
+    /**
+     * このテーブルの利用を終了する。
      * <p>
-     * TODO 保存先のブランチとか指定したいね
+     * 保存後も継続して利用できるテーブルは、終了するか破棄されるまで最後に保存した時点の内容を保持し続ける。
+     * 終了したテーブルは利用できない。
      * </p>
      */
-    public void save() {
-        List<Entity> modified = computeModified();
-        session.save(modified);
+    public void close() {
+        session.close();
+        objects.clear();
+        touched.clear();
+        created.clear();
     }
 
-    private List<Entity> computeModified() {
-        List<Entity> results = new ArrayList<Entity>();
-        for (StObject object : objects.values()) {
-            if (isCreatedOrModified(object)) {
-                results.add(object.toEntity());
+    private List<Modification> computeModified() {
+        List<Modification> results = new ArrayList<Modification>();
+        for (StObject object : touched.values()) {
+            // 新規作成されたら常にオブジェクト全体の変更扱いにする
+            if (created.contains(object.getReference())) {
+                results.add(new Modification(object.toEntity()));
+            }
+            else if (object.isModified()) {
+                results.add(new Modification(
+                        object.toEntity(),
+                        object.getModifiedPropertyNames(),
+                        object.getPropertyAdditions()));
             }
         }
         return results;
     }
 
-    private boolean isCreatedOrModified(StObject object) {
+    /**
+     * 指定のオブジェクトに変更操作が行われたことを記録する。
+     * @param object 対象のオブジェクト
+     */
+    void touch(StObject object) {
         assert object != null;
-        // 新規作成されたら常に変更扱いにする
-        if (created.contains(object.getReference())) {
-            return true;
-        }
-        return object.isModified();
+        touched.put(object.getReference(), object);
     }
 
     /**
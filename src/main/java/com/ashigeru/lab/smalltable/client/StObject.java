@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import com.ashigeru.lab.smalltable.Entity;
 
@@ -39,10 +40,16 @@ public class StObject {
 
     private Entity.Reference reference;
 
-    private Map<String, Object> source;
+    private Entity source;
 
+    /**
+     * 変更されたプロパティの値。
+     * 整数は{@link IntValue}として、削除されたプロパティは{@code null}として保持する。
+     */
     private Map<String, Object> modified;
 
+    private Map<String, IntValue> additions;
+
     /**
      * インスタンスを生成する。
      * @param table このオブジェクトを管理するテーブル
@@ -57,8 +64,9 @@ public class StObject {
         }
         this.table = table;
         this.reference = reference;
-        this.source = Collections.emptyMap();
+        this.source = Entity.Builder.create(reference).toEntity();
         this.modified = new HashMap<String, Object>();
+        this.additions = new HashMap<String, IntValue>();
     }
 
     StObject(SmallTable table, Entity source) {
@@ -70,8 +78,21 @@ public class StObject {
         }
         this.table = table;
         this.reference = source.getSelfReference();
-        this.source = source.getPropertyMap();
+        this.source = source;
         this.modified = new HashMap<String, Object>();
+        this.additions = new HashMap<String, IntValue>();
+    }
+
+    /**
+     * このオブジェクトの内容を、指定のエンティティの内容で置き換え、変更の記録を破棄する。
+     * @param entity 新しい内容をもつエンティティ
+     */
+    void reset(Entity entity) {
+        assert entity != null;
+        assert reference.equals(entity.getSelfReference());
+        this.source = entity;
+        this.modified.clear();
+        this.additions.clear();
     }
 
     /**
@@ -92,18 +113,34 @@ public class StObject {
         // 先に変更一覧のプロパティを追加
         for (Map.Entry<String, Object> entry : modified.entrySet()) {
             Object value = entry.getValue();
-            if (value != null) {
+            if (value instanceof IntValue) {
+                builder.addInt(entry.getKey(), ((IntValue) value).value);
+            }
+            else if (value != null) {
                 builder.add(entry.getKey(), value);
             }
         }
 
-        // オリジナルのうち、変更一覧に含まれていないもののみを追加
-        for (Map.Entry<String, Object> entry : source.entrySet()) {
-            if (modified.containsKey(entry.getKey()) == false) {
-                Object value = entry.getValue();
-                if (value != null) {
-                    builder.add(entry.getKey(), value);
-                }
+        // オリジナルのうち、変更一覧に含まれていないもののみを追加 (加算があれば適用)
+        Map<String, Object> original = source.getPropertyMap();
+        for (String name : original.keySet()) {
+            if (modified.containsKey(name)) {
+                continue;
+            }
+            if (source.isInt(name)) {
+                IntValue added = additions.get(name);
+                int base = source.getInt(name, 0);
+                builder.addInt(name, added == null ? base : base + added.value);
+            }
+            else {
+                builder.add(name, source.getProperty(name));
+            }
+        }
+
+        // オリジナルに存在しないプロパティへの加算を追加
+        for (Map.Entry<String, IntValue> entry : additions.entrySet()) {
+            if (modified.containsKey(entry.getKey()) == false && original.containsKey(entry.getKey()) == false) {
+                builder.addInt(entry.getKey(), entry.getValue().value);
             }
         }
         return builder.toEntity();
@@ -114,6 +151,17 @@ public class StObject {
      * @return このオブジェクトが現在のセッションにおいて変更されている場合のみ{@code true}
      */
     boolean isModified() {
+        // 加算したものがあれば変更あり
+        Iterator<IntValue> added = additions.values().iterator();
+        while (added.hasNext()) {
+            if (added.next().value == 0) {
+                added.remove();
+            }
+        }
+        if (additions.isEmpty() == false) {
+            return true;
+        }
+
         // まず、変更一覧が空なら変更はない
         if (modified.isEmpty()) {
             return false;
@@ -125,17 +173,23 @@ public class StObject {
             Map.Entry<String, Object> entry = iter.next();
             String name = entry.getKey();
             Object value = entry.getValue();
-            Object original = source.get(name);
 
-            // オリジナルから新しく出現したか？
-            if (original == null) {
-                if (value != null) {
+            // 整数の値が変更されたか？
+            if (value instanceof IntValue) {
+                if (source.isInt(name) == false || source.getInt(name, 0) != ((IntValue) value).value) {
+                    return true;
+                }
+            }
+
+            // オリジナルから削除されたか？
+            else if (value == null) {
+                if (source.getPropertyMap().containsKey(name)) {
                     return true;
                 }
             }
 
-            // オリジナルの値が変更されたか？
-            else if (original.equals(value) == false) {
+            // オリジナルから新しく出現したか、値が変更されたか？
+            else if (value.equals(source.getProperty(name)) == false) {
                 return true;
             }
 
@@ -147,6 +201,35 @@ public class StObject {
         return false;
     }
 
+    /**
+     * 現在のセッションで変更されたプロパティ名の一覧を返す。
+     * <p>
+     * 値が元に戻されたプロパティを含む場合がある。
+     * </p>
+     * @return 変更されたプロパティ名の一覧
+     */
+    Set<String> getModifiedPropertyNames() {
+        return Collections.unmodifiableSet(modified.keySet());
+    }
+
+    /**
+     * 現在のセッションで加算されたプロパティ名と、加算した値の一覧を返す。
+     * <p>
+     * {@link #getModifiedPropertyNames()}に含まれるプロパティは、この一覧に含まれない。
+     * </p>
+     * @return 加算されたプロパティ名と、加算した値の一覧
+     */
+    Map<String, Integer> getPropertyAdditions() {
+        if (additions.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> results = new HashMap<String, Integer>();
+        for (Map.Entry<String, IntValue> entry : additions.entrySet()) {
+            results.put(entry.getKey(), Integer.valueOf(entry.getValue().value));
+        }
+        return Collections.unmodifiableMap(results);
+    }
+
     /**
      * このオブジェクトを管理する{@code smalltable}オブジェクトを返す。
      * @return このオブジェクトを管理する{@code smalltable}オブジェクト
@@ -176,8 +259,83 @@ public class StObject {
         if (name == null) {
             throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
         }
-        // 書き込みは常に変更一覧に行う
+        if (value instanceof Integer) {
+            setInt(name, ((Integer) value).intValue());
+            return;
+        }
+        // 書き込みは常に変更一覧に行い、それまでの加算は上書きする
         modified.put(name, toPropertyValue(value));
+        additions.remove(name);
+        table.touch(this);
+    }
+
+    /**
+     * このオブジェクトの指定の名前を持つプロパティに整数の値を設定する。
+     * <p>
+     * {@link #setProperty(String, Object)}に{@code Integer}を指定した場合と同じ結果になるが、値をボックス化しない。
+     * </p>
+     * @param name 対象のプロパティ名
+     * @param value プロパティに設定する値
+     */
+    public void setInt(String name, int value) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        Object current = modified.get(name);
+        if (current instanceof IntValue) {
+            ((IntValue) current).value = value;
+        }
+        else {
+            modified.put(name, new IntValue(value));
+        }
+        additions.remove(name);
+        table.touch(this);
+    }
+
+    /**
+     * このオブジェクトの指定の名前を持つ整数のプロパティに、指定の値を加算する。
+     * <p>
+     * プロパティが存在しない場合は、{@code 0}に加算する。
+     * この加算は保存時に最新のオブジェクトに対して適用されるため、
+     * 他のセッションが同時に同じプロパティに加算していても衝突しない。
+     * ただし、同じプロパティに{@link #setProperty(String, Object)}で値を設定した場合は、
+     * 以降の加算は設定した値に対して行われ、通常の変更として扱われる。
+     * </p>
+     * @param name 対象のプロパティ名
+     * @param delta 加算する値
+     * @throws IllegalStateException 対象のプロパティに整数以外の値が設定されている場合
+     */
+    public void addToProperty(String name, int delta) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        Object current = modified.get(name);
+        if (current != null || modified.containsKey(name)) {
+            if (current == null) {
+                modified.put(name, new IntValue(delta));
+            }
+            else if (current instanceof IntValue) {
+                ((IntValue) current).value += delta;
+            }
+            else {
+                throw new IllegalStateException(MessageFormat.format(
+                    "Property \"{0}\" is not an Integer: {1}",
+                    name,
+                    current));
+            }
+        }
+        else {
+            // 整数以外の値をもつ場合はここで例外となる
+            source.getInt(name, 0);
+            IntValue added = additions.get(name);
+            if (added == null) {
+                additions.put(name, new IntValue(delta));
+            }
+            else {
+                added.value += delta;
+            }
+        }
+        table.touch(this);
     }
 
     /**
@@ -194,6 +352,80 @@ public class StObject {
         return toUserValue(value);
     }
 
+    /**
+     * 指定の整数のプロパティに設定された値を返す。
+     * <p>
+     * {@link #getProperty(String)}と異なり、値をボックス化しない。
+     * </p>
+     * @param name 対象のプロパティ名
+     * @return 対応するプロパティの値、存在しない場合は{@code 0}
+     * @throws IllegalStateException 対象のプロパティに整数以外の値が設定されている場合
+     */
+    public int getInt(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        Object value = modified.get(name);
+        if (value != null || modified.containsKey(name)) {
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof IntValue) {
+                return ((IntValue) value).value;
+            }
+            throw new IllegalStateException(MessageFormat.format(
+                "Property \"{0}\" is not an Integer: {1}",
+                name,
+                value));
+        }
+        int base = source.getInt(name, 0);
+        IntValue added = additions.get(name);
+        return added == null ? base : base + added.value;
+    }
+
+    /**
+     * 指定の文字列のプロパティに設定された値を返す。
+     * @param name 対象のプロパティ名
+     * @return 対応するプロパティの値、存在しない場合は{@code null}
+     * @throws IllegalStateException 対象のプロパティに文字列以外の値が設定されている場合
+     */
+    public String getString(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        Object value = getPropertyValue(name);
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        throw new IllegalStateException(MessageFormat.format(
+            "Property \"{0}\" is not a String: {1}",
+            name,
+            value));
+    }
+
+    /**
+     * 指定のオブジェクトのプロパティが参照するオブジェクトを返す。
+     * @param name 対象のプロパティ名
+     * @return 対応するプロパティが参照するオブジェクト、存在しない場合は{@code null}
+     * @throws IllegalStateException 対象のプロパティにオブジェクト以外の値が設定されている場合
+     */
+    public StObject getObject(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        Object value = getPropertyValue(name);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Entity.Reference) {
+            return getTable().resolve((Entity.Reference) value);
+        }
+        throw new IllegalStateException(MessageFormat.format(
+            "Property \"{0}\" is not a StObject: {1}",
+            name,
+            value));
+    }
+
     private Object toPropertyValue(Object userValue) {
         if (userValue == null) {
             return null;
@@ -230,14 +462,37 @@ public class StObject {
 
     private Object getPropertyValue(String name) {
         assert name != null;
-        if (modified.containsKey(name)) {
-            return modified.get(name);
+        Object value = modified.get(name);
+        if (value != null || modified.containsKey(name)) {
+            if (value instanceof IntValue) {
+                return Integer.valueOf(((IntValue) value).value);
+            }
+            return value;
         }
-        return source.get(name);
+        IntValue added = additions.get(name);
+        if (added != null) {
+            return Integer.valueOf(source.getInt(name, 0) + added.value);
+        }
+        return source.getProperty(name);
     }
 
     @Override
     public String toString() {
         return String.format("StObject{ref=%s, properties=%s}", reference, toEntity().getPropertyMap());
     }
+
+    /**
+     * 変更または加算した整数の値。
+     * <p>
+     * 同じプロパティに繰り返し書き込む際に、値ごとにオブジェクトを生成しないよう書き換え可能にしている。
+     * </p>
+     */
+    private static final class IntValue {
+
+        int value;
+
+        IntValue(int value) {
+            this.value = value;
+        }
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+/**
+ * {@link LocalRepository#collectGarbage()}の結果。
+ * @author ashigeru
+ */
+public class CollectionReport {
+
+    private final int markedReferences;
+
+    private final int sweptReferences;
+
+    private final int reclaimedEntities;
+
+    private final long reclaimedBytes;
+
+    /**
+     * インスタンスを生成する。
+     * @param markedReferences 到達可能と判定された参照の個数
+     * @param sweptReferences 到達不能として最新のリビジョンから取り除かれた参照の個数
+     * @param reclaimedEntities 回収されたエンティティの個数
+     * @param reclaimedBytes 回収されたエンティティのおおよそのバイト数
+     */
+    CollectionReport(int markedReferences, int sweptReferences, int reclaimedEntities, long reclaimedBytes) {
+        this.markedReferences = markedReferences;
+        this.sweptReferences = sweptReferences;
+        this.reclaimedEntities = reclaimedEntities;
+        this.reclaimedBytes = reclaimedBytes;
+    }
+
+    /**
+     * 生存しているリビジョンの名前つき参照から到達可能と判定された参照の個数を返す。
+     * @return 到達可能な参照の個数
+     */
+    public int getMarkedReferences() {
+        return markedReferences;
+    }
+
+    /**
+     * 到達不能として最新のリビジョンから取り除かれた参照の個数を返す。
+     * @return 取り除かれた参照の個数
+     */
+    public int getSweptReferences() {
+        return sweptReferences;
+    }
+
+    /**
+     * 回収されたエンティティの個数を返す。
+     * <p>
+     * 取り除かれた参照のエンティティは、それを参照するリビジョンがすべて利用されなくなるまで回収されない。
+     * そのため、この値には以前に取り除かれた参照や、上書きされたエンティティの分も含まれる。
+     * </p>
+     * @return 回収されたエンティティの個数
+     */
+    public int getReclaimedEntities() {
+        return reclaimedEntities;
+    }
+
+    /**
+     * 回収されたエンティティが占めていた、おおよそのバイト数を返す。
+     * @return 回収されたエンティティのおおよそのバイト数
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "CollectionReport{marked=%d, swept=%d, reclaimedEntities=%d, reclaimedBytes=%d}",
+                markedReferences,
+                sweptReferences,
+                reclaimedEntities,
+                reclaimedBytes);
+    }
+}
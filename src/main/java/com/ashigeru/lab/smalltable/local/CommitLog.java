@@ -0,0 +1,1185 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.EntityInput;
+import com.ashigeru.lab.smalltable.EntityOutput;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link LocalRepository}へのコミットを追記していくログ。
+ * <p>
+ * リポジトリにログを関連づけると、コミットされたリビジョンの差分と、その差分が参照するエンティティが、
+ * リビジョンが最新として登録される前にログに追記される。
+ * 追記に失敗したリビジョンは登録されず、{@link Sync#PERIODIC}以外では書き出しが完了するまで登録されない。
+ * ブランチの作成や取り込みの時点も同様に追記される。
+ * プロセスが異常終了した場合は、{@link LocalRepository#recover(File, CommitLog)}によって
+ * 最後のチェックポイントとログからリポジトリを復元できる。
+ * </p>
+ * <p>
+ * ログはファイルの先頭の識別子と、最初のレコードの直前の連番に続く、以下のレコードの並びからなる。
+ * </p>
+ * <ol>
+ * <li> 内容の長さ (4バイト) </li>
+ * <li> 連番と内容に対するCRC-32 (4バイト) </li>
+ * <li> レコードの連番 (8バイト) </li>
+ * <li> 内容 ({@link EntityOutput}の形式で、種類とその種類ごとの情報) </li>
+ * </ol>
+ * <p>
+ * 書き込みの途中で異常終了した末尾のレコードは、開く際に検査に失敗したものとして切り詰められる。
+ * 追記や書き出しに一度失敗したログは、それ以降の追記をすべて拒否する。
+ * </p>
+ * @author ashigeru
+ * @see LocalRepository#checkpoint(File)
+ */
+public final class CommitLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommitLog.class);
+
+    /**
+     * ログを記憶装置に書き出す時期。
+     * @author ashigeru
+     */
+    public enum Sync {
+
+        /**
+         * レコードごとに書き出し、書き出すまでコミットを完了させない。
+         */
+        COMMIT,
+
+        /**
+         * 書き出すまでコミットを完了させないが、同時に追記されたレコードはまとめて書き出す。
+         */
+        GROUP,
+
+        /**
+         * 一定の間隔で書き出し、コミットは書き出しを待たない。
+         * <p>
+         * 異常終了した場合、最後に書き出してから追記したレコードは失われる。
+         * </p>
+         */
+        PERIODIC,
+    }
+
+    /**
+     * ログの先頭の識別子。
+     */
+    private static final byte[] MAGIC = { 'S', 'T', 'L', 'G' };
+
+    /**
+     * チェックポイントの先頭の識別子。
+     */
+    private static final byte[] CHECKPOINT_MAGIC = { 'S', 'T', 'C', 'K' };
+
+    /**
+     * {@link RepositoryCodec}の形式で、エンティティを含むチェックポイントの種類。
+     */
+    private static final int CHECKPOINT_FULL = 0;
+
+    /**
+     * {@link RepositoryImage}の形式で、リビジョンのみを含むチェックポイントの種類。
+     */
+    private static final int CHECKPOINT_IMAGE = 1;
+
+    /**
+     * 形式のバージョン。
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * ログの先頭の大きさ (識別子、バージョン、最初のレコードの直前の連番)。
+     */
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+
+    /**
+     * レコードの内容に先立つ部分の大きさ (長さ、CRC-32、連番)。
+     */
+    private static final int FRAME_SIZE = 4 + 4 + 8;
+
+    /**
+     * コミットを表すレコードの種類。
+     */
+    private static final int TYPE_COMMIT = 1;
+
+    /**
+     * ブランチの作成を表すレコードの種類。
+     */
+    private static final int TYPE_BRANCH = 2;
+
+    /**
+     * ブランチの取り込みを表すレコードの種類。
+     */
+    private static final int TYPE_MERGE = 3;
+
+    /**
+     * {@link Sync#PERIODIC}で書き出す間隔の既定値 (ミリ秒)。
+     */
+    private static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+    private final File file;
+
+    private final Sync sync;
+
+    /**
+     * 追記を直列化するロック。
+     * <p>
+     * {@link #channel}の差し替えと、{@link #lastSequence}の更新もこのロックのもとで行う。
+     * </p>
+     */
+    private final ReentrantLock appendLock;
+
+    /**
+     * {@link #durableSequence}と{@link #syncing}を保護するモニタ。
+     */
+    private final Object syncLock;
+
+    private FileChannel channel;
+
+    /**
+     * 最後に追記したレコードの連番。
+     */
+    private long lastSequence;
+
+    /**
+     * 記憶装置への書き出しが完了した最後のレコードの連番。
+     */
+    private long durableSequence;
+
+    /**
+     * いずれかのスレッドが記憶装置への書き出しを行っている場合のみ{@code true}。
+     */
+    private boolean syncing;
+
+    /**
+     * {@link #lock()}で追記を止めている間に追記した最後のレコードの連番、存在しない場合は{@code 0}。
+     * <p>
+     * 追記を止めたまま書き出しを待機すると他の書き出しと競合するため、
+     * {@link #unlock()}で追記を再開してから書き出しを待機する。
+     * </p>
+     */
+    private long deferredSequence;
+
+    /**
+     * {@link Sync#PERIODIC}で定期的に書き出すスレッド、それ以外の場合は{@code null}。
+     */
+    private final ScheduledExecutorService syncService;
+
+    /**
+     * このログを関連づけたリポジトリ、まだ関連づけていない場合は{@code null}。
+     */
+    private volatile LocalRepository repository;
+
+    private volatile boolean closed;
+
+    /**
+     * 追記や書き出しに失敗した際の例外、失敗していない場合は{@code null}。
+     * <p>
+     * 失敗したレコードが記録されたかどうかは分からないため、以降のレコードは追記しない。
+     * </p>
+     */
+    private volatile IOException failure;
+
+    private CommitLog(File file, Sync sync, FileChannel channel, long lastSequence, long interval, TimeUnit unit) {
+        assert file != null;
+        assert sync != null;
+        assert channel != null;
+        this.file = file;
+        this.sync = sync;
+        this.appendLock = new ReentrantLock();
+        this.syncLock = new Object();
+        this.channel = channel;
+        this.lastSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        if (sync == Sync.PERIODIC) {
+            assert interval > 0;
+            assert unit != null;
+            syncService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "smalltable-commit-log"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            syncService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure != null) {
+                        return;
+                    }
+                    try {
+                        flush();
+                    }
+                    catch (IOException e) {
+                        // 以降の追記はflush()で記録した失敗によって拒否される
+                        LOG.error(MessageFormat.format(
+                                "Failed to sync commit log: {0}",
+                                file), e);
+                    }
+                }
+            }, interval, interval, unit);
+        }
+        else {
+            syncService = null;
+        }
+    }
+
+    /**
+     * 指定のファイルをログとして開く。
+     * <p>
+     * ファイルが存在しない場合は空のログを作成する。
+     * ファイルの末尾に書き込みの途中のレコードが残っている場合、そのレコード以降を切り詰める。
+     * {@link Sync#PERIODIC}を指定した場合、1秒ごとに書き出す。
+     * </p>
+     * @param file 対象のファイル
+     * @param sync ログを記憶装置に書き出す時期
+     * @return 開いたログ
+     * @throws IOException ログを開けなかった場合、またはファイルの形式が正しくない場合
+     */
+    public static CommitLog open(File file, Sync sync) throws IOException {
+        return open(file, sync, DEFAULT_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 指定のファイルをログとして開く。
+     * <p>
+     * ファイルが存在しない場合は空のログを作成する。
+     * ファイルの末尾に書き込みの途中のレコードが残っている場合、そのレコード以降を切り詰める。
+     * </p>
+     * @param file 対象のファイル
+     * @param sync ログを記憶装置に書き出す時期
+     * @param interval {@link Sync#PERIODIC}の場合に書き出す間隔、それ以外の場合は無視される
+     * @param unit {@code interval}の単位
+     * @return 開いたログ
+     * @throws IOException ログを開けなかった場合、またはファイルの形式が正しくない場合
+     * @throws IllegalArgumentException {@link Sync#PERIODIC}の間隔に正の値が指定されない場合
+     */
+    public static CommitLog open(File file, Sync sync, long interval, TimeUnit unit) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file is null"); //$NON-NLS-1$
+        }
+        if (sync == null) {
+            throw new IllegalArgumentException("sync is null"); //$NON-NLS-1$
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null"); //$NON-NLS-1$
+        }
+        if (sync == Sync.PERIODIC && interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive"); //$NON-NLS-1$
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel(); //$NON-NLS-1$
+        boolean succeed = false;
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                // 作成直後、またはヘッダの書き込み中に異常終了したログ
+                channel.truncate(0L);
+                writeHeader(channel, 0L);
+                channel.force(true);
+            }
+            Scanner scanner = new Scanner(channel);
+            while (scanner.next()) {
+                continue;
+            }
+            if (scanner.position < channel.size()) {
+                // 書き込みの途中で異常終了したレコードを切り詰める
+                channel.truncate(scanner.position);
+                channel.force(true);
+            }
+            channel.position(scanner.position);
+            CommitLog log = new CommitLog(file, sync, channel, scanner.sequence, interval, unit);
+            succeed = true;
+            return log;
+        }
+        finally {
+            if (succeed == false) {
+                channel.close();
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, long base) throws IOException {
+        assert channel != null;
+        assert base >= 0;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putLong(base);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    private static long readHeader(FileChannel channel) throws IOException {
+        assert channel != null;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        if (readFully(channel, buffer, 0L) == false) {
+            throw new IOException("Not a commit log");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (Arrays.equals(magic, MAGIC) == false) {
+            throw new IOException("Not a commit log");
+        }
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException(MessageFormat.format(
+                    "Unsupported commit log version: {0}",
+                    version));
+        }
+        return buffer.getLong();
+    }
+
+    /**
+     * 追記を止める。
+     * <p>
+     * 追記を止めている間に行った操作は、それ以前に追記を開始したレコードより後で、
+     * それ以降に追記を開始したレコードより前に行われたものとしてログに記録される。
+     * </p>
+     * @see #unlock()
+     */
+    void lock() {
+        appendLock.lock();
+    }
+
+    /**
+     * {@link #lock()}で止めた追記を再開する。
+     */
+    void unlock() {
+        long deferred = 0L;
+        if (appendLock.getHoldCount() == 1) {
+            deferred = deferredSequence;
+            deferredSequence = 0L;
+        }
+        appendLock.unlock();
+        if (deferred > 0) {
+            try {
+                awaitDurable(deferred);
+            }
+            catch (IOException e) {
+                failure = e;
+                throw new IllegalStateException(MessageFormat.format(
+                        "Failed to sync commit log: {0}",
+                        file), e);
+            }
+        }
+    }
+
+    /**
+     * このログを関連づけたリポジトリへのコミットを追記する。
+     * @param branch コミット先のブランチの名前
+     * @param revision 登録されたリビジョン
+     */
+    void appendCommit(String branch, Revision<LocalEntityId> revision) {
+        assert branch != null;
+        assert revision != null;
+        LocalRepository target = repository;
+        assert target != null;
+        Revision.Delta<LocalEntityId> delta = revision.getDelta();
+        assert delta != null;
+        Record record = new Record(TYPE_COMMIT);
+        try {
+            EntityOutput output = record.output;
+            output.writeName(branch);
+            output.writeVarLong(target.getReferenceSequence());
+            output.writeVarLong(target.getEntityIdSequence());
+
+            // 差分が参照するエンティティは、少なくともこのリビジョンが最新である間は回収されない
+            Map<Entity.Reference, LocalEntityId> entities = delta.getEntityMap();
+            output.writeVarLong(entities.size());
+            for (LocalEntityId id : entities.values()) {
+                if (id == null) {
+                    output.writeVarLong(0L);
+                    continue;
+                }
+                Entity entity = target.getEntity(id.getNumeric());
+                if (entity == null) {
+                    throw new IllegalStateException(MessageFormat.format(
+                            "Entity {0} is already reclaimed",
+                            id));
+                }
+                output.writeVarLong(id.getNumeric());
+                output.writeEntity(entity);
+            }
+            RepositoryCodec.writeDelta(output, delta);
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        append(record);
+    }
+
+    /**
+     * ブランチの作成を追記する。
+     * @param name 作成したブランチの名前
+     * @param from 起点としたブランチの名前
+     * @param fork 作成したブランチの最初のリビジョン
+     */
+    void appendBranch(String name, String from, Revision<LocalEntityId> fork) {
+        assert name != null;
+        assert from != null;
+        assert fork != null;
+        Record record = new Record(TYPE_BRANCH);
+        try {
+            record.output.writeName(name);
+            record.output.writeName(from);
+            RepositoryCodec.writeRevision(record.output, fork);
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        append(record);
+    }
+
+    /**
+     * ブランチの変更を取り込んだ時点を追記する。
+     * <p>
+     * 取り込みはまれにしか行われないため、それぞれの時点はリビジョンの内容をそのまま書き出す。
+     * </p>
+     * @param into 取り込み先のブランチの名前
+     * @param from 取り込み元のブランチの名前
+     * @param theirs 取り込んだ取り込み元のリビジョン
+     * @param ours 取り込んだ結果の取り込み先のリビジョン
+     */
+    void appendMerge(String into, String from, Revision<LocalEntityId> theirs, Revision<LocalEntityId> ours) {
+        assert into != null;
+        assert from != null;
+        assert theirs != null;
+        assert ours != null;
+        Record record = new Record(TYPE_MERGE);
+        try {
+            record.output.writeName(into);
+            record.output.writeName(from);
+            RepositoryCodec.writeRevision(record.output, theirs);
+            RepositoryCodec.writeRevision(record.output, ours);
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        append(record);
+    }
+
+    private void append(Record record) {
+        assert record != null;
+        long sequence;
+        boolean deferred;
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Commit log is already closed"); //$NON-NLS-1$
+            }
+            if (failure != null) {
+                throw new IllegalStateException(MessageFormat.format(
+                        "Commit log is unusable after a failure: {0}",
+                        file), failure);
+            }
+            sequence = lastSequence + 1;
+            writeFully(channel, record.toFrame(sequence));
+            lastSequence = sequence;
+            deferred = sync == Sync.GROUP && appendLock.getHoldCount() > 1;
+            if (deferred) {
+                deferredSequence = sequence;
+            }
+            if (sync == Sync.COMMIT) {
+                channel.force(false);
+                synchronized (syncLock) {
+                    durableSequence = Math.max(durableSequence, sequence);
+                }
+            }
+        }
+        catch (IOException e) {
+            failure = e;
+            throw new IllegalStateException(MessageFormat.format(
+                    "Failed to append to commit log: {0}",
+                    file), e);
+        }
+        finally {
+            appendLock.unlock();
+        }
+        if (sync == Sync.GROUP && deferred == false) {
+            try {
+                awaitDurable(sequence);
+            }
+            catch (IOException e) {
+                failure = e;
+                throw new IllegalStateException(MessageFormat.format(
+                        "Failed to sync commit log: {0}",
+                        file), e);
+            }
+        }
+    }
+
+    /**
+     * 指定の連番までのレコードが記憶装置に書き出されるまで待機する。
+     * <p>
+     * 他のスレッドが書き出しを行っていなければ、このスレッドがその時点までに追記されたすべてのレコードを書き出す。
+     * 書き出している間に追記されたレコードは、次に書き出すスレッドがまとめて書き出す。
+     * </p>
+     * @param sequence 対象の連番
+     * @throws IOException 書き出しに失敗した場合
+     */
+    private void awaitDurable(long sequence) throws IOException {
+        synchronized (syncLock) {
+            while (true) {
+                if (durableSequence >= sequence) {
+                    return;
+                }
+                if (syncing == false) {
+                    syncing = true;
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for commit log sync");
+                }
+            }
+        }
+        long target = sequence;
+        boolean succeed = false;
+        try {
+            FileChannel current;
+            appendLock.lock();
+            try {
+                target = lastSequence;
+                current = channel;
+            }
+            finally {
+                appendLock.unlock();
+            }
+            // 書き出している間も追記は継続できる
+            current.force(false);
+            succeed = true;
+        }
+        finally {
+            synchronized (syncLock) {
+                if (succeed) {
+                    durableSequence = Math.max(durableSequence, target);
+                }
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * これまでに追記したすべてのレコードを記憶装置に書き出す。
+     * <p>
+     * 書き出しに失敗した場合、以降のレコードは追記しない。
+     * </p>
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public void flush() throws IOException {
+        long sequence;
+        appendLock.lock();
+        try {
+            sequence = lastSequence;
+        }
+        finally {
+            appendLock.unlock();
+        }
+        try {
+            awaitDurable(sequence);
+        }
+        catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * これまでに追記したすべてのレコードを書き出して、このログを閉じる。
+     * <p>
+     * 閉じた後にログを関連づけたリポジトリへコミットすると、{@code IllegalStateException}がスローされる。
+     * </p>
+     * @throws IOException 書き出しやファイルを閉じることに失敗した場合
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncService != null) {
+            syncService.shutdown();
+        }
+        synchronized (syncLock) {
+            while (syncing) {
+                try {
+                    syncLock.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while closing commit log");
+                }
+            }
+            syncing = true;
+        }
+        appendLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            channel.force(true);
+            channel.close();
+        }
+        finally {
+            appendLock.unlock();
+            synchronized (syncLock) {
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 指定のチェックポイントとこのログから、リポジトリを復元してこのログを関連づける。
+     * @param checkpoint チェックポイントのファイル、存在しない場合は空のリポジトリにログを適用する
+     * @param store 復元したリポジトリが利用するエンティティの格納先
+     * @return 復元したリポジトリ
+     * @throws IOException 復元に失敗した場合
+     * @throws IllegalStateException このログがすでに他のリポジトリに関連づけられている場合
+     */
+    LocalRepository recover(File checkpoint, EntityStore store) throws IOException {
+        assert checkpoint != null;
+        assert store != null;
+        appendLock.lock();
+        try {
+            if (repository != null) {
+                throw new IllegalStateException("Commit log is already attached to a repository"); //$NON-NLS-1$
+            }
+            if (closed) {
+                throw new IllegalStateException("Commit log is already closed"); //$NON-NLS-1$
+            }
+            LocalRepository result = null;
+            long cutoff;
+            IncrementalCheckpoint state = null;
+            long stamp = 0L;
+            if (checkpoint.exists()) {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+                try {
+                    byte[] magic = new byte[CHECKPOINT_MAGIC.length];
+                    input.readFully(magic);
+                    if (Arrays.equals(magic, CHECKPOINT_MAGIC) == false) {
+                        throw new IOException(MessageFormat.format(
+                                "Not a checkpoint: {0}",
+                                checkpoint));
+                    }
+                    EntityInput header = new EntityInput(input);
+                    long version = header.readVarLong();
+                    if (version != VERSION) {
+                        throw new IOException(MessageFormat.format(
+                                "Unsupported checkpoint version: {0}",
+                                version));
+                    }
+                    cutoff = header.readVarLong();
+                    stamp = input.readLong();
+                    long kind = header.readVarLong();
+                    if (kind == CHECKPOINT_FULL) {
+                        result = RepositoryCodec.read(input, store);
+                    }
+                    else if (kind != CHECKPOINT_IMAGE) {
+                        throw new IOException(MessageFormat.format(
+                                "Unknown checkpoint kind: {0}",
+                                kind));
+                    }
+                }
+                finally {
+                    input.close();
+                }
+                if (result == null) {
+                    // イメージはファイルの末尾から、必要な部分のみを読み出す
+                    result = RepositoryImage.read(checkpoint, store);
+                }
+
+                // 基点の後に追記した差分を適用する
+                IncrementalCheckpoint.Restored restored =
+                    IncrementalCheckpoint.restore(result, checkpoint, stamp, cutoff);
+                result = restored.repository;
+                cutoff = restored.cutoff;
+                state = restored.state;
+            }
+            else {
+                result = new LocalRepository(store, 0L);
+                cutoff = 0L;
+            }
+
+            // チェックポイントに含まれないレコードを順に適用する
+            Scanner scanner = new Scanner(channel);
+            while (scanner.next()) {
+                if (scanner.sequence > cutoff) {
+                    replay(result, scanner.payload);
+                }
+            }
+            assert scanner.sequence == lastSequence;
+            if (lastSequence < cutoff) {
+                // チェックポイントより古いログでは、以降のレコードがチェックポイントに含まれるものとみなされないよう連番を進める
+                lastSequence = cutoff;
+                synchronized (syncLock) {
+                    durableSequence = Math.max(durableSequence, cutoff);
+                }
+            }
+
+            // 永続化された格納先には、コミットされずに残ったエンティティが存在しうる
+            result.advanceSequences(0L, store.getLastId());
+            repository = result;
+            result.setCommitLog(this);
+            if (state != null) {
+                result.setLastCheckpoint(state);
+            }
+            return result;
+        }
+        finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static void replay(LocalRepository repository, byte[] payload) throws IOException {
+        assert repository != null;
+        assert payload != null;
+        EntityInput input = new EntityInput(new DataInputStream(new ByteArrayInputStream(payload)));
+        int type = (int) input.readVarLong();
+        switch (type) {
+        case TYPE_COMMIT: {
+            String branch = input.readName();
+            long referenceSequence = input.readVarLong();
+            long entityIdSequence = input.readVarLong();
+            repository.advanceSequences(referenceSequence, entityIdSequence);
+            int count = input.readSize();
+            EntityStore store = repository.getEntityStore();
+            for (int i = 0; i < count; i++) {
+                long id = input.readVarLong();
+                if (id == 0) {
+                    continue;
+                }
+                Entity entity = input.readEntity();
+                // 格納先に残っている内容は異常終了によって壊れている場合があるため、常に格納しなおす
+                store.put(id, entity);
+            }
+            Revision.Delta<LocalEntityId> delta = RepositoryCodec.readDelta(input);
+            repository.replay(branch, delta);
+            break;
+        }
+        case TYPE_BRANCH: {
+            String name = input.readName();
+            String from = input.readName();
+            Revision<LocalEntityId> fork = RepositoryCodec.readRevision(input);
+            repository.replayBranch(name, from, fork);
+            break;
+        }
+        case TYPE_MERGE: {
+            String into = input.readName();
+            String from = input.readName();
+            Revision<LocalEntityId> theirs = RepositoryCodec.readRevision(input);
+            Revision<LocalEntityId> ours = RepositoryCodec.readRevision(input);
+            repository.replayMerge(into, from, theirs, ours);
+            break;
+        }
+        default:
+            throw new IOException(MessageFormat.format(
+                    "Unknown commit log record type: {0}",
+                    type));
+        }
+    }
+
+    /**
+     * 指定のリポジトリのチェックポイントを作成し、チェックポイントに含まれるレコードをログから取り除く。
+     * <p>
+     * 前回同じファイルにチェックポイントを作成していれば、前回からの差分のみを
+     * {@link IncrementalCheckpoint}として追記する。
+     * そうでない場合や差分が大きくなった場合は、全体を一時ファイルに書き出した後に、指定のファイルと置き換える。
+     * エンティティの格納先が永続化されている場合、格納先を記憶装置に書き出して、
+     * チェックポイントにはリビジョンのみを{@link RepositoryImage}の形式で書き出す。
+     * この形式のチェックポイントは、エンティティの個数によらない時間で開ける。
+     * </p>
+     * <p>
+     * この呼び出しは、同じリポジトリに対して同時に実行してはならない。
+     * </p>
+     * @param target 対象のリポジトリ
+     * @param log 対象のリポジトリに関連づけたログ、存在しない場合は{@code null}
+     * @param checkpoint チェックポイントのファイル
+     * @throws IOException チェックポイントの作成に失敗した場合
+     */
+    static void checkpoint(LocalRepository target, CommitLog log, File checkpoint) throws IOException {
+        assert target != null;
+        assert checkpoint != null;
+
+        // コミットと追記を止めている間に最新のリビジョンを固定し、固定したリビジョンに含まれる最後のレコードを特定する
+        // (コミットは登録の前に追記されるため、追記済みで登録前のリビジョンが残らないようにコミットも止める)
+        List<LocalBranch> branches;
+        List<RevisionCollector.Pin> pins;
+        List<Map<String, LocalBranch.MergeBase>> bases;
+        long sequence = 0L;
+        long position = 0L;
+        List<GroupCommitter> committers = new ArrayList<GroupCommitter>();
+        try {
+            branches = lockBranches(target, log, committers);
+            pins = RepositoryCodec.pinHeads(target, branches);
+            bases = RepositoryCodec.getMergeBases(branches);
+            if (log != null) {
+                sequence = log.lastSequence;
+                position = log.channel.position();
+            }
+        }
+        finally {
+            if (log != null && log.appendLock.isHeldByCurrentThread()) {
+                log.appendLock.unlock();
+            }
+            for (GroupCommitter committer : committers) {
+                committer.unlock();
+            }
+        }
+        // 固定は、成功した時点で次の差分のための状態に引き継ぐ
+        boolean succeed = false;
+        try {
+            EntityStore store = target.getEntityStore();
+            boolean persistent = store.isPersistent();
+            if (persistent) {
+                store.sync();
+            }
+            IncrementalCheckpoint last = target.getLastCheckpoint();
+            if (last != null && last.isFor(checkpoint) && last.needsConsolidation() == false) {
+                last.append(target, branches, pins, bases, sequence);
+            }
+            else {
+                long stamp = IncrementalCheckpoint.newStamp();
+                writeBase(target, branches, pins, bases, persistent, sequence, stamp, checkpoint);
+                target.setLastCheckpoint(IncrementalCheckpoint.start(checkpoint, stamp, branches, pins, bases));
+                if (last != null) {
+                    last.release();
+                }
+            }
+            succeed = true;
+        }
+        finally {
+            if (succeed == false) {
+                RepositoryCodec.release(pins);
+            }
+        }
+        if (log != null) {
+            log.discard(sequence, position);
+        }
+    }
+
+    /**
+     * 指定のリポジトリのすべてのブランチへのコミットと、ログへの追記を止める。
+     * <p>
+     * ログが存在しない場合は何も止めない。
+     * 止めたコミットは、この呼び出しが例外をスローした場合も含めて、指定の一覧に追加される。
+     * </p>
+     * @param target 対象のリポジトリ
+     * @param log 対象のリポジトリに関連づけたログ、存在しない場合は{@code null}
+     * @param committers 止めたコミットを追加する一覧
+     * @return 止めた時点のブランチの一覧
+     */
+    private static List<LocalBranch> lockBranches(
+            LocalRepository target,
+            CommitLog log,
+            List<GroupCommitter> committers) {
+        assert target != null;
+        assert committers != null;
+        while (true) {
+            List<LocalBranch> branches = target.getBranches();
+            if (log == null) {
+                return branches;
+            }
+            for (LocalBranch branch : branches) {
+                GroupCommitter committer = branch.getCommitter();
+                committer.lock();
+                committers.add(committer);
+            }
+            log.appendLock.lock();
+
+            // ブランチの作成は追記を止めて行うため、ここで一覧が変わっていなければ以降も変わらない
+            if (new HashSet<LocalBranch>(target.getBranches()).equals(new HashSet<LocalBranch>(branches))) {
+                return branches;
+            }
+            log.appendLock.unlock();
+            for (GroupCommitter committer : committers) {
+                committer.unlock();
+            }
+            committers.clear();
+        }
+    }
+
+    private static void writeBase(
+            LocalRepository target,
+            List<LocalBranch> branches,
+            List<RevisionCollector.Pin> pins,
+            List<Map<String, LocalBranch.MergeBase>> bases,
+            boolean persistent,
+            long sequence,
+            long stamp,
+            File checkpoint) throws IOException {
+        assert target != null;
+        assert branches != null;
+        assert pins != null;
+        assert bases != null;
+        assert checkpoint != null;
+        File temporary = new File(checkpoint.getPath() + ".tmp"); //$NON-NLS-1$
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.write(CHECKPOINT_MAGIC);
+            EntityOutput header = new EntityOutput(output);
+            header.writeVarLong(VERSION);
+            header.writeVarLong(sequence);
+            output.writeLong(stamp);
+            if (persistent) {
+                header.writeVarLong(CHECKPOINT_IMAGE);
+                RepositoryImage.write(target, branches, pins, bases, output, output.size());
+            }
+            else {
+                header.writeVarLong(CHECKPOINT_FULL);
+                RepositoryCodec.write(target, branches, pins, bases, true, output);
+            }
+            output.flush();
+            stream.getFD().sync();
+        }
+        finally {
+            stream.close();
+        }
+        replace(temporary, checkpoint);
+    }
+
+    /**
+     * ログの先頭から指定の位置までのレコードを取り除く。
+     * @param sequence 取り除く最後のレコードの連番
+     * @param position 残す最初のレコードの位置
+     * @throws IOException 取り除くことに失敗した場合
+     */
+    private void discard(long sequence, long position) throws IOException {
+        assert position >= HEADER_SIZE;
+        // 書き出し中のスレッドが古いファイルを参照しないよう、書き出しと追記の両方を止める
+        synchronized (syncLock) {
+            while (syncing) {
+                try {
+                    syncLock.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while truncating commit log");
+                }
+            }
+            syncing = true;
+        }
+        appendLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            File temporary = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+            FileChannel rest = new RandomAccessFile(temporary, "rw").getChannel(); //$NON-NLS-1$
+            try {
+                rest.truncate(0L);
+                writeHeader(rest, sequence);
+                long end = channel.size();
+                for (long offset = position; offset < end;) {
+                    offset += channel.transferTo(offset, end - offset, rest);
+                }
+                rest.force(true);
+            }
+            catch (IOException e) {
+                rest.close();
+                throw e;
+            }
+            replace(temporary, file);
+            channel.close();
+            channel = rest;
+            channel.position(channel.size());
+            synchronized (syncLock) {
+                durableSequence = lastSequence;
+            }
+        }
+        finally {
+            appendLock.unlock();
+            synchronized (syncLock) {
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private static void replace(File source, File destination) throws IOException {
+        assert source != null;
+        assert destination != null;
+        if (source.renameTo(destination) == false) {
+            // 置き換えを許さないプラットフォームでは、先に削除してから改名する
+            if (destination.delete() == false || source.renameTo(destination) == false) {
+                throw new IOException(MessageFormat.format(
+                        "Failed to replace {0} with {1}",
+                        destination,
+                        source));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        assert channel != null;
+        assert buffer != null;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        assert channel != null;
+        assert buffer != null;
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * 追記するレコードの内容。
+     * @author ashigeru
+     */
+    private static final class Record {
+
+        final ByteArrayOutputStream buffer;
+
+        final EntityOutput output;
+
+        Record(int type) {
+            this.buffer = new ByteArrayOutputStream();
+            this.output = new EntityOutput(new DataOutputStream(buffer));
+            try {
+                output.writeVarLong(type);
+            }
+            catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        ByteBuffer toFrame(long sequence) {
+            byte[] payload = buffer.toByteArray();
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE + payload.length);
+            frame.putInt(payload.length);
+            frame.putInt(0);
+            frame.putLong(sequence);
+            frame.put(payload);
+            CRC32 crc = new CRC32();
+            crc.update(frame.array(), 8, frame.capacity() - 8);
+            frame.putInt(4, (int) crc.getValue());
+            frame.flip();
+            return frame;
+        }
+    }
+
+    /**
+     * ログのレコードを先頭から順に読み出す。
+     * @author ashigeru
+     */
+    private static final class Scanner {
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        /**
+         * 次に読み出すレコードの位置。
+         */
+        long position;
+
+        /**
+         * 最後に読み出したレコードの連番。
+         */
+        long sequence;
+
+        /**
+         * 最後に読み出したレコードの内容。
+         */
+        byte[] payload;
+
+        Scanner(FileChannel channel) throws IOException {
+            assert channel != null;
+            this.channel = channel;
+            this.size = channel.size();
+            this.position = HEADER_SIZE;
+            this.sequence = readHeader(channel);
+        }
+
+        /**
+         * 次のレコードを読み出す。
+         * @return 読み出した場合は{@code true}、末尾に達したか、以降のレコードが壊れている場合は{@code false}
+         * @throws IOException 読み出しに失敗した場合
+         */
+        boolean next() throws IOException {
+            if (size - position < FRAME_SIZE) {
+                return false;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+            if (readFully(channel, frame, position) == false) {
+                return false;
+            }
+            int length = frame.getInt();
+            int checksum = frame.getInt();
+            long next = frame.getLong();
+            if (length < 0 || size - position - FRAME_SIZE < length || next <= sequence) {
+                return false;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (readFully(channel, body, position + FRAME_SIZE) == false) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(frame.array(), 8, 8);
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return false;
+            }
+            position += FRAME_SIZE + length;
+            sequence = next;
+            payload = body.array();
+            return true;
+        }
+    }
+}
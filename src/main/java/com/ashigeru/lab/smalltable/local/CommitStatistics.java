@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+/**
+ * {@link LocalRepository#getCommitStatistics()}の結果。
+ * @author ashigeru
+ */
+public class CommitStatistics {
+
+    private final long commits;
+
+    private final long conflicts;
+
+    private final long revisions;
+
+    private final long conflictCheckNanos;
+
+    /**
+     * インスタンスを生成する。
+     * @param commits 受理されたコミットの個数
+     * @param conflicts 衝突によって拒否されたコミットの個数
+     * @param revisions 登録されたリビジョンの個数
+     * @param conflictCheckNanos 衝突の検査に要した時間の合計 (ナノ秒)
+     */
+    CommitStatistics(long commits, long conflicts, long revisions, long conflictCheckNanos) {
+        this.commits = commits;
+        this.conflicts = conflicts;
+        this.revisions = revisions;
+        this.conflictCheckNanos = conflictCheckNanos;
+    }
+
+    /**
+     * 受理されたコミットの個数を返す。
+     * @return 受理されたコミットの個数
+     */
+    public long getCommits() {
+        return commits;
+    }
+
+    /**
+     * 衝突によって拒否されたコミットの個数を返す。
+     * @return 拒否されたコミットの個数
+     */
+    public long getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * 登録されたリビジョンの個数を返す。
+     * <p>
+     * 同時に到着したコミットはひとつのリビジョンにまとめられるため、この値は受理されたコミットの個数以下になる。
+     * </p>
+     * @return 登録されたリビジョンの個数
+     */
+    public long getRevisions() {
+        return revisions;
+    }
+
+    /**
+     * 衝突の検査に要した時間の合計を返す。
+     * <p>
+     * 最新までの差分の計算と、同時にコミットされた変更との合成に要した時間を含む。
+     * </p>
+     * @return 衝突の検査に要した時間の合計 (ナノ秒)
+     */
+    public long getConflictCheckNanos() {
+        return conflictCheckNanos;
+    }
+
+    /**
+     * コミット要求1件あたりの、衝突の検査に要した平均の時間を返す。
+     * @return 衝突の検査に要した平均の時間 (ナノ秒)、要求がない場合は{@code 0}
+     */
+    public long getConflictCheckNanosPerCommit() {
+        long total = commits + conflicts;
+        if (total == 0) {
+            return 0;
+        }
+        return conflictCheckNanos / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "CommitStatistics{commits=%d, conflicts=%d, revisions=%d, conflictCheckNanosPerCommit=%d}",
+                commits,
+                conflicts,
+                revisions,
+                getConflictCheckNanosPerCommit());
+    }
+}
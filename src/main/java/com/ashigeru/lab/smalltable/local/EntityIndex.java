@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ashigeru.lab.smalltable.Entity;
+
+/**
+ * エンティティの内容のハッシュ値から、同一の内容をもつ格納済みのエンティティの識別子を引く索引。
+ * <p>
+ * 索引はハッシュ値と識別子のみを保持し、内容の比較には格納先のエンティティを利用する。
+ * 登録したエンティティごとに、コミット中の利用者の数と、一度でもコミットされたかどうかを記録する。
+ * 利用者が残っているエンティティは回収してはならず、一度もコミットされずに利用者がいなくなったエンティティは破棄できる。
+ * </p>
+ * <p>
+ * 索引の内容の確認と、それに基づくエンティティの格納や回収を不可分に行うため、
+ * 呼び出し元はこのオブジェクトで同期してから呼び出す必要がある。
+ * ただし、{@link #isEmpty()}は同期せずに呼び出せる。
+ * </p>
+ * @author ashigeru
+ */
+final class EntityIndex {
+
+    private final EntityStore store;
+
+    /**
+     * 内容のハッシュ値ごとの登録内容。
+     */
+    private final Map<Integer, List<Entry>> contents;
+
+    /**
+     * 識別子の数値表現ごとの登録内容。
+     */
+    private final Map<Long, Entry> entries;
+
+    private volatile int size;
+
+    /**
+     * インスタンスを生成する。
+     * @param store 内容の比較に利用するエンティティの格納先
+     */
+    EntityIndex(EntityStore store) {
+        assert store != null;
+        this.store = store;
+        this.contents = new HashMap<Integer, List<Entry>>();
+        this.entries = new HashMap<Long, Entry>();
+    }
+
+    /**
+     * 索引にエンティティがひとつも登録されていない場合のみ{@code true}を返す。
+     * <p>
+     * 利用中のエンティティは索引から取り除かれないため、
+     * 索引から得た識別子を利用している間は、同期せずに呼び出しても{@code true}を返さない。
+     * </p>
+     * @return 登録されていない場合のみ{@code true}
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 指定のエンティティと同一の内容をもつ登録済みのエンティティを探し、その利用を開始する。
+     * @param entity 対象のエンティティ
+     * @return 同一の内容をもつエンティティの識別子、存在しない場合は{@code null}
+     */
+    LocalEntityId acquire(Entity entity) {
+        assert entity != null;
+        assert Thread.holdsLock(this);
+        List<Entry> candidates = contents.get(entity.hashCode());
+        if (candidates == null) {
+            return null;
+        }
+        for (Entry entry : candidates) {
+            if (entity.equals(store.get(entry.id))) {
+                entry.users++;
+                return new LocalEntityId(entry.id);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 新しく格納したエンティティを登録し、その利用を開始する。
+     * @param id 格納したエンティティの識別子
+     * @param entity 格納したエンティティ
+     */
+    void register(LocalEntityId id, Entity entity) {
+        assert id != null;
+        assert entity != null;
+        assert Thread.holdsLock(this);
+        assert entries.containsKey(id.getNumeric()) == false;
+        Entry entry = new Entry(id.getNumeric(), entity.hashCode());
+        entry.users = 1;
+        entries.put(entry.id, entry);
+        List<Entry> candidates = contents.get(entry.hash);
+        if (candidates == null) {
+            candidates = new ArrayList<Entry>(1);
+            contents.put(entry.hash, candidates);
+        }
+        candidates.add(entry);
+        size++;
+    }
+
+    /**
+     * 指定の識別子をもつエンティティが登録されている場合のみ{@code true}を返す。
+     * @param id 対象の識別子
+     * @return 登録されている場合のみ{@code true}
+     */
+    boolean contains(LocalEntityId id) {
+        assert id != null;
+        assert Thread.holdsLock(this);
+        return entries.containsKey(id.getNumeric());
+    }
+
+    /**
+     * 指定の識別子をもつ登録済みのエンティティに、利用者が残っている場合のみ{@code true}を返す。
+     * @param id 対象の識別子
+     * @return 利用者が残っている場合のみ{@code true}
+     */
+    boolean isUsed(LocalEntityId id) {
+        assert id != null;
+        assert Thread.holdsLock(this);
+        Entry entry = entries.get(id.getNumeric());
+        return entry != null && entry.users > 0;
+    }
+
+    /**
+     * 指定の識別子をもつ登録済みのエンティティの利用を終了する。
+     * <p>
+     * 一度もコミットされずに利用者がいなくなったエンティティは、索引から取り除かれる。
+     * </p>
+     * @param id 対象の識別子
+     * @param committed 利用者がこのエンティティをコミットした場合は{@code true}
+     * @return 索引から取り除き、格納先からも破棄すべき場合のみ{@code true}
+     */
+    boolean release(LocalEntityId id, boolean committed) {
+        assert id != null;
+        assert Thread.holdsLock(this);
+        Entry entry = entries.get(id.getNumeric());
+        assert entry != null;
+        assert entry.users > 0;
+        entry.users--;
+        if (committed) {
+            entry.committed = true;
+        }
+        if (entry.users == 0 && entry.committed == false) {
+            remove(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 回収した指定の識別子をもつエンティティを、索引から取り除く。
+     * @param id 対象の識別子
+     */
+    void remove(LocalEntityId id) {
+        assert id != null;
+        assert Thread.holdsLock(this);
+        Entry entry = entries.get(id.getNumeric());
+        if (entry != null) {
+            assert entry.users == 0;
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        assert entry != null;
+        entries.remove(entry.id);
+        List<Entry> candidates = contents.get(entry.hash);
+        assert candidates != null;
+        candidates.remove(entry);
+        if (candidates.isEmpty()) {
+            contents.remove(entry.hash);
+        }
+        size--;
+    }
+
+    /**
+     * 索引に登録したエンティティ。
+     */
+    private static final class Entry {
+
+        final long id;
+
+        final int hash;
+
+        int users;
+
+        boolean committed;
+
+        Entry(long id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.ashigeru.lab.smalltable.Entity;
+
+/**
+ * {@link LocalEntityId}の数値表現を鍵として、{@link LocalRepository}のエンティティを格納する。
+ * <p>
+ * すべてのメソッドは、複数のスレッドから同時に呼び出せる必要がある。
+ * </p>
+ * @author ashigeru
+ * @see LocalEntityStore
+ * @see MappedEntityStore
+ */
+interface EntityStore extends Closeable {
+
+    /**
+     * 指定の識別子をもつエンティティを返す。
+     * @param id 対象の識別子の数値表現
+     * @return 対応するエンティティ、存在しない場合は{@code null}
+     */
+    Entity get(long id);
+
+    /**
+     * 指定の識別子にエンティティを格納する。
+     * <p>
+     * 識別子はシーケンスから払い出され、まだ利用されていないものである必要がある。
+     * ただし、ログやチェックポイントから復元する際には、同じ識別子に同じ内容のエンティティを格納しなおす場合がある。
+     * </p>
+     * @param id 対象の識別子の数値表現
+     * @param entity 格納するエンティティ
+     */
+    void put(long id, Entity entity);
+
+    /**
+     * 指定の識別子をもつエンティティを取り除く。
+     * @param id 対象の識別子の数値表現
+     * @return 取り除いたエンティティ、存在しなかった場合は{@code null}
+     */
+    Entity remove(long id);
+
+    /**
+     * 指定の識別子より大きな識別子のうち、エンティティが格納されている最小のものを返す。
+     * <pre><code>
+     * for (long id = store.nextId(0); id &gt;= 0; id = store.nextId(id)) {
+     *     Entity entity = store.get(id);
+     *     ...
+     * }
+     * </code></pre>
+     * @param id 起点となる識別子の数値表現
+     * @return 次の識別子の数値表現、存在しない場合は{@code -1}
+     */
+    long nextId(long id);
+
+    /**
+     * 格納されているエンティティの識別子の上限を返す。
+     * <p>
+     * 返す値は、格納されているいずれのエンティティの識別子よりも小さくない。
+     * </p>
+     * @return 識別子の数値表現の上限、エンティティが格納されていない場合は{@code 0}以上の任意の値
+     */
+    long getLastId();
+
+    /**
+     * 格納したエンティティがプロセスの終了後も残る場合のみ{@code true}を返す。
+     * @return プロセスの終了後も残る場合のみ{@code true}
+     */
+    boolean isPersistent();
+
+    /**
+     * これまでに格納したエンティティを記憶装置に書き出す。
+     * @throws IOException 書き出しに失敗した場合
+     */
+    void sync() throws IOException;
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * 同時に到着したコミット要求をまとめて、ひとつのリビジョンとして登録する。
+ * <p>
+ * コミット要求はいったん待ち行列に積まれ、その時点でコミットを行っていないスレッドがひとつだけ代表者となり、
+ * 待ち行列に積まれた互いに衝突しない変更を{@link Revision.Delta#merge(Revision.Delta)}で合成してから、
+ * 単一の compare-and-set で最新のリビジョンとして登録する。
+ * 代表者以外のスレッドは、自身の要求が処理されるまで待機する。
+ * </p>
+ * <p>
+ * 他の変更と同じエンティティの異なるプロパティのみを変更した要求や、整数のプロパティに加算した要求は、
+ * {@link Resolver}によって最新のエンティティに変更を取り込んだ新しいエンティティに差し替えてからコミットする。
+ * </p>
+ * <p>
+ * 複数のコミット先にまたがる変更は、{@link #lock()}でそれぞれのコミット先の代表者となってから、
+ * {@link #prepare(Revision, Revision.Delta)}ですべてのコミット先の変更を検査し、
+ * {@link #commitPrepared(Prepared)}で登録する二相コミットによって不可分に登録できる。
+ * </p>
+ * @author ashigeru
+ */
+final class GroupCommitter {
+
+    /**
+     * 代表者の交代を待つ最大の時間 (ナノ秒)。
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * {@link #lock()}が代表者の交代を待つ間隔 (ナノ秒)。
+     */
+    private static final long LOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * コミット先の最新リビジョン。
+     */
+    private final AtomicReference<Revision<LocalEntityId>> head;
+
+    /**
+     * 処理待ちのコミット要求。
+     */
+    private final ConcurrentLinkedQueue<Request> queue;
+
+    /**
+     * 代表者が存在する場合に{@code true}となる。
+     */
+    private final AtomicBoolean leader;
+
+    /**
+     * 最新のリビジョンが登録されたことを通知する先。
+     */
+    private final Listener listener;
+
+    /**
+     * プロパティの変更を最新のエンティティに取り込む。
+     */
+    private final Resolver resolver;
+
+    /**
+     * 代表者がコミット要求をまとめる前に待機する時間 (ナノ秒)。
+     */
+    private volatile long windowNanos;
+
+    /**
+     * 受理されたコミットの個数。
+     */
+    private final AtomicLong acceptedCount = new AtomicLong();
+
+    /**
+     * 衝突によって拒否されたコミットの個数。
+     */
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    /**
+     * 登録されたリビジョンの個数。
+     */
+    private final AtomicLong revisionCount = new AtomicLong();
+
+    /**
+     * 衝突の検査に要した時間の合計 (ナノ秒)。
+     */
+    private final AtomicLong conflictCheckNanos = new AtomicLong();
+
+    /**
+     * インスタンスを生成する。
+     * @param head コミット先の最新リビジョン
+     * @param resolver プロパティの変更を最新のエンティティに取り込むオブジェクト
+     * @param listener 最新のリビジョンが登録されたことを通知する先
+     */
+    GroupCommitter(AtomicReference<Revision<LocalEntityId>> head, Resolver resolver, Listener listener) {
+        assert head != null;
+        assert resolver != null;
+        assert listener != null;
+        this.head = head;
+        this.resolver = resolver;
+        this.listener = listener;
+        this.queue = new ConcurrentLinkedQueue<Request>();
+        this.leader = new AtomicBoolean();
+        this.windowNanos = 0L;
+    }
+
+    /**
+     * 代表者がコミット要求をまとめる前に待機する時間を設定する。
+     * @param nanos 待機する時間 (ナノ秒)、待機しない場合は{@code 0}
+     */
+    void setWindow(long nanos) {
+        assert nanos >= 0;
+        this.windowNanos = nanos;
+    }
+
+    /**
+     * 指定のリビジョンを起点とした変更を、他の要求とまとめてコミットする。
+     * @param source 開始リビジョン
+     * @param delta 開始リビジョンに対する変更差分
+     * @return 変更を含む新しい最新リビジョン、変更が衝突した場合は{@code null}
+     */
+    Revision<LocalEntityId> commit(Revision<LocalEntityId> source, Revision.Delta<LocalEntityId> delta) {
+        assert source != null;
+        assert delta != null;
+        Request request = new Request(source, delta);
+        queue.add(request);
+        while (request.done == false) {
+            if (leader.compareAndSet(false, true)) {
+                try {
+                    if (request.done == false) {
+                        long window = windowNanos;
+                        if (window > 0) {
+                            LockSupport.parkNanos(window);
+                        }
+                        processBatch();
+                    }
+                }
+                finally {
+                    leader.set(false);
+                }
+                // 次に待っている要求の持ち主を代表者の候補として起こす
+                Request next = queue.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.thread);
+                }
+            }
+            else {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+        }
+        if (request.failure != null) {
+            throw request.failure;
+        }
+        return request.result;
+    }
+
+    /**
+     * このコミット先の代表者となり、他のコミットを締め出す。
+     * <p>
+     * 締め出しは{@link #unlock()}で解除する必要がある。
+     * 複数のコミット先を締め出す場合、デッドロックを避けるため、すべての呼び出し元で同じ順序で締め出す必要がある。
+     * </p>
+     */
+    void lock() {
+        while (leader.compareAndSet(false, true) == false) {
+            LockSupport.parkNanos(this, LOCK_PARK_NANOS);
+        }
+    }
+
+    /**
+     * {@link #lock()}による締め出しを解除する。
+     */
+    void unlock() {
+        assert leader.get();
+        leader.set(false);
+        Request next = queue.peek();
+        if (next != null) {
+            LockSupport.unpark(next.thread);
+        }
+    }
+
+    /**
+     * 指定のリビジョンを起点とした変更を、現在の最新のリビジョンに対して検査する。
+     * <p>
+     * この呼び出しは{@link #lock()}で締め出している間に行う必要がある。
+     * 結果は同じ締め出しの間に、{@link #commitPrepared(Prepared)}か{@link #abort(Prepared)}のいずれかに渡す必要がある。
+     * </p>
+     * @param source 開始リビジョン
+     * @param delta 開始リビジョンに対する変更差分
+     * @return 登録可能な変更、変更が衝突した場合は{@code null}
+     */
+    Prepared prepare(Revision<LocalEntityId> source, Revision.Delta<LocalEntityId> delta) {
+        assert source != null;
+        assert delta != null;
+        assert leader.get();
+        Revision<LocalEntityId> base = head.get();
+        long checkStart = System.nanoTime();
+        try {
+            Revision.Delta<LocalEntityId> headDelta = source.createDeltaTo(base);
+            if (delta.conflictsWith(headDelta)) {
+                conflictCount.incrementAndGet();
+                return null;
+            }
+            List<LocalEntityId> rebased = new ArrayList<LocalEntityId>();
+            List<LocalEntityId> replaced = new ArrayList<LocalEntityId>();
+            Revision.Delta<LocalEntityId> resolved;
+            boolean succeed = false;
+            try {
+                resolved = rebase(
+                        source,
+                        delta,
+                        base,
+                        new Revision.Delta<LocalEntityId>(
+                                Collections.<String, Entity.Reference>emptyMap(),
+                                Collections.<Entity.Reference, LocalEntityId>emptyMap()),
+                        rebased,
+                        replaced);
+                succeed = true;
+            }
+            finally {
+                if (succeed == false) {
+                    // 取り込みの途中で失敗した場合、それまでに登録したエンティティはどのリビジョンからも参照されない
+                    resolver.discard(rebased);
+                }
+            }
+            return new Prepared(base, resolved, rebased, replaced);
+        }
+        finally {
+            conflictCheckNanos.addAndGet(System.nanoTime() - checkStart);
+        }
+    }
+
+    /**
+     * {@link #prepare(Revision, Revision.Delta)}で検査した変更を、最新のリビジョンとして登録する。
+     * <p>
+     * 締め出している間は他に最新のリビジョンを書き換えるものがないため、
+     * この呼び出しが登録前に失敗するのは{@link Listener#committing(Revision)}が例外をスローした場合のみである。
+     * 登録前に失敗した場合、検査した変更は{@link #abort(Prepared)}に渡す必要がある。
+     * 登録した後に失敗した場合、登録は取り消されず、{@link #abort(Prepared)}は何も行わない。
+     * </p>
+     * @param prepared 検査した変更
+     * @return 登録したリビジョン
+     */
+    Revision<LocalEntityId> commitPrepared(Prepared prepared) {
+        assert prepared != null;
+        assert leader.get();
+        assert prepared.published == false;
+        Revision<LocalEntityId> toCommit = prepared.base.apply(prepared.delta);
+        if (head.get() != prepared.base) {
+            // 代表者以外は最新のリビジョンを書き換えない
+            throw new IllegalStateException();
+        }
+        listener.committing(toCommit);
+        if (head.compareAndSet(prepared.base, toCommit) == false) {
+            // 代表者以外は最新のリビジョンを書き換えない
+            throw new IllegalStateException();
+        }
+        prepared.published = true;
+        acceptedCount.incrementAndGet();
+        revisionCount.incrementAndGet();
+        listener.committed(toCommit);
+        resolver.discard(prepared.replaced);
+        return toCommit;
+    }
+
+    /**
+     * {@link #prepare(Revision, Revision.Delta)}で検査した変更を登録せずに破棄する。
+     * <p>
+     * すでに{@link #commitPrepared(Prepared)}で登録した変更に対しては何も行わない。
+     * </p>
+     * @param prepared 検査した変更
+     */
+    void abort(Prepared prepared) {
+        assert prepared != null;
+        if (prepared.published) {
+            return;
+        }
+        resolver.discard(prepared.rebased);
+    }
+
+    /**
+     * これまでのコミットに関する統計情報を返す。
+     * @return 統計情報
+     */
+    CommitStatistics getStatistics() {
+        return new CommitStatistics(
+                acceptedCount.get(),
+                conflictCount.get(),
+                revisionCount.get(),
+                conflictCheckNanos.get());
+    }
+
+    private void processBatch() {
+        List<Request> batch = new ArrayList<Request>();
+        for (Request r = queue.poll(); r != null; r = queue.poll()) {
+            batch.add(r);
+        }
+        try {
+            // 最新のリビジョンは代表者のみが書き換えるため、処理の間に変わることはない
+            Revision<LocalEntityId> base = head.get();
+            Revision.Delta<LocalEntityId> merged = new Revision.Delta<LocalEntityId>(
+                    Collections.<String, Entity.Reference>emptyMap(),
+                    Collections.<Entity.Reference, LocalEntityId>emptyMap());
+            List<Request> accepted = new ArrayList<Request>();
+            List<LocalEntityId> rebased = new ArrayList<LocalEntityId>();
+            List<LocalEntityId> replaced = new ArrayList<LocalEntityId>();
+            long checkStart = System.nanoTime();
+            for (Request r : batch) {
+                List<LocalEntityId> requestRebased = new ArrayList<LocalEntityId>();
+                List<LocalEntityId> requestReplaced = new ArrayList<LocalEntityId>();
+                Revision.Delta<LocalEntityId> delta;
+                try {
+                    // 開始リビジョンから最新までに行われた変更との衝突を検査
+                    Revision.Delta<LocalEntityId> headDelta = r.source.createDeltaTo(base);
+                    if (r.delta.conflictsWith(headDelta) || merged.conflictsWith(r.delta)) {
+                        conflictCount.incrementAndGet();
+                        r.complete(null);
+                        continue;
+                    }
+                    // 先に行われたプロパティの変更を取り込む
+                    delta = rebase(r.source, r.delta, base, merged, requestRebased, requestReplaced);
+                }
+                catch (RuntimeException e) {
+                    // この要求のみを失敗させ、取り込みかけたエンティティを破棄して残りの要求を処理する
+                    resolver.discard(requestRebased);
+                    r.fail(e);
+                    continue;
+                }
+                // 同じグループ内で先に受理した変更と合成
+                Revision.Delta<LocalEntityId> next = merged.merge(delta);
+                assert next != null;
+                merged = next;
+                rebased.addAll(requestRebased);
+                replaced.addAll(requestReplaced);
+                accepted.add(r);
+            }
+            conflictCheckNanos.addAndGet(System.nanoTime() - checkStart);
+            if (accepted.isEmpty()) {
+                return;
+            }
+            Revision<LocalEntityId> toCommit = base.apply(merged);
+
+            // 登録する前に通知し、通知に失敗した場合はこのグループの変更をいずれも登録しない
+            boolean logged = false;
+            try {
+                listener.committing(toCommit);
+                logged = true;
+            }
+            finally {
+                if (logged == false) {
+                    resolver.discard(rebased);
+                }
+            }
+            if (head.compareAndSet(base, toCommit) == false) {
+                // 代表者以外は最新のリビジョンを書き換えない
+                resolver.discard(rebased);
+                throw new IllegalStateException();
+            }
+            try {
+                acceptedCount.addAndGet(accepted.size());
+                revisionCount.incrementAndGet();
+                listener.committed(toCommit);
+                // 差し替えられた元のエンティティは、どのリビジョンからも参照されない
+                resolver.discard(replaced);
+            }
+            finally {
+                // 登録した変更は、以降の処理に失敗しても取り消せないので、成功として完了させる
+                for (Request r : accepted) {
+                    r.complete(toCommit);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            // 衝突などですでに完了した要求には影響させず、代表者自身の要求も含めて結果は要求ごとに返す
+            for (Request r : batch) {
+                r.fail(e);
+            }
+        }
+        catch (Error e) {
+            for (Request r : batch) {
+                r.fail(e);
+            }
+            throw e;
+        }
+    }
+
+    private Revision.Delta<LocalEntityId> rebase(
+            Revision<LocalEntityId> source,
+            Revision.Delta<LocalEntityId> delta,
+            Revision<LocalEntityId> base,
+            Revision.Delta<LocalEntityId> merged,
+            List<LocalEntityId> rebased,
+            List<LocalEntityId> replaced) {
+        assert source != null;
+        assert delta != null;
+        assert base != null;
+        assert merged != null;
+        assert rebased != null;
+        assert replaced != null;
+        Map<Entity.Reference, LocalEntityId> entities = null;
+        for (Map.Entry<Entity.Reference, LocalEntityId> entry : delta.getEntityMap().entrySet()) {
+            Entity.Reference reference = entry.getKey();
+            Set<String> properties = delta.getChangedProperties(reference);
+            if (properties == null) {
+                continue;
+            }
+            // 開始リビジョン以降に、別の変更によってエンティティが差し替えられているかどうか
+            boolean pending = merged.getEntityMap().containsKey(reference);
+            LocalEntityId current = pending ? merged.getEntityMap().get(reference) : base.getId(reference);
+            LocalEntityId original = source.getId(reference);
+            if (current == null || current.equals(original)) {
+                continue;
+            }
+            LocalEntityId mine = entry.getValue();
+            LocalEntityId result = resolver.rebase(
+                    reference,
+                    current,
+                    mine,
+                    properties,
+                    delta.getAddedProperties(reference));
+            rebased.add(result);
+            replaced.add(mine);
+            if (pending) {
+                // 同じグループ内で先に受理したエンティティも、この結果に置き換えられる
+                replaced.add(current);
+            }
+            if (entities == null) {
+                entities = new HashMap<Entity.Reference, LocalEntityId>(delta.getEntityMap());
+            }
+            entities.put(reference, result);
+        }
+        if (entities == null) {
+            return delta;
+        }
+        Map<Entity.Reference, Set<String>> properties = new HashMap<Entity.Reference, Set<String>>();
+        Map<Entity.Reference, Map<String, Integer>> additions = new HashMap<Entity.Reference, Map<String, Integer>>();
+        for (Entity.Reference reference : entities.keySet()) {
+            Set<String> names = delta.getChangedProperties(reference);
+            if (names != null) {
+                properties.put(reference, names);
+                Map<String, Integer> added = delta.getAddedProperties(reference);
+                if (added.isEmpty() == false) {
+                    additions.put(reference, added);
+                }
+            }
+        }
+        return new Revision.Delta<LocalEntityId>(delta.getBindingMap(), entities, properties, additions);
+    }
+
+    /**
+     * 同じエンティティの異なるプロパティへの変更を合成する。
+     * @author ashigeru
+     */
+    interface Resolver {
+
+        /**
+         * 指定のエンティティに、別のエンティティの指定のプロパティと加算を取り込んだ新しいエンティティを登録する。
+         * @param reference 対象のエンティティへの参照
+         * @param base 取り込み先のエンティティの識別子
+         * @param modified 取り込むプロパティをもつエンティティの識別子
+         * @param properties 取り込むプロパティ名の一覧
+         * @param additions 取り込み先のエンティティのプロパティに加算する値の一覧
+         * @return 登録した新しいエンティティの識別子
+         */
+        LocalEntityId rebase(
+                Entity.Reference reference,
+                LocalEntityId base,
+                LocalEntityId modified,
+                Set<String> properties,
+                Map<String, Integer> additions);
+
+        /**
+         * 指定のエンティティを破棄する。
+         * <p>
+         * 破棄するエンティティは、どのリビジョンからも参照されていない必要がある。
+         * </p>
+         * @param ids 破棄するエンティティの識別子一覧
+         */
+        void discard(List<LocalEntityId> ids);
+    }
+
+    /**
+     * 最新のリビジョンが登録されることの通知を受け取る。
+     * @author ashigeru
+     */
+    interface Listener {
+
+        /**
+         * 指定のリビジョンを最新のリビジョンとして登録する直前であることを通知する。
+         * <p>
+         * この通知は代表者が他のコミットを締め出している間に、リビジョンを他のスレッドから参照できるようになる前に行われる。
+         * 通知が例外をスローした場合、そのリビジョンは登録されず、含まれるすべてのコミット要求が例外によって失敗する。
+         * </p>
+         * @param revision 登録するリビジョン
+         */
+        void committing(Revision<LocalEntityId> revision);
+
+        /**
+         * 指定のリビジョンが最新のリビジョンとして登録されたことを通知する。
+         * <p>
+         * この通知は、リビジョンが登録された順に、コミット要求の呼び出し元へ結果を返す前に行われる。
+         * 登録されたリビジョンは取り消せないため、通知が例外をスローしてもコミット要求は成功として扱われる。
+         * </p>
+         * @param revision 登録されたリビジョン
+         */
+        void committed(Revision<LocalEntityId> revision);
+    }
+
+    /**
+     * {@link GroupCommitter#prepare(Revision, Revision.Delta)}で検査した変更。
+     */
+    static final class Prepared {
+
+        final Revision<LocalEntityId> base;
+
+        final Revision.Delta<LocalEntityId> delta;
+
+        final List<LocalEntityId> rebased;
+
+        final List<LocalEntityId> replaced;
+
+        /**
+         * 最新のリビジョンとして登録した場合に{@code true}となる。
+         */
+        boolean published;
+
+        Prepared(
+                Revision<LocalEntityId> base,
+                Revision.Delta<LocalEntityId> delta,
+                List<LocalEntityId> rebased,
+                List<LocalEntityId> replaced) {
+            assert base != null;
+            assert delta != null;
+            assert rebased != null;
+            assert replaced != null;
+            this.base = base;
+            this.delta = delta;
+            this.rebased = rebased;
+            this.replaced = replaced;
+        }
+    }
+
+    /**
+     * ひとつのコミット要求。
+     */
+    private static final class Request {
+
+        final Thread thread;
+
+        final Revision<LocalEntityId> source;
+
+        final Revision.Delta<LocalEntityId> delta;
+
+        volatile boolean done;
+
+        Revision<LocalEntityId> result;
+
+        RuntimeException failure;
+
+        Request(Revision<LocalEntityId> source, Revision.Delta<LocalEntityId> delta) {
+            assert source != null;
+            assert delta != null;
+            this.thread = Thread.currentThread();
+            this.source = source;
+            this.delta = delta;
+        }
+
+        void complete(Revision<LocalEntityId> revision) {
+            if (done) {
+                return;
+            }
+            this.result = revision;
+            this.done = true;
+            LockSupport.unpark(thread);
+        }
+
+        void fail(Throwable cause) {
+            if (done) {
+                return;
+            }
+            if (cause instanceof RuntimeException) {
+                this.failure = (RuntimeException) cause;
+            }
+            else {
+                this.failure = new IllegalStateException(cause);
+            }
+            this.done = true;
+            LockSupport.unpark(thread);
+        }
+    }
+}
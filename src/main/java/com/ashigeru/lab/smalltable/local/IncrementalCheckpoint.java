@@ -0,0 +1,807 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.EntityInput;
+import com.ashigeru.lab.smalltable.EntityOutput;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * チェックポイントに追記していく、前回のチェックポイントからの差分。
+ * <p>
+ * チェックポイントは、全体を書き出した基点のファイルと、それ以降の差分を追記するファイルの組からなる。
+ * 差分はそれぞれのブランチの最新のリビジョンと取り込みの基点について、
+ * 前回書き出したリビジョンからの変更と、その変更が参照するエンティティのみを含む。
+ * そのため、チェックポイントの書き出しにかかる量は前回からの変更の量に比例する。
+ * 差分の合計が基点より大きくなった場合は、基点を書き出しなおして差分を破棄する。
+ * </p>
+ * <p>
+ * 差分のファイルは先頭の識別子と、対応する基点の刻印に続く、以下のレコードの並びからなる。
+ * 刻印が基点と一致しない差分のファイルは、基点を書き出しなおす途中で異常終了した際の古いものとして無視する。
+ * </p>
+ * <ol>
+ * <li> 内容の長さ (4バイト) </li>
+ * <li> 内容に対するCRC-32 (4バイト) </li>
+ * <li> 内容 ({@link EntityOutput}の形式で、取り除いたログの最後の連番、参照と識別子の連番、
+ *      エンティティの一覧、ブランチごとのリビジョン) </li>
+ * </ol>
+ * <p>
+ * 前回書き出したリビジョンは、書き出した時点の位置でそれぞれ番号をもつ。
+ * 位置はブランチの名前の昇順に、最新のリビジョン、取り込みの基点の名前の昇順に取り込んだ側と取り込まれた側である。
+ * 前回の最新のリビジョンは固定しておき、そこから現在のリビジョンまでの変更を追跡できるようにする。
+ * </p>
+ * @author ashigeru
+ */
+final class IncrementalCheckpoint {
+
+    /**
+     * 差分のファイル名の接尾辞。
+     */
+    static final String SUFFIX = ".inc"; //$NON-NLS-1$
+
+    /**
+     * 差分のファイルの先頭の識別子。
+     */
+    private static final byte[] MAGIC = { 'S', 'T', 'I', 'N' };
+
+    /**
+     * 形式のバージョン。
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * 差分のファイルの先頭の大きさ (識別子、バージョン、基点の刻印)。
+     */
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+
+    /**
+     * レコードの先頭の大きさ (長さとCRC-32)。
+     */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    /**
+     * リビジョンの内容をすべて書き出したことを表すタグ。
+     */
+    private static final int REVISION_FULL = 0;
+
+    /**
+     * 前回書き出したリビジョンと同一であることを表すタグ。
+     */
+    private static final int REVISION_SAME = 1;
+
+    /**
+     * 前回書き出したリビジョンからの変更を書き出したことを表すタグ。
+     */
+    private static final int REVISION_DELTA = 2;
+
+    /**
+     * 同じレコードで先に書き出したリビジョンと同一であることを表すタグ。
+     */
+    private static final int REVISION_SHARED = 3;
+
+    private static final Random STAMPS = new Random();
+
+    private static final Comparator<LocalBranch> BRANCH_ORDER = new Comparator<LocalBranch>() {
+        @Override
+        public int compare(LocalBranch o1, LocalBranch o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    private final File checkpoint;
+
+    private final File file;
+
+    private final long stamp;
+
+    private final long baseSize;
+
+    /**
+     * 差分のファイルの正しく書き出された末尾、ファイルが存在しない場合は{@code 0}。
+     */
+    private long end;
+
+    /**
+     * 前回書き出したリビジョンの位置ごとの一覧。
+     */
+    private List<Revision<LocalEntityId>> slots;
+
+    /**
+     * 前回書き出した最新のリビジョンの固定。
+     */
+    private List<RevisionCollector.Pin> pins;
+
+    private IncrementalCheckpoint(
+            File checkpoint,
+            long stamp,
+            long baseSize,
+            long end,
+            List<Revision<LocalEntityId>> slots,
+            List<RevisionCollector.Pin> pins) {
+        assert checkpoint != null;
+        assert slots != null;
+        assert pins != null;
+        this.checkpoint = checkpoint;
+        this.file = getFile(checkpoint);
+        this.stamp = stamp;
+        this.baseSize = baseSize;
+        this.end = end;
+        this.slots = slots;
+        this.pins = pins;
+    }
+
+    /**
+     * 指定のチェックポイントに対する、差分のファイルを返す。
+     * @param checkpoint チェックポイントの基点のファイル
+     * @return 差分のファイル
+     */
+    static File getFile(File checkpoint) {
+        assert checkpoint != null;
+        return new File(checkpoint.getPath() + SUFFIX);
+    }
+
+    /**
+     * 新しい基点の刻印を返す。
+     * @return 刻印
+     */
+    static long newStamp() {
+        synchronized (STAMPS) {
+            return STAMPS.nextLong();
+        }
+    }
+
+    /**
+     * 基点を書き出した直後の状態を作成し、以前の差分のファイルを削除する。
+     * <p>
+     * 作成した状態は、書き出したリビジョンの固定を引き継ぐ。
+     * </p>
+     * @param checkpoint 書き出した基点のファイル
+     * @param stamp 基点の刻印
+     * @param branches 書き出したブランチの一覧
+     * @param pins ブランチと同じ順序の、書き出したリビジョンの固定の一覧
+     * @param bases ブランチと同じ順序の、書き出した取り込みの基点の一覧
+     * @return 作成した状態
+     * @throws IOException 以前の差分のファイルを削除できなかった場合
+     */
+    static IncrementalCheckpoint start(
+            File checkpoint,
+            long stamp,
+            List<LocalBranch> branches,
+            List<RevisionCollector.Pin> pins,
+            List<Map<String, LocalBranch.MergeBase>> bases) throws IOException {
+        assert checkpoint != null;
+        assert branches != null;
+        assert pins != null;
+        assert bases != null;
+        File file = getFile(checkpoint);
+        if (file.exists() && file.delete() == false) {
+            throw new IOException(MessageFormat.format(
+                    "Failed to delete incremental checkpoint: {0}",
+                    file));
+        }
+        List<Revision<LocalEntityId>> heads = new ArrayList<Revision<LocalEntityId>>();
+        for (RevisionCollector.Pin pin : pins) {
+            heads.add(pin.revision);
+        }
+        return new IncrementalCheckpoint(
+                checkpoint,
+                stamp,
+                checkpoint.length(),
+                0L,
+                getSlots(branches, heads, bases),
+                new ArrayList<RevisionCollector.Pin>(pins));
+    }
+
+    private static List<Revision<LocalEntityId>> getSlots(
+            List<LocalBranch> branches,
+            List<Revision<LocalEntityId>> heads,
+            List<Map<String, LocalBranch.MergeBase>> bases) {
+        assert branches != null;
+        assert heads != null;
+        assert bases != null;
+        List<Revision<LocalEntityId>> results = new ArrayList<Revision<LocalEntityId>>();
+        for (int index : getOrder(branches)) {
+            results.add(heads.get(index));
+            for (LocalBranch.MergeBase base : new TreeMap<String, LocalBranch.MergeBase>(bases.get(index)).values()) {
+                results.add(base.theirs);
+                results.add(base.ours);
+            }
+        }
+        return results;
+    }
+
+    private static List<Integer> getOrder(final List<LocalBranch> branches) {
+        assert branches != null;
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return BRANCH_ORDER.compare(branches.get(o1), branches.get(o2));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * この状態が指定のチェックポイントに対するものである場合に{@code true}を返す。
+     * @param target 対象のチェックポイントの基点のファイル
+     * @return 指定のチェックポイントに対するものである場合に{@code true}
+     */
+    boolean isFor(File target) {
+        assert target != null;
+        return checkpoint.getAbsoluteFile().equals(target.getAbsoluteFile());
+    }
+
+    /**
+     * 差分が基点より大きくなり、基点を書き出しなおすべき場合に{@code true}を返す。
+     * @return 基点を書き出しなおすべき場合に{@code true}
+     */
+    boolean needsConsolidation() {
+        return end > baseSize;
+    }
+
+    /**
+     * 指定のブランチのリビジョンについて、前回からの差分を追記する。
+     * <p>
+     * 追記に成功した場合、この状態は指定の固定を引き継ぎ、以前の固定を解除する。
+     * </p>
+     * @param repository 対象のリポジトリ
+     * @param branches 書き出すブランチの一覧
+     * @param pins ブランチと同じ順序の、書き出すリビジョンの固定の一覧
+     * @param bases ブランチと同じ順序の、書き出す取り込みの基点の一覧
+     * @param sequence 差分に含まれる最後のログのレコードの連番
+     * @throws IOException 書き出しに失敗した場合
+     */
+    void append(
+            LocalRepository repository,
+            List<LocalBranch> branches,
+            List<RevisionCollector.Pin> pins,
+            List<Map<String, LocalBranch.MergeBase>> bases,
+            long sequence) throws IOException {
+        assert repository != null;
+        assert branches != null;
+        assert pins != null;
+        assert bases != null;
+        assert branches.size() == pins.size();
+        assert branches.size() == bases.size();
+        EntityStore store = repository.getEntityStore();
+        Map<Revision<LocalEntityId>, Integer> previous = new IdentityHashMap<Revision<LocalEntityId>, Integer>();
+        for (int i = slots.size() - 1; i >= 0; i--) {
+            previous.put(slots.get(i), i);
+        }
+
+        // リビジョンを先に符号化して、書き出すべきエンティティを集める
+        Encoder encoder = new Encoder(previous, store.isPersistent() == false);
+        ByteArrayOutputStream revisionBuffer = new ByteArrayOutputStream();
+        EntityOutput revisions = new EntityOutput(new DataOutputStream(revisionBuffer));
+        List<Revision<LocalEntityId>> heads = new ArrayList<Revision<LocalEntityId>>();
+        List<Integer> order = getOrder(branches);
+        revisions.writeVarLong(order.size());
+        for (int index : order) {
+            Revision<LocalEntityId> head = pins.get(index).revision;
+            heads.add(head);
+            revisions.writeName(branches.get(index).getName());
+            encoder.write(revisions, head);
+            Map<String, LocalBranch.MergeBase> merged = new TreeMap<String, LocalBranch.MergeBase>(bases.get(index));
+            revisions.writeVarLong(merged.size());
+            for (Map.Entry<String, LocalBranch.MergeBase> entry : merged.entrySet()) {
+                revisions.writeName(entry.getKey());
+                encoder.write(revisions, entry.getValue().theirs);
+                encoder.write(revisions, entry.getValue().ours);
+            }
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        EntityOutput output = new EntityOutput(new DataOutputStream(buffer));
+        output.writeVarLong(sequence);
+        output.writeVarLong(repository.getReferenceSequence());
+        output.writeVarLong(repository.getEntityIdSequence());
+        long last = 0L;
+        for (long id : encoder.getEntityIds()) {
+            Entity entity = store.get(id);
+            if (entity == null) {
+                // 固定したリビジョンのエンティティは回収されない
+                throw new IllegalStateException(MessageFormat.format(
+                        "Entity {0} was reclaimed while checkpointing",
+                        id));
+            }
+            output.writeVarLong(id - last);
+            output.writeEntity(entity);
+            last = id;
+        }
+        output.writeVarLong(0L);
+        revisionBuffer.writeTo(buffer);
+        byte[] payload = buffer.toByteArray();
+
+        long written = write(payload);
+        List<RevisionCollector.Pin> released = this.pins;
+        this.end = written;
+        this.slots = encoder.getSlots();
+        this.pins = new ArrayList<RevisionCollector.Pin>(pins);
+        RepositoryCodec.release(released);
+    }
+
+    private long write(byte[] payload) throws IOException {
+        assert payload != null;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+
+        RandomAccessFile target = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+        try {
+            FileChannel channel = target.getChannel();
+            long position = end;
+            if (position == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC);
+                header.put((byte) VERSION);
+                header.putLong(stamp);
+                header.flip();
+                channel.truncate(0L);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                position = HEADER_SIZE;
+            }
+            else {
+                // 途中で失敗したレコードを上書きする
+                channel.truncate(position);
+            }
+            while (frame.hasRemaining()) {
+                position += channel.write(frame, position);
+            }
+            channel.force(true);
+            return position;
+        }
+        finally {
+            target.close();
+        }
+    }
+
+    /**
+     * 固定しているリビジョンをすべて解除する。
+     */
+    void release() {
+        RepositoryCodec.release(pins);
+    }
+
+    /**
+     * 基点から復元したリポジトリに、指定のチェックポイントの差分を適用する。
+     * @param base 基点から復元したリポジトリ、まだ利用されていないもの
+     * @param checkpoint チェックポイントの基点のファイル
+     * @param stamp 基点の刻印
+     * @param cutoff 基点に含まれる最後のログのレコードの連番
+     * @return 差分を適用した結果
+     * @throws IOException 差分の読み出しに失敗した場合
+     */
+    static Restored restore(LocalRepository base, File checkpoint, long stamp, long cutoff) throws IOException {
+        assert base != null;
+        assert checkpoint != null;
+        List<LocalBranch> branches = base.getBranches();
+        List<Revision<LocalEntityId>> heads = new ArrayList<Revision<LocalEntityId>>();
+        List<Map<String, LocalBranch.MergeBase>> bases = RepositoryCodec.getMergeBases(branches);
+        for (LocalBranch branch : branches) {
+            heads.add(branch.getHead());
+        }
+        List<Revision<LocalEntityId>> slots = getSlots(branches, heads, bases);
+
+        File file = getFile(checkpoint);
+        List<byte[]> records = new ArrayList<byte[]>();
+        long end = read(file, stamp, records);
+        if (records.isEmpty()) {
+            return new Restored(base, cutoff, new IncrementalCheckpoint(
+                    checkpoint,
+                    stamp,
+                    checkpoint.length(),
+                    end,
+                    slots,
+                    RepositoryCodec.pinHeads(base, branches)));
+        }
+
+        EntityStore store = base.getEntityStore();
+        Decoder decoder = new Decoder(slots, store);
+        for (byte[] record : records) {
+            decoder.read(record);
+        }
+        slots = decoder.slots;
+        if (store.isPersistent() == false) {
+            decoder.sweep();
+        }
+
+        // 差分を適用したリビジョンから、改めてリポジトリを構成する
+        LocalRepository result = new LocalRepository(store, decoder.referenceSequence, decoder.entityIdSequence);
+        int slot = 0;
+        for (int i = 0, n = decoder.branches.size(); i < n; i++) {
+            LocalBranch branch = result.addBranch(decoder.branches.get(i), slots.get(slot++));
+            for (String other : decoder.baseNames.get(i)) {
+                Revision<LocalEntityId> theirs = slots.get(slot++);
+                Revision<LocalEntityId> ours = slots.get(slot++);
+                branch.setMergeBase(other, theirs, ours);
+            }
+        }
+        assert slot == slots.size();
+        if (base.getLoadReport() != null) {
+            result.setLoadReport(base.getLoadReport());
+        }
+        List<LocalBranch> restored = result.getBranches();
+        return new Restored(result, decoder.cutoff, new IncrementalCheckpoint(
+                checkpoint,
+                stamp,
+                checkpoint.length(),
+                end,
+                slots,
+                RepositoryCodec.pinHeads(result, restored)));
+    }
+
+    private static long read(File file, long stamp, List<byte[]> records) throws IOException {
+        assert file != null;
+        assert records != null;
+        if (file.exists() == false) {
+            return 0L;
+        }
+        RandomAccessFile source = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            long size = source.length();
+            if (size < HEADER_SIZE) {
+                return 0L;
+            }
+            byte[] magic = new byte[MAGIC.length];
+            source.readFully(magic);
+            if (Arrays.equals(magic, MAGIC) == false) {
+                throw new IOException(MessageFormat.format(
+                        "Not an incremental checkpoint: {0}",
+                        file));
+            }
+            int version = source.readByte();
+            if (version != VERSION) {
+                throw new IOException(MessageFormat.format(
+                        "Unsupported incremental checkpoint version: {0}",
+                        version));
+            }
+            if (source.readLong() != stamp) {
+                // 基点を書き出しなおした際に残った古い差分
+                return 0L;
+            }
+            long position = HEADER_SIZE;
+            while (size - position >= FRAME_HEADER_SIZE) {
+                source.seek(position);
+                int length = source.readInt();
+                int checksum = source.readInt();
+                if (length < 0 || size - position - FRAME_HEADER_SIZE < length) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                source.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(payload);
+                position += FRAME_HEADER_SIZE + length;
+            }
+            return position;
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    /**
+     * 差分を適用した結果。
+     * @author ashigeru
+     */
+    static final class Restored {
+
+        /**
+         * 差分を適用したリポジトリ。
+         */
+        final LocalRepository repository;
+
+        /**
+         * 基点と差分に含まれる最後のログのレコードの連番。
+         */
+        final long cutoff;
+
+        /**
+         * 以降の差分を追記するための状態。
+         */
+        final IncrementalCheckpoint state;
+
+        Restored(LocalRepository repository, long cutoff, IncrementalCheckpoint state) {
+            assert repository != null;
+            assert state != null;
+            this.repository = repository;
+            this.cutoff = cutoff;
+            this.state = state;
+        }
+    }
+
+    /**
+     * ひとつのレコードのリビジョンを符号化する。
+     * @author ashigeru
+     */
+    private static final class Encoder {
+
+        private final Map<Revision<LocalEntityId>, Integer> previous;
+
+        private final Map<Revision<LocalEntityId>, Integer> current;
+
+        private final List<Revision<LocalEntityId>> slots;
+
+        private final boolean entities;
+
+        private long[] ids;
+
+        private int idCount;
+
+        private final long oldest;
+
+        Encoder(Map<Revision<LocalEntityId>, Integer> previous, boolean entities) {
+            assert previous != null;
+            this.previous = previous;
+            this.current = new IdentityHashMap<Revision<LocalEntityId>, Integer>();
+            this.slots = new ArrayList<Revision<LocalEntityId>>();
+            this.entities = entities;
+            this.ids = new long[256];
+            long min = Long.MAX_VALUE;
+            for (Revision<LocalEntityId> revision : previous.keySet()) {
+                min = Math.min(min, revision.getGeneration());
+            }
+            this.oldest = min;
+        }
+
+        void write(EntityOutput output, Revision<LocalEntityId> revision) throws IOException {
+            assert output != null;
+            assert revision != null;
+            Integer shared = current.get(revision);
+            if (shared == null) {
+                current.put(revision, slots.size());
+            }
+            slots.add(revision);
+            if (shared != null) {
+                output.writeVarLong(REVISION_SHARED);
+                output.writeVarLong(shared);
+                return;
+            }
+            Integer same = previous.get(revision);
+            if (same != null) {
+                output.writeVarLong(REVISION_SAME);
+                output.writeVarLong(same);
+                return;
+            }
+
+            // もっとも近い、前回書き出したリビジョンを祖先からさがす
+            for (Revision<LocalEntityId> ancestor = revision.getParent();
+                    ancestor != null && ancestor.getGeneration() >= oldest;
+                    ancestor = ancestor.getParent()) {
+                Integer index = previous.get(ancestor);
+                if (index != null) {
+                    Revision.Delta<LocalEntityId> delta = ancestor.createDeltaTo(revision);
+                    output.writeVarLong(REVISION_DELTA);
+                    output.writeVarLong(index);
+                    RepositoryCodec.writeDelta(output, delta);
+                    for (LocalEntityId id : delta.getEntityMap().values()) {
+                        if (id != null) {
+                            addEntity(id.getNumeric());
+                        }
+                    }
+                    return;
+                }
+            }
+            output.writeVarLong(REVISION_FULL);
+            RepositoryCodec.writeRevision(output, revision);
+            LocalReferenceTable table = (LocalReferenceTable) revision.getEntityTable();
+            for (LocalReferenceTable.Cursor cursor = table.cursor(); cursor.next();) {
+                addEntity(cursor.getValue());
+            }
+        }
+
+        private void addEntity(long id) {
+            if (entities == false) {
+                return;
+            }
+            if (idCount == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[idCount++] = id;
+        }
+
+        long[] getEntityIds() {
+            long[] sorted = Arrays.copyOf(ids, idCount);
+            Arrays.sort(sorted);
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[count++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, count);
+        }
+
+        List<Revision<LocalEntityId>> getSlots() {
+            return slots;
+        }
+    }
+
+    /**
+     * レコードを順に復号する。
+     * @author ashigeru
+     */
+    private static final class Decoder {
+
+        private final EntityStore store;
+
+        private List<Revision<LocalEntityId>> previous;
+
+        List<Revision<LocalEntityId>> slots;
+
+        List<String> branches;
+
+        List<List<String>> baseNames;
+
+        long cutoff;
+
+        long referenceSequence;
+
+        long entityIdSequence;
+
+        /**
+         * 差分によって置き換えられた参照と識別子の組。
+         */
+        private final List<Object[]> replaced;
+
+        Decoder(List<Revision<LocalEntityId>> slots, EntityStore store) {
+            assert slots != null;
+            assert store != null;
+            this.store = store;
+            this.slots = slots;
+            this.replaced = new ArrayList<Object[]>();
+        }
+
+        void read(byte[] record) throws IOException {
+            assert record != null;
+            previous = slots;
+            slots = new ArrayList<Revision<LocalEntityId>>();
+            branches = new ArrayList<String>();
+            baseNames = new ArrayList<List<String>>();
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+            EntityInput input = new EntityInput(data);
+            cutoff = input.readVarLong();
+            referenceSequence = input.readVarLong();
+            entityIdSequence = input.readVarLong();
+            long id = 0L;
+            while (true) {
+                long gap = input.readVarLong();
+                if (gap == 0) {
+                    break;
+                }
+                id += gap;
+                Entity entity = input.readEntity();
+                store.put(id, entity);
+            }
+
+            // リビジョンは名前の表を別にして符号化している
+            EntityInput revisions = new EntityInput(data);
+            int branchCount = revisions.readSize();
+            for (int i = 0; i < branchCount; i++) {
+                branches.add(revisions.readName());
+                readRevision(revisions);
+                int baseCount = revisions.readSize();
+                List<String> names = new ArrayList<String>(baseCount);
+                for (int j = 0; j < baseCount; j++) {
+                    names.add(revisions.readName());
+                    readRevision(revisions);
+                    readRevision(revisions);
+                }
+                baseNames.add(names);
+            }
+        }
+
+        private void readRevision(EntityInput input) throws IOException {
+            assert input != null;
+            int tag = (int) input.readVarLong();
+            switch (tag) {
+            case REVISION_FULL:
+                slots.add(RepositoryCodec.readRevision(input));
+                break;
+            case REVISION_SAME:
+                slots.add(getSlot(previous, input.readSize()));
+                break;
+            case REVISION_DELTA: {
+                Revision<LocalEntityId> base = getSlot(previous, input.readSize());
+                Revision.Delta<LocalEntityId> delta = RepositoryCodec.readDelta(input);
+                for (Map.Entry<Entity.Reference, LocalEntityId> entry : delta.getEntityMap().entrySet()) {
+                    LocalEntityId old = base.getId(entry.getKey());
+                    if (old != null && old.equals(entry.getValue()) == false) {
+                        replaced.add(new Object[] { entry.getKey(), old });
+                    }
+                }
+                slots.add(base.apply(delta));
+                break;
+            }
+            case REVISION_SHARED:
+                slots.add(getSlot(slots, input.readSize()));
+                break;
+            default:
+                throw new IOException(MessageFormat.format(
+                        "Unknown revision tag: {0}",
+                        tag));
+            }
+        }
+
+        private static Revision<LocalEntityId> getSlot(
+                List<Revision<LocalEntityId>> list,
+                int index) throws IOException {
+            assert list != null;
+            if (index >= list.size()) {
+                throw new IOException(MessageFormat.format(
+                        "Unknown revision slot: {0}",
+                        index));
+            }
+            return list.get(index);
+        }
+
+        /**
+         * 差分によって置き換えられ、どのリビジョンからも参照されないエンティティを格納先から取り除く。
+         */
+        void sweep() {
+            for (Object[] pair : replaced) {
+                Entity.Reference reference = (Entity.Reference) pair[0];
+                LocalEntityId id = (LocalEntityId) pair[1];
+                boolean live = false;
+                for (Revision<LocalEntityId> revision : slots) {
+                    if (id.equals(revision.getId(reference))) {
+                        live = true;
+                        break;
+                    }
+                }
+                if (live == false) {
+                    store.remove(id.getNumeric());
+                }
+            }
+        }
+    }
+}
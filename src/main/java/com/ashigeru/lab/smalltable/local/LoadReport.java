@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+/**
+ * {@link LocalRepository#load(java.io.InputStream, int)}の各段階の所要時間。
+ * <p>
+ * それぞれの経過時間は読み出しの開始からの累計で、段階どうしは並行して進むため、
+ * ある段階の経過時間が前の段階の経過時間とほぼ等しい場合は、その段階が読み出しと重なって完了したことを表す。
+ * </p>
+ * @author ashigeru
+ */
+public class LoadReport {
+
+    private final int parallelism;
+
+    private final int entityChunks;
+
+    private final int revisionChunks;
+
+    private final long readNanos;
+
+    private final long entitiesNanos;
+
+    private final long revisionsNanos;
+
+    private final long totalNanos;
+
+    /**
+     * インスタンスを生成する。
+     * @param parallelism 復号に利用したスレッドの個数
+     * @param entityChunks エンティティのチャンクの個数
+     * @param revisionChunks 識別子表と履歴のチャンクの個数
+     * @param readNanos すべてのチャンクを読み出すまでの経過時間 (ナノ秒)
+     * @param entitiesNanos すべてのエンティティを復号するまでの経過時間 (ナノ秒)
+     * @param revisionsNanos すべてのブランチの履歴を復元するまでの経過時間 (ナノ秒)
+     * @param totalNanos 読み出しが完了するまでの経過時間 (ナノ秒)
+     */
+    LoadReport(
+            int parallelism,
+            int entityChunks,
+            int revisionChunks,
+            long readNanos,
+            long entitiesNanos,
+            long revisionsNanos,
+            long totalNanos) {
+        this.parallelism = parallelism;
+        this.entityChunks = entityChunks;
+        this.revisionChunks = revisionChunks;
+        this.readNanos = readNanos;
+        this.entitiesNanos = entitiesNanos;
+        this.revisionsNanos = revisionsNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * 復号に利用したスレッドの個数を返す。
+     * @return 復号に利用したスレッドの個数
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * エンティティのチャンクの個数を返す。
+     * <p>
+     * エンティティを別に永続化している場合は{@code 0}となる。
+     * </p>
+     * @return エンティティのチャンクの個数
+     */
+    public int getEntityChunks() {
+        return entityChunks;
+    }
+
+    /**
+     * 識別子表と履歴のチャンクの個数を返す。
+     * @return 識別子表と履歴のチャンクの個数
+     */
+    public int getRevisionChunks() {
+        return revisionChunks;
+    }
+
+    /**
+     * 読み出しの開始から、すべてのチャンクを読み出すまでの経過時間を返す。
+     * @return 経過時間 (ナノ秒)
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * 読み出しの開始から、すべてのエンティティを復号して格納するまでの経過時間を返す。
+     * @return 経過時間 (ナノ秒)
+     */
+    public long getEntitiesNanos() {
+        return entitiesNanos;
+    }
+
+    /**
+     * 読み出しの開始から、すべてのブランチの履歴を復元するまでの経過時間を返す。
+     * @return 経過時間 (ナノ秒)
+     */
+    public long getRevisionsNanos() {
+        return revisionsNanos;
+    }
+
+    /**
+     * 読み出しの開始から、取り込みの基点を含めて読み出しが完了するまでの経過時間を返す。
+     * @return 経過時間 (ナノ秒)
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "LoadReport{parallelism=%d, entityChunks=%d, revisionChunks=%d, "
+                + "read=%dms, entities=%dms, revisions=%dms, total=%dms}",
+                parallelism,
+                entityChunks,
+                revisionChunks,
+                readNanos / 1000000,
+                entitiesNanos / 1000000,
+                revisionsNanos / 1000000,
+                totalNanos / 1000000);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link LocalRepository}上の名前つきのブランチ。
+ * <p>
+ * ブランチはそれぞれ独立した最新のリビジョンをもち、コミットや利用中のリビジョンの追跡もブランチごとに行う。
+ * そのため、あるブランチへのコミットは他のブランチへのコミットと競合しない。
+ * </p>
+ * @author ashigeru
+ */
+final class LocalBranch {
+
+    private final String name;
+
+    /**
+     * このブランチの最新のリビジョン。
+     * <p>
+     * それ以前のリビジョンは、{@link Revision#getParent()}をたどって参照できる。
+     * 読み出しは常に待ちなしで行え、更新は単一の compare-and-set でのみ行う。
+     * </p>
+     */
+    private final AtomicReference<Revision<LocalEntityId>> head;
+
+    /**
+     * このブランチへのコミットをまとめて処理する。
+     */
+    private final GroupCommitter committer;
+
+    /**
+     * このブランチで利用中のリビジョンを追跡する。
+     */
+    private final RevisionCollector collector;
+
+    /**
+     * 他のブランチの名前と、そのブランチの変更をこのブランチに最後に取り込んだ時点。
+     */
+    private final Map<String, MergeBase> mergeBases;
+
+    /**
+     * インスタンスを生成する。
+     * @param name ブランチの名前
+     * @param initial 最初のリビジョン
+     * @param resolver プロパティの変更を最新のエンティティに取り込むオブジェクト
+     * @param listener 最新のリビジョンが登録されることを通知する先、登録後の通知は利用中のリビジョンの追跡の後に行う
+     */
+    LocalBranch(
+            String name,
+            Revision<LocalEntityId> initial,
+            GroupCommitter.Resolver resolver,
+            final GroupCommitter.Listener listener) {
+        assert name != null;
+        assert initial != null;
+        assert resolver != null;
+        assert listener != null;
+        this.name = name;
+        this.head = new AtomicReference<Revision<LocalEntityId>>(initial);
+        this.collector = new RevisionCollector();
+        this.committer = new GroupCommitter(head, resolver, new GroupCommitter.Listener() {
+            @Override
+            public void committing(Revision<LocalEntityId> revision) {
+                listener.committing(revision);
+            }
+            @Override
+            public void committed(Revision<LocalEntityId> revision) {
+                collector.committed(revision);
+                listener.committed(revision);
+            }
+        });
+        this.mergeBases = new ConcurrentHashMap<String, MergeBase>();
+    }
+
+    /**
+     * このブランチの名前を返す。
+     * @return ブランチの名前
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * このブランチの最新のリビジョンを返す。
+     * @return 最新のリビジョン
+     */
+    Revision<LocalEntityId> getHead() {
+        return head.get();
+    }
+
+    /**
+     * ログに記録された変更差分を、コミットの検査を行わずに最新のリビジョンに適用する。
+     * <p>
+     * この呼び出しは、リポジトリの復元中にのみ行う。
+     * </p>
+     * @param delta 適用する変更差分
+     */
+    void replay(Revision.Delta<LocalEntityId> delta) {
+        assert delta != null;
+        Revision<LocalEntityId> next = head.get().apply(delta);
+        head.set(next);
+        collector.committed(next);
+    }
+
+    /**
+     * このブランチへのコミットを処理するオブジェクトを返す。
+     * @return コミットを処理するオブジェクト
+     */
+    GroupCommitter getCommitter() {
+        return committer;
+    }
+
+    /**
+     * このブランチで利用中のリビジョンを追跡するオブジェクトを返す。
+     * @return 利用中のリビジョンを追跡するオブジェクト
+     */
+    RevisionCollector getCollector() {
+        return collector;
+    }
+
+    /**
+     * 指定のブランチの変更を、このブランチに最後に取り込んだ時点を返す。
+     * @param other 対象のブランチの名前
+     * @return 最後に取り込んだ時点、共通の履歴をもたない場合は{@code null}
+     */
+    MergeBase getMergeBase(String other) {
+        assert other != null;
+        return mergeBases.get(other);
+    }
+
+    /**
+     * 指定のブランチの変更を、このブランチに取り込んだ時点を記録する。
+     * <p>
+     * 記録した時点のリビジョンはいずれのブランチでも固定しないため、コンパクションを妨げない。
+     * その時点までの履歴が切り離された場合、次の取り込みはリビジョン全体の差分から変更を求める。
+     * </p>
+     * @param other 対象のブランチの名前
+     * @param theirs 取り込んだ対象ブランチのリビジョン
+     * @param ours 取り込んだ結果のこのブランチのリビジョン
+     */
+    void setMergeBase(String other, Revision<LocalEntityId> theirs, Revision<LocalEntityId> ours) {
+        assert other != null;
+        assert theirs != null;
+        assert ours != null;
+        mergeBases.put(other, new MergeBase(theirs, ours));
+    }
+
+    /**
+     * このブランチに記録された、他のブランチの変更を取り込んだ時点の一覧を返す。
+     * @return ブランチの名前と、その時点の表
+     */
+    Map<String, MergeBase> getMergeBases() {
+        return mergeBases;
+    }
+
+    /**
+     * 他のブランチの変更を取り込んだ時点。
+     * @author ashigeru
+     */
+    static final class MergeBase {
+
+        /**
+         * 取り込んだ他のブランチのリビジョン。
+         */
+        final Revision<LocalEntityId> theirs;
+
+        /**
+         * 取り込んだ結果のこのブランチのリビジョン。
+         */
+        final Revision<LocalEntityId> ours;
+
+        MergeBase(Revision<LocalEntityId> theirs, Revision<LocalEntityId> ours) {
+            assert theirs != null;
+            assert ours != null;
+            this.theirs = theirs;
+            this.ours = ours;
+        }
+    }
+}
@@ -40,6 +40,14 @@ public class LocalEntityId implements Serializable {
         this.numeric = numeric;
     }
 
+    /**
+     * この識別子の数値表現を返す。
+     * @return 数値表現
+     */
+    public long getNumeric() {
+        return numeric;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
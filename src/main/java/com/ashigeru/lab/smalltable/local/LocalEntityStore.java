@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ashigeru.lab.smalltable.Entity;
+
+/**
+ * {@link LocalEntityId}の数値表現を添え字として、エンティティを格納する表。
+ * <p>
+ * 識別子はシーケンスから密に払い出されるため、固定長のチャンクを並べた配列に格納する。
+ * 読み出しは常にロックなしで行え、書き込みも払い出し済みの識別子に対してはロックなしで行える。
+ * ロックを取るのは、新しいチャンクを用意する場合と、空になったチャンクを手放す場合だけである。
+ * </p>
+ * <p>
+ * チャンクはそれぞれ格納しているエンティティの個数をもち、
+ * 回収によってすべてのエンティティが取り除かれたチャンクは一覧から外される。
+ * そのため、ヒープの使用量は払い出したすべての識別子ではなく、生存しているエンティティの範囲に比例する。
+ * </p>
+ * <p>
+ * エンティティはヒープ上にのみ格納され、プロセスの終了後は残らない。
+ * </p>
+ * @author ashigeru
+ */
+final class LocalEntityStore implements EntityStore, Serializable {
+
+    private static final long serialVersionUID = 4418417163606373301L;
+
+    private static final int CHUNK_SHIFT = 10;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * チャンクの一覧。チャンクを追加する場合や外す場合は、ロックを取った上で差し替える。
+     */
+    private transient volatile AtomicReferenceArray<Chunk> directory;
+
+    /**
+     * 格納されているエンティティの個数。
+     */
+    private transient AtomicInteger size;
+
+    /**
+     * インスタンスを生成する。
+     */
+    LocalEntityStore() {
+        initialize();
+    }
+
+    private void initialize() {
+        this.directory = new AtomicReferenceArray<Chunk>(16);
+        this.size = new AtomicInteger();
+    }
+
+    @Override
+    public Entity get(long id) {
+        Chunk chunk = findChunk(id);
+        if (chunk == null) {
+            return null;
+        }
+        return chunk.entries.get((int) (id & CHUNK_MASK));
+    }
+
+    @Override
+    public void put(long id, Entity entity) {
+        assert entity != null;
+        Chunk chunk = findChunk(id);
+        while (chunk == null || chunk.reserve() == false) {
+            // 外されたチャンクには書き込まず、新しいチャンクを用意しなおす
+            chunk = createChunk(id);
+        }
+        // 復元の際に格納しなおす場合は、同じ内容のエンティティを置き換える
+        Entity previous = chunk.entries.getAndSet((int) (id & CHUNK_MASK), entity);
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        else {
+            chunk.live.decrementAndGet();
+        }
+    }
+
+    @Override
+    public Entity remove(long id) {
+        Chunk chunk = findChunk(id);
+        if (chunk == null) {
+            return null;
+        }
+        Entity removed = chunk.entries.getAndSet((int) (id & CHUNK_MASK), null);
+        if (removed != null) {
+            size.decrementAndGet();
+            if (chunk.live.decrementAndGet() == 0) {
+                releaseChunk(id, chunk);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public long nextId(long id) {
+        assert id >= 0;
+        AtomicReferenceArray<Chunk> dir = directory;
+        long next = id + 1;
+        for (long index = next >>> CHUNK_SHIFT, n = dir.length(); index < n; index++) {
+            Chunk chunk = dir.get((int) index);
+            if (chunk != null) {
+                for (int j = (int) (next & CHUNK_MASK); j < CHUNK_SIZE; j++) {
+                    if (chunk.entries.get(j) != null) {
+                        return (index << CHUNK_SHIFT) | j;
+                    }
+                }
+            }
+            next = (index + 1) << CHUNK_SHIFT;
+        }
+        return -1L;
+    }
+
+    @Override
+    public long getLastId() {
+        // 最後のチャンクの末尾までを上限とする
+        AtomicReferenceArray<Chunk> dir = directory;
+        for (int i = dir.length() - 1; i >= 0; i--) {
+            if (dir.get(i) != null) {
+                return ((long) i << CHUNK_SHIFT) | CHUNK_MASK;
+            }
+        }
+        return 0L;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    public void sync() {
+        // ヒープ上にのみ格納するため、書き出すものはない
+    }
+
+    @Override
+    public void close() {
+        // 解放する資源はない
+    }
+
+    /**
+     * 格納されているエンティティの個数を返す。
+     * @return エンティティの個数
+     */
+    int size() {
+        return size.get();
+    }
+
+    private Chunk findChunk(long id) {
+        assert id >= 0;
+        long index = id >>> CHUNK_SHIFT;
+        AtomicReferenceArray<Chunk> dir = directory;
+        if (index >= dir.length()) {
+            return null;
+        }
+        return dir.get((int) index);
+    }
+
+    private synchronized Chunk createChunk(long id) {
+        long index = id >>> CHUNK_SHIFT;
+        if (index > Integer.MAX_VALUE - 1) {
+            throw new IllegalStateException("id is too large: " + id); //$NON-NLS-1$
+        }
+        AtomicReferenceArray<Chunk> dir = directory;
+        if (index >= dir.length()) {
+            // チャンクの一覧を拡張し、既存のチャンクを引き継いでから差し替える
+            int length = dir.length();
+            while (length <= index) {
+                length = (int) Math.min(length * 2L, Integer.MAX_VALUE);
+            }
+            AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<Chunk>(length);
+            for (int i = 0, n = dir.length(); i < n; i++) {
+                grown.set(i, dir.get(i));
+            }
+            directory = grown;
+            dir = grown;
+        }
+        Chunk chunk = dir.get((int) index);
+        if (chunk == null || chunk.isReleased()) {
+            chunk = new Chunk();
+            dir.set((int) index, chunk);
+        }
+        return chunk;
+    }
+
+    private synchronized void releaseChunk(long id, Chunk chunk) {
+        assert chunk != null;
+        // 空になった後に書き込みが始まっていれば、そのチャンクを使い続ける
+        if (chunk.release() == false) {
+            return;
+        }
+        int index = (int) (id >>> CHUNK_SHIFT);
+        AtomicReferenceArray<Chunk> dir = directory;
+        if (dir.get(index) == chunk) {
+            dir.set(index, null);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        stream.defaultWriteObject();
+        AtomicReferenceArray<Chunk> dir = directory;
+        for (int i = 0, n = dir.length(); i < n; i++) {
+            Chunk chunk = dir.get(i);
+            if (chunk == null) {
+                continue;
+            }
+            for (int j = 0; j < CHUNK_SIZE; j++) {
+                Entity entity = chunk.entries.get(j);
+                if (entity != null) {
+                    stream.writeLong(((long) i << CHUNK_SHIFT) | j);
+                    stream.writeObject(entity);
+                }
+            }
+        }
+        // 終端
+        stream.writeLong(-1L);
+    }
+
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        initialize();
+        while (true) {
+            long id = stream.readLong();
+            if (id < 0) {
+                break;
+            }
+            put(id, (Entity) stream.readObject());
+        }
+    }
+
+    /**
+     * エンティティを格納する固定長のチャンク。
+     * @author ashigeru
+     */
+    private static final class Chunk {
+
+        /**
+         * 一覧から外されたことを表す{@link #live}の値。
+         */
+        private static final int RELEASED = -1;
+
+        final AtomicReferenceArray<Entity> entries;
+
+        /**
+         * 格納しているエンティティと、書き込み中のエンティティの個数。
+         */
+        final AtomicInteger live;
+
+        Chunk() {
+            this.entries = new AtomicReferenceArray<Entity>(CHUNK_SIZE);
+            this.live = new AtomicInteger();
+        }
+
+        /**
+         * このチャンクにエンティティを書き込むことを予約する。
+         * @return 予約できた場合は{@code true}、すでに一覧から外されている場合は{@code false}
+         */
+        boolean reserve() {
+            while (true) {
+                int current = live.get();
+                if (current == RELEASED) {
+                    return false;
+                }
+                if (live.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 空のチャンクを、以降は書き込めないようにする。
+         * @return 外せる場合は{@code true}、空でない場合は{@code false}
+         */
+        boolean release() {
+            return live.compareAndSet(0, RELEASED);
+        }
+
+        boolean isReleased() {
+            return live.get() == RELEASED;
+        }
+    }
+}
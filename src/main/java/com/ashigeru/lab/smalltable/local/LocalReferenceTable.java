@@ -0,0 +1,404 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.PersistentLongMap;
+import com.ashigeru.lab.smalltable.ReferenceTable;
+
+/**
+ * 参照と{@link LocalEntityId}の数値表現を、{@code long}のまま保持する{@link ReferenceTable}の実装。
+ * <p>
+ * エントリごとにオブジェクトを生成しないため、{@link java.util.HashMap}で参照と識別子を保持する場合に比べて
+ * 1件あたりの領域が数分の一になる。
+ * また、{@link #getNumeric(long)}はオブジェクトを生成せずに識別子を検索できる。
+ * </p>
+ * <p>
+ * ファイルをマップした{@link MappedReferenceIndex}を基底にもつ表は、基底を読み出さずに直接検索し、
+ * 基底に対する変更のみを永続的なハッシュ表に保持する。
+ * このとき、基底から削除した参照は{@link #NOT_FOUND}を値として保持する。
+ * </p>
+ * @author ashigeru
+ */
+public final class LocalReferenceTable implements ReferenceTable<LocalEntityId> {
+
+    private static final long serialVersionUID = -1880706390453582003L;
+
+    /**
+     * 識別子が存在しないことを表す数値。
+     */
+    public static final long NOT_FOUND = 0L;
+
+    /**
+     * 基底に対する変更が存在しないことを表す数値。
+     */
+    private static final long UNCHANGED = -1L;
+
+    private static final LocalReferenceTable EMPTY = new LocalReferenceTable(PersistentLongMap.empty());
+
+    /**
+     * 基底となる表、存在しない場合は{@code null}。
+     * <p>
+     * 直列化する際は、基底をもたない表に置き換える。
+     * </p>
+     */
+    private final transient MappedReferenceIndex base;
+
+    /**
+     * 参照と識別子の表、基底が存在する場合は基底に対する変更の表。
+     */
+    private final PersistentLongMap map;
+
+    /**
+     * 基底が存在する場合のみ、この表に含まれる参照の個数。
+     */
+    private final int size;
+
+    private LocalReferenceTable(PersistentLongMap map) {
+        assert map != null;
+        this.base = null;
+        this.map = map;
+        this.size = 0;
+    }
+
+    private LocalReferenceTable(MappedReferenceIndex base, PersistentLongMap map, int size) {
+        assert base != null;
+        assert map != null;
+        assert size >= 0;
+        this.base = base;
+        this.map = map;
+        this.size = size;
+    }
+
+    /**
+     * 空の表を返す。
+     * @return 空の表
+     */
+    public static LocalReferenceTable empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 参照と識別子の数値表現の組から、表を作成して返す。
+     * @param references 参照の数値表現の一覧
+     * @param ids それぞれの参照に対応する識別子の数値表現の一覧
+     * @return 作成した表
+     */
+    static LocalReferenceTable of(long[] references, long[] ids) {
+        assert references != null;
+        assert ids != null;
+        assert references.length == ids.length;
+        PersistentLongMap result = PersistentLongMap.empty();
+        for (int i = 0; i < references.length; i++) {
+            assert ids[i] != NOT_FOUND;
+            result = result.with(references[i], ids[i]);
+        }
+        return result.size() == 0 ? EMPTY : new LocalReferenceTable(result);
+    }
+
+    /**
+     * 指定の組の配列を基底とした表を返す。
+     * @param base 基底となる組の配列
+     * @return 作成した表
+     */
+    static LocalReferenceTable of(MappedReferenceIndex base) {
+        assert base != null;
+        return base.size() == 0 ? EMPTY : new LocalReferenceTable(base, PersistentLongMap.empty(), base.size());
+    }
+
+    /**
+     * 指定の参照の数値表現に対応する、識別子の数値表現を返す。
+     * @param reference 参照の数値表現
+     * @return 対応する識別子の数値表現、存在しない場合は{@link #NOT_FOUND}
+     */
+    public long getNumeric(long reference) {
+        if (base == null) {
+            return map.get(reference, NOT_FOUND);
+        }
+        return getNumeric(map, reference);
+    }
+
+    private long getNumeric(PersistentLongMap changes, long reference) {
+        assert base != null;
+        long changed = changes.get(reference, UNCHANGED);
+        if (changed != UNCHANGED) {
+            return changed;
+        }
+        return base.get(reference);
+    }
+
+    @Override
+    public LocalEntityId get(Entity.Reference reference) {
+        if (reference == null) {
+            throw new IllegalArgumentException("reference is null"); //$NON-NLS-1$
+        }
+        long numeric = getNumeric(reference.value);
+        if (numeric == NOT_FOUND) {
+            return null;
+        }
+        return new LocalEntityId(numeric);
+    }
+
+    @Override
+    public int size() {
+        return base == null ? map.size() : size;
+    }
+
+    @Override
+    public LocalReferenceTable update(Map<Entity.Reference, LocalEntityId> delta) {
+        if (delta == null) {
+            throw new IllegalArgumentException("delta is null"); //$NON-NLS-1$
+        }
+        if (base != null) {
+            return updateBase(delta);
+        }
+        PersistentLongMap result = map;
+        for (Map.Entry<Entity.Reference, LocalEntityId> entry : delta.entrySet()) {
+            long reference = entry.getKey().value;
+            LocalEntityId id = entry.getValue();
+            if (id == null) {
+                result = result.without(reference);
+            }
+            else {
+                assert id.getNumeric() != NOT_FOUND;
+                result = result.with(reference, id.getNumeric());
+            }
+        }
+        if (result == map) {
+            return this;
+        }
+        return new LocalReferenceTable(result);
+    }
+
+    private LocalReferenceTable updateBase(Map<Entity.Reference, LocalEntityId> delta) {
+        assert base != null;
+        assert delta != null;
+        PersistentLongMap result = map;
+        int count = size;
+        for (Map.Entry<Entity.Reference, LocalEntityId> entry : delta.entrySet()) {
+            long reference = entry.getKey().value;
+            LocalEntityId id = entry.getValue();
+            long previous = getNumeric(result, reference);
+            if (id == null) {
+                if (previous == NOT_FOUND) {
+                    continue;
+                }
+                count--;
+                if (base.get(reference) == NOT_FOUND) {
+                    result = result.without(reference);
+                }
+                else {
+                    result = result.with(reference, NOT_FOUND);
+                }
+            }
+            else {
+                assert id.getNumeric() != NOT_FOUND;
+                if (previous == NOT_FOUND) {
+                    count++;
+                }
+                result = result.with(reference, id.getNumeric());
+            }
+        }
+        if (result == map) {
+            return this;
+        }
+        return new LocalReferenceTable(base, result, count);
+    }
+
+    /**
+     * この表のエントリを、オブジェクトを生成せずに走査するカーソルを返す。
+     * <p>
+     * カーソルのキーは参照の数値表現、値は識別子の数値表現である。
+     * 走査する順序は規定されない。
+     * </p>
+     * @return エントリを走査するカーソル
+     */
+    public Cursor cursor() {
+        return new Cursor(base, map);
+    }
+
+    @Override
+    public Map<Entity.Reference, LocalEntityId> asMap() {
+        return new AbstractMap<Entity.Reference, LocalEntityId>() {
+
+            @Override
+            public int size() {
+                return LocalReferenceTable.this.size();
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                if (key instanceof Entity.Reference) {
+                    return getNumeric(((Entity.Reference) key).value) != NOT_FOUND;
+                }
+                return false;
+            }
+
+            @Override
+            public LocalEntityId get(Object key) {
+                if (key instanceof Entity.Reference) {
+                    return LocalReferenceTable.this.get((Entity.Reference) key);
+                }
+                return null;
+            }
+
+            @Override
+            public Set<Map.Entry<Entity.Reference, LocalEntityId>> entrySet() {
+                return new AbstractSet<Map.Entry<Entity.Reference, LocalEntityId>>() {
+                    @Override
+                    public Iterator<Map.Entry<Entity.Reference, LocalEntityId>> iterator() {
+                        return new EntryIterator(cursor());
+                    }
+                    @Override
+                    public int size() {
+                        return LocalReferenceTable.this.size();
+                    }
+                };
+            }
+        };
+    }
+
+    private Object writeReplace() {
+        if (base == null) {
+            return this;
+        }
+        // 基底はファイルに依存するため、すべてのエントリをもつ表に置き換える
+        PersistentLongMap flat = PersistentLongMap.empty();
+        for (Cursor cursor = cursor(); cursor.next();) {
+            flat = flat.with(cursor.getKey(), cursor.getValue());
+        }
+        return new LocalReferenceTable(flat);
+    }
+
+    /**
+     * {@link LocalReferenceTable}のエントリを走査するカーソル。
+     * <pre><code>
+     * for (LocalReferenceTable.Cursor cursor = table.cursor(); cursor.next();) {
+     *     long reference = cursor.getKey();
+     *     long id = cursor.getValue();
+     *     ...
+     * }
+     * </code></pre>
+     * @author ashigeru
+     */
+    public static final class Cursor {
+
+        private final MappedReferenceIndex base;
+
+        private final PersistentLongMap changes;
+
+        private final PersistentLongMap.Cursor rest;
+
+        private int index;
+
+        private long key;
+
+        private long value;
+
+        Cursor(MappedReferenceIndex base, PersistentLongMap map) {
+            assert map != null;
+            this.base = base;
+            this.changes = map;
+            this.rest = map.cursor();
+            this.index = -1;
+        }
+
+        /**
+         * 次のエントリに進む。
+         * @return 次のエントリが存在する場合は{@code true}、走査を終えた場合は{@code false}
+         */
+        public boolean next() {
+            if (base != null) {
+                // 変更された参照は、変更の表から走査する
+                while (index < base.size() - 1) {
+                    index++;
+                    long reference = base.getKey(index);
+                    if (changes.containsKey(reference) == false) {
+                        key = reference;
+                        value = base.getValue(index);
+                        return true;
+                    }
+                }
+            }
+            while (rest.next()) {
+                if (rest.getValue() != NOT_FOUND) {
+                    key = rest.getKey();
+                    value = rest.getValue();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 現在のエントリの、参照の数値表現を返す。
+         * @return 参照の数値表現
+         */
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * 現在のエントリの、識別子の数値表現を返す。
+         * @return 識別子の数値表現
+         */
+        public long getValue() {
+            return value;
+        }
+    }
+
+    private static final class EntryIterator implements Iterator<Map.Entry<Entity.Reference, LocalEntityId>> {
+
+        private final Cursor cursor;
+
+        private boolean hasNext;
+
+        EntryIterator(Cursor cursor) {
+            assert cursor != null;
+            this.cursor = cursor;
+            this.hasNext = cursor.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public Map.Entry<Entity.Reference, LocalEntityId> next() {
+            if (hasNext == false) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Entity.Reference, LocalEntityId> result = new AbstractMap.SimpleImmutableEntry<Entity.Reference, LocalEntityId>(
+                    new Entity.Reference(cursor.getKey()),
+                    new LocalEntityId(cursor.getValue()));
+            hasNext = cursor.next();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -15,20 +15,44 @@
  */
 package com.ashigeru.lab.smalltable.local;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.ashigeru.lab.smalltable.Entity;
 import com.ashigeru.lab.smalltable.Revision;
 
 /**
  * {@code smalltable}で利用するリビジョンの情報や、エンティティのすべての情報が格納されたリポジトリ。
  * <p>
+ * リポジトリは名前つきのブランチをもち、ブランチごとに独立した最新のリビジョンをもつ。
+ * ブランチを指定しない操作は、{@link #DEFAULT_BRANCH}に対して行われる。
+ * </p>
+ * <p>
  * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
  * </p>
  * @author ashigeru
@@ -37,23 +61,95 @@ public class LocalRepository implements Serializable {
 
     private static final long serialVersionUID = 942972032864289607L;
 
+    private static final Logger LOG = LoggerFactory.getLogger(LocalRepository.class);
+
     /**
-     * {@link #commit(Revision, Revision.Delta)}の再試行回数。
+     * 既定のブランチの名前。
      */
-    private static final int MAX_RETRY = 5;
+    public static final String DEFAULT_BRANCH = "master"; //$NON-NLS-1$
 
     /**
-     * リビジョンの一覧。
-     * <p>
-     * 末尾に行くほど古く、常に先頭に最新のリビジョン情報が格納されている。
-     * </p>
+     * {@link #open(File, CommitLog.Sync)}で開くディレクトリ上の、エンティティを格納するディレクトリの名前。
+     */
+    private static final String ENTITY_DIRECTORY = "entities"; //$NON-NLS-1$
+
+    /**
+     * {@link #open(File, CommitLog.Sync)}で開くディレクトリ上の、ログのファイル名。
+     */
+    private static final String COMMIT_LOG_FILE = "commit.log"; //$NON-NLS-1$
+
+    /**
+     * {@link #open(File, CommitLog.Sync)}で開くディレクトリ上の、チェックポイントのファイル名。
+     */
+    private static final String CHECKPOINT_FILE = "checkpoint"; //$NON-NLS-1$
+
+    /**
+     * セッションが一度に借り受ける番号の個数の既定値。
+     */
+    private static final int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * ブランチの名前と、そのブランチの表。
+     */
+    private transient ConcurrentMap<String, LocalBranch> branches;
+
+    /**
+     * プロパティの変更を最新のエンティティに取り込む。
+     */
+    private transient GroupCommitter.Resolver resolver;
+
+    /**
+     * 同時に到着したコミットをまとめる際に、最初のコミットが待機する時間 (ナノ秒)。
+     */
+    private transient volatile long groupCommitWindow;
+
+    /**
+     * {@link #compact()}を定期的に実行するスレッド、実行していない場合は{@code null}。
+     */
+    private transient ScheduledExecutorService compactionService;
+
+    /**
+     * セッションがシーケンスから一度に借り受ける番号の個数。
+     */
+    private transient volatile int blockSize;
+
+    /**
+     * 開始リビジョンと同一の内容をもつエンティティの登録を省略する場合のみ{@code true}。
+     */
+    private transient volatile boolean deduplication;
+
+    /**
+     * 内容を共有しうるエンティティの索引。
+     */
+    private transient EntityIndex sharedEntities;
+
+    /**
+     * コミットを追記するログ、関連づけていない場合は{@code null}。
+     */
+    private transient volatile CommitLog commitLog;
+
+    /**
+     * {@link #open(File, CommitLog.Sync)}で開いたディレクトリ、それ以外の場合は{@code null}。
+     */
+    private transient File directory;
+
+    /**
+     * 最後に作成したチェックポイントの状態、存在しない場合は{@code null}。
+     */
+    private transient volatile IncrementalCheckpoint lastCheckpoint;
+
+    /**
+     * 読み出した際の各段階の所要時間、存在しない場合は{@code null}。
      */
-    private LinkedList<Revision<LocalEntityId>> revisions;
+    private transient volatile LoadReport loadReport;
 
     /**
-     * すべてのリビジョンのすべてのエンティティ。
+     * 生存しているリビジョンから参照されうるすべてのエンティティ。
+     * <p>
+     * 別のスレッドから{@link #compact()}によって回収される。
+     * </p>
      */
-    private Map<LocalEntityId, Entity> allEntities;
+    private EntityStore allEntities;
 
     /**
      * {@link Entity.Reference}のための一意の番号を生成するシーケンス。
@@ -69,148 +165,1567 @@ public class LocalRepository implements Serializable {
      * インスタンスを生成する。
      */
     public LocalRepository() {
-        this.revisions = new LinkedList<Revision<LocalEntityId>>();
-        this.allEntities = new HashMap<LocalEntityId, Entity>();
-        this.referenceSequence = new AtomicLong();
+        this(0L);
+    }
+
+    /**
+     * 参照の番号の範囲を指定してインスタンスを生成する。
+     * @param referenceBase このリポジトリが払い出す参照の番号の下限 (この値自体は払い出さない)
+     */
+    LocalRepository(long referenceBase) {
+        this(new LocalEntityStore(), referenceBase);
+    }
+
+    /**
+     * エンティティの格納先と参照の番号の範囲を指定してインスタンスを生成する。
+     * @param entities エンティティの格納先
+     * @param referenceBase このリポジトリが払い出す参照の番号の下限 (この値自体は払い出さない)
+     */
+    LocalRepository(EntityStore entities, long referenceBase) {
+        assert entities != null;
+        this.allEntities = entities;
+        this.referenceSequence = new AtomicLong(referenceBase);
         this.entityIdSequence = new AtomicLong();
 
-        // 最初のリビジョンを作成して追加
+        initializeTransients();
+
+        // 最初のリビジョンを作成して、既定のブランチに追加
         Revision<LocalEntityId> initial = new Revision<LocalEntityId>(
                 Collections.<String, Entity.Reference>emptyMap(),
-                Collections.<Entity.Reference, LocalEntityId>emptyMap());
-        this.revisions.addFirst(initial);
+                LocalReferenceTable.empty());
+        addBranch(DEFAULT_BRANCH, initial);
     }
 
     /**
-     * このリポジトリ上に最後にコミットされたリビジョンに対する、新しいセッションを作成して返す。
-     * @return 作成したセッション
+     * 復元したエンティティとシーケンスの値から、ブランチをもたないインスタンスを生成する。
+     * @param entities 復元したエンティティ
+     * @param referenceSequence 最後に払い出した参照の番号
+     * @param entityIdSequence 最後に払い出した識別子の番号
+     * @see RepositoryCodec
      */
-    public LocalSession createSession() {
-        assert revisions.isEmpty() == false;
+    LocalRepository(EntityStore entities, long referenceSequence, long entityIdSequence) {
+        assert entities != null;
+        this.allEntities = entities;
+        this.referenceSequence = new AtomicLong(referenceSequence);
+        this.entityIdSequence = new AtomicLong(entityIdSequence);
+        initializeTransients();
+    }
 
-        // FIXME 今回は常に最新のものを使う。実際には開始リビジョンを選べるとよさそう
-        Revision<LocalEntityId> head = getHeadRevision();
-        return new LocalSession(this, head);
+    /**
+     * {@link #store(OutputStream)}で書き出したリポジトリを読み出す。
+     * @param input 読み出し元のストリーム、この呼び出しの後も閉じられない
+     * @return 読み出したリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     */
+    public static LocalRepository load(InputStream input) throws IOException {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null"); //$NON-NLS-1$
+        }
+        return RepositoryCodec.read(input);
     }
 
     /**
-     * このリポジトリ上に最後にコミットされたリビジョンの情報を返す。
-     * @return 最新のリビジョン
+     * {@link #store(OutputStream)}で書き出したリポジトリを、指定の個数のスレッドで並行して読み出す。
+     * <p>
+     * エンティティや識別子表はチャンクごとに独立して復号され、ブランチの履歴はブランチごとに並行して復元される。
+     * 各段階の所要時間は、読み出したリポジトリの{@link #getLoadReport()}から参照できる。
+     * </p>
+     * @param input 読み出し元のストリーム、この呼び出しの後も閉じられない
+     * @param parallelism 復号に利用するスレッドの個数
+     * @return 読み出したリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     * @throws IllegalArgumentException {@code parallelism}が{@code 1}未満の場合
      */
-    public Revision<LocalEntityId> getHeadRevision() {
-        synchronized (revisions) {
-            return revisions.getFirst();
+    public static LocalRepository load(InputStream input, int parallelism) throws IOException {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null"); //$NON-NLS-1$
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive"); //$NON-NLS-1$
         }
+        return RepositoryCodec.read(input, new LocalEntityStore(), parallelism);
     }
 
     /**
-     * このリポジトリ上で、まだ利用されていない新しい参照を作成して返す。
-     * @return このリポジトリ上で、まだ利用されていない新しい参照
+     * このリポジトリを読み出した際の、各段階の所要時間を返す。
+     * @return 各段階の所要時間、チャンクに分割された形式から読み出したリポジトリでない場合は{@code null}
      */
-    public Entity.Reference getNextReference() {
-        return new Entity.Reference(referenceSequence.incrementAndGet());
+    public LoadReport getLoadReport() {
+        return loadReport;
     }
 
     /**
-     * このリポジトリに格納された、指定の識別子をもつエンティティを返す。
-     * @param id 対象の識別子
-     * @return 対応するエンティティ、存在しない場合は{@code null}
+     * このリポジトリを読み出した際の、各段階の所要時間を設定する。
+     * @param report 設定する所要時間
      */
-    public Entity getEntity(LocalEntityId id) {
-        if (id == null) {
-            throw new IllegalArgumentException("id is null"); //$NON-NLS-1$
-        }
-        return allEntities.get(id);
+    void setLoadReport(LoadReport report) {
+        assert report != null;
+        this.loadReport = report;
     }
 
     /**
-     * 指定のエンティティ一覧をこのリポジトリ上に追加し、それぞれの識別子を返す。
-     * @param entities 追加するエンティティの一覧
-     * @return 追加したエンティティへの参照と、その識別子の一覧
-     * @see #getEntity(LocalEntityId)
+     * このリポジトリの内容を、専用のバイナリ形式で書き出す。
+     * <p>
+     * リビジョンの履歴は差分のみを書き出すため、直列化機構による書き出しよりも小さく、高速に読み書きできる。
+     * この呼び出しはコミットと並行して実行でき、呼び出した時点のそれぞれのブランチの最新のリビジョンまでを書き出す。
+     * </p>
+     * @param output 書き出し先のストリーム、この呼び出しの後も閉じられない
+     * @throws IOException 書き出しに失敗した場合
+     * @see #load(InputStream)
      */
-    public Map<Entity.Reference, LocalEntityId> prepare(Collection<? extends Entity> entities) {
-        if (entities == null) {
-            throw new IllegalArgumentException("entities is null"); //$NON-NLS-1$
+    public void store(OutputStream output) throws IOException {
+        if (output == null) {
+            throw new IllegalArgumentException("output is null"); //$NON-NLS-1$
         }
+        RepositoryCodec.write(this, output);
+    }
 
-        // エンティティの個数分だけIDを確保
-        long lastSequence = entityIdSequence.addAndGet(entities.size());
-        Map<Entity.Reference, LocalEntityId> results = new HashMap<Entity.Reference, LocalEntityId>();
-        for (Entity entity : entities) {
-            // シーケンスからIDを作成して、全体のエンティティ表に登録
-            LocalEntityId id = new LocalEntityId(lastSequence--);
-            assert allEntities.containsKey(id) == false;
-            allEntities.put(id, entity);
+    /**
+     * 指定のチェックポイントとログから、リポジトリを復元する。
+     * <p>
+     * チェックポイントが存在すればその内容を読み出し、チェックポイントの作成以降にログに追記された変更を順に適用する。
+     * チェックポイントが存在しない場合は、新しいリポジトリにログのすべての変更を適用する。
+     * 復元したリポジトリにはログが関連づけられ、以降のコミットはログに追記される。
+     * </p>
+     * @param checkpoint {@link #checkpoint(File)}で作成したチェックポイントのファイル
+     * @param log 復元に利用するログ
+     * @return 復元したリポジトリ
+     * @throws IOException 復元に失敗した場合
+     * @throws IllegalStateException ログがすでに他のリポジトリに関連づけられている場合
+     */
+    public static LocalRepository recover(File checkpoint, CommitLog log) throws IOException {
+        if (checkpoint == null) {
+            throw new IllegalArgumentException("checkpoint is null"); //$NON-NLS-1$
+        }
+        if (log == null) {
+            throw new IllegalArgumentException("log is null"); //$NON-NLS-1$
+        }
+        return log.recover(checkpoint, new LocalEntityStore());
+    }
 
-            // 参照から実体への表に追加
-            results.put(entity.getSelfReference(), id);
+    /**
+     * 指定のディレクトリに永続化されたリポジトリを開く。
+     * <p>
+     * エンティティはディレクトリ上のメモリにマップしたセグメントファイルに格納され、ヒープには保持されない。
+     * 開く際にはエンティティを読み出さず、参照された時点でセグメントから直接復号するため、
+     * ヒープより大きなリポジトリも扱える。
+     * リビジョンの情報は{@link #checkpoint()}で書き出したチェックポイントと、コミットを追記するログから復元する。
+     * チェックポイントからは参照と識別子の表を読み出さずにマップするため、
+     * 開くまでの時間はエンティティの個数によらず、チェックポイント以降のログの長さのみに比例する。
+     * ディレクトリが存在しない場合は、新しいリポジトリを作成する。
+     * </p>
+     * <p>
+     * 開いたリポジトリは直列化できず、利用を終えたら{@link #close()}で閉じる必要がある。
+     * </p>
+     * @param directory 対象のディレクトリ
+     * @param sync ログを記憶装置に書き出す時期
+     * @return 開いたリポジトリ
+     * @throws IOException 開けなかった場合
+     */
+    public static LocalRepository open(File directory, CommitLog.Sync sync) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory is null"); //$NON-NLS-1$
+        }
+        if (sync == null) {
+            throw new IllegalArgumentException("sync is null"); //$NON-NLS-1$
+        }
+        MappedEntityStore store = MappedEntityStore.open(
+                new File(directory, ENTITY_DIRECTORY),
+                MappedEntityStore.DEFAULT_SEGMENT_SIZE);
+        CommitLog log = null;
+        boolean succeed = false;
+        try {
+            log = CommitLog.open(new File(directory, COMMIT_LOG_FILE), sync);
+            LocalRepository repository = log.recover(new File(directory, CHECKPOINT_FILE), store);
+            repository.directory = directory;
+            succeed = true;
+            return repository;
+        }
+        finally {
+            if (succeed == false) {
+                if (log != null) {
+                    log.close();
+                }
+                store.close();
+            }
         }
-        return results;
     }
 
     /**
-     * 指定のリビジョンを起点とした変更の情報をこのリポジトリ上に保存する。
+     * {@link #open(File, CommitLog.Sync)}で開いたディレクトリに、チェックポイントを作成する。
      * <p>
-     * 指定された変更が、リポジトリ上の最新までの変更と衝突する場合、この呼び出しは保存に失敗する。
+     * チェックポイントの作成以前の変更はログから取り除かれ、次に開く際に適用するログが短くなる。
+     * この呼び出しはコミットと並行して実行できる。
      * </p>
+     * @throws IOException 書き出しに失敗した場合
+     * @throws IllegalStateException このリポジトリをディレクトリから開いていない場合
+     */
+    public void checkpoint() throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("Repository is not opened from a directory"); //$NON-NLS-1$
+        }
+        checkpoint(new File(directory, CHECKPOINT_FILE));
+    }
+
+    /**
+     * このリポジトリの定期的な回収を停止し、関連づけたログと、エンティティの格納先を閉じる。
      * <p>
-     * 保存されたリビジョンはこのリポジトリの最新リビジョンとなる。
+     * 閉じた後にこのリポジトリへコミットした場合の動作は規定されない。
+     * ログやディレクトリを利用しないリポジトリでは、この呼び出しは定期的な回収を停止するほかに何も行わない。
      * </p>
-     * @param source 開始リビジョン
-     * @param delta 開始リビジョンに対する変更差分
-     * @return 保存したリビジョン。保存に失敗した場合は{@code null}
+     * @throws IOException 閉じることに失敗した場合
+     * @see #stopCompaction()
      */
-    public Revision<LocalEntityId> commit(Revision<LocalEntityId> source, Revision.Delta<LocalEntityId> delta) {
-        if (source == null) {
-            throw new IllegalArgumentException("source is null"); //$NON-NLS-1$
+    public void close() throws IOException {
+        // 実行中の回収が、閉じた後の格納先からエンティティを取り除かないようにする
+        stopCompaction();
+        CommitLog log = commitLog;
+        try {
+            if (log != null) {
+                log.close();
+            }
         }
-        if (delta == null) {
-            throw new IllegalArgumentException("delta is null"); //$NON-NLS-1$
+        finally {
+            allEntities.close();
+        }
+    }
+
+    /**
+     * このリポジトリの内容を、チェックポイントとして指定のファイルに書き出す。
+     * <p>
+     * チェックポイントは{@link #store(OutputStream)}と同じ形式の内容をもち、
+     * 書き出しが完了した後に指定のファイルと置き換えられる。
+     * ただし、{@link #open(File, CommitLog.Sync)}で開いたリポジトリではエンティティを書き出さない。
+     * ログが関連づけられている場合、チェックポイントに含まれる変更はログから取り除かれる。
+     * この呼び出しはコミットと並行して実行できる。
+     * </p>
+     * <p>
+     * 同じファイルに繰り返しチェックポイントを作成する場合、二回目以降は前回からの変更のみを
+     * 指定のファイル名に{@code .inc}を付けたファイルに追記する。
+     * 追記した変更の合計が元のファイルより大きくなった時点で、改めて全体を書き出す。
+     * </p>
+     * @param file チェックポイントのファイル
+     * @throws IOException 書き出しに失敗した場合
+     * @see #recover(File, CommitLog)
+     */
+    public synchronized void checkpoint(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file is null"); //$NON-NLS-1$
         }
+        CommitLog.checkpoint(this, commitLog, file);
+    }
+
+    /**
+     * 最後に作成したチェックポイントの状態を返す。
+     * @return 最後に作成したチェックポイントの状態、存在しない場合は{@code null}
+     */
+    IncrementalCheckpoint getLastCheckpoint() {
+        return lastCheckpoint;
+    }
 
-        for (int i = 0; i < MAX_RETRY; i++) {
-            // FIXME 常に現在の最新のものを使う。実際には保存先のブランチを選択したい
-            Revision<LocalEntityId> head = getHeadRevision();
+    /**
+     * 最後に作成したチェックポイントの状態を設定する。
+     * @param checkpoint 設定する状態
+     */
+    void setLastCheckpoint(IncrementalCheckpoint checkpoint) {
+        assert checkpoint != null;
+        this.lastCheckpoint = checkpoint;
+    }
+
+    /**
+     * このリポジトリにログを関連づける。
+     * @param log 関連づけるログ
+     */
+    void setCommitLog(CommitLog log) {
+        assert log != null;
+        this.commitLog = log;
+    }
 
-            // 開始リビジョンから最新までの差分を作成
-            Revision.Delta<LocalEntityId> headDelta = source.createDeltaTo(head);
+    private void initializeTransients() {
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        this.sharedEntities = new EntityIndex(allEntities);
+        this.branches = new ConcurrentHashMap<String, LocalBranch>();
+        this.resolver = new GroupCommitter.Resolver() {
+            @Override
+            public LocalEntityId rebase(
+                    Entity.Reference reference,
+                    LocalEntityId base,
+                    LocalEntityId modified,
+                    Set<String> properties,
+                    Map<String, Integer> additions) {
+                return LocalRepository.this.rebase(reference, base, modified, properties, additions);
+            }
+            @Override
+            public void discard(List<LocalEntityId> ids) {
+                LocalRepository.this.discard(ids);
+            }
+        };
+    }
 
-            // 今回の差分と、それまでに裏で行われた操作の差分を合成
-            Revision.Delta<LocalEntityId> nextDelta = delta.merge(headDelta);
-            if (nextDelta == null) {
-                // 衝突していたら即座にあきらめる
-                // FIXME 通知方法について考える
-                return null;
+    /**
+     * 指定のリビジョンを最新とする、新しいブランチを追加する。
+     * @param name 追加するブランチの名前
+     * @param initial ブランチの最新のリビジョン
+     * @return 追加したブランチ
+     * @throws IllegalArgumentException 同じ名前のブランチがすでに存在する場合
+     */
+    LocalBranch addBranch(final String name, Revision<LocalEntityId> initial) {
+        assert name != null;
+        assert initial != null;
+        LocalBranch branch = new LocalBranch(name, initial, resolver, new GroupCommitter.Listener() {
+            @Override
+            public void committing(Revision<LocalEntityId> revision) {
+                // 他のセッションから参照できるようになる前に、ログに書き出しておく
+                CommitLog log = commitLog;
+                if (log != null) {
+                    log.appendCommit(name, revision);
+                }
             }
+            @Override
+            public void committed(Revision<LocalEntityId> revision) {
+                // 登録した後に行うことはない
+            }
+        });
+        branch.getCommitter().setWindow(groupCommitWindow);
+        if (branches.putIfAbsent(name, branch) != null) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "Branch \"{0}\" already exists",
+                    name));
+        }
+        return branch;
+    }
+
+    private LocalBranch getBranch(String name) {
+        assert name != null;
+        LocalBranch branch = branches.get(name);
+        if (branch == null) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "Branch \"{0}\" does not exist",
+                    name));
+        }
+        return branch;
+    }
+
+    /**
+     * 指定のブランチの最新のリビジョンを起点とした、新しいブランチを作成する。
+     * <p>
+     * 作成したブランチと起点のブランチは、その後は互いに独立してコミットでき、
+     * {@link #merge(String, String)}によって一方の変更を他方に取り込める。
+     * </p>
+     * @param name 作成するブランチの名前
+     * @param from 起点とするブランチの名前
+     * @throws IllegalArgumentException 同じ名前のブランチがすでに存在する場合、または起点のブランチが存在しない場合
+     */
+    public void createBranch(String name, String from) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        if (from == null) {
+            throw new IllegalArgumentException("from is null"); //$NON-NLS-1$
+        }
+        LocalBranch source = getBranch(from);
 
-            // 開始リビジョンに合成した差分を適用
-            Revision<LocalEntityId> toCommit = source.apply(nextDelta);
+        // 作成したブランチが回収の対象に加わるまで、起点のエンティティが回収されないように固定しておく
+        RevisionCollector.Pin pin = pinHead(source);
 
-            // 作成したリビジョンを登録
-            boolean success = addRevision(head, toCommit);
-            if (success) {
-                return toCommit;
+        // 作成したブランチへのコミットが、作成より前にログに記録されないようにする
+        CommitLog log = commitLog;
+        if (log != null) {
+            log.lock();
+        }
+        try {
+            Revision<LocalEntityId> fork = pin.revision;
+            LocalBranch branch = addBranch(name, fork);
+            branch.setMergeBase(from, fork, fork);
+            source.setMergeBase(name, fork, fork);
+            if (log != null) {
+                log.appendBranch(name, from, fork);
+            }
+        }
+        finally {
+            if (log != null) {
+                log.unlock();
             }
+            pin.release();
+        }
+    }
 
-            // 楽観的排他制御に失敗したので、再試行する
+    /**
+     * ログに記録されたブランチの作成を適用する。
+     * <p>
+     * 同じ名前のブランチがすでに存在する場合、そのブランチはチェックポイントに含まれていたものとして何も行わない。
+     * </p>
+     * @param name 作成したブランチの名前
+     * @param from 起点としたブランチの名前
+     * @param fork 作成したブランチの最初のリビジョン
+     * @throws IOException 起点のブランチが存在しない場合
+     */
+    void replayBranch(String name, String from, Revision<LocalEntityId> fork) throws IOException {
+        assert name != null;
+        assert from != null;
+        assert fork != null;
+        if (branches.containsKey(name)) {
+            return;
         }
+        LocalBranch source = getReplayBranch(from);
+        LocalBranch branch = addBranch(name, fork);
+        branch.setMergeBase(from, fork, fork);
+        source.setMergeBase(name, fork, fork);
+    }
+
+    /**
+     * ログに記録されたコミットを、指定のブランチに適用する。
+     * @param name 対象のブランチの名前
+     * @param delta コミットされたリビジョンの変更差分
+     * @throws IOException 対象のブランチが存在しない場合
+     */
+    void replay(String name, Revision.Delta<LocalEntityId> delta) throws IOException {
+        assert name != null;
+        assert delta != null;
+        getReplayBranch(name).replay(delta);
+    }
+
+    /**
+     * ログに記録された、ブランチの変更を取り込んだ時点を適用する。
+     * @param into 取り込み先のブランチの名前
+     * @param from 取り込み元のブランチの名前
+     * @param theirs 取り込んだ取り込み元のリビジョン
+     * @param ours 取り込んだ結果の取り込み先のリビジョン
+     * @throws IOException 取り込み先のブランチが存在しない場合
+     */
+    void replayMerge(
+            String into,
+            String from,
+            Revision<LocalEntityId> theirs,
+            Revision<LocalEntityId> ours) throws IOException {
+        assert into != null;
+        assert from != null;
+        assert theirs != null;
+        assert ours != null;
+        getReplayBranch(into).setMergeBase(from, theirs, ours);
+    }
 
-        // 再試行上限回数をオーバーしたので失敗
-        // FIXME 通知方法について考える
-        return null;
+    private LocalBranch getReplayBranch(String name) throws IOException {
+        assert name != null;
+        LocalBranch branch = branches.get(name);
+        if (branch == null) {
+            throw new IOException(MessageFormat.format(
+                    "Commit log refers to unknown branch \"{0}\"",
+                    name));
+        }
+        return branch;
     }
 
-    private boolean addRevision(Revision<LocalEntityId> currentHead, Revision<LocalEntityId> toCommit) {
-        assert currentHead != null;
-        assert toCommit != null;
-        synchronized (revisions) {
-            // タイムスタンプを比較するような感じ
-            if (getHeadRevision() == currentHead) {
-                revisions.addFirst(toCommit);
-                return true;
+    /**
+     * 指定のブランチの最新のリビジョンを固定する。
+     * @param branch 対象のブランチ
+     * @return 固定を表すオブジェクト、固定したリビジョンは{@link RevisionCollector.Pin#revision}から取得できる
+     */
+    RevisionCollector.Pin pinHead(LocalBranch branch) {
+        assert branch != null;
+        while (true) {
+            Revision<LocalEntityId> current = branch.getHead();
+            RevisionCollector.Pin pin = branch.getCollector().pin(this, current);
+
+            // 固定する前に最新が変わっていたら、回収と競合しないように固定しなおす
+            if (branch.getHead() == current) {
+                return pin;
+            }
+            pin.release();
+        }
+    }
+
+    /**
+     * このリポジトリ上のブランチの一覧を返す。
+     * @return ブランチの一覧
+     */
+    List<LocalBranch> getBranches() {
+        return new ArrayList<LocalBranch>(branches.values());
+    }
+
+    /**
+     * このリポジトリ上のブランチの名前の一覧を返す。
+     * @return ブランチの名前の一覧 (変更できない)
+     */
+    public Set<String> getBranchNames() {
+        return Collections.unmodifiableSet(new TreeSet<String>(branches.keySet()));
+    }
+
+    /**
+     * 既定のブランチに最後にコミットされたリビジョンに対する、新しいセッションを作成して返す。
+     * @return 作成したセッション
+     */
+    public LocalSession createSession() {
+        return createSession(DEFAULT_BRANCH);
+    }
+
+    /**
+     * 指定のブランチに最後にコミットされたリビジョンに対する、新しいセッションを作成して返す。
+     * <p>
+     * 作成したセッションで保存した変更は、指定のブランチにコミットされる。
+     * </p>
+     * @param branch 対象のブランチの名前
+     * @return 作成したセッション
+     * @throws IllegalArgumentException 指定のブランチが存在しない場合
+     */
+    public LocalSession createSession(String branch) {
+        if (branch == null) {
+            throw new IllegalArgumentException("branch is null"); //$NON-NLS-1$
+        }
+        LocalBranch target = getBranch(branch);
+        while (true) {
+            Revision<LocalEntityId> current = target.getHead();
+            LocalSession session = new LocalSession(this, branch, current);
+
+            // 固定する前に最新が変わっていたら、回収と競合しないように固定しなおす
+            if (target.getHead() == current) {
+                return session;
+            }
+            session.close();
+        }
+    }
+
+    /**
+     * 指定のリビジョンを、指定の所有者が利用中のリビジョンとして固定する。
+     * <p>
+     * 固定されたリビジョンから参照されるエンティティは、{@link #compact()}によって回収されない。
+     * </p>
+     * @param branch リビジョンを利用するブランチの名前
+     * @param owner 固定の所有者、これが破棄された場合は固定も解除される
+     * @param revision 固定するリビジョン
+     * @return 固定を表すオブジェクト
+     */
+    RevisionCollector.Pin pin(String branch, Object owner, Revision<LocalEntityId> revision) {
+        assert branch != null;
+        assert owner != null;
+        assert revision != null;
+        return getBranch(branch).getCollector().pin(owner, revision);
+    }
+
+    /**
+     * 既定のブランチに最後にコミットされたリビジョンの情報を返す。
+     * @return 最新のリビジョン
+     */
+    public Revision<LocalEntityId> getHeadRevision() {
+        return getHeadRevision(DEFAULT_BRANCH);
+    }
+
+    /**
+     * 指定のブランチに最後にコミットされたリビジョンの情報を返す。
+     * @param branch 対象のブランチの名前
+     * @return 最新のリビジョン
+     * @throws IllegalArgumentException 指定のブランチが存在しない場合
+     */
+    public Revision<LocalEntityId> getHeadRevision(String branch) {
+        if (branch == null) {
+            throw new IllegalArgumentException("branch is null"); //$NON-NLS-1$
+        }
+        return getBranch(branch).getHead();
+    }
+
+    /**
+     * このリポジトリ上で、まだ利用されていない新しい参照を作成して返す。
+     * @return このリポジトリ上で、まだ利用されていない新しい参照
+     */
+    public Entity.Reference getNextReference() {
+        return new Entity.Reference(referenceSequence.incrementAndGet());
+    }
+
+    /**
+     * セッションが参照やエンティティの識別子をシーケンスから一度に借り受ける個数を設定する。
+     * <p>
+     * 借り受けた番号はセッション内で同期を行わずに払い出され、使い切らなかった分はセッションの終了時に返却または放棄される。
+     * 大きな値を指定するとシーケンスへの競合が減る代わりに、放棄される番号が増える。
+     * </p>
+     * @param size 一度に借り受ける個数
+     * @throws IllegalArgumentException 個数に正の値が指定されない場合
+     */
+    public void setAllocationBlockSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive"); //$NON-NLS-1$
+        }
+        this.blockSize = size;
+    }
+
+    /**
+     * セッションが保存するエンティティを、同一の内容をもつ格納済みのエンティティと共有するかどうかを設定する。
+     * <p>
+     * 共有する場合、セッションが保存するエンティティの内容のハッシュ値を索引に登録し、
+     * 同じ参照と同じプロパティをもつエンティティがすでに格納されていれば、新しい識別子を割り当てずにその識別子を使い続ける。
+     * 共有の対象は開始リビジョンに限らず、過去のリビジョンや他のブランチが参照するエンティティも含む。
+     * また、開始リビジョンのものと同一の内容への変更は、変更差分から取り除く。
+     * 代わりに、保存するエンティティごとにハッシュ値の計算と内容の比較を行い、索引の分だけメモリを消費する。
+     * 既定では共有しない。
+     * </p>
+     * <p>
+     * 索引に登録されるのは、共有している間にセッションが保存したエンティティのみであり、
+     * 読み出したリポジトリにもともと含まれていたエンティティは共有されない。
+     * 回収されたエンティティは、索引からも取り除かれる。
+     * </p>
+     * <p>
+     * 索引はリポジトリ全体でひとつのロックによって保護される。
+     * 共有している間は、すべてのブランチのセッションによる保存や破棄、およびガベージコレクションの除去が、
+     * ハッシュ値の計算や内容の比較を含めてこのロックの上で逐次化されるため、並行して保存する際のスループットが低下する。
+     * </p>
+     * @param enabled 共有する場合は{@code true}、共有しない場合は{@code false}
+     */
+    public void setDeduplication(boolean enabled) {
+        this.deduplication = enabled;
+    }
+
+    /**
+     * セッションが保存するエンティティを、同一の内容をもつ格納済みのエンティティと共有する場合のみ{@code true}を返す。
+     * @return 共有する場合のみ{@code true}
+     * @see #setDeduplication(boolean)
+     */
+    boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * 全体のエンティティ表を返す。
+     * @return 全体のエンティティ表
+     */
+    EntityStore getEntityStore() {
+        return allEntities;
+    }
+
+    /**
+     * 最後に払い出した{@link Entity.Reference}の番号を返す。
+     * @return 最後に払い出した参照の番号
+     */
+    long getReferenceSequence() {
+        return referenceSequence.get();
+    }
+
+    /**
+     * 最後に払い出した{@link LocalEntityId}の番号を返す。
+     * @return 最後に払い出した識別子の番号
+     */
+    long getEntityIdSequence() {
+        return entityIdSequence.get();
+    }
+
+    /**
+     * {@link Entity.Reference}のための番号の範囲を借り受ける。
+     * @return 借り受けた範囲
+     */
+    SequenceBlock leaseReferences() {
+        return lease(referenceSequence, blockSize);
+    }
+
+    /**
+     * {@link LocalEntityId}のための番号の範囲を、少なくとも指定の個数だけ借り受ける。
+     * @param count 必要な番号の個数
+     * @return 借り受けた範囲
+     */
+    SequenceBlock leaseEntityIds(int count) {
+        assert count >= 0;
+        return lease(entityIdSequence, Math.max(count, blockSize));
+    }
+
+    /**
+     * 参照と識別子のシーケンスを、少なくとも指定の値まで進める。
+     * @param references 最後に払い出した参照の番号
+     * @param ids 最後に払い出した識別子の番号
+     */
+    void advanceSequences(long references, long ids) {
+        advance(referenceSequence, references);
+        advance(entityIdSequence, ids);
+    }
+
+    private static void advance(AtomicLong sequence, long value) {
+        assert sequence != null;
+        while (true) {
+            long current = sequence.get();
+            if (current >= value || sequence.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private static SequenceBlock lease(AtomicLong sequence, int count) {
+        assert sequence != null;
+        assert count > 0;
+        long limit = sequence.addAndGet(count);
+        return new SequenceBlock(sequence, limit - count + 1, limit);
+    }
+
+    /**
+     * このリポジトリに格納された、指定の識別子をもつエンティティを返す。
+     * @param id 対象の識別子
+     * @return 対応するエンティティ、存在しない場合は{@code null}
+     */
+    public Entity getEntity(LocalEntityId id) {
+        if (id == null) {
+            throw new IllegalArgumentException("id is null"); //$NON-NLS-1$
+        }
+        return allEntities.get(id.getNumeric());
+    }
+
+    /**
+     * このリポジトリに格納された、指定の数値表現の識別子をもつエンティティを返す。
+     * @param id 対象の識別子の数値表現
+     * @return 対応するエンティティ、存在しない場合は{@code null}
+     */
+    Entity getEntity(long id) {
+        return allEntities.get(id);
+    }
+
+    /**
+     * 指定のエンティティ一覧をこのリポジトリ上に追加し、それぞれの識別子を返す。
+     * @param entities 追加するエンティティの一覧
+     * @return 追加したエンティティへの参照と、その識別子の一覧
+     * @see #getEntity(LocalEntityId)
+     */
+    public Map<Entity.Reference, LocalEntityId> prepare(Collection<? extends Entity> entities) {
+        if (entities == null) {
+            throw new IllegalArgumentException("entities is null"); //$NON-NLS-1$
+        }
+        if (entities.isEmpty()) {
+            return new HashMap<Entity.Reference, LocalEntityId>();
+        }
+
+        // エンティティの個数分だけIDを確保
+        SequenceBlock ids = lease(entityIdSequence, entities.size());
+        Map<Entity.Reference, LocalEntityId> results = new HashMap<Entity.Reference, LocalEntityId>();
+        add(entities, ids, results);
+        return results;
+    }
+
+    /**
+     * セッションが保存する指定のエンティティ一覧を、借り受けた範囲の識別子でこのリポジトリ上に追加する。
+     * <p>
+     * {@link #setDeduplication(boolean) 共有する}場合、同一の内容をもつエンティティがすでに格納されていれば、
+     * 新しく追加せずにその識別子を返す。
+     * 返した識別子は、コミットの成否にかかわらず{@link #release(Map, Revision)}で利用を終了する必要がある。
+     * </p>
+     * @param entities 追加するエンティティの一覧
+     * @param ids 識別子を払い出す範囲、エンティティの個数以上の番号が残っている必要がある
+     * @return 追加したエンティティへの参照と、その識別子の一覧
+     */
+    Map<Entity.Reference, LocalEntityId> prepare(Collection<? extends Entity> entities, SequenceBlock ids) {
+        assert entities != null;
+        assert ids != null;
+        assert ids.remaining() >= entities.size();
+        Map<Entity.Reference, LocalEntityId> results = new HashMap<Entity.Reference, LocalEntityId>();
+        if (deduplication == false) {
+            add(entities, ids, results);
+            return results;
+        }
+
+        // 同一の内容をもつエンティティがすでに格納されていれば、回収されないように利用を開始してからその識別子を使う
+        List<Entity> missing = new ArrayList<Entity>();
+        synchronized (sharedEntities) {
+            for (Entity entity : entities) {
+                LocalEntityId id = sharedEntities.acquire(entity);
+                if (id == null) {
+                    missing.add(entity);
+                }
+                else {
+                    results.put(entity.getSelfReference(), id);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        // 格納してから索引に登録する (並行して同じ内容が格納された場合は、識別子を共有しないだけでよい)
+        add(missing, ids, results);
+        synchronized (sharedEntities) {
+            for (Entity entity : missing) {
+                LocalEntityId id = results.get(entity.getSelfReference());
+                if (sharedEntities.contains(id) == false) {
+                    sharedEntities.register(id, entity);
+                }
+            }
+        }
+        return results;
+    }
+
+    private void add(
+            Collection<? extends Entity> entities,
+            SequenceBlock ids,
+            Map<Entity.Reference, LocalEntityId> results) {
+        assert entities != null;
+        assert ids != null;
+        assert results != null;
+        for (Entity entity : entities) {
+            // 範囲からIDを作成して、全体のエンティティ表に登録
+            LocalEntityId id = new LocalEntityId(ids.next());
+            allEntities.put(id.getNumeric(), entity);
+
+            // 参照から実体への表に追加
+            results.put(entity.getSelfReference(), id);
+        }
+    }
+
+    /**
+     * 指定のエンティティのプロパティを、別のエンティティの指定のプロパティで置き換え、
+     * さらに指定の加算を適用した新しいエンティティを追加する。
+     * @param reference 対象のエンティティへの参照
+     * @param base 置き換え元のエンティティの識別子
+     * @param modified 置き換えるプロパティをもつエンティティの識別子
+     * @param properties 置き換えるプロパティ名の一覧、{@code modified}に存在しないプロパティは削除する
+     * @param additions 置き換え元のエンティティの整数のプロパティに加算する値の一覧
+     * @return 追加したエンティティの識別子
+     */
+    LocalEntityId rebase(
+            Entity.Reference reference,
+            LocalEntityId base,
+            LocalEntityId modified,
+            Set<String> properties,
+            Map<String, Integer> additions) {
+        assert reference != null;
+        assert base != null;
+        assert modified != null;
+        assert properties != null;
+        assert additions != null;
+        Entity baseEntity = allEntities.get(base.getNumeric());
+        Entity modifiedEntity = allEntities.get(modified.getNumeric());
+        if (baseEntity == null || modifiedEntity == null) {
+            // 最新のリビジョンやコミット中のエンティティは回収されないはず
+            throw new IllegalStateException(MessageFormat.format(
+                    "Entity for {0} is already reclaimed",
+                    reference));
+        }
+        Entity.Builder builder = Entity.Builder.create(reference);
+        Map<String, Object> baseProperties = baseEntity.getPropertyMap();
+        for (Map.Entry<String, Object> entry : baseProperties.entrySet()) {
+            String name = entry.getKey();
+            if (properties.contains(name) == false && additions.containsKey(name) == false) {
+                builder.add(name, entry.getValue());
+            }
+        }
+        for (String name : properties) {
+            Object value = modifiedEntity.getProperty(name);
+            if (value != null) {
+                builder.add(name, value);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : additions.entrySet()) {
+            // 加算は最新のエンティティの値に対して行う
+            String name = entry.getKey();
+            Object value = baseProperties.get(name);
+            if (value != null && (value instanceof Integer) == false) {
+                throw new IllegalStateException(MessageFormat.format(
+                        "Property \"{0}\" of {1} is not an Integer: {2}",
+                        name,
+                        reference,
+                        value));
+            }
+            int current = value == null ? 0 : ((Integer) value).intValue();
+            builder.add(name, Integer.valueOf(current + entry.getValue().intValue()));
+        }
+        Map<Entity.Reference, LocalEntityId> added = prepare(Collections.singleton(builder.toEntity()));
+        return added.get(reference);
+    }
+
+    /**
+     * {@link #prepare(Collection)}で追加したものの、コミットしなかったエンティティを破棄する。
+     * @param ids 破棄するエンティティの識別子一覧
+     */
+    public void discard(Collection<? extends LocalEntityId> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("ids is null"); //$NON-NLS-1$
+        }
+        if (sharedEntities.isEmpty()) {
+            for (LocalEntityId id : ids) {
+                allEntities.remove(id.getNumeric());
+            }
+            return;
+        }
+        synchronized (sharedEntities) {
+            for (LocalEntityId id : ids) {
+                // 共有しうるエンティティは、利用者がすべて利用を終了した時点で破棄する
+                if (sharedEntities.contains(id) == false) {
+                    allEntities.remove(id.getNumeric());
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #prepare(Collection, SequenceBlock)}で追加したエンティティの利用を終了する。
+     * <p>
+     * コミットしたリビジョンから参照されないエンティティは、他に利用者がいなければ破棄する。
+     * </p>
+     * @param entities 追加したエンティティへの参照と、その識別子の一覧
+     * @param committed コミットしたリビジョン、コミットに失敗した場合は{@code null}
+     */
+    void release(Map<Entity.Reference, LocalEntityId> entities, Revision<LocalEntityId> committed) {
+        assert entities != null;
+        if (sharedEntities.isEmpty()) {
+            // 利用中のエンティティは索引から取り除かれないので、いずれも共有されていない
+            if (committed == null) {
+                for (LocalEntityId id : entities.values()) {
+                    allEntities.remove(id.getNumeric());
+                }
+            }
+            return;
+        }
+        synchronized (sharedEntities) {
+            for (Map.Entry<Entity.Reference, LocalEntityId> entry : entities.entrySet()) {
+                LocalEntityId id = entry.getValue();
+                if (sharedEntities.contains(id)) {
+                    // プロパティの変更を取り込んだ別のエンティティに差し替えられた場合は、コミットされていない
+                    boolean published = committed != null && id.equals(committed.getId(entry.getKey()));
+                    if (sharedEntities.release(id, published)) {
+                        allEntities.remove(id.getNumeric());
+                    }
+                }
+                else if (committed == null) {
+                    allEntities.remove(id.getNumeric());
+                }
+            }
+        }
+    }
+
+    /**
+     * 利用中でなくなったリビジョンの履歴を切り離し、どの生存しているリビジョンからも参照されないエンティティを回収する。
+     * <p>
+     * 生存しているリビジョンとは、最新のリビジョンと、セッションが開始リビジョンとして利用中のリビジョンである。
+     * この呼び出しはコミットと並行して実行でき、コミットを停止させない。
+     * </p>
+     * @return 回収したエンティティの個数
+     */
+    public int compact() {
+        return (int) reclaim()[0];
+    }
+
+    /**
+     * {@link #compact()}を行い、回収したエンティティの個数とおおよそのバイト数を返す。
+     * @return 回収したエンティティの個数とおおよそのバイト数の組
+     */
+    long[] reclaim() {
+        // 回収と並行して開始されたセッションを見落とさないため、最新のリビジョンを先に取得する
+        Map<LocalBranch, Revision<LocalEntityId>> heads = getHeads();
+        Map<LocalBranch, List<RevisionCollector.Garbage>> candidates =
+            new HashMap<LocalBranch, List<RevisionCollector.Garbage>>();
+        for (Map.Entry<LocalBranch, Revision<LocalEntityId>> entry : heads.entrySet()) {
+            RevisionCollector collector = entry.getKey().getCollector();
+            Revision<LocalEntityId> oldest = collector.truncate(entry.getValue());
+            candidates.put(entry.getKey(), collector.collect(oldest.getGeneration()));
+        }
+
+        // 回収の候補を確定させた後に、他のブランチで生存しているリビジョンを取得する
+        // (候補を確定させるまでに他のブランチに取り込まれたエンティティや、作成されたブランチを見落とさないため)
+        Map<LocalBranch, List<Revision<LocalEntityId>>> lives = getLiveRevisions();
+        long[] results = new long[2];
+        if (sharedEntities.isEmpty()) {
+            for (Map.Entry<LocalBranch, List<RevisionCollector.Garbage>> entry : candidates.entrySet()) {
+                for (RevisionCollector.Garbage garbage : entry.getValue()) {
+                    // 他のブランチが同じエンティティを参照していれば、そのブランチで置き換えられた時点で改めて回収する
+                    if (isShared(garbage, entry.getKey(), lives) == false) {
+                        remove(garbage, results);
+                    }
+                }
+            }
+            return results;
+        }
+
+        // 共有しうるエンティティは、同じブランチの後のリビジョンで再び利用されている場合があるため、
+        // 新たな利用を締め出してから、利用者がおらず、どのブランチからも参照されないことを改めて確認する
+        synchronized (sharedEntities) {
+            Map<LocalBranch, List<Revision<LocalEntityId>>> current = null;
+            for (Map.Entry<LocalBranch, List<RevisionCollector.Garbage>> entry : candidates.entrySet()) {
+                for (RevisionCollector.Garbage garbage : entry.getValue()) {
+                    if (isShared(garbage, entry.getKey(), lives)) {
+                        continue;
+                    }
+                    if (sharedEntities.contains(garbage.id)) {
+                        if (sharedEntities.isUsed(garbage.id)) {
+                            // コミット中のセッションが利用していれば、コミットの結果が出た後に改めて判定する
+                            entry.getKey().getCollector().defer(garbage);
+                            continue;
+                        }
+                        if (current == null) {
+                            current = getLiveRevisions();
+                        }
+                        if (isShared(garbage, null, current)) {
+                            continue;
+                        }
+                        sharedEntities.remove(garbage.id);
+                    }
+                    remove(garbage, results);
+                }
+            }
+        }
+        return results;
+    }
+
+    private void remove(RevisionCollector.Garbage garbage, long[] results) {
+        assert garbage != null;
+        assert results != null;
+        Entity removed = allEntities.remove(garbage.id.getNumeric());
+        if (removed != null) {
+            results[0]++;
+            results[1] += estimateSize(removed);
+        }
+    }
+
+    private Map<LocalBranch, Revision<LocalEntityId>> getHeads() {
+        Map<LocalBranch, Revision<LocalEntityId>> results = new HashMap<LocalBranch, Revision<LocalEntityId>>();
+        for (LocalBranch branch : branches.values()) {
+            results.put(branch, branch.getHead());
+        }
+        return results;
+    }
+
+    private Map<LocalBranch, List<Revision<LocalEntityId>>> getLiveRevisions() {
+        Map<LocalBranch, List<Revision<LocalEntityId>>> results =
+            new HashMap<LocalBranch, List<Revision<LocalEntityId>>>();
+        for (Map.Entry<LocalBranch, Revision<LocalEntityId>> entry : getHeads().entrySet()) {
+            results.put(entry.getKey(), entry.getKey().getCollector().getLiveRevisions(entry.getValue()));
+        }
+        return results;
+    }
+
+    /**
+     * 置き換えられた識別子が、指定のブランチ以外で生存しているリビジョンから参照されている場合のみ{@code true}を返す。
+     * @param garbage 置き換えられた識別子
+     * @param owner 確認しないブランチ、すべてのブランチを確認する場合は{@code null}
+     * @param lives ブランチごとの生存しているリビジョンの一覧
+     * @return 参照されている場合のみ{@code true}
+     */
+    private static boolean isShared(
+            RevisionCollector.Garbage garbage,
+            LocalBranch owner,
+            Map<LocalBranch, List<Revision<LocalEntityId>>> lives) {
+        assert garbage != null;
+        assert lives != null;
+        if (owner != null && lives.size() == 1) {
+            return false;
+        }
+        for (Map.Entry<LocalBranch, List<Revision<LocalEntityId>>> entry : lives.entrySet()) {
+            if (entry.getKey() == owner) {
+                continue;
+            }
+            for (Revision<LocalEntityId> revision : entry.getValue()) {
+                if (garbage.id.equals(revision.getId(garbage.reference))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 生存しているリビジョンの名前つき参照から到達できない参照を最新のリビジョンから取り除き、
+     * {@link #compact()}によってエンティティを回収する。
+     * <p>
+     * 到達可能性は、生存しているリビジョンの名前つき参照から、
+     * エンティティのプロパティに含まれる{@link Entity.Reference}をたどって判定する。
+     * 一度どの生存しているリビジョンからも到達できなくなった参照は、以降のリビジョンからも到達できないため、
+     * この呼び出しはコミットと並行して実行でき、コミットを停止させない。
+     * </p>
+     * <p>
+     * 判定を開始した後に作成された参照は、取り除く対象にならない。
+     * </p>
+     * @return 回収の結果
+     */
+    public CollectionReport collectGarbage() {
+        // 回収と並行して開始されたセッションを見落とさないため、最新のリビジョンを先に取得する
+        // (判定の途中で並行する回収がエンティティを回収しないよう、判定を終えるまで固定しておく)
+        Map<LocalBranch, RevisionCollector.Pin> snapshots = pinHeads();
+        Set<Entity.Reference> marked = new HashSet<Entity.Reference>();
+        int swept;
+        try {
+            // マーク: すべてのブランチの生存しているリビジョンについて、名前つき参照から到達可能な参照をたどる
+            // (参照はブランチをまたいで一意なので、他のブランチから到達可能なものも残す)
+            for (Revision<LocalEntityId> root : getLiveRevisions(snapshots)) {
+                mark(root, marked);
+            }
+            swept = sweep(snapshots, marked);
+        }
+        finally {
+            release(snapshots);
+        }
+
+        // 取り除いた参照のエンティティは、利用中のリビジョンがなくなり次第回収される
+        long[] reclaimed = reclaim();
+        return new CollectionReport(marked.size(), swept, (int) reclaimed[0], reclaimed[1]);
+    }
+
+    /**
+     * すべてのブランチの最新のリビジョンを固定して返す。
+     * <p>
+     * 固定したリビジョンは、利用を終えた後に{@link #release(Map)}で解放する必要がある。
+     * </p>
+     * @return ブランチごとの固定したリビジョン
+     */
+    Map<LocalBranch, RevisionCollector.Pin> pinHeads() {
+        Map<LocalBranch, RevisionCollector.Pin> results = new HashMap<LocalBranch, RevisionCollector.Pin>();
+        boolean succeed = false;
+        try {
+            for (LocalBranch branch : branches.values()) {
+                results.put(branch, pinHead(branch));
+            }
+            succeed = true;
+            return results;
+        }
+        finally {
+            if (succeed == false) {
+                release(results);
+            }
+        }
+    }
+
+    /**
+     * {@link #pinHeads()}で固定したリビジョンを解放する。
+     * @param snapshots ブランチごとの固定したリビジョン
+     */
+    static void release(Map<LocalBranch, RevisionCollector.Pin> snapshots) {
+        assert snapshots != null;
+        for (RevisionCollector.Pin pin : snapshots.values()) {
+            pin.release();
+        }
+    }
+
+    /**
+     * 固定したリビジョンの時点で生存している、すべてのブランチのリビジョンを返す。
+     * @param snapshots ブランチごとの固定したリビジョン
+     * @return 生存しているリビジョンの一覧
+     */
+    List<Revision<LocalEntityId>> getLiveRevisions(Map<LocalBranch, RevisionCollector.Pin> snapshots) {
+        assert snapshots != null;
+        List<Revision<LocalEntityId>> results = new ArrayList<Revision<LocalEntityId>>();
+        for (Map.Entry<LocalBranch, RevisionCollector.Pin> entry : snapshots.entrySet()) {
+            RevisionCollector collector = entry.getKey().getCollector();
+            results.addAll(collector.getLiveRevisions(entry.getValue().revision));
+        }
+        return results;
+    }
+
+    /**
+     * それぞれのブランチについて、固定したリビジョンに含まれる到達できない参照を最新のリビジョンから取り除く。
+     * <p>
+     * 取り除いた参照のエンティティは、{@link #compact()}によって回収される。
+     * </p>
+     * @param snapshots ブランチごとの固定したリビジョン
+     * @param marked 到達可能な参照の集合
+     * @return 取り除いた参照の個数
+     */
+    int sweep(Map<LocalBranch, RevisionCollector.Pin> snapshots, Set<Entity.Reference> marked) {
+        assert snapshots != null;
+        assert marked != null;
+        int swept = 0;
+        for (Map.Entry<LocalBranch, RevisionCollector.Pin> entry : snapshots.entrySet()) {
+            Revision<LocalEntityId> snapshot = entry.getValue().revision;
+            Map<Entity.Reference, LocalEntityId> unreachable = new HashMap<Entity.Reference, LocalEntityId>();
+            for (Entity.Reference reference : snapshot.getEntityMap().keySet()) {
+                if (marked.contains(reference) == false) {
+                    unreachable.put(reference, null);
+                }
+            }
+            if (unreachable.isEmpty() == false) {
+                Revision.Delta<LocalEntityId> delta = new Revision.Delta<LocalEntityId>(
+                        Collections.<String, Entity.Reference>emptyMap(),
+                        unreachable);
+                if (entry.getKey().getCommitter().commit(snapshot, delta) != null) {
+                    swept += unreachable.size();
+                }
+            }
+        }
+        return swept;
+    }
+
+    private void mark(Revision<LocalEntityId> root, Set<Entity.Reference> marked) {
+        assert root != null;
+        assert marked != null;
+        Set<Entity.Reference> visited = new HashSet<Entity.Reference>();
+        List<Entity.Reference> stack = new ArrayList<Entity.Reference>(root.getBindingMap().values());
+        while (stack.isEmpty() == false) {
+            Entity.Reference reference = stack.remove(stack.size() - 1);
+            if (visited.add(reference) == false) {
+                continue;
+            }
+            marked.add(reference);
+            LocalEntityId id = root.getId(reference);
+            if (id == null) {
+                continue;
+            }
+            Entity entity = allEntities.get(id.getNumeric());
+            if (entity == null) {
+                // 並行して利用されなくなったリビジョンのエンティティは回収済みの場合がある
+                continue;
+            }
+            for (Object value : entity.getPropertyMap().values()) {
+                if (value instanceof Entity.Reference) {
+                    stack.add((Entity.Reference) value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定のエンティティがヒープ上で占めるおおよそのバイト数を返す。
+     * @param entity 対象のエンティティ
+     * @return おおよそのバイト数
+     */
+    private static int estimateSize(Entity entity) {
+        assert entity != null;
+        // プロパティ名は形状として他のエンティティと共有されるため、値の配列のみを数える
+        int size = 48;
+        for (Object value : entity.getPropertyMap().values()) {
+            size += 8;
+            if (value instanceof String) {
+                size += 40 + ((String) value).length() * 2;
+            }
+            else {
+                size += 24;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * バックグラウンドのスレッドで、{@link #compact()}を定期的に実行する。
+     * <p>
+     * すでに実行中の場合、この呼び出しは何も行わない。
+     * </p>
+     * @param period 実行の間隔
+     * @param unit {@code period}の単位
+     * @throws IllegalArgumentException 間隔に正の値が指定されない場合
+     * @see #stopCompaction()
+     */
+    public synchronized void startCompaction(long period, TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null"); //$NON-NLS-1$
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive"); //$NON-NLS-1$
+        }
+        if (compactionService != null) {
+            return;
+        }
+        compactionService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smalltable-compaction"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactionService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // 例外をスローすると以降の実行が取りやめられるため、記録して次の周期で改めて回収する
+                try {
+                    compact();
+                }
+                catch (RuntimeException e) {
+                    LOG.error("Failed to compact repository", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * {@link #startCompaction(long, TimeUnit)}で開始した定期的な回収を停止する。
+     * <p>
+     * 回収を実行中の場合、その回収が終わるまで待機する。
+     * </p>
+     */
+    public synchronized void stopCompaction() {
+        ScheduledExecutorService service = compactionService;
+        if (service == null) {
+            return;
+        }
+        compactionService = null;
+        service.shutdownNow();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                        break;
+                    }
+                }
+                catch (InterruptedException e) {
+                    // 回収は有限の時間で終わるので、割り込まれても終了を待ち続ける
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 同時に到着したコミットをまとめる際に、最初のコミットが待機する時間を設定する。
+     * <p>
+     * 既定では待機せず、その時点までに到着していたコミットのみをまとめる。
+     * </p>
+     * @param time 待機する時間、待機しない場合は{@code 0}
+     * @param unit {@code time}の単位
+     * @throws IllegalArgumentException 時間に負の値が指定された場合
+     */
+    public void setGroupCommitWindow(long time, TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("unit is null"); //$NON-NLS-1$
+        }
+        if (time < 0) {
+            throw new IllegalArgumentException("time must not be negative"); //$NON-NLS-1$
+        }
+        this.groupCommitWindow = unit.toNanos(time);
+        for (LocalBranch branch : branches.values()) {
+            branch.getCommitter().setWindow(groupCommitWindow);
+        }
+    }
+
+    /**
+     * このリポジトリに対するこれまでのコミットの統計情報を返す。
+     * <p>
+     * 統計情報は直列化されず、リポジトリを復元した時点から数えなおす。
+     * </p>
+     * @return すべてのブランチに対するコミットの統計情報の合計
+     */
+    public CommitStatistics getCommitStatistics() {
+        long commits = 0;
+        long conflicts = 0;
+        long revisions = 0;
+        long conflictCheckNanos = 0;
+        for (LocalBranch branch : branches.values()) {
+            CommitStatistics statistics = branch.getCommitter().getStatistics();
+            commits += statistics.getCommits();
+            conflicts += statistics.getConflicts();
+            revisions += statistics.getRevisions();
+            conflictCheckNanos += statistics.getConflictCheckNanos();
+        }
+        return new CommitStatistics(commits, conflicts, revisions, conflictCheckNanos);
+    }
+
+    /**
+     * 指定のリビジョンを起点とした変更の情報を、このリポジトリの既定のブランチに保存する。
+     * @param source 開始リビジョン
+     * @param delta 開始リビジョンに対する変更差分
+     * @return 保存したリビジョン。保存に失敗した場合は{@code null}
+     * @see #commit(String, Revision, Revision.Delta)
+     */
+    public Revision<LocalEntityId> commit(Revision<LocalEntityId> source, Revision.Delta<LocalEntityId> delta) {
+        return commit(DEFAULT_BRANCH, source, delta);
+    }
+
+    /**
+     * 指定のリビジョンを起点とした変更の情報を、このリポジトリの指定のブランチに保存する。
+     * <p>
+     * 指定された変更が、リポジトリ上の最新までの変更と衝突する場合、この呼び出しは保存に失敗する。
+     * 同じエンティティであっても、互いに異なるプロパティのみを変更している場合は衝突とならず、
+     * 最新のエンティティに変更したプロパティを取り込んだ新しいエンティティとして保存される。
+     * </p>
+     * <p>
+     * 同時に行われた互いに衝突しないコミットは、ひとつのリビジョンにまとめて保存される。
+     * 保存されたリビジョンは指定のブランチの最新リビジョンとなり、今回の変更の他に同時にコミットされた変更を含む場合がある。
+     * </p>
+     * @param branch 保存先のブランチの名前
+     * @param source 開始リビジョン、保存先のブランチのリビジョンである必要がある
+     * @param delta 開始リビジョンに対する変更差分
+     * @return 保存したリビジョン。保存に失敗した場合は{@code null}
+     * @throws IllegalArgumentException 指定のブランチが存在しない場合
+     */
+    public Revision<LocalEntityId> commit(
+            String branch,
+            Revision<LocalEntityId> source,
+            Revision.Delta<LocalEntityId> delta) {
+        if (branch == null) {
+            throw new IllegalArgumentException("branch is null"); //$NON-NLS-1$
+        }
+        if (source == null) {
+            throw new IllegalArgumentException("source is null"); //$NON-NLS-1$
+        }
+        if (delta == null) {
+            throw new IllegalArgumentException("delta is null"); //$NON-NLS-1$
+        }
+        // FIXME 衝突した場合の通知方法について考える
+        return getBranch(branch).getCommitter().commit(source, delta);
+    }
+
+    /**
+     * 指定のブランチへのコミットを処理するオブジェクトを返す。
+     * @param branch 対象のブランチの名前
+     * @return コミットを処理するオブジェクト
+     */
+    GroupCommitter getCommitter(String branch) {
+        assert branch != null;
+        return getBranch(branch).getCommitter();
+    }
+
+    /**
+     * 指定のブランチの変更を、別のブランチに取り込む。
+     * <p>
+     * 取り込む変更は、前回取り込んだ時点 (またはブランチを作成した時点) から取り込み元の最新のリビジョンまでの変更である。
+     * これらはエンティティ全体の変更として取り込み先にコミットされ、
+     * 前回取り込んだ時点以降に取り込み先で同じエンティティや名前つき参照が変更されていた場合は衝突として失敗する。
+     * </p>
+     * <p>
+     * 取り込み先が取り込み元から以前に取り込んだものと同じ内容は、取り込み元の変更とはみなさない。
+     * そのため、互いに取り込みを繰り返しても、取り込んだ変更が逆方向に再び取り込まれることはない。
+     * </p>
+     * @param from 取り込み元のブランチの名前
+     * @param into 取り込み先のブランチの名前
+     * @return 取り込んだ結果の取り込み先のリビジョン、衝突によって失敗した場合は{@code null}
+     * @throws IllegalArgumentException いずれかのブランチが存在しない場合、
+     *     または互いに作成元の関係になく共通の履歴をもたない場合
+     */
+    public Revision<LocalEntityId> merge(String from, String into) {
+        if (from == null) {
+            throw new IllegalArgumentException("from is null"); //$NON-NLS-1$
+        }
+        if (into == null) {
+            throw new IllegalArgumentException("into is null"); //$NON-NLS-1$
+        }
+        LocalBranch source = getBranch(from);
+        LocalBranch target = getBranch(into);
+        if (source == target) {
+            throw new IllegalArgumentException("from and into must be different branches"); //$NON-NLS-1$
+        }
+        synchronized (target) {
+            LocalBranch.MergeBase base = target.getMergeBase(from);
+            if (base == null) {
+                throw new IllegalArgumentException(MessageFormat.format(
+                        "Branch \"{0}\" does not share history with \"{1}\"",
+                        from,
+                        into));
+            }
+
+            // 取り込み先にコミットされるまで、取り込むエンティティが回収されないように固定しておく
+            RevisionCollector.Pin pin = pinHead(source);
+            try {
+                Revision<LocalEntityId> theirs = pin.revision;
+                Revision.Delta<LocalEntityId> delta = createMergeDelta(base, theirs, source.getMergeBase(into), target);
+                Revision<LocalEntityId> merged;
+                if (delta.getBindingMap().isEmpty() && delta.getEntityMap().isEmpty()) {
+                    merged = target.getHead();
+                }
+                else {
+                    merged = target.getCommitter().commit(base.ours, delta);
+                    if (merged == null) {
+                        return null;
+                    }
+                }
+                target.setMergeBase(from, theirs, merged);
+                CommitLog log = commitLog;
+                if (log != null) {
+                    log.appendMerge(into, from, theirs, merged);
+                }
+                return merged;
+            }
+            finally {
+                pin.release();
+            }
+        }
+    }
+
+    private static Revision.Delta<LocalEntityId> createMergeDelta(
+            LocalBranch.MergeBase base,
+            Revision<LocalEntityId> theirs,
+            LocalBranch.MergeBase reverse,
+            LocalBranch target) {
+        assert base != null;
+        assert theirs != null;
+        assert target != null;
+        Revision.Delta<LocalEntityId> changes = base.theirs.createDeltaTo(theirs);
+        Revision<LocalEntityId> current = target.getHead();
+
+        // 取り込み先がすでにもつ内容と、取り込み元が取り込み先から以前に取り込んだ内容を除く
+        Revision<LocalEntityId> returned = reverse == null ? null : reverse.theirs;
+        Map<String, Entity.Reference> bindings = new HashMap<String, Entity.Reference>();
+        for (Map.Entry<String, Entity.Reference> entry : changes.getBindingMap().entrySet()) {
+            String name = entry.getKey();
+            Entity.Reference value = entry.getValue();
+            if (equals(value, current.getBinding(name))
+                    || (returned != null && equals(value, returned.getBinding(name)))) {
+                continue;
+            }
+            bindings.put(name, value);
+        }
+        Map<Entity.Reference, LocalEntityId> entities = new HashMap<Entity.Reference, LocalEntityId>();
+        for (Map.Entry<Entity.Reference, LocalEntityId> entry : changes.getEntityMap().entrySet()) {
+            Entity.Reference reference = entry.getKey();
+            LocalEntityId value = entry.getValue();
+            if (equals(value, current.getId(reference))
+                    || (returned != null && equals(value, returned.getId(reference)))) {
+                continue;
+            }
+            entities.put(reference, value);
+        }
+
+        // プロパティ単位の変更として扱うと、取り込み元の生存しているエンティティが置き換えによって回収されうるため、
+        // エンティティ全体の変更として取り込む
+        return new Revision.Delta<LocalEntityId>(bindings, entities);
+    }
+
+    private static boolean equals(Object a, Object b) {
+        if (a == null) {
+            return b == null;
+        }
+        return a.equals(b);
+    }
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        stream.defaultWriteObject();
+        List<LocalBranch> targets = new ArrayList<LocalBranch>(branches.values());
+        stream.writeInt(targets.size());
+        for (LocalBranch branch : targets) {
+            stream.writeUTF(branch.getName());
+
+            // 最新から追跡可能なもっとも古いリビジョンまでさかのぼる
+            List<Revision.Delta<LocalEntityId>> deltas = new ArrayList<Revision.Delta<LocalEntityId>>();
+            Revision<LocalEntityId> current = branch.getHead();
+            while (current.getParent() != null) {
+                deltas.add(current.getDelta());
+                current = current.getParent();
+            }
+
+            // もっとも古いリビジョンと、そこから最新までの差分を古い順に書き出す
+            // (リビジョンの連鎖を再帰的に直列化しないように、ひとつずつ書き出す)
+            stream.writeObject(current);
+            stream.writeInt(deltas.size());
+            for (int i = deltas.size() - 1; i >= 0; i--) {
+                stream.writeObject(deltas.get(i));
+            }
+        }
+        for (LocalBranch branch : targets) {
+            Map<String, LocalBranch.MergeBase> bases =
+                new HashMap<String, LocalBranch.MergeBase>(branch.getMergeBases());
+            stream.writeInt(bases.size());
+            for (Map.Entry<String, LocalBranch.MergeBase> entry : bases.entrySet()) {
+                stream.writeUTF(entry.getKey());
+                stream.writeObject(entry.getValue().theirs);
+                stream.writeObject(entry.getValue().ours);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        initializeTransients();
+        int branchCount = stream.readInt();
+        List<LocalBranch> targets = new ArrayList<LocalBranch>();
+        for (int i = 0; i < branchCount; i++) {
+            String name = stream.readUTF();
+            Revision<LocalEntityId> current = (Revision<LocalEntityId>) stream.readObject();
+            int count = stream.readInt();
+            for (int j = 0; j < count; j++) {
+                Revision.Delta<LocalEntityId> delta = (Revision.Delta<LocalEntityId>) stream.readObject();
+                current = current.apply(delta);
+            }
+            targets.add(addBranch(name, current));
+        }
+        for (LocalBranch branch : targets) {
+            int count = stream.readInt();
+            for (int j = 0; j < count; j++) {
+                String other = stream.readUTF();
+                Revision<LocalEntityId> theirs = (Revision<LocalEntityId>) stream.readObject();
+                Revision<LocalEntityId> ours = (Revision<LocalEntityId>) stream.readObject();
+                branch.setMergeBase(other, theirs, ours);
             }
         }
-        return false;
     }
 }
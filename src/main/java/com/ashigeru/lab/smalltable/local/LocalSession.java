@@ -15,15 +15,18 @@
  */
 package com.ashigeru.lab.smalltable.local;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
 import com.ashigeru.lab.smalltable.Revision;
 import com.ashigeru.lab.smalltable.Session;
 import com.ashigeru.lab.smalltable.Entity.Reference;
@@ -42,36 +45,85 @@ public class LocalSession implements Session {
      */
     private LocalRepository repository;
 
+    /**
+     * このセッションの変更を保存するブランチの名前。
+     */
+    private String branch;
+
     /**
      * このセッションを開始したリビジョン。
      */
     private Revision<LocalEntityId> start;
 
+    /**
+     * 開始リビジョンをリポジトリ上で利用中として固定したもの。
+     */
+    private RevisionCollector.Pin pin;
+
+    /**
+     * 参照を払い出す範囲、まだ借り受けていない場合は{@code null}。
+     */
+    private SequenceBlock references;
+
+    /**
+     * エンティティの識別子を払い出す範囲、まだ借り受けていない場合は{@code null}。
+     */
+    private SequenceBlock entityIds;
+
     /**
      * 名前つき参照の変更一覧。
      */
     private Map<String, Entity.Reference> modifiedBindings;
 
     /**
-     * インスタンスを生成する。
+     * リポジトリの既定のブランチに対するインスタンスを生成する。
+     * <p>
+     * 開始リビジョンは、このセッションが{@link #close() 終了}されるまでリポジトリ上で固定される。
+     * 保存に成功した場合は、保存したリビジョンが新たな開始リビジョンとして固定される。
+     * 開始リビジョンには、リポジトリの最新リビジョンを指定する必要がある。
+     * </p>
      * @param repository このセッションを開始したリポジトリ
      * @param start このセッションを開始したリビジョン
      */
     public LocalSession(LocalRepository repository, Revision<LocalEntityId> start) {
+        this(repository, LocalRepository.DEFAULT_BRANCH, start);
+    }
+
+    /**
+     * 指定のブランチに対するインスタンスを生成する。
+     * <p>
+     * 開始リビジョンは、このセッションが{@link #close() 終了}されるまでリポジトリ上で固定される。
+     * 保存に成功した場合は、保存したリビジョンが新たな開始リビジョンとして固定される。
+     * 開始リビジョンには、指定のブランチの最新リビジョンを指定する必要がある。
+     * </p>
+     * @param repository このセッションを開始したリポジトリ
+     * @param branch このセッションの変更を保存するブランチの名前
+     * @param start このセッションを開始したリビジョン
+     * @throws IllegalArgumentException 指定のブランチが存在しない場合
+     */
+    public LocalSession(LocalRepository repository, String branch, Revision<LocalEntityId> start) {
         if (repository == null) {
             throw new IllegalArgumentException("repository is null"); //$NON-NLS-1$
         }
+        if (branch == null) {
+            throw new IllegalArgumentException("branch is null"); //$NON-NLS-1$
+        }
         if (start == null) {
             throw new IllegalArgumentException("start is null"); //$NON-NLS-1$
         }
         this.repository = repository;
+        this.branch = branch;
         this.start = start;
+        this.pin = repository.pin(branch, this, start);
         this.modifiedBindings = new HashMap<String, Entity.Reference>();
     }
 
     @Override
     public Entity.Reference allocateReference() {
-        return repository.getNextReference();
+        if (references == null || references.remaining() == 0) {
+            references = repository.leaseReferences();
+        }
+        return new Entity.Reference(references.next());
     }
 
     @Override
@@ -100,8 +152,8 @@ public class LocalSession implements Session {
         }
 
         // リビジョン情報から、最新のエンティティに対応するIDを取得
-        LocalEntityId id = start.getId(reference);
-        if (id == null) {
+        long id = getTable().getNumeric(reference.value);
+        if (id == LocalReferenceTable.NOT_FOUND) {
             return null;
         }
 
@@ -109,49 +161,229 @@ public class LocalSession implements Session {
         return repository.getEntity(id);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 保存に成功した場合、このセッションの開始リビジョンは保存したリビジョンに移り、
+     * 借り受けた番号は引き続き利用される。
+     * </p>
+     */
     @Override
-    public void save(Collection<? extends Entity> entities) {
-        if (entities == null) {
-            throw new IllegalArgumentException("entities is null"); //$NON-NLS-1$
+    public Set<Entity.Reference> save(Collection<? extends Modification> modifications) {
+        if (modifications == null) {
+            throw new IllegalArgumentException("modifications is null"); //$NON-NLS-1$
+        }
+        Revision.Delta<LocalEntityId> delta = stage(modifications);
+
+        // 開始リビジョンからの変更差分をコミット
+        Revision<LocalEntityId> next;
+        try {
+            next = repository.commit(branch, start, delta);
+        }
+        catch (RuntimeException e) {
+            // ログへの書き出しに失敗したコミットは登録されない
+            abandon(delta);
+            throw e;
+        }
+        if (next == null) {
+            abandon(delta);
+            // FIXME 通知方法について考える
+            throw new ConcurrentModificationException();
+        }
+        return rebase(delta, next);
+    }
+
+    /**
+     * このセッションを開始したリビジョンを返す。
+     * @return 開始リビジョン
+     */
+    Revision<LocalEntityId> getStart() {
+        return start;
+    }
+
+    /**
+     * このセッションの変更を保存するブランチの名前を返す。
+     * @return ブランチの名前
+     */
+    String getBranch() {
+        return branch;
+    }
+
+    /**
+     * 指定の変更をリポジトリに登録し、開始リビジョンに対する変更差分を作成して返す。
+     * <p>
+     * 返された変更差分は、コミットに成功した場合は{@link #rebase(Revision.Delta, Revision)}に、
+     * 失敗した場合は{@link #abandon(Revision.Delta)}に渡す必要がある。
+     * </p>
+     * @param modifications このセッションで作成または更新されたエンティティと、変更されたプロパティの一覧
+     * @return 開始リビジョンに対する変更差分
+     * @throws ConcurrentModificationException 事前の検査で衝突が検出された場合
+     */
+    Revision.Delta<LocalEntityId> stage(Collection<? extends Modification> modifications) {
+        assert modifications != null;
+        Collection<? extends Modification> effective = modifications;
+        if (repository.isDeduplication()) {
+            effective = removeUnchanged(modifications);
         }
 
         // 開始リビジョンからの差分を計算する
         Map<String, Entity.Reference> bindingDelta = buildBindingDelta();
+        Map<Entity.Reference, Set<String>> propertyDelta = buildPropertyDelta(effective);
+        Map<Entity.Reference, Map<String, Integer>> additionDelta = buildAdditionDelta(effective, propertyDelta);
+        List<Entity> entities = new ArrayList<Entity>(effective.size());
+        for (Modification modification : effective) {
+            entities.add(modification.getEntity());
+        }
 
         // 余計なごみを最小にするため、事前検査を行う
-        boolean verified = preverify(bindingDelta, entities);
+        boolean verified = preverify(bindingDelta, propertyDelta, additionDelta);
         if (verified == false) {
             // FIXME 通知方法について考える
             throw new ConcurrentModificationException();
         }
 
         // 作成または更新されたエンティティの一覧を登録する (分割して実行してもよい)
-        Map<Entity.Reference, LocalEntityId> entityDelta = repository.prepare(entities);
+        if (entityIds == null || entityIds.remaining() < entities.size()) {
+            // 足りない場合は範囲を借り受けなおす (識別子は空きがあってよい)
+            if (entityIds != null) {
+                entityIds.release();
+            }
+            entityIds = repository.leaseEntityIds(entities.size());
+        }
+        Map<Entity.Reference, LocalEntityId> entityDelta = repository.prepare(entities, entityIds);
 
         // 変更差分を作成
-        Revision.Delta<LocalEntityId> delta = new Revision.Delta<LocalEntityId>(bindingDelta, entityDelta);
+        return new Revision.Delta<LocalEntityId>(
+                bindingDelta,
+                entityDelta,
+                buildPartialDelta(propertyDelta),
+                additionDelta);
+    }
 
-        // 開始リビジョンからの変更差分をコミット
-        Revision<LocalEntityId> next = repository.commit(start, delta);
-        if (next == null) {
-            // FIXME 通知方法について考える
-            throw new ConcurrentModificationException();
+    /**
+     * {@link #stage(Collection)}で作成した変更差分のコミットに失敗した際に、登録したエンティティを破棄する。
+     * @param delta コミットに失敗した変更差分
+     */
+    void abandon(Revision.Delta<LocalEntityId> delta) {
+        assert delta != null;
+        // 登録したエンティティはどのリビジョンからも参照されないので、他に利用者がいなければ破棄する
+        repository.release(delta.getEntityMap(), null);
+    }
+
+    /**
+     * {@link #stage(Collection)}で作成した変更差分のコミットに成功したリビジョンを、このセッションの新しい開始リビジョンとする。
+     * @param delta コミットした変更差分
+     * @param next コミットしたリビジョン
+     * @return 以前の開始リビジョンから、新しい開始リビジョンまでに変更されたエンティティへの参照の一覧
+     */
+    Set<Entity.Reference> rebase(Revision.Delta<LocalEntityId> delta, Revision<LocalEntityId> next) {
+        assert delta != null;
+        assert next != null;
+        repository.release(delta.getEntityMap(), next);
+        Set<Entity.Reference> changed = start.createDeltaTo(next).getEntityMap().keySet();
+
+        // 新しい開始リビジョンを固定してから古い固定を解除し、その間にエンティティが回収されないようにする
+        RevisionCollector.Pin previous = pin;
+        this.pin = repository.pin(branch, this, next);
+        if (previous != null) {
+            previous.release();
+        }
+        this.start = next;
+        modifiedBindings.clear();
+        return Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * このセッションの開始リビジョンを、ブランチの最新のリビジョンに移す。
+     * <p>
+     * 保存していない名前つき参照の変更は、そのまま保持される。
+     * </p>
+     * @return 以前の開始リビジョンから、新しい開始リビジョンまでに変更されたエンティティへの参照の一覧
+     */
+    Set<Entity.Reference> refresh() {
+        while (true) {
+            Revision<LocalEntityId> head = repository.getHeadRevision(branch);
+            RevisionCollector.Pin next = repository.pin(branch, this, head);
+
+            // 固定する前に最新が変わっていたら、回収と競合しないように固定しなおす
+            if (repository.getHeadRevision(branch) != head) {
+                next.release();
+                continue;
+            }
+            Set<Entity.Reference> changed = start.createDeltaTo(head).getEntityMap().keySet();
+            RevisionCollector.Pin previous = pin;
+            this.pin = next;
+            if (previous != null) {
+                previous.release();
+            }
+            this.start = head;
+            return Collections.unmodifiableSet(changed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 借り受けた番号のうち、まだ払い出していないものは返却または放棄される。
+     * </p>
+     */
+    @Override
+    public void close() {
+        if (pin != null) {
+            pin.release();
+            pin = null;
+        }
+        if (references != null) {
+            references.release();
+            references = null;
         }
+        if (entityIds != null) {
+            entityIds.release();
+            entityIds = null;
+        }
+    }
+
+    private LocalReferenceTable getTable() {
+        // このリポジトリのリビジョンは、常にLocalReferenceTableを利用する
+        return (LocalReferenceTable) start.getEntityTable();
+    }
+
+    private List<Modification> removeUnchanged(Collection<? extends Modification> modifications) {
+        assert modifications != null;
+        LocalReferenceTable table = getTable();
+        List<Modification> results = new ArrayList<Modification>(modifications.size());
+        for (Modification modification : modifications) {
+            Entity entity = modification.getEntity();
+            long id = table.getNumeric(entity.getSelfReference().value);
 
-        // MEMO nextを開始リビジョンとし、ローカルのすべてのデータを同期させれば継続して利用できそう
+            // 開始リビジョンと同一の内容であれば、変更差分に含めずに既存のエンティティを使い続ける
+            // (それ以外のリビジョンにある同一の内容は、リポジトリの索引によって識別子を共有する)
+            if (id != LocalReferenceTable.NOT_FOUND && entity.equals(repository.getEntity(id))) {
+                continue;
+            }
+            results.add(modification);
+        }
+        return results;
     }
 
-    private boolean preverify(Map<String, Reference> bindingDelta, Collection<? extends Entity> entities) {
+    private boolean preverify(
+            Map<String, Reference> bindingDelta,
+            Map<Entity.Reference, Set<String>> propertyDelta,
+            Map<Entity.Reference, Map<String, Integer>> additionDelta) {
         assert bindingDelta != null;
-        assert entities != null;
-        // TODO エンティティがコンパクションによって削除される場合、削除と削除の衝突を許す
+        assert propertyDelta != null;
+        assert additionDelta != null;
+        // セッションはエンティティを削除しないため、コンパクションや到達できない参照の削除と、削除どうしで衝突することはない
 
-        // FIXME 常に最新のリビジョンを利用する。ブランチする場合には別途考える
-        Revision<LocalEntityId> head = repository.getHeadRevision();
+        Revision<LocalEntityId> head = repository.getHeadRevision(branch);
 
         // 開始リビジョンから、「現在の」最新リビジョンまでの差分を作成
         Revision.Delta<LocalEntityId> delta = start.createDeltaTo(head);
-        return delta.conflictsWith(bindingDelta.keySet(), buildEntityDelta(entities)) == false;
+        Map<Entity.Reference, Set<String>> added = new HashMap<Entity.Reference, Set<String>>();
+        for (Map.Entry<Entity.Reference, Map<String, Integer>> entry : additionDelta.entrySet()) {
+            added.put(entry.getKey(), entry.getValue().keySet());
+        }
+        return delta.conflictsWith(bindingDelta.keySet(), propertyDelta, added) == false;
     }
 
     private Map<String, Entity.Reference> buildBindingDelta() {
@@ -173,13 +405,47 @@ public class LocalSession implements Session {
         return new HashMap<String, Entity.Reference>(modifiedBindings);
     }
 
-    private Set<Entity.Reference> buildEntityDelta(Collection<? extends Entity> entities) {
-        assert entities != null;
+    private Map<Entity.Reference, Set<String>> buildPropertyDelta(Collection<? extends Modification> modifications) {
+        assert modifications != null;
 
         // TODO 削除されたものについても探せるといい
-        Set<Entity.Reference> results = new HashSet<Entity.Reference>();
-        for (Entity entity : entities) {
-            results.add(entity.getSelfReference());
+        Map<Entity.Reference, Set<String>> results = new HashMap<Entity.Reference, Set<String>>();
+        for (Modification modification : modifications) {
+            Entity.Reference reference = modification.getEntity().getSelfReference();
+            Set<String> properties = modification.getChangedProperties();
+            if (properties != null && start.getId(reference) == null) {
+                // 開始リビジョンに存在しないものは、常にエンティティ全体の変更とする
+                properties = null;
+            }
+            results.put(reference, properties);
+        }
+        return results;
+    }
+
+    private Map<Entity.Reference, Map<String, Integer>> buildAdditionDelta(
+            Collection<? extends Modification> modifications,
+            Map<Entity.Reference, Set<String>> propertyDelta) {
+        assert modifications != null;
+        assert propertyDelta != null;
+        Map<Entity.Reference, Map<String, Integer>> results = new HashMap<Entity.Reference, Map<String, Integer>>();
+        for (Modification modification : modifications) {
+            Entity.Reference reference = modification.getEntity().getSelfReference();
+            Map<String, Integer> additions = modification.getAddedProperties();
+            // エンティティ全体の変更では、加算は変更後のエンティティに含まれる
+            if (additions.isEmpty() == false && propertyDelta.get(reference) != null) {
+                results.put(reference, additions);
+            }
+        }
+        return results;
+    }
+
+    private Map<Entity.Reference, Set<String>> buildPartialDelta(Map<Entity.Reference, Set<String>> propertyDelta) {
+        assert propertyDelta != null;
+        Map<Entity.Reference, Set<String>> results = new HashMap<Entity.Reference, Set<String>>();
+        for (Map.Entry<Entity.Reference, Set<String>> entry : propertyDelta.entrySet()) {
+            if (entry.getValue() != null) {
+                results.put(entry.getKey(), entry.getValue());
+            }
         }
         return results;
     }
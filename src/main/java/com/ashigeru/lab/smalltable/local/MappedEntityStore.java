@@ -0,0 +1,471 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.EntityInput;
+import com.ashigeru.lab.smalltable.EntityOutput;
+
+/**
+ * エンティティを符号化して、メモリにマップしたセグメントファイルに追記していく{@link EntityStore}。
+ * <p>
+ * ディレクトリは、識別子から格納位置への索引のファイルと、固定長のセグメントファイルの並びからなる。
+ * どちらもメモリにマップして読み書きするため、開く際にファイルの内容を読み出す必要はなく、
+ * よく利用されるエンティティはオペレーティングシステムのページキャッシュに保持される。
+ * </p>
+ * <p>
+ * 索引は{@link LocalEntityId}の数値表現を添え字とする{@code long}の配列で、
+ * それぞれの要素はセグメントの番号を上位32ビットに、セグメント内の位置を下位32ビットにもつ
+ * (エンティティが存在しない場合は{@code 0})。
+ * 索引の先頭の要素には、これまでに格納した最大の識別子を記録し、開いている間はその最上位ビットを立てる。
+ * セグメントはそれぞれ先頭に使用済みの大きさを記録し、
+ * その後に{@link EntityOutput}の形式で符号化したエンティティが並ぶ。
+ * </p>
+ * <p>
+ * セグメントと索引は{@link #sync()}の時点でのみ記憶装置に書き出すため、
+ * それ以降に格納したエンティティは、異常終了すると索引の要素やセグメントの使用済みの大きさと内容が食い違いうる。
+ * 最上位ビットが立ったまま開いた場合は異常終了したものとみなし、
+ * 索引を走査して使用済みの大きさを索引が指すすべての領域の末尾まで進め、復号できない領域を指す要素を取り除く。
+ * それ以外の最後の書き出し以降のエンティティの内容はログから格納しなおす必要がある。
+ * </p>
+ * <p>
+ * 取り出したエンティティは復号せずにセグメント上の領域を直接参照し、プロパティは参照された時点で復号する
+ * ({@link EntityInput#wrapEntity(java.nio.ByteBuffer, int)})。
+ * </p>
+ * <p>
+ * エンティティを取り除いても、セグメント上の領域は再利用しない。
+ * </p>
+ * @author ashigeru
+ */
+final class MappedEntityStore implements EntityStore {
+
+    /**
+     * 索引のファイル名。
+     */
+    static final String INDEX_FILE = "index"; //$NON-NLS-1$
+
+    /**
+     * セグメントのファイル名の形式。
+     */
+    private static final String SEGMENT_FILE = "segment-%08d"; //$NON-NLS-1$
+
+    /**
+     * セグメントの大きさの既定値。
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * セグメントの先頭の大きさ (使用済みの大きさ)。
+     */
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    /**
+     * 索引をマップする単位の要素数の対数。
+     */
+    private static final int INDEX_CHUNK_SHIFT = 17;
+
+    private static final int INDEX_CHUNK_SIZE = 1 << INDEX_CHUNK_SHIFT;
+
+    private static final int INDEX_CHUNK_MASK = INDEX_CHUNK_SIZE - 1;
+
+    /**
+     * 索引の先頭の要素で、開いたまま閉じていないことを表すビット。
+     */
+    private static final long OPEN_MARK = Long.MIN_VALUE;
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final FileChannel indexChannel;
+
+    /**
+     * マップした索引の一覧。追加する場合のみ、ロックを取った上で差し替える。
+     */
+    private volatile MappedByteBuffer[] indexChunks;
+
+    /**
+     * マップしたセグメントの一覧。追加する場合のみ、ロックを取った上で差し替える。
+     */
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * 最後のセグメントの使用済みの大きさ。
+     */
+    private int position;
+
+    /**
+     * これまでに格納した最大の識別子。
+     */
+    private volatile long lastId;
+
+    private MappedEntityStore(File directory, int segmentSize, FileChannel indexChannel) {
+        assert directory != null;
+        assert segmentSize > SEGMENT_HEADER_SIZE;
+        assert indexChannel != null;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexChannel = indexChannel;
+        this.indexChunks = new MappedByteBuffer[0];
+        this.segments = new MappedByteBuffer[0];
+    }
+
+    /**
+     * 指定のディレクトリに格納されたエンティティを開く。
+     * <p>
+     * ディレクトリが存在しない場合は作成する。
+     * 既存のファイルは内容を読み出さずにマップし、エンティティは参照された時点で読み出す。
+     * </p>
+     * @param directory 対象のディレクトリ
+     * @param segmentSize 新しく作成するセグメントの大きさ
+     * @return 開いたオブジェクト
+     * @throws IOException 開けなかった場合
+     */
+    static MappedEntityStore open(File directory, int segmentSize) throws IOException {
+        assert directory != null;
+        assert segmentSize > SEGMENT_HEADER_SIZE;
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException(MessageFormat.format(
+                    "Failed to create directory: {0}",
+                    directory));
+        }
+        FileChannel index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw").getChannel(); //$NON-NLS-1$
+        MappedEntityStore store = new MappedEntityStore(directory, segmentSize, index);
+        boolean succeed = false;
+        try {
+            store.initialize();
+            succeed = true;
+            return store;
+        }
+        finally {
+            if (succeed == false) {
+                index.close();
+            }
+        }
+    }
+
+    private synchronized void initialize() throws IOException {
+        // 索引はマップした時点で必要な大きさに拡張されるため、存在する範囲をそのままマップする
+        long chunks = (indexChannel.size() + chunkBytes() - 1) / chunkBytes();
+        for (long i = 0; i < Math.max(chunks, 1); i++) {
+            mapIndexChunk((int) i);
+        }
+        long head = indexChunks[0].getLong(0);
+        lastId = head & ~OPEN_MARK;
+
+        List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+        for (int i = 0; segmentFile(i).exists(); i++) {
+            mapped.add(mapSegment(i));
+        }
+        segments = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+        if (segments.length == 0) {
+            addSegment();
+        }
+        else {
+            position = (int) segments[segments.length - 1].getLong(0);
+        }
+        if ((head & OPEN_MARK) != 0) {
+            recover();
+        }
+
+        // 以降に書き込んだ内容より先に、閉じていないことを記録しておく
+        indexChunks[0].putLong(0, lastId | OPEN_MARK);
+        indexChunks[0].force();
+    }
+
+    /**
+     * 異常終了した後に、索引とセグメントの使用済みの大きさを整合させる。
+     */
+    private void recover() {
+        assert Thread.holdsLock(this);
+        int last = segments.length - 1;
+        for (int i = 0; i < indexChunks.length; i++) {
+            MappedByteBuffer chunk = indexChunks[i];
+            for (int j = (i == 0 ? 1 : 0); j < INDEX_CHUNK_SIZE; j++) {
+                long location = chunk.getLong(j * 8);
+                if (location == 0) {
+                    continue;
+                }
+                int number = (int) (location >>> 32);
+                int offset = (int) location;
+                int end = number < segments.length ? getEnd(segments[number], offset) : -1;
+                if (end < 0) {
+                    chunk.putLong(j * 8, 0L);
+                    continue;
+                }
+                if (number == last) {
+                    // 使用済みの大きさより後ろにある領域を、以降の書き込みで上書きしないようにする
+                    position = Math.max(position, end);
+                }
+                lastId = Math.max(lastId, ((long) i << INDEX_CHUNK_SHIFT) | j);
+            }
+        }
+        segments[last].putLong(0, position);
+    }
+
+    /**
+     * セグメントの指定の位置にあるエンティティの末尾の位置を返す。
+     * @param segment 対象のセグメント
+     * @param offset エンティティの先頭の位置
+     * @return 末尾の位置、エンティティとして復号できない場合は{@code -1}
+     */
+    private static int getEnd(MappedByteBuffer segment, int offset) {
+        assert segment != null;
+        if (offset < SEGMENT_HEADER_SIZE || offset >= segment.capacity()) {
+            return -1;
+        }
+        // 参照の番号は1から払い出すため、自身への参照が0のものは書き込まれなかった領域である
+        if (segment.get(offset) == 0) {
+            return -1;
+        }
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset);
+        try {
+            new EntityInput(buffer).readEntity();
+        }
+        catch (IOException e) {
+            return -1;
+        }
+        catch (RuntimeException e) {
+            return -1;
+        }
+        return buffer.position();
+    }
+
+    private static long chunkBytes() {
+        return (long) INDEX_CHUNK_SIZE * 8;
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(SEGMENT_FILE, number));
+    }
+
+    private MappedByteBuffer mapSegment(int number) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(number), "rw"); //$NON-NLS-1$
+        try {
+            // マップした領域は、ファイルを閉じた後も有効
+            long size = Math.max(file.length(), segmentSize);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(MessageFormat.format(
+                        "Segment is too large: {0}",
+                        segmentFile(number)));
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private void addSegment() throws IOException {
+        assert Thread.holdsLock(this);
+        MappedByteBuffer segment = mapSegment(segments.length);
+        segment.putLong(0, SEGMENT_HEADER_SIZE);
+        MappedByteBuffer[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[segments.length] = segment;
+        segments = grown;
+        position = SEGMENT_HEADER_SIZE;
+    }
+
+    private MappedByteBuffer mapIndexChunk(int number) throws IOException {
+        assert Thread.holdsLock(this);
+        MappedByteBuffer[] chunks = indexChunks;
+        if (number < chunks.length) {
+            return chunks[number];
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(chunks, number + 1);
+        for (int i = chunks.length; i <= number; i++) {
+            grown[i] = indexChannel.map(FileChannel.MapMode.READ_WRITE, i * chunkBytes(), chunkBytes());
+        }
+        indexChunks = grown;
+        return grown[number];
+    }
+
+    @Override
+    public Entity get(long id) {
+        assert id > 0;
+        long location = getLocation(id);
+        if (location == 0) {
+            return null;
+        }
+        // マップした領域を直接参照し、プロパティは参照された時点で復号する
+        try {
+            return EntityInput.wrapEntity(segments[(int) (location >>> 32)], (int) location);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(MessageFormat.format(
+                    "Entity {0} is broken in {1}",
+                    id,
+                    directory), e);
+        }
+    }
+
+    private long getLocation(long id) {
+        long chunk = id >>> INDEX_CHUNK_SHIFT;
+        MappedByteBuffer[] chunks = indexChunks;
+        if (chunk >= chunks.length) {
+            return 0L;
+        }
+        return chunks[(int) chunk].getLong((int) (id & INDEX_CHUNK_MASK) * 8);
+    }
+
+    @Override
+    public void put(long id, Entity entity) {
+        assert id > 0;
+        assert entity != null;
+        byte[] bytes = encode(entity);
+        long current = getLocation(id);
+        if (current != 0 && contains(current, bytes)) {
+            // ログから格納しなおす場合、同じ内容がすでに書き込まれていればそのまま使う
+            return;
+        }
+        int number;
+        MappedByteBuffer segment;
+        int offset;
+        MappedByteBuffer chunk;
+        synchronized (this) {
+            try {
+                if (bytes.length > segmentSize - SEGMENT_HEADER_SIZE) {
+                    throw new IllegalArgumentException(MessageFormat.format(
+                            "Entity is too large for segment: {0} bytes",
+                            bytes.length));
+                }
+                if (segments[segments.length - 1].capacity() - position < bytes.length) {
+                    addSegment();
+                }
+                chunk = mapIndexChunk((int) (id >>> INDEX_CHUNK_SHIFT));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(MessageFormat.format(
+                        "Failed to extend entity store: {0}",
+                        directory), e);
+            }
+            // 領域を確保してから、その領域に書き込む
+            number = segments.length - 1;
+            segment = segments[number];
+            offset = position;
+            position += bytes.length;
+            segment.putLong(0, position);
+            if (id > lastId) {
+                lastId = id;
+                indexChunks[0].putLong(0, id | OPEN_MARK);
+            }
+        }
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset);
+        buffer.put(bytes);
+
+        // 書き込みを終えてから索引に登録する
+        long location = ((long) number << 32) | offset;
+        chunk.putLong((int) (id & INDEX_CHUNK_MASK) * 8, location);
+    }
+
+    private boolean contains(long location, byte[] bytes) {
+        assert bytes != null;
+        int number = (int) (location >>> 32);
+        int offset = (int) location;
+        MappedByteBuffer[] current = segments;
+        if (number >= current.length || offset < SEGMENT_HEADER_SIZE
+                || current[number].capacity() - offset < bytes.length) {
+            return false;
+        }
+        MappedByteBuffer segment = current[number];
+        for (int i = 0; i < bytes.length; i++) {
+            if (segment.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(Entity entity) {
+        assert entity != null;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            new EntityOutput(new DataOutputStream(buffer)).writeEntity(entity);
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public Entity remove(long id) {
+        assert id > 0;
+        Entity removed = get(id);
+        if (removed != null) {
+            long chunk = id >>> INDEX_CHUNK_SHIFT;
+            indexChunks[(int) chunk].putLong((int) (id & INDEX_CHUNK_MASK) * 8, 0L);
+        }
+        return removed;
+    }
+
+    @Override
+    public long nextId(long id) {
+        assert id >= 0;
+        long last = lastId;
+        for (long next = id + 1; next <= last; next++) {
+            if (getLocation(next) != 0) {
+                return next;
+            }
+        }
+        return -1L;
+    }
+
+    @Override
+    public long getLastId() {
+        return lastId;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public synchronized void sync() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        for (MappedByteBuffer chunk : indexChunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+
+        // すべてを書き出した後にのみ、閉じたことを記録する
+        indexChunks[0].putLong(0, lastId);
+        indexChunks[0].force();
+        indexChannel.close();
+    }
+}
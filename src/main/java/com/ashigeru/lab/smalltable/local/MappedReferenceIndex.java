@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 参照の数値表現の昇順に並んだ、参照と識別子の数値表現の組の配列。
+ * <p>
+ * それぞれの組は参照と識別子をこの順に8バイトずつもち、ファイルをマップしたバッファ上で直接二分探索する。
+ * そのため、組の個数によらず、読み出しやオブジェクトの生成を行わずに利用を開始できる。
+ * </p>
+ * @author ashigeru
+ * @see LocalReferenceTable
+ */
+final class MappedReferenceIndex {
+
+    /**
+     * ひとつの組の大きさ。
+     */
+    static final int ENTRY_SIZE = 16;
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    /**
+     * インスタンスを生成する。
+     * @param buffer 組の配列をもつバッファ、位置によらず先頭から読み出す
+     */
+    MappedReferenceIndex(ByteBuffer buffer) {
+        assert buffer != null;
+        assert buffer.capacity() % ENTRY_SIZE == 0;
+        this.buffer = buffer;
+        this.size = buffer.capacity() / ENTRY_SIZE;
+    }
+
+    /**
+     * 組の個数を返す。
+     * @return 組の個数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 指定の位置の組の、参照の数値表現を返す。
+     * @param index 組の位置
+     * @return 参照の数値表現
+     */
+    long getKey(int index) {
+        return buffer.getLong(index * ENTRY_SIZE);
+    }
+
+    /**
+     * 指定の位置の組の、識別子の数値表現を返す。
+     * @param index 組の位置
+     * @return 識別子の数値表現
+     */
+    long getValue(int index) {
+        return buffer.getLong(index * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * 指定の参照の数値表現に対応する、識別子の数値表現を返す。
+     * @param reference 参照の数値表現
+     * @return 対応する識別子の数値表現、存在しない場合は{@link LocalReferenceTable#NOT_FOUND}
+     */
+    long get(long reference) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long key = getKey(middle);
+            if (key < reference) {
+                low = middle + 1;
+            }
+            else if (key > reference) {
+                high = middle - 1;
+            }
+            else {
+                return getValue(middle);
+            }
+        }
+        return LocalReferenceTable.NOT_FOUND;
+    }
+}
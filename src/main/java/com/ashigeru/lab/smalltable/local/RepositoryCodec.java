@@ -0,0 +1,727 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.EntityInput;
+import com.ashigeru.lab.smalltable.EntityOutput;
+import com.ashigeru.lab.smalltable.PersistentLongMap;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link LocalRepository}の内容を、専用のバイナリ形式で読み書きする。
+ * <p>
+ * 形式は以下の順に並ぶ。整数はすべて{@link EntityOutput}の可変長形式で表す。
+ * </p>
+ * <ol>
+ * <li> 先頭の識別子と、形式のバージョン </li>
+ * <li> 参照と識別子のシーケンスの現在値 </li>
+ * <li> 索引 (エンティティのチャンク、ブランチごとの識別子表のチャンクと履歴のチャンク、
+ *      取り込みの時点のチャンクについて、それぞれの要素数と大きさ) </li>
+ * <li> 識別子の昇順に区切ったエンティティのチャンク (エンティティを別に永続化している場合は存在しない) </li>
+ * <li> ブランチごとに、追跡可能なもっとも古いリビジョンの識別子表を参照の昇順に区切ったチャンクと、
+ *      名前とそのリビジョンの名前つき参照、そこから最新までの差分からなる履歴のチャンク </li>
+ * <li> ブランチごとに、他のブランチの変更を最後に取り込んだ時点をもつチャンク </li>
+ * </ol>
+ * <p>
+ * それぞれのチャンクは名前や形状の表を共有せず、独立して復号できる。
+ * 読み出す際は索引にしたがってチャンクを切り出し、{@link RepositoryLoader}が並行して復号する。
+ * リビジョンの履歴は差分のみを書き出し、読み出す際にもっとも古いリビジョンに順に適用して復元する。
+ * </p>
+ * @author ashigeru
+ */
+final class RepositoryCodec {
+
+    /**
+     * 形式の先頭の識別子。
+     */
+    private static final byte[] MAGIC = { 'S', 'T', 'B', 'L' };
+
+    /**
+     * 形式のバージョン。
+     */
+    static final int VERSION = 2;
+
+    /**
+     * チャンクに分割せず、先頭から順に読み出す形式のバージョン。
+     */
+    static final int SEQUENTIAL_VERSION = 1;
+
+    /**
+     * エンティティのチャンクあたりのエンティティの個数。
+     */
+    static final int ENTITY_CHUNK_SIZE = 4096;
+
+    /**
+     * 識別子表のチャンクあたりの参照の個数。
+     */
+    static final int TABLE_CHUNK_SIZE = 16384;
+
+    /**
+     * リビジョンの内容をそのまま書き出したことを表すタグ。
+     */
+    private static final int REVISION_FULL = 0;
+
+    private RepositoryCodec() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 指定のリポジトリの内容を書き出す。
+     * <p>
+     * この呼び出しは、コミットや回収と並行して実行できる。
+     * 書き出す内容は、呼び出した時点でのそれぞれのブランチの最新のリビジョンまでとなる。
+     * </p>
+     * @param repository 対象のリポジトリ
+     * @param stream 書き出し先のストリーム、この呼び出しの後も閉じられない
+     * @throws IOException 書き出しに失敗した場合
+     */
+    static void write(LocalRepository repository, OutputStream stream) throws IOException {
+        assert repository != null;
+        assert stream != null;
+
+        // 書き出している間にエンティティが回収されないよう、最新のリビジョンを固定しておく
+        List<LocalBranch> branches = repository.getBranches();
+        List<RevisionCollector.Pin> pins = pinHeads(repository, branches);
+        try {
+            write(repository, branches, pins, getMergeBases(branches), true, stream);
+        }
+        finally {
+            release(pins);
+        }
+    }
+
+    /**
+     * 指定のブランチの最新のリビジョンをそれぞれ固定する。
+     * @param repository 対象のリポジトリ
+     * @param branches 対象のブランチの一覧
+     * @return ブランチと同じ順序の固定の一覧
+     */
+    static List<RevisionCollector.Pin> pinHeads(LocalRepository repository, List<LocalBranch> branches) {
+        assert repository != null;
+        assert branches != null;
+        List<RevisionCollector.Pin> pins = new ArrayList<RevisionCollector.Pin>();
+        for (LocalBranch branch : branches) {
+            pins.add(repository.pinHead(branch));
+        }
+        return pins;
+    }
+
+    /**
+     * 指定のブランチに記録された取り込みの基点を、それぞれ名前の昇順に複製して返す。
+     * @param branches 対象のブランチの一覧
+     * @return ブランチと同じ順序の、取り込みの基点の一覧
+     */
+    static List<Map<String, LocalBranch.MergeBase>> getMergeBases(List<LocalBranch> branches) {
+        assert branches != null;
+        List<Map<String, LocalBranch.MergeBase>> results = new ArrayList<Map<String, LocalBranch.MergeBase>>();
+        for (LocalBranch branch : branches) {
+            results.add(new TreeMap<String, LocalBranch.MergeBase>(branch.getMergeBases()));
+        }
+        return results;
+    }
+
+    /**
+     * 固定の一覧をすべて解除する。
+     * @param pins 対象の固定の一覧
+     */
+    static void release(List<RevisionCollector.Pin> pins) {
+        assert pins != null;
+        for (RevisionCollector.Pin pin : pins) {
+            pin.release();
+        }
+    }
+
+    /**
+     * 指定のリポジトリの内容を、固定したそれぞれのブランチのリビジョンまで書き出す。
+     * @param repository 対象のリポジトリ
+     * @param branches 書き出すブランチの一覧
+     * @param pins ブランチと同じ順序の、書き出すリビジョンの固定の一覧
+     * @param bases ブランチと同じ順序の、名前の昇順に並んだ取り込みの基点の一覧
+     * @param entities エンティティを書き出す場合は{@code true}、リビジョンのみを書き出す場合は{@code false}
+     * @param stream 書き出し先のストリーム、この呼び出しの後も閉じられない
+     * @throws IOException 書き出しに失敗した場合
+     */
+    static void write(
+            LocalRepository repository,
+            List<LocalBranch> branches,
+            List<RevisionCollector.Pin> pins,
+            List<Map<String, LocalBranch.MergeBase>> bases,
+            boolean entities,
+            OutputStream stream) throws IOException {
+        assert repository != null;
+        assert branches != null;
+        assert pins != null;
+        assert bases != null;
+        assert branches.size() == pins.size();
+        assert branches.size() == bases.size();
+        assert stream != null;
+        // 本体をチャンクごとに独立して符号化し、索引に続けて書き出す
+        List<Chunk> entityChunks = entities
+            ? encodeEntities(repository.getEntityStore())
+            : Collections.<Chunk>emptyList();
+        Map<Revision<LocalEntityId>, long[]> positions =
+            new IdentityHashMap<Revision<LocalEntityId>, long[]>();
+        List<List<Chunk>> tableChunks = new ArrayList<List<Chunk>>();
+        List<Chunk> histories = new ArrayList<Chunk>();
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            List<Revision<LocalEntityId>> chain = getHistory(pins.get(i).revision);
+            tableChunks.add(encodeTable((LocalReferenceTable) chain.get(0).getEntityTable()));
+            histories.add(encodeHistory(branches.get(i).getName(), chain, i, positions));
+        }
+        Chunk merges = encodeMergeBases(bases, positions);
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(stream));
+        EntityOutput output = new EntityOutput(data);
+        data.write(MAGIC);
+        output.writeVarLong(VERSION);
+        output.writeVarLong(repository.getReferenceSequence());
+        output.writeVarLong(repository.getEntityIdSequence());
+        writeIndex(output, entityChunks);
+        output.writeVarLong(branches.size());
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            writeIndex(output, tableChunks.get(i));
+            output.writeVarLong(histories.get(i).body.length);
+        }
+        output.writeVarLong(merges.body.length);
+
+        for (Chunk chunk : entityChunks) {
+            data.write(chunk.body);
+        }
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            for (Chunk chunk : tableChunks.get(i)) {
+                data.write(chunk.body);
+            }
+            data.write(histories.get(i).body);
+        }
+        data.write(merges.body);
+        data.flush();
+    }
+
+    private static void writeIndex(EntityOutput output, List<Chunk> chunks) throws IOException {
+        assert output != null;
+        assert chunks != null;
+        output.writeVarLong(chunks.size());
+        for (Chunk chunk : chunks) {
+            output.writeVarLong(chunk.count);
+            output.writeVarLong(chunk.body.length);
+        }
+    }
+
+    private static List<Chunk> encodeEntities(EntityStore store) throws IOException {
+        assert store != null;
+        List<Chunk> results = new ArrayList<Chunk>();
+        ChunkBuilder builder = new ChunkBuilder();
+        long last = 0L;
+        for (long id = store.nextId(0L); id >= 0; id = store.nextId(id)) {
+            Entity entity = store.get(id);
+            if (entity == null) {
+                // 走査中に回収された
+                continue;
+            }
+            builder.output.writeVarLong(id - last);
+            builder.output.writeEntity(entity);
+            last = id;
+            if (++builder.count == ENTITY_CHUNK_SIZE) {
+                results.add(builder.build());
+                builder = new ChunkBuilder();
+                last = 0L;
+            }
+        }
+        if (builder.count > 0) {
+            results.add(builder.build());
+        }
+        return results;
+    }
+
+    private static List<Revision<LocalEntityId>> getHistory(Revision<LocalEntityId> head) {
+        assert head != null;
+        // 最新から追跡可能なもっとも古いリビジョンまでさかのぼる
+        List<Revision<LocalEntityId>> chain = new ArrayList<Revision<LocalEntityId>>();
+        Revision<LocalEntityId> current = head;
+        chain.add(current);
+        while (current.getParent() != null) {
+            current = current.getParent();
+            chain.add(current);
+        }
+        Collections.reverse(chain);
+        return chain;
+    }
+
+    private static List<Chunk> encodeTable(LocalReferenceTable table) throws IOException {
+        assert table != null;
+        long[] references = new long[table.size()];
+        int count = 0;
+        for (LocalReferenceTable.Cursor cursor = table.cursor(); cursor.next();) {
+            references[count++] = cursor.getKey();
+        }
+        assert count == references.length;
+        Arrays.sort(references);
+
+        // 参照の昇順に区切り、それぞれの先頭の参照は差ではなくそのまま書き出す
+        List<Chunk> results = new ArrayList<Chunk>();
+        ChunkBuilder builder = new ChunkBuilder();
+        long last = 0L;
+        for (long reference : references) {
+            builder.output.writeVarLong(reference - last);
+            builder.output.writeVarLong(table.getNumeric(reference));
+            last = reference;
+            if (++builder.count == TABLE_CHUNK_SIZE) {
+                results.add(builder.build());
+                builder = new ChunkBuilder();
+                last = 0L;
+            }
+        }
+        if (builder.count > 0) {
+            results.add(builder.build());
+        }
+        return results;
+    }
+
+    private static Chunk encodeHistory(
+            String name,
+            List<Revision<LocalEntityId>> chain,
+            int branch,
+            Map<Revision<LocalEntityId>, long[]> positions) throws IOException {
+        assert name != null;
+        assert chain != null;
+        assert positions != null;
+
+        // もっとも古いリビジョンの名前つき参照と、そこから最新までの差分を古い順に書き出す
+        ChunkBuilder builder = new ChunkBuilder();
+        EntityOutput output = builder.output;
+        output.writeName(name);
+        writeBindings(output, chain.get(0).getBindingMap());
+        output.writeVarLong(chain.size() - 1);
+        for (int i = 0, n = chain.size(); i < n; i++) {
+            Revision<LocalEntityId> revision = chain.get(i);
+            if (i > 0) {
+                writeDelta(output, revision.getDelta());
+            }
+            positions.put(revision, new long[] { branch, i });
+        }
+        builder.count = chain.size();
+        return builder.build();
+    }
+
+    private static Chunk encodeMergeBases(
+            List<Map<String, LocalBranch.MergeBase>> bases,
+            Map<Revision<LocalEntityId>, long[]> positions) throws IOException {
+        assert bases != null;
+        assert positions != null;
+        ChunkBuilder builder = new ChunkBuilder();
+        EntityOutput output = builder.output;
+        for (Map<String, LocalBranch.MergeBase> merged : bases) {
+            output.writeVarLong(merged.size());
+            for (Map.Entry<String, LocalBranch.MergeBase> entry : merged.entrySet()) {
+                output.writeName(entry.getKey());
+                writeRevisionReference(output, entry.getValue().theirs, positions);
+                writeRevisionReference(output, entry.getValue().ours, positions);
+            }
+            builder.count += merged.size();
+        }
+        return builder.build();
+    }
+
+    private static void writeRevisionReference(
+            EntityOutput output,
+            Revision<LocalEntityId> revision,
+            Map<Revision<LocalEntityId>, long[]> positions) throws IOException {
+        assert output != null;
+        assert revision != null;
+        assert positions != null;
+        long[] position = positions.get(revision);
+        if (position == null) {
+            // 履歴から切り離されたリビジョンは、内容をそのまま書き出す
+            output.writeVarLong(REVISION_FULL);
+            writeRevision(output, revision);
+        }
+        else {
+            output.writeVarLong(position[0] + 1);
+            output.writeVarLong(position[1]);
+        }
+    }
+
+    /**
+     * リビジョンの名前つき参照とエンティティの識別子表を、履歴を含めずに書き出す。
+     * @param output 書き出し先
+     * @param revision 対象のリビジョン
+     * @throws IOException 書き出しに失敗した場合
+     */
+    static void writeRevision(EntityOutput output, Revision<LocalEntityId> revision) throws IOException {
+        assert output != null;
+        assert revision != null;
+        writeBindings(output, revision.getBindingMap());
+
+        // 参照の昇順に並べて、直前の参照との差を書き出す
+        LocalReferenceTable table = (LocalReferenceTable) revision.getEntityTable();
+        long[] references = new long[table.size()];
+        int count = 0;
+        for (LocalReferenceTable.Cursor cursor = table.cursor(); cursor.next();) {
+            references[count++] = cursor.getKey();
+        }
+        assert count == references.length;
+        Arrays.sort(references);
+        output.writeVarLong(count);
+        long last = 0L;
+        for (long reference : references) {
+            output.writeVarLong(reference - last);
+            output.writeVarLong(table.getNumeric(reference));
+            last = reference;
+        }
+    }
+
+    private static void writeBindings(EntityOutput output, Map<String, Entity.Reference> bindings) throws IOException {
+        assert output != null;
+        assert bindings != null;
+        Map<String, Entity.Reference> sorted = new TreeMap<String, Entity.Reference>(bindings);
+        output.writeVarLong(sorted.size());
+        for (Map.Entry<String, Entity.Reference> entry : sorted.entrySet()) {
+            output.writeName(entry.getKey());
+            output.writeReference(entry.getValue());
+        }
+    }
+
+    /**
+     * リビジョン間の差分を書き出す。
+     * @param output 書き出し先
+     * @param delta 対象の差分
+     * @throws IOException 書き出しに失敗した場合
+     */
+    static void writeDelta(EntityOutput output, Revision.Delta<LocalEntityId> delta) throws IOException {
+        assert output != null;
+        assert delta != null;
+        Map<String, Entity.Reference> bindings =
+            new TreeMap<String, Entity.Reference>(delta.getBindingMap());
+        output.writeVarLong(bindings.size());
+        for (Map.Entry<String, Entity.Reference> entry : bindings.entrySet()) {
+            output.writeName(entry.getKey());
+            output.writeReference(entry.getValue());
+        }
+
+        Map<Entity.Reference, LocalEntityId> entities =
+            new TreeMap<Entity.Reference, LocalEntityId>(delta.getEntityMap());
+        output.writeVarLong(entities.size());
+        long last = 0L;
+        List<Entity.Reference> partial = new ArrayList<Entity.Reference>();
+        List<Entity.Reference> added = new ArrayList<Entity.Reference>();
+        for (Map.Entry<Entity.Reference, LocalEntityId> entry : entities.entrySet()) {
+            Entity.Reference reference = entry.getKey();
+            LocalEntityId id = entry.getValue();
+            output.writeVarLong(reference.value - last);
+            output.writeVarLong(id == null ? LocalReferenceTable.NOT_FOUND : id.getNumeric());
+            last = reference.value;
+            if (delta.getChangedProperties(reference) != null) {
+                partial.add(reference);
+                if (delta.getAddedProperties(reference).isEmpty() == false) {
+                    added.add(reference);
+                }
+            }
+        }
+
+        output.writeVarLong(partial.size());
+        for (Entity.Reference reference : partial) {
+            output.writeVarLong(reference.value);
+            Set<String> names = delta.getChangedProperties(reference);
+            output.writeVarLong(names.size());
+            for (String name : names) {
+                output.writeName(name);
+            }
+        }
+        output.writeVarLong(added.size());
+        for (Entity.Reference reference : added) {
+            output.writeVarLong(reference.value);
+            Map<String, Integer> additions = delta.getAddedProperties(reference);
+            output.writeVarLong(additions.size());
+            for (Map.Entry<String, Integer> entry : additions.entrySet()) {
+                output.writeName(entry.getKey());
+                output.writeVarInt(entry.getValue().intValue());
+            }
+        }
+    }
+
+    /**
+     * {@link #write(LocalRepository, OutputStream)}で書き出した内容から、リポジトリを復元する。
+     * @param stream 読み出し元のストリーム、この呼び出しの後も閉じられない
+     * @return 復元したリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     */
+    static LocalRepository read(InputStream stream) throws IOException {
+        assert stream != null;
+        return read(stream, new LocalEntityStore());
+    }
+
+    /**
+     * 書き出した内容から、指定のエンティティの格納先を利用するリポジトリを、
+     * 利用可能なプロセッサの個数だけ並行して復元する。
+     * @param stream 読み出し元のストリーム、この呼び出しの後も閉じられない
+     * @param store 復元したリポジトリが利用するエンティティの格納先、読み出したエンティティもここに格納する
+     * @return 復元したリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     */
+    static LocalRepository read(InputStream stream, EntityStore store) throws IOException {
+        assert stream != null;
+        assert store != null;
+        return read(stream, store, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 書き出した内容から、指定のエンティティの格納先を利用するリポジトリを復元する。
+     * @param stream 読み出し元のストリーム、この呼び出しの後も閉じられない
+     * @param store 復元したリポジトリが利用するエンティティの格納先、読み出したエンティティもここに格納する
+     * @param parallelism チャンクを並行して復号するスレッドの個数
+     * @return 復元したリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     */
+    static LocalRepository read(InputStream stream, EntityStore store, int parallelism) throws IOException {
+        assert stream != null;
+        assert store != null;
+        assert parallelism > 0;
+        DataInputStream data = new DataInputStream(new BufferedInputStream(stream));
+        EntityInput input = new EntityInput(data);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (Arrays.equals(magic, MAGIC) == false) {
+            throw new IOException("Not a repository file");
+        }
+        long version = input.readVarLong();
+        if (version != VERSION && version != SEQUENTIAL_VERSION) {
+            throw new IOException(MessageFormat.format(
+                    "Unsupported repository format version: {0} (expected {1})",
+                    version,
+                    VERSION));
+        }
+        long referenceSequence = input.readVarLong();
+        long entityIdSequence = input.readVarLong();
+        if (version == VERSION) {
+            return RepositoryLoader.load(data, input, store, referenceSequence, entityIdSequence, parallelism);
+        }
+
+        // チャンクに分割する前の形式は、先頭から順に読み出す
+        readEntities(input, store);
+        LocalRepository repository = new LocalRepository(store, referenceSequence, entityIdSequence);
+
+        int branchCount = input.readSize();
+        List<LocalBranch> branches = new ArrayList<LocalBranch>();
+        List<List<Revision<LocalEntityId>>> histories = new ArrayList<List<Revision<LocalEntityId>>>();
+        for (int i = 0; i < branchCount; i++) {
+            String name = input.readName();
+            List<Revision<LocalEntityId>> history = readHistory(input);
+            histories.add(history);
+            branches.add(repository.addBranch(name, history.get(history.size() - 1)));
+        }
+        for (LocalBranch branch : branches) {
+            int count = input.readSize();
+            for (int i = 0; i < count; i++) {
+                String other = input.readName();
+                Revision<LocalEntityId> theirs = readRevisionReference(input, histories);
+                Revision<LocalEntityId> ours = readRevisionReference(input, histories);
+                branch.setMergeBase(other, theirs, ours);
+            }
+        }
+        return repository;
+    }
+
+    private static void readEntities(EntityInput input, EntityStore store) throws IOException {
+        assert input != null;
+        assert store != null;
+        long id = 0L;
+        while (true) {
+            long gap = input.readVarLong();
+            if (gap == 0) {
+                break;
+            }
+            id += gap;
+            store.put(id, input.readEntity());
+        }
+    }
+
+    private static List<Revision<LocalEntityId>> readHistory(EntityInput input) throws IOException {
+        assert input != null;
+        Revision<LocalEntityId> current = readRevision(input);
+        int count = input.readSize();
+        List<Revision<LocalEntityId>> history = new ArrayList<Revision<LocalEntityId>>(count + 1);
+        history.add(current);
+        for (int i = 0; i < count; i++) {
+            current = current.apply(readDelta(input));
+            history.add(current);
+        }
+        return history;
+    }
+
+    static Revision<LocalEntityId> readRevisionReference(
+            EntityInput input,
+            List<List<Revision<LocalEntityId>>> histories) throws IOException {
+        assert input != null;
+        assert histories != null;
+        long tag = input.readVarLong();
+        if (tag == REVISION_FULL) {
+            return readRevision(input);
+        }
+        int position = input.readSize();
+        if (tag > histories.size() || position >= histories.get((int) (tag - 1)).size()) {
+            throw new IOException(MessageFormat.format(
+                    "Unknown revision: branch={0}, position={1}",
+                    tag - 1,
+                    position));
+        }
+        return histories.get((int) (tag - 1)).get(position);
+    }
+
+    /**
+     * {@link #writeRevision(EntityOutput, Revision)}で書き出したリビジョンを読み出す。
+     * @param input 読み出し元
+     * @return 読み出したリビジョン、直前のリビジョンをもたない
+     * @throws IOException 読み出しに失敗した場合
+     */
+    static Revision<LocalEntityId> readRevision(EntityInput input) throws IOException {
+        assert input != null;
+        Map<String, Entity.Reference> bindings = readBindings(input);
+        int entityCount = input.readSize();
+        long[] references = new long[entityCount];
+        long[] ids = new long[entityCount];
+        long last = 0L;
+        for (int i = 0; i < entityCount; i++) {
+            last += input.readVarLong();
+            references[i] = last;
+            ids[i] = input.readVarLong();
+        }
+        return new Revision<LocalEntityId>(bindings, LocalReferenceTable.of(references, ids));
+    }
+
+    /**
+     * リビジョンの名前つき参照を読み出す。
+     * @param input 読み出し元
+     * @return 読み出した名前つき参照
+     * @throws IOException 読み出しに失敗した場合
+     */
+    static Map<String, Entity.Reference> readBindings(EntityInput input) throws IOException {
+        assert input != null;
+        int count = input.readSize();
+        Map<String, Entity.Reference> bindings = new HashMap<String, Entity.Reference>();
+        for (int i = 0; i < count; i++) {
+            String name = input.readName();
+            bindings.put(name, input.readReference());
+        }
+        return bindings;
+    }
+
+    /**
+     * {@link #writeDelta(EntityOutput, Revision.Delta)}で書き出した差分を読み出す。
+     * @param input 読み出し元
+     * @return 読み出した差分
+     * @throws IOException 読み出しに失敗した場合
+     */
+    static Revision.Delta<LocalEntityId> readDelta(EntityInput input) throws IOException {
+        assert input != null;
+        Map<String, Entity.Reference> bindings = readBindings(input);
+
+        int entityCount = input.readSize();
+        Map<Entity.Reference, LocalEntityId> entities = new HashMap<Entity.Reference, LocalEntityId>();
+        long last = 0L;
+        for (int i = 0; i < entityCount; i++) {
+            last += input.readVarLong();
+            long id = input.readVarLong();
+            entities.put(
+                    new Entity.Reference(last),
+                    id == LocalReferenceTable.NOT_FOUND ? null : new LocalEntityId(id));
+        }
+
+        int partialCount = input.readSize();
+        Map<Entity.Reference, Set<String>> properties = new HashMap<Entity.Reference, Set<String>>();
+        for (int i = 0; i < partialCount; i++) {
+            Entity.Reference reference = new Entity.Reference(input.readVarLong());
+            int count = input.readSize();
+            Set<String> names = new HashSet<String>();
+            for (int j = 0; j < count; j++) {
+                names.add(input.readName());
+            }
+            properties.put(reference, names);
+        }
+        int addedCount = input.readSize();
+        Map<Entity.Reference, Map<String, Integer>> additions = new HashMap<Entity.Reference, Map<String, Integer>>();
+        for (int i = 0; i < addedCount; i++) {
+            Entity.Reference reference = new Entity.Reference(input.readVarLong());
+            int count = input.readSize();
+            Map<String, Integer> added = new HashMap<String, Integer>();
+            for (int j = 0; j < count; j++) {
+                String name = input.readName();
+                added.put(name, input.readVarInt());
+            }
+            additions.put(reference, added);
+        }
+        return new Revision.Delta<LocalEntityId>(bindings, entities, properties, additions);
+    }
+
+    /**
+     * 独立して復号できる、符号化済みのチャンク。
+     */
+    static final class Chunk {
+
+        /**
+         * チャンクに含まれる要素の個数。
+         */
+        final int count;
+
+        /**
+         * 符号化した内容。
+         */
+        final byte[] body;
+
+        Chunk(int count, byte[] body) {
+            assert count >= 0;
+            assert body != null;
+            this.count = count;
+            this.body = body;
+        }
+    }
+
+    /**
+     * チャンクごとに名前や形状の表をもつ、チャンクの書き出し先。
+     */
+    private static final class ChunkBuilder {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        final EntityOutput output = new EntityOutput(new DataOutputStream(bytes));
+
+        int count;
+
+        Chunk build() {
+            return new Chunk(count, bytes.toByteArray());
+        }
+    }
+}
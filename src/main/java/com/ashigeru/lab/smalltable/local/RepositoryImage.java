@@ -0,0 +1,307 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.EntityInput;
+import com.ashigeru.lab.smalltable.EntityOutput;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * エンティティを永続化した格納先とともに利用する、リポジトリのリビジョンのイメージ。
+ * <p>
+ * イメージは以下の並びからなる。
+ * </p>
+ * <ol>
+ * <li> 書き出したリビジョンごとの、参照の昇順に並べた参照と識別子の組の配列 </li>
+ * <li> フッタ ({@link EntityOutput}の形式で、連番、リビジョンごとの名前つき参照と組の配列の位置、
+ *      ブランチごとの最新のリビジョンと取り込みの基点) </li>
+ * <li> フッタの位置 (8バイト) </li>
+ * <li> 末尾の識別子 </li>
+ * </ol>
+ * <p>
+ * 読み出す際はフッタのみを復号し、組の配列はメモリにマップして{@link LocalReferenceTable}の基底とする。
+ * そのため、イメージを開くまでの時間はエンティティの個数によらず、
+ * エンティティは{@link LocalSession}から参照された時点で格納先から読み出される。
+ * リビジョンの履歴は書き出さず、それぞれのブランチの最新のリビジョンと取り込みの基点のみを書き出す。
+ * </p>
+ * @author ashigeru
+ * @see MappedReferenceIndex
+ */
+final class RepositoryImage {
+
+    /**
+     * イメージの末尾の識別子。
+     */
+    private static final byte[] MAGIC = { 'S', 'T', 'I', 'M' };
+
+    /**
+     * 形式のバージョン。
+     */
+    static final int VERSION = 1;
+
+    /**
+     * イメージの末尾の大きさ (フッタの位置と識別子)。
+     */
+    private static final int TRAILER_SIZE = 8 + MAGIC.length;
+
+    private RepositoryImage() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 指定のリポジトリのイメージを、固定したそれぞれのブランチのリビジョンまで書き出す。
+     * <p>
+     * エンティティは書き出さないため、格納先は別途記憶装置に書き出しておく必要がある。
+     * </p>
+     * @param repository 対象のリポジトリ
+     * @param branches 書き出すブランチの一覧
+     * @param pins ブランチと同じ順序の、書き出すリビジョンの固定の一覧
+     * @param bases ブランチと同じ順序の、名前の昇順に並んだ取り込みの基点の一覧
+     * @param output 書き出し先
+     * @param offset 書き出し先のファイル上での、イメージの先頭の位置
+     * @throws IOException 書き出しに失敗した場合
+     */
+    static void write(
+            LocalRepository repository,
+            List<LocalBranch> branches,
+            List<RevisionCollector.Pin> pins,
+            List<Map<String, LocalBranch.MergeBase>> bases,
+            DataOutputStream output,
+            long offset) throws IOException {
+        assert repository != null;
+        assert branches != null;
+        assert pins != null;
+        assert bases != null;
+        assert branches.size() == pins.size();
+        assert branches.size() == bases.size();
+        assert output != null;
+        assert offset >= 0;
+
+        // 最新のリビジョンと取り込みの基点に、それぞれ番号を振る
+        Map<Revision<LocalEntityId>, Integer> indices = new IdentityHashMap<Revision<LocalEntityId>, Integer>();
+        List<Revision<LocalEntityId>> revisions = new ArrayList<Revision<LocalEntityId>>();
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            register(pins.get(i).revision, indices, revisions);
+            for (LocalBranch.MergeBase base : bases.get(i).values()) {
+                register(base.theirs, indices, revisions);
+                register(base.ours, indices, revisions);
+            }
+        }
+
+        long position = offset;
+        long[] tables = new long[revisions.size()];
+        int[] counts = new int[revisions.size()];
+        for (int i = 0, n = revisions.size(); i < n; i++) {
+            tables[i] = position;
+            counts[i] = writeTable(output, (LocalReferenceTable) revisions.get(i).getEntityTable());
+            position += (long) counts[i] * MappedReferenceIndex.ENTRY_SIZE;
+        }
+
+        long footer = position;
+        EntityOutput encoder = new EntityOutput(output);
+        encoder.writeVarLong(VERSION);
+        encoder.writeVarLong(repository.getReferenceSequence());
+        encoder.writeVarLong(repository.getEntityIdSequence());
+        encoder.writeVarLong(revisions.size());
+        for (int i = 0, n = revisions.size(); i < n; i++) {
+            Map<String, Entity.Reference> bindings =
+                new TreeMap<String, Entity.Reference>(revisions.get(i).getBindingMap());
+            encoder.writeVarLong(bindings.size());
+            for (Map.Entry<String, Entity.Reference> entry : bindings.entrySet()) {
+                encoder.writeName(entry.getKey());
+                encoder.writeReference(entry.getValue());
+            }
+            encoder.writeVarLong(tables[i]);
+            encoder.writeVarLong(counts[i]);
+        }
+        encoder.writeVarLong(branches.size());
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            encoder.writeName(branches.get(i).getName());
+            encoder.writeVarLong(indices.get(pins.get(i).revision));
+            encoder.writeVarLong(bases.get(i).size());
+            for (Map.Entry<String, LocalBranch.MergeBase> entry : bases.get(i).entrySet()) {
+                encoder.writeName(entry.getKey());
+                encoder.writeVarLong(indices.get(entry.getValue().theirs));
+                encoder.writeVarLong(indices.get(entry.getValue().ours));
+            }
+        }
+        output.writeLong(footer);
+        output.write(MAGIC);
+    }
+
+    private static void register(
+            Revision<LocalEntityId> revision,
+            Map<Revision<LocalEntityId>, Integer> indices,
+            List<Revision<LocalEntityId>> revisions) {
+        assert revision != null;
+        assert indices != null;
+        assert revisions != null;
+        if (indices.containsKey(revision) == false) {
+            indices.put(revision, revisions.size());
+            revisions.add(revision);
+        }
+    }
+
+    private static int writeTable(DataOutputStream output, LocalReferenceTable table) throws IOException {
+        assert output != null;
+        assert table != null;
+        long[] references = new long[table.size()];
+        int count = 0;
+        for (LocalReferenceTable.Cursor cursor = table.cursor(); cursor.next();) {
+            references[count++] = cursor.getKey();
+        }
+        assert count == references.length;
+        Arrays.sort(references);
+        for (long reference : references) {
+            output.writeLong(reference);
+            output.writeLong(table.getNumeric(reference));
+        }
+        return count;
+    }
+
+    /**
+     * 指定のファイルの末尾に書き出したイメージから、指定の格納先を利用するリポジトリを開く。
+     * <p>
+     * 参照と識別子の組の配列は読み出さずにマップするため、この呼び出しの時間はエンティティの個数によらない。
+     * </p>
+     * @param file 対象のファイル
+     * @param store 開いたリポジトリが利用するエンティティの格納先
+     * @return 開いたリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     */
+    static LocalRepository read(File file, EntityStore store) throws IOException {
+        assert file != null;
+        assert store != null;
+        RandomAccessFile source = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            // マップした領域は、ファイルを閉じた後も有効
+            FileChannel channel = source.getChannel();
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw new IOException(MessageFormat.format(
+                        "Not a repository image: {0}",
+                        file));
+            }
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            long footer = trailer.getLong();
+            byte[] magic = new byte[MAGIC.length];
+            trailer.get(magic);
+            if (Arrays.equals(magic, MAGIC) == false || footer < 0 || footer > size - TRAILER_SIZE) {
+                throw new IOException(MessageFormat.format(
+                        "Not a repository image: {0}",
+                        file));
+            }
+            EntityInput input = new EntityInput(
+                    channel.map(FileChannel.MapMode.READ_ONLY, footer, size - TRAILER_SIZE - footer));
+            long version = input.readVarLong();
+            if (version != VERSION) {
+                throw new IOException(MessageFormat.format(
+                        "Unsupported repository image version: {0} (expected {1})",
+                        version,
+                        VERSION));
+            }
+            long referenceSequence = input.readVarLong();
+            long entityIdSequence = input.readVarLong();
+            LocalRepository repository = new LocalRepository(store, referenceSequence, entityIdSequence);
+
+            int revisionCount = input.readSize();
+            List<Revision<LocalEntityId>> revisions = new ArrayList<Revision<LocalEntityId>>(revisionCount);
+            for (int i = 0; i < revisionCount; i++) {
+                int bindingCount = input.readSize();
+                Map<String, Entity.Reference> bindings = new HashMap<String, Entity.Reference>();
+                for (int j = 0; j < bindingCount; j++) {
+                    String name = input.readName();
+                    bindings.put(name, input.readReference());
+                }
+                long offset = input.readVarLong();
+                int count = input.readSize();
+                revisions.add(new Revision<LocalEntityId>(bindings, mapTable(channel, offset, count, footer)));
+            }
+
+            int branchCount = input.readSize();
+            for (int i = 0; i < branchCount; i++) {
+                String name = input.readName();
+                LocalBranch branch = repository.addBranch(name, getRevision(input, revisions));
+                int baseCount = input.readSize();
+                for (int j = 0; j < baseCount; j++) {
+                    String other = input.readName();
+                    Revision<LocalEntityId> theirs = getRevision(input, revisions);
+                    Revision<LocalEntityId> ours = getRevision(input, revisions);
+                    branch.setMergeBase(other, theirs, ours);
+                }
+            }
+            return repository;
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    private static LocalReferenceTable mapTable(
+            FileChannel channel,
+            long offset,
+            int count,
+            long limit) throws IOException {
+        assert channel != null;
+        if (count == 0) {
+            return LocalReferenceTable.empty();
+        }
+        if (count > Integer.MAX_VALUE / MappedReferenceIndex.ENTRY_SIZE) {
+            throw new IOException(MessageFormat.format(
+                    "Reference table is too large: {0}",
+                    count));
+        }
+        long length = (long) count * MappedReferenceIndex.ENTRY_SIZE;
+        if (offset < 0 || offset > limit - length) {
+            throw new IOException(MessageFormat.format(
+                    "Invalid reference table: offset={0}, count={1}",
+                    offset,
+                    count));
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return LocalReferenceTable.of(new MappedReferenceIndex(buffer));
+    }
+
+    private static Revision<LocalEntityId> getRevision(
+            EntityInput input,
+            List<Revision<LocalEntityId>> revisions) throws IOException {
+        assert input != null;
+        assert revisions != null;
+        int index = input.readSize();
+        if (index >= revisions.size()) {
+            throw new IOException(MessageFormat.format(
+                    "Unknown revision: {0}",
+                    index));
+        }
+        return revisions.get(index);
+    }
+}
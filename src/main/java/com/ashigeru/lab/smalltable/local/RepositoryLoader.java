@@ -0,0 +1,347 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.EntityInput;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link RepositoryCodec}の形式で書き出したリポジトリを、チャンクごとに並行して復号する。
+ * <p>
+ * 呼び出し元のスレッドは索引にしたがってチャンクを順に読み出し、
+ * 読み出したチャンクから順にスレッドプールへ復号を依頼する。
+ * エンティティの範囲と識別子表の範囲はそれぞれ独立に復号し、
+ * ブランチの履歴はそのブランチの識別子表がすべて復号された後に、ブランチごとに並行して復元する。
+ * </p>
+ * <p>
+ * スレッドプールのタスクは他のタスクの完了を待たず、待ち合わせはすべて呼び出し元のスレッドで行う。
+ * </p>
+ * @author ashigeru
+ * @see LoadReport
+ */
+final class RepositoryLoader {
+
+    private RepositoryLoader() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 索引の直前まで読み出したストリームから、残りの内容を並行して復元する。
+     * @param data 読み出し元のストリーム
+     * @param index {@code data}から索引を読み出すための入力
+     * @param store 復元したリポジトリが利用するエンティティの格納先、読み出したエンティティもここに格納する
+     * @param referenceSequence 最後に払い出した参照の番号
+     * @param entityIdSequence 最後に払い出した識別子の番号
+     * @param parallelism チャンクを並行して復号するスレッドの個数
+     * @return 復元したリポジトリ
+     * @throws IOException 読み出しに失敗した場合、または形式が正しくない場合
+     */
+    static LocalRepository load(
+            DataInputStream data,
+            EntityInput index,
+            EntityStore store,
+            long referenceSequence,
+            long entityIdSequence,
+            int parallelism) throws IOException {
+        assert data != null;
+        assert index != null;
+        assert store != null;
+        assert parallelism > 0;
+        long start = System.nanoTime();
+
+        int[][] entityIndex = readIndex(index);
+        int branchCount = index.readSize();
+        List<int[][]> tableIndices = new ArrayList<int[][]>();
+        int[] historySizes = new int[branchCount];
+        for (int i = 0; i < branchCount; i++) {
+            tableIndices.add(readIndex(index));
+            historySizes[i] = index.readSize();
+        }
+        int mergeSize = index.readSize();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smalltable-loader"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // 読み出したチャンクから順に復号を依頼する
+            List<Future<?>> entities = new ArrayList<Future<?>>();
+            for (int i = 0; i < entityIndex[0].length; i++) {
+                byte[] body = readBody(data, entityIndex[1][i]);
+                entities.add(executor.submit(new EntityChunk(entityIndex[0][i], body, store)));
+            }
+            List<List<Future<long[][]>>> tables = new ArrayList<List<Future<long[][]>>>();
+            List<byte[]> histories = new ArrayList<byte[]>();
+            int tableChunkCount = 0;
+            for (int i = 0; i < branchCount; i++) {
+                List<Future<long[][]>> chunks = new ArrayList<Future<long[][]>>();
+                int[][] tableIndex = tableIndices.get(i);
+                for (int j = 0; j < tableIndex[0].length; j++) {
+                    byte[] body = readBody(data, tableIndex[1][j]);
+                    chunks.add(executor.submit(new TableChunk(tableIndex[0][j], body)));
+                }
+                tables.add(chunks);
+                tableChunkCount += chunks.size();
+                histories.add(readBody(data, historySizes[i]));
+            }
+            byte[] merges = readBody(data, mergeSize);
+            long readFinished = System.nanoTime();
+
+            // 識別子表がそろったブランチから、履歴の復元を依頼する
+            List<Future<History>> restored = new ArrayList<Future<History>>();
+            for (int i = 0; i < branchCount; i++) {
+                List<long[][]> parts = new ArrayList<long[][]>();
+                for (Future<long[][]> chunk : tables.get(i)) {
+                    parts.add(join(chunk));
+                }
+                restored.add(executor.submit(new HistoryChunk(histories.get(i), parts)));
+            }
+            for (Future<?> chunk : entities) {
+                join(chunk);
+            }
+            long entitiesFinished = System.nanoTime();
+
+            LocalRepository repository = new LocalRepository(store, referenceSequence, entityIdSequence);
+            List<LocalBranch> branches = new ArrayList<LocalBranch>();
+            List<List<Revision<LocalEntityId>>> chains = new ArrayList<List<Revision<LocalEntityId>>>();
+            for (Future<History> future : restored) {
+                History history = join(future);
+                chains.add(history.chain);
+                branches.add(repository.addBranch(history.name, history.chain.get(history.chain.size() - 1)));
+            }
+            long revisionsFinished = System.nanoTime();
+
+            EntityInput input = new EntityInput(ByteBuffer.wrap(merges));
+            for (LocalBranch branch : branches) {
+                int count = input.readSize();
+                for (int i = 0; i < count; i++) {
+                    String other = input.readName();
+                    Revision<LocalEntityId> theirs = RepositoryCodec.readRevisionReference(input, chains);
+                    Revision<LocalEntityId> ours = RepositoryCodec.readRevisionReference(input, chains);
+                    branch.setMergeBase(other, theirs, ours);
+                }
+            }
+            repository.setLoadReport(new LoadReport(
+                    parallelism,
+                    entityIndex[0].length,
+                    tableChunkCount + branchCount,
+                    readFinished - start,
+                    entitiesFinished - start,
+                    revisionsFinished - start,
+                    System.nanoTime() - start));
+            return repository;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * チャンクの索引を読み出す。
+     * @param index 読み出し元
+     * @return チャンクごとの要素の個数と、チャンクごとの大きさの組
+     * @throws IOException 読み出しに失敗した場合
+     */
+    private static int[][] readIndex(EntityInput index) throws IOException {
+        assert index != null;
+        int count = index.readSize();
+        int[] counts = new int[count];
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            counts[i] = index.readSize();
+            sizes[i] = index.readSize();
+        }
+        return new int[][] { counts, sizes };
+    }
+
+    private static byte[] readBody(DataInputStream data, int size) throws IOException {
+        assert data != null;
+        assert size >= 0;
+        byte[] body = new byte[size];
+        data.readFully(body);
+        return body;
+    }
+
+    private static <T> T join(Future<T> future) throws IOException {
+        assert future != null;
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading repository");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AssertionError(cause);
+        }
+    }
+
+    /**
+     * 識別子の範囲ごとのエンティティを復号して、格納先に格納する。
+     */
+    private static final class EntityChunk implements Callable<Void> {
+
+        private final int count;
+
+        private final byte[] body;
+
+        private final EntityStore store;
+
+        EntityChunk(int count, byte[] body, EntityStore store) {
+            assert count >= 0;
+            assert body != null;
+            assert store != null;
+            this.count = count;
+            this.body = body;
+            this.store = store;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            EntityInput input = new EntityInput(ByteBuffer.wrap(body));
+            long id = 0L;
+            for (int i = 0; i < count; i++) {
+                id += input.readVarLong();
+                store.put(id, input.readEntity());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 参照の範囲ごとの識別子表を、参照と識別子の配列に復号する。
+     */
+    private static final class TableChunk implements Callable<long[][]> {
+
+        private final int count;
+
+        private final byte[] body;
+
+        TableChunk(int count, byte[] body) {
+            assert count >= 0;
+            assert body != null;
+            this.count = count;
+            this.body = body;
+        }
+
+        @Override
+        public long[][] call() throws IOException {
+            EntityInput input = new EntityInput(ByteBuffer.wrap(body));
+            long[] references = new long[count];
+            long[] ids = new long[count];
+            long last = 0L;
+            for (int i = 0; i < count; i++) {
+                last += input.readVarLong();
+                references[i] = last;
+                ids[i] = input.readVarLong();
+            }
+            return new long[][] { references, ids };
+        }
+    }
+
+    /**
+     * ブランチの履歴を、もっとも古いリビジョンから順に差分を適用して復元する。
+     */
+    private static final class HistoryChunk implements Callable<History> {
+
+        private final byte[] body;
+
+        private final List<long[][]> tables;
+
+        HistoryChunk(byte[] body, List<long[][]> tables) {
+            assert body != null;
+            assert tables != null;
+            this.body = body;
+            this.tables = tables;
+        }
+
+        @Override
+        public History call() throws IOException {
+            int size = 0;
+            for (long[][] table : tables) {
+                size += table[0].length;
+            }
+            long[] references = new long[size];
+            long[] ids = new long[size];
+            int offset = 0;
+            for (long[][] table : tables) {
+                System.arraycopy(table[0], 0, references, offset, table[0].length);
+                System.arraycopy(table[1], 0, ids, offset, table[1].length);
+                offset += table[0].length;
+            }
+
+            EntityInput input = new EntityInput(ByteBuffer.wrap(body));
+            String name = input.readName();
+            Map<String, Entity.Reference> bindings = RepositoryCodec.readBindings(input);
+            Revision<LocalEntityId> current = new Revision<LocalEntityId>(
+                    bindings,
+                    LocalReferenceTable.of(references, ids));
+            int count = input.readSize();
+            List<Revision<LocalEntityId>> chain = new ArrayList<Revision<LocalEntityId>>(count + 1);
+            chain.add(current);
+            for (int i = 0; i < count; i++) {
+                current = current.apply(RepositoryCodec.readDelta(input));
+                chain.add(current);
+            }
+            return new History(name, chain);
+        }
+    }
+
+    /**
+     * 復元したブランチの履歴。
+     */
+    private static final class History {
+
+        final String name;
+
+        final List<Revision<LocalEntityId>> chain;
+
+        History(String name, List<Revision<LocalEntityId>> chain) {
+            assert name != null;
+            assert chain != null;
+            this.name = name;
+            this.chain = chain;
+        }
+    }
+}
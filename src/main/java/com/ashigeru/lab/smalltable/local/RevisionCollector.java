@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * 利用中のリビジョンを追跡し、もう参照されないエンティティの識別子を回収する。
+ * <p>
+ * セッションは開始リビジョンを{@link #pin(Object, Revision)}で固定する。
+ * 固定されたリビジョンと最新のリビジョンを「生存しているリビジョン」と呼び、
+ * もっとも古い生存しているリビジョンより前の履歴は切り離される。
+ * </p>
+ * <p>
+ * コミットによって別の識別子に置き換えられた識別子は、置き換えたリビジョンの世代とともに記録される。
+ * もっとも古い生存しているリビジョンの世代がその世代に達した時点で、その識別子はどの生存しているリビジョンからも参照されない。
+ * </p>
+ * <p>
+ * この追跡はブランチごとに行う。
+ * ブランチをまたいで同じ識別子が参照される場合があるため、回収する前に他のブランチで生存しているリビジョンも確認する必要がある。
+ * </p>
+ * @author ashigeru
+ */
+final class RevisionCollector {
+
+    /**
+     * 固定されたリビジョンの一覧。
+     */
+    private final Set<Pin> pins;
+
+    /**
+     * 所有者が破棄された固定を受け取るキュー。
+     */
+    private final ReferenceQueue<Object> abandoned;
+
+    /**
+     * 置き換えられた識別子の一覧。{@link #defer(Garbage)}で記録しなおしたものを除き、世代の昇順に並ぶ。
+     */
+    private final ConcurrentLinkedQueue<Garbage> garbage;
+
+    /**
+     * インスタンスを生成する。
+     */
+    RevisionCollector() {
+        this.pins = Collections.newSetFromMap(new ConcurrentHashMap<Pin, Boolean>());
+        this.abandoned = new ReferenceQueue<Object>();
+        this.garbage = new ConcurrentLinkedQueue<Garbage>();
+    }
+
+    /**
+     * 指定のリビジョンを、指定の所有者が利用中のリビジョンとして固定する。
+     * <p>
+     * 固定は{@link Pin#release()}を呼び出すか、所有者がガベージコレクションによって破棄された時点で解除される。
+     * </p>
+     * @param owner 固定の所有者
+     * @param revision 固定するリビジョン
+     * @return 固定を表すオブジェクト
+     */
+    Pin pin(Object owner, Revision<LocalEntityId> revision) {
+        assert owner != null;
+        assert revision != null;
+        Pin pin = new Pin(this, owner, revision, abandoned);
+        pins.add(pin);
+        return pin;
+    }
+
+    /**
+     * 指定のリビジョンによって置き換えられた識別子を記録する。
+     * <p>
+     * この呼び出しは、リビジョンが最新のリビジョンとして登録された順に行う必要がある。
+     * </p>
+     * @param revision 最新のリビジョンとして登録されたリビジョン
+     */
+    void committed(Revision<LocalEntityId> revision) {
+        assert revision != null;
+        Revision<LocalEntityId> parent = revision.getParent();
+        Revision.Delta<LocalEntityId> delta = revision.getDelta();
+        if (parent == null || delta == null) {
+            return;
+        }
+        long generation = revision.getGeneration();
+        for (Map.Entry<Entity.Reference, LocalEntityId> entry : delta.getEntityMap().entrySet()) {
+            LocalEntityId old = parent.getId(entry.getKey());
+            if (old != null && old.equals(entry.getValue()) == false) {
+                garbage.add(new Garbage(generation, entry.getKey(), old));
+            }
+        }
+    }
+
+    /**
+     * もっとも古い生存しているリビジョンを返し、それより前の履歴を切り離す。
+     * <p>
+     * 最新のリビジョンは、この呼び出しの前に取得しておく必要がある。
+     * </p>
+     * @param head 最新のリビジョン
+     * @return もっとも古い生存しているリビジョン
+     */
+    Revision<LocalEntityId> truncate(Revision<LocalEntityId> head) {
+        assert head != null;
+        expunge();
+        Revision<LocalEntityId> oldest = head;
+        for (Pin pin : pins) {
+            Revision<LocalEntityId> revision = pin.revision;
+            if (revision != null && revision.getGeneration() < oldest.getGeneration()) {
+                oldest = revision;
+            }
+        }
+        oldest.truncateHistory();
+        return oldest;
+    }
+
+    /**
+     * 生存しているリビジョンの一覧を返す。
+     * <p>
+     * 最新のリビジョンは、この呼び出しの前に取得しておく必要がある。
+     * </p>
+     * @param head 最新のリビジョン
+     * @return 重複を含まない、生存しているリビジョンの一覧
+     */
+    List<Revision<LocalEntityId>> getLiveRevisions(Revision<LocalEntityId> head) {
+        assert head != null;
+        expunge();
+        Map<Revision<LocalEntityId>, Boolean> results = new IdentityHashMap<Revision<LocalEntityId>, Boolean>();
+        results.put(head, Boolean.TRUE);
+        for (Pin pin : pins) {
+            Revision<LocalEntityId> revision = pin.revision;
+            if (revision != null) {
+                results.put(revision, Boolean.TRUE);
+            }
+        }
+        return new ArrayList<Revision<LocalEntityId>>(results.keySet());
+    }
+
+    /**
+     * 指定の世代以前に置き換えられた識別子を、記録から取り除いて返す。
+     * <p>
+     * 返される識別子は、この追跡の対象となるリビジョンのいずれからも参照されない。
+     * ただし、他のブランチのリビジョンからは参照されている場合がある。
+     * </p>
+     * @param generation もっとも古い生存しているリビジョンの世代
+     * @return 生存しているリビジョンから参照されない識別子と、それが割り当てられていた参照の一覧
+     */
+    List<Garbage> collect(long generation) {
+        List<Garbage> results = new ArrayList<Garbage>();
+        while (true) {
+            Garbage next = garbage.peek();
+            if (next == null || next.generation > generation) {
+                break;
+            }
+            garbage.poll();
+            results.add(next);
+        }
+        return results;
+    }
+
+    /**
+     * {@link #collect(long)}で取り出した識別子を、まだ回収できないものとして記録しなおす。
+     * <p>
+     * 記録しなおした識別子は、それより前に記録された識別子がすべて取り出された後に、改めて取り出される。
+     * </p>
+     * @param deferred 記録しなおす識別子
+     */
+    void defer(Garbage deferred) {
+        assert deferred != null;
+        garbage.add(deferred);
+    }
+
+    private void expunge() {
+        for (Reference<?> ref = abandoned.poll(); ref != null; ref = abandoned.poll()) {
+            pins.remove(ref);
+        }
+    }
+
+    /**
+     * リビジョンの固定。
+     * @author ashigeru
+     */
+    static final class Pin extends WeakReference<Object> {
+
+        private final RevisionCollector owner;
+
+        volatile Revision<LocalEntityId> revision;
+
+        Pin(RevisionCollector owner, Object referent, Revision<LocalEntityId> revision, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            assert owner != null;
+            assert revision != null;
+            this.owner = owner;
+            this.revision = revision;
+        }
+
+        /**
+         * 固定を解除する。
+         */
+        void release() {
+            revision = null;
+            owner.pins.remove(this);
+            clear();
+        }
+    }
+
+    /**
+     * 置き換えられた識別子。
+     * @author ashigeru
+     */
+    static final class Garbage {
+
+        final long generation;
+
+        final Entity.Reference reference;
+
+        final LocalEntityId id;
+
+        Garbage(long generation, Entity.Reference reference, LocalEntityId id) {
+            assert reference != null;
+            assert id != null;
+            this.generation = generation;
+            this.reference = reference;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * シーケンスから借り受けた、連続する番号の範囲。
+ * <p>
+ * 範囲内の番号は、借り受けたスレッドだけが同期を行わずに払い出す。
+ * 使い切らなかった範囲は{@link #release()}でシーケンスに返却するが、
+ * 他の範囲がすでに借り受けられている場合は返却せずに放棄する。
+ * 放棄した範囲の番号は二度と払い出されない。
+ * </p>
+ * @author ashigeru
+ */
+final class SequenceBlock {
+
+    private final AtomicLong sequence;
+
+    private final long limit;
+
+    private long next;
+
+    /**
+     * インスタンスを生成する。
+     * @param sequence 借り受け元のシーケンス
+     * @param first 範囲の最初の番号
+     * @param limit 範囲の最後の番号
+     */
+    SequenceBlock(AtomicLong sequence, long first, long limit) {
+        assert sequence != null;
+        assert first <= limit;
+        this.sequence = sequence;
+        this.next = first;
+        this.limit = limit;
+    }
+
+    /**
+     * この範囲にまだ払い出していない番号の個数を返す。
+     * @return 残りの番号の個数
+     */
+    long remaining() {
+        return limit - next + 1;
+    }
+
+    /**
+     * この範囲から次の番号を払い出す。
+     * @return 次の番号
+     * @throws NoSuchElementException 範囲内の番号をすべて払い出している場合
+     */
+    long next() {
+        if (next > limit) {
+            throw new NoSuchElementException();
+        }
+        return next++;
+    }
+
+    /**
+     * この範囲のうち、まだ払い出していない番号をシーケンスに返却する。
+     * <p>
+     * この範囲より後に別の範囲が借り受けられている場合、残りの番号は放棄される。
+     * 以降、この範囲から番号は払い出されない。
+     * </p>
+     */
+    void release() {
+        if (next <= limit) {
+            // この範囲が最後に借り受けられたものである場合に限り、シーケンスを巻き戻す
+            sequence.compareAndSet(limit, next - 1);
+            next = limit + 1;
+        }
+    }
+}
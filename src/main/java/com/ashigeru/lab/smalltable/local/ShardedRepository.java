@@ -0,0 +1,311 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.io.Serializable;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * 参照の範囲ごとに、独立した{@link LocalRepository}へ分割したリポジトリ。
+ * <p>
+ * それぞれの分割 (シャード) は独自の最新リビジョンとエンティティをもつ。
+ * 参照は番号の上位ビットによっていずれかのシャードに属し、名前つき参照は名前のハッシュ値によっていずれかのシャードに属する。
+ * </p>
+ * <p>
+ * ひとつのシャードのみを変更するセッションは、他のシャードと一切協調せずにコミットする。
+ * 複数のシャードを変更するセッションは、関係するシャードを番号の順に締め出してから二相コミットを行い、
+ * すべてのシャードに不可分に変更を登録する。
+ * ただし、セッションはシャードごとに最初に参照した時点のリビジョンから読み出し、
+ * 保存に成功するたびにすべてのシャードを最新のリビジョンに移すため、
+ * 複数のシャードをまたぐ読み出しが同一の時点の内容を返すことは保証しない。
+ * </p>
+ * <p>
+ * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ */
+public class ShardedRepository implements Serializable {
+
+    private static final long serialVersionUID = -3052394211530788405L;
+
+    /**
+     * 参照の番号のうち、シャードの番号を表す部分の開始ビット位置。
+     */
+    static final int SHARD_SHIFT = 48;
+
+    /**
+     * シャードの最大数。
+     */
+    public static final int MAX_SHARDS = 1 << (Long.SIZE - 1 - SHARD_SHIFT);
+
+    private final LocalRepository[] shards;
+
+    /**
+     * 次に作成するセッションが新しいオブジェクトを作成するシャードを決めるための番号。
+     */
+    private final AtomicInteger nextHome;
+
+    /**
+     * インスタンスを生成する。
+     * @param count シャードの個数
+     * @throws IllegalArgumentException シャードの個数が{@code 1}未満、または{@link #MAX_SHARDS}を超える場合
+     */
+    public ShardedRepository(int count) {
+        if (count <= 0 || count > MAX_SHARDS) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "count must be in [1, {0}]: {1}",
+                    MAX_SHARDS,
+                    count));
+        }
+        this.shards = new LocalRepository[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new LocalRepository(((long) i) << SHARD_SHIFT);
+        }
+        this.nextHome = new AtomicInteger();
+    }
+
+    /**
+     * シャードの個数を返す。
+     * @return シャードの個数
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 指定の番号のシャードを返す。
+     * <p>
+     * シャードの{@link LocalRepository#collectGarbage()}は他のシャードからの参照をたどらないため、
+     * 到達可能なエンティティを回収する場合は{@link #collectGarbage()}を利用すること。
+     * </p>
+     * @param index シャードの番号
+     * @return 対応するシャード
+     * @throws IndexOutOfBoundsException 番号が範囲外である場合
+     */
+    public LocalRepository getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * 指定の参照が属するシャードの番号を返す。
+     * @param reference 対象の参照
+     * @return 対応するシャードの番号
+     * @throws IllegalArgumentException 指定の参照がこのリポジトリのいずれのシャードにも属さない場合
+     */
+    public int getShardOf(Entity.Reference reference) {
+        if (reference == null) {
+            throw new IllegalArgumentException("reference is null"); //$NON-NLS-1$
+        }
+        long index = reference.value >>> SHARD_SHIFT;
+        if (index >= shards.length) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "{0} does not belong to any shard",
+                    reference));
+        }
+        return (int) index;
+    }
+
+    /**
+     * 指定の名前つき参照が属するシャードの番号を返す。
+     * @param name 対象の名前
+     * @return 対応するシャードの番号
+     */
+    public int getShardOf(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        return (name.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * 新しいセッションを作成して返す。
+     * <p>
+     * 作成したセッションが新しく作成するオブジェクトは、セッションごとに順に選ばれたシャードに属する。
+     * </p>
+     * @return 作成したセッション
+     */
+    public ShardedSession createSession() {
+        int home = (nextHome.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        return new ShardedSession(this, home);
+    }
+
+    /**
+     * 新しいオブジェクトを指定のシャードに作成する、新しいセッションを作成して返す。
+     * <p>
+     * 変更するオブジェクトや名前つき参照と同じシャードを指定すれば、そのセッションの保存はシャードをまたがない。
+     * </p>
+     * @param home 新しいオブジェクトを作成するシャードの番号
+     * @return 作成したセッション
+     * @throws IllegalArgumentException 番号が範囲外である場合
+     */
+    public ShardedSession createSession(int home) {
+        if (home < 0 || home >= shards.length) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "home must be in [0, {0}): {1}",
+                    shards.length,
+                    home));
+        }
+        return new ShardedSession(this, home);
+    }
+
+    /**
+     * すべてのシャードについて、同時に到着したコミットをまとめる際に最初のコミットが待機する時間を設定する。
+     * @param time 待機する時間、待機しない場合は{@code 0}
+     * @param unit 時間の単位
+     * @throws IllegalArgumentException 時間に負の値が指定された場合
+     * @see LocalRepository#setGroupCommitWindow(long, TimeUnit)
+     */
+    public void setGroupCommitWindow(long time, TimeUnit unit) {
+        for (LocalRepository shard : shards) {
+            shard.setGroupCommitWindow(time, unit);
+        }
+    }
+
+    /**
+     * すべてのシャードについて、同一の内容をもつ格納済みのエンティティを共有するかどうかを設定する。
+     * @param enabled 共有する場合は{@code true}、共有しない場合は{@code false}
+     * @see LocalRepository#setDeduplication(boolean)
+     */
+    public void setDeduplication(boolean enabled) {
+        for (LocalRepository shard : shards) {
+            shard.setDeduplication(enabled);
+        }
+    }
+
+    /**
+     * すべてのシャードについて、不要になったエンティティを回収する。
+     * @return 回収したエンティティの個数
+     * @see LocalRepository#compact()
+     */
+    public int compact() {
+        int count = 0;
+        for (LocalRepository shard : shards) {
+            count += shard.compact();
+        }
+        return count;
+    }
+
+    /**
+     * すべてのシャードの名前つき参照から到達できない参照を取り除き、エンティティを回収する。
+     * <p>
+     * 到達可能性はシャードをまたいで判定し、すべてのシャードについてマークを終えてからスイープする。
+     * ある参照のエンティティは、その参照が属するシャードの生存しているすべてのリビジョンから求める。
+     * </p>
+     * @return すべてのシャードに対する回収の結果の合計
+     * @see LocalRepository#collectGarbage()
+     */
+    public CollectionReport collectGarbage() {
+        // すべてのシャードの最新のリビジョンを、スイープを終えるまで固定しておく
+        List<Map<LocalBranch, RevisionCollector.Pin>> snapshots =
+            new ArrayList<Map<LocalBranch, RevisionCollector.Pin>>();
+        Set<Entity.Reference> marked = new HashSet<Entity.Reference>();
+        int swept = 0;
+        try {
+            List<List<Revision<LocalEntityId>>> lives = new ArrayList<List<Revision<LocalEntityId>>>();
+            for (LocalRepository shard : shards) {
+                Map<LocalBranch, RevisionCollector.Pin> snapshot = shard.pinHeads();
+                snapshots.add(snapshot);
+                lives.add(shard.getLiveRevisions(snapshot));
+            }
+
+            // マーク: すべてのシャードの名前つき参照から、シャードをまたいで参照をたどる
+            List<Entity.Reference> stack = new ArrayList<Entity.Reference>();
+            for (List<Revision<LocalEntityId>> revisions : lives) {
+                for (Revision<LocalEntityId> root : revisions) {
+                    stack.addAll(root.getBindingMap().values());
+                }
+            }
+            while (stack.isEmpty() == false) {
+                Entity.Reference reference = stack.remove(stack.size() - 1);
+                if (marked.add(reference) == false) {
+                    continue;
+                }
+                long index = reference.value >>> SHARD_SHIFT;
+                if (index >= shards.length) {
+                    continue;
+                }
+                LocalRepository owner = shards[(int) index];
+                for (Revision<LocalEntityId> revision : lives.get((int) index)) {
+                    LocalEntityId id = revision.getId(reference);
+                    if (id == null) {
+                        continue;
+                    }
+                    Entity entity = owner.getEntity(id.getNumeric());
+                    if (entity == null) {
+                        // 並行して利用されなくなったリビジョンのエンティティは回収済みの場合がある
+                        continue;
+                    }
+                    for (Object value : entity.getPropertyMap().values()) {
+                        if (value instanceof Entity.Reference) {
+                            stack.add((Entity.Reference) value);
+                        }
+                    }
+                }
+            }
+
+            // スイープ: すべてのシャードのマークを終えてから、それぞれのシャードで到達できない参照を取り除く
+            for (int i = 0; i < shards.length; i++) {
+                swept += shards[i].sweep(snapshots.get(i), marked);
+            }
+        }
+        finally {
+            for (Map<LocalBranch, RevisionCollector.Pin> snapshot : snapshots) {
+                LocalRepository.release(snapshot);
+            }
+        }
+
+        int reclaimedEntities = 0;
+        long reclaimedBytes = 0;
+        for (LocalRepository shard : shards) {
+            long[] reclaimed = shard.reclaim();
+            reclaimedEntities += (int) reclaimed[0];
+            reclaimedBytes += reclaimed[1];
+        }
+        return new CollectionReport(marked.size(), swept, reclaimedEntities, reclaimedBytes);
+    }
+
+    /**
+     * このリポジトリに対するこれまでのコミットの統計情報を返す。
+     * <p>
+     * シャードをまたぐコミットは、関係するシャードごとに数える。
+     * </p>
+     * @return すべてのシャードに対するコミットの統計情報の合計
+     */
+    public CommitStatistics getCommitStatistics() {
+        long commits = 0;
+        long conflicts = 0;
+        long revisions = 0;
+        long conflictCheckNanos = 0;
+        for (LocalRepository shard : shards) {
+            CommitStatistics statistics = shard.getCommitStatistics();
+            commits += statistics.getCommits();
+            conflicts += statistics.getConflicts();
+            revisions += statistics.getRevisions();
+            conflictCheckNanos += statistics.getConflictCheckNanos();
+        }
+        return new CommitStatistics(commits, conflicts, revisions, conflictCheckNanos);
+    }
+}
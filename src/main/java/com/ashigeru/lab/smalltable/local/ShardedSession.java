@@ -0,0 +1,271 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+import com.ashigeru.lab.smalltable.Revision;
+import com.ashigeru.lab.smalltable.Session;
+
+/**
+ * {@link ShardedRepository}での{@link Session}の実装。
+ * <p>
+ * シャードごとに{@link LocalSession}を必要になった時点で開始し、それぞれの参照や名前つき参照が属するシャードに操作を振り分ける。
+ * </p>
+ * <p>
+ * 特別な指定がない限り、このクラスのすべてのメソッドは{@code null}が渡された際に{@code IllegalArgumentException}をスローする。
+ * </p>
+ * @author ashigeru
+ */
+public class ShardedSession implements Session {
+
+    private ShardedRepository repository;
+
+    /**
+     * 新しいオブジェクトを作成するシャードの番号。
+     */
+    private int home;
+
+    /**
+     * シャードごとのセッション、まだ開始していない場合は{@code null}。
+     */
+    private LocalSession[] sessions;
+
+    /**
+     * 前回の保存以降に名前つき参照を変更したシャード。
+     */
+    private boolean[] bound;
+
+    /**
+     * インスタンスを生成する。
+     * @param repository このセッションを開始したリポジトリ
+     * @param home 新しいオブジェクトを作成するシャードの番号
+     */
+    ShardedSession(ShardedRepository repository, int home) {
+        assert repository != null;
+        assert 0 <= home && home < repository.getShardCount();
+        this.repository = repository;
+        this.home = home;
+        this.sessions = new LocalSession[repository.getShardCount()];
+        this.bound = new boolean[repository.getShardCount()];
+    }
+
+    @Override
+    public Entity.Reference allocateReference() {
+        return getSession(home).allocateReference();
+    }
+
+    @Override
+    public Entity resolve(Entity.Reference reference) {
+        if (reference == null) {
+            throw new IllegalArgumentException("reference is null"); //$NON-NLS-1$
+        }
+        return getSession(repository.getShardOf(reference)).resolve(reference);
+    }
+
+    @Override
+    public void bind(String name, Entity.Reference reference) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        int shard = repository.getShardOf(name);
+        getSession(shard).bind(name, reference);
+        bound[shard] = true;
+    }
+
+    @Override
+    public Entity.Reference getBound(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null"); //$NON-NLS-1$
+        }
+        return getSession(repository.getShardOf(name)).getBound(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 変更がひとつのシャードに収まる場合は、そのシャードにのみコミットする。
+     * 複数のシャードにまたがる場合は、すべてのシャードに不可分にコミットするか、いずれにもコミットしない。
+     * </p>
+     * <p>
+     * それぞれのシャードの読み出しは、そのシャードのセッションを開始した時点か、最後に保存した時点のリビジョンに対して行う。
+     * 保存に成功した場合は変更しなかったシャードのセッションも最新のリビジョンに移し、
+     * それらのシャードで変更されたエンティティへの参照も戻り値に含める。
+     * </p>
+     */
+    @Override
+    public Set<Entity.Reference> save(Collection<? extends Modification> modifications) {
+        if (modifications == null) {
+            throw new IllegalArgumentException("modifications is null"); //$NON-NLS-1$
+        }
+
+        // 変更をシャードごとに振り分ける (締め出す順序をそろえるため、シャードの番号順に並べる)
+        Map<Integer, List<Modification>> partitions = new TreeMap<Integer, List<Modification>>();
+        for (Modification modification : modifications) {
+            int shard = repository.getShardOf(modification.getEntity().getSelfReference());
+            getPartition(partitions, shard).add(modification);
+        }
+        for (int i = 0; i < bound.length; i++) {
+            if (bound[i]) {
+                getPartition(partitions, i);
+            }
+        }
+        Set<Entity.Reference> changed;
+        if (partitions.isEmpty()) {
+            changed = Collections.emptySet();
+        }
+        else if (partitions.size() == 1) {
+            Map.Entry<Integer, List<Modification>> partition = partitions.entrySet().iterator().next();
+            changed = getSession(partition.getKey()).save(partition.getValue());
+        }
+        else {
+            changed = saveAcrossShards(partitions);
+        }
+        for (int i = 0; i < bound.length; i++) {
+            bound[i] = false;
+        }
+
+        // 変更しなかったシャードも最新に移し、開始した時点の内容を読み続けないようにする
+        Set<Entity.Reference> results = null;
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == null || partitions.containsKey(i)) {
+                continue;
+            }
+            Set<Entity.Reference> refreshed = sessions[i].refresh();
+            if (refreshed.isEmpty() == false) {
+                if (results == null) {
+                    results = new HashSet<Entity.Reference>(changed);
+                }
+                results.addAll(refreshed);
+            }
+        }
+        return results == null ? changed : Collections.unmodifiableSet(results);
+    }
+
+    private List<Modification> getPartition(Map<Integer, List<Modification>> partitions, int shard) {
+        assert partitions != null;
+        List<Modification> partition = partitions.get(shard);
+        if (partition == null) {
+            partition = new ArrayList<Modification>();
+            partitions.put(shard, partition);
+        }
+        return partition;
+    }
+
+    private Set<Entity.Reference> saveAcrossShards(Map<Integer, List<Modification>> partitions) {
+        assert partitions != null;
+        List<Integer> shards = new ArrayList<Integer>();
+        List<LocalSession> participants = new ArrayList<LocalSession>();
+        List<Revision.Delta<LocalEntityId>> deltas = new ArrayList<Revision.Delta<LocalEntityId>>();
+        List<GroupCommitter.Prepared> prepared = new ArrayList<GroupCommitter.Prepared>();
+        List<Revision<LocalEntityId>> results = null;
+        try {
+            // シャードごとにエンティティを登録して、変更差分を作成する
+            for (Map.Entry<Integer, List<Modification>> partition : partitions.entrySet()) {
+                LocalSession session = getSession(partition.getKey());
+                shards.add(partition.getKey());
+                participants.add(session);
+                deltas.add(session.stage(partition.getValue()));
+            }
+
+            // 第一相: 関係するすべてのシャードを番号順に締め出して、それぞれの変更を検査する
+            List<GroupCommitter> committers = new ArrayList<GroupCommitter>();
+            try {
+                for (int i = 0, n = participants.size(); i < n; i++) {
+                    GroupCommitter committer = repository.getShard(shards.get(i))
+                        .getCommitter(participants.get(i).getBranch());
+                    committer.lock();
+                    committers.add(committer);
+                }
+                for (int i = 0, n = participants.size(); i < n; i++) {
+                    GroupCommitter.Prepared p = committers.get(i).prepare(participants.get(i).getStart(), deltas.get(i));
+                    if (p == null) {
+                        break;
+                    }
+                    prepared.add(p);
+                }
+
+                // 第二相: すべての検査に成功した場合のみ、すべてのシャードに登録する
+                // (締め出している間の登録はログへの追記に失敗した場合のみ失敗するが、
+                // シャードはログをもたないため、一部のシャードのみに登録されることはない)
+                if (prepared.size() == participants.size()) {
+                    List<Revision<LocalEntityId>> published = new ArrayList<Revision<LocalEntityId>>();
+                    for (int i = 0, n = prepared.size(); i < n; i++) {
+                        published.add(committers.get(i).commitPrepared(prepared.get(i)));
+                    }
+                    results = published;
+                }
+            }
+            finally {
+                // 登録しなかった変更は、途中で失敗した場合も含めてすべて破棄する
+                for (int i = 0, n = prepared.size(); i < n; i++) {
+                    committers.get(i).abort(prepared.get(i));
+                }
+                for (int i = committers.size() - 1; i >= 0; i--) {
+                    committers.get(i).unlock();
+                }
+            }
+        }
+        finally {
+            if (results == null) {
+                // 登録しなかったシャードについて、登録しかけたエンティティを破棄する
+                for (int i = 0, n = deltas.size(); i < n; i++) {
+                    if (i >= prepared.size() || prepared.get(i).published == false) {
+                        participants.get(i).abandon(deltas.get(i));
+                    }
+                }
+            }
+        }
+        if (results == null) {
+            throw new ConcurrentModificationException("cross-shard save conflicted"); //$NON-NLS-1$
+        }
+
+        Set<Entity.Reference> changed = new HashSet<Entity.Reference>();
+        for (int i = 0, n = participants.size(); i < n; i++) {
+            changed.addAll(participants.get(i).rebase(deltas.get(i), results.get(i)));
+        }
+        return Collections.unmodifiableSet(changed);
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] != null) {
+                sessions[i].close();
+                sessions[i] = null;
+            }
+        }
+    }
+
+    private LocalSession getSession(int shard) {
+        LocalSession session = sessions[shard];
+        if (session == null) {
+            session = repository.getShard(shard).createSession();
+            sessions[shard] = session;
+        }
+        return session;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ashigeru.lab.smalltable.Session;
+import com.ashigeru.lab.smalltable.client.SmallTable;
+import com.ashigeru.lab.smalltable.client.StObject;
+import com.ashigeru.lab.smalltable.local.CommitStatistics;
+import com.ashigeru.lab.smalltable.local.LocalRepository;
+import com.ashigeru.lab.smalltable.local.ShardedRepository;
+
+/**
+ * スレッド数を変えながらコミットと最新リビジョンの読み出しを行う、確認用のベンチマーク。
+ * @author ashigeru
+ */
+public class StBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StBenchmark.class);
+
+    private final int threads;
+
+    private final long millis;
+
+    private final long windowMicros;
+
+    private final boolean hot;
+
+    private final boolean counter;
+
+    private final boolean reuse;
+
+    private final int shards;
+
+    private final boolean cross;
+
+    private LocalRepository repository;
+
+    private ShardedRepository sharded;
+
+    /**
+     * インスタンスを生成する。
+     * @param threads 利用するスレッド数
+     * @param millis 計測する時間 (ミリ秒)
+     * @param windowMicros グループコミットの待機時間 (マイクロ秒)
+     * @param hot すべてのスレッドが共有するひとつのオブジェクトの、互いに異なるプロパティを更新する場合に{@code true}
+     * @param counter すべてのスレッドが共有するひとつのオブジェクトの、同じプロパティに加算する場合に{@code true}
+     * @param reuse 保存に成功したテーブルを次の変更にも継続して利用する場合に{@code true}
+     * @param shards シャードの個数、シャードに分割しない場合は{@code 0}
+     * @param cross シャードに分割する場合に、新しいオブジェクトと名前つき参照を異なるシャードに置きうる場合に{@code true}
+     */
+    public StBenchmark(
+            int threads,
+            long millis,
+            long windowMicros,
+            boolean hot,
+            boolean counter,
+            boolean reuse,
+            int shards,
+            boolean cross) {
+        assert threads > 0;
+        assert millis > 0;
+        assert windowMicros >= 0;
+        assert shards >= 0;
+        this.threads = threads;
+        this.millis = millis;
+        this.windowMicros = windowMicros;
+        this.hot = hot;
+        this.counter = counter;
+        this.reuse = reuse;
+        this.shards = shards;
+        this.cross = cross;
+    }
+
+    private Session createSession(String affinity) {
+        if (sharded == null) {
+            return repository.createSession();
+        }
+        else if (cross) {
+            return sharded.createSession();
+        }
+        else {
+            return sharded.createSession(sharded.getShardOf(affinity));
+        }
+    }
+
+    private boolean readHead(int index) {
+        if (sharded == null) {
+            return repository.getHeadRevision() != null;
+        }
+        else {
+            return sharded.getShard(index % shards).getHeadRevision() != null;
+        }
+    }
+
+    private CommitStatistics getStatistics() {
+        if (sharded == null) {
+            return repository.getCommitStatistics();
+        }
+        else {
+            return sharded.getCommitStatistics();
+        }
+    }
+
+    private Result run() throws InterruptedException {
+        if (shards == 0) {
+            repository = new LocalRepository();
+            repository.setGroupCommitWindow(windowMicros, TimeUnit.MICROSECONDS);
+        }
+        else {
+            sharded = new ShardedRepository(shards);
+            sharded.setGroupCommitWindow(windowMicros, TimeUnit.MICROSECONDS);
+        }
+        if (hot || counter) {
+            SmallTable table = new SmallTable(createSession("hot"));
+            table.setRootObject("hot", table.newObject());
+            table.save();
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads * 2);
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+
+            // コミットするスレッド
+            new Thread() {
+                @Override
+                public void run() {
+                    SmallTable table = null;
+                    try {
+                        start.await();
+                        int count = 0;
+                        while (running.get()) {
+                            if (table == null || reuse == false) {
+                                if (table != null) {
+                                    table.close();
+                                }
+                                table = new SmallTable(createSession(getName()));
+                            }
+                            if (counter) {
+                                table.getRootObject("hot").addToProperty("count", 1);
+                            }
+                            else if (hot) {
+                                table.getRootObject("hot").setInt(getName(), ++count);
+                            }
+                            else {
+                                StObject object = table.newObject();
+                                object.setInt("value", 1);
+                                table.setRootObject(getName(), object);
+                            }
+                            try {
+                                table.save();
+                                commits.incrementAndGet();
+                            }
+                            catch (ConcurrentModificationException e) {
+                                conflicts.incrementAndGet();
+                                table.close();
+                                table = null;
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    finally {
+                        if (table != null) {
+                            table.close();
+                        }
+                        done.countDown();
+                    }
+                }
+            }.start();
+
+            // 最新のリビジョンを読み出すスレッド
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        while (running.get()) {
+                            if (readHead(index)) {
+                                count++;
+                            }
+                        }
+                        reads.addAndGet(count);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        Thread.sleep(millis);
+        running.set(false);
+        done.await();
+        return new Result(threads, millis, commits.get(), conflicts.get(), reads.get(), getStatistics());
+    }
+
+    /**
+     * プログラムエントリ
+     * @param args {@code [-t <最大スレッド数>] [-d <スレッド数ごとの計測時間 (ミリ秒)>] [-w <グループコミットの待機時間 (マイクロ秒)>] [-h] [-c] [-r] [-s <シャード数>] [-x]}
+     * @throws InterruptedException 割り込みが発生した場合
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Iterator<String> iter = Arrays.asList(args).iterator();
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        long millis = TimeUnit.SECONDS.toMillis(2);
+        long windowMicros = 0L;
+        boolean hot = false;
+        boolean counter = false;
+        boolean reuse = false;
+        int shards = 0;
+        boolean cross = false;
+        while (iter.hasNext()) {
+            String string = iter.next();
+            if (string.equals("-t")) {
+                maxThreads = Integer.parseInt(iter.next());
+            }
+            else if (string.equals("-d")) {
+                millis = Long.parseLong(iter.next());
+            }
+            else if (string.equals("-w")) {
+                windowMicros = Long.parseLong(iter.next());
+            }
+            else if (string.equals("-h")) {
+                hot = true;
+            }
+            else if (string.equals("-c")) {
+                counter = true;
+            }
+            else if (string.equals("-r")) {
+                reuse = true;
+            }
+            else if (string.equals("-s")) {
+                shards = Integer.parseInt(iter.next());
+            }
+            else if (string.equals("-x")) {
+                cross = true;
+            }
+            else {
+                throw new IllegalArgumentException("Unrecognized option: " + string);
+            }
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Result result = new StBenchmark(threads, millis, windowMicros, hot, counter, reuse, shards, cross).run();
+            LOG.info("{}", result);
+            results.add(result);
+        }
+        for (Result result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static class Result {
+
+        final int threads;
+
+        final long millis;
+
+        final long commits;
+
+        final long conflicts;
+
+        final long reads;
+
+        final CommitStatistics statistics;
+
+        Result(int threads, long millis, long commits, long conflicts, long reads, CommitStatistics statistics) {
+            this.threads = threads;
+            this.millis = millis;
+            this.commits = commits;
+            this.conflicts = conflicts;
+            this.reads = reads;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "threads=%d, commits/s=%d, conflicts/s=%d, head-reads/s=%d, commits/revision=%.2f, check-ns/commit=%d",
+                    threads,
+                    commits * 1000 / millis,
+                    conflicts * 1000 / millis,
+                    reads * 1000 / millis,
+                    statistics.getCommits() / (double) Math.max(1L, statistics.getRevisions()),
+                    statistics.getConflictCheckNanosPerCommit());
+        }
+    }
+}
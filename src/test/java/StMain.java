@@ -19,8 +19,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -30,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import com.ashigeru.lab.smalltable.client.SmallTable;
 import com.ashigeru.lab.smalltable.client.StObject;
+import com.ashigeru.lab.smalltable.local.CommitLog;
 import com.ashigeru.lab.smalltable.local.LocalRepository;
 
 /**
@@ -67,13 +66,14 @@ public class StMain {
 
     /**
      * プログラムエントリ
-     * @param args {@code [-i <読み出すリポジトリ>] [-o <書き出すリポジトリ>]}
+     * @param args {@code [-i <読み出すリポジトリ>] [-o <書き出すリポジトリ>] [-d <リポジトリのディレクトリ>]}
      * @throws IOException リポジトリの読み書きに失敗した場合
      */
     public static void main(String[] args) throws IOException {
         Iterator<String> iter = Arrays.asList(args).iterator();
         File input = null;
         File output = null;
+        File directory = null;
         while (iter.hasNext()) {
             String string = iter.next();
             if (string.equals("-i")) {
@@ -82,13 +82,24 @@ public class StMain {
             else if (string.equals("-o")) {
                 output = new File(iter.next());
             }
+            else if (string.equals("-d")) {
+                directory = new File(iter.next());
+            }
             else {
                 throw new IllegalArgumentException("Unrecognized option: " + string);
             }
         }
 
+        if (directory != null && (input != null || output != null)) {
+            throw new IllegalArgumentException("-d cannot be used with -i or -o");
+        }
+
         LocalRepository repo;
-        if (input != null) {
+        if (directory != null) {
+            LOG.info("Opening Repository in {}", directory);
+            repo = LocalRepository.open(directory, CommitLog.Sync.GROUP);
+        }
+        else if (input != null) {
             repo = load(input);
         }
         else {
@@ -101,6 +112,11 @@ public class StMain {
         if (output != null) {
             store(repo, output);
         }
+        if (directory != null) {
+            // 前回からの変更のみをチェックポイントに追記する
+            repo.checkpoint();
+            repo.close();
+        }
     }
 
     private static LocalRepository load(File file) throws IOException {
@@ -108,11 +124,7 @@ public class StMain {
         LOG.info("Loading Repository from {}", file);
         InputStream input = new FileInputStream(file);
         try {
-            ObjectInputStream in = new ObjectInputStream(input);
-            return (LocalRepository) in.readObject();
-        }
-        catch (ClassNotFoundException e) {
-            throw (IOException) new IOException().initCause(e);
+            return LocalRepository.load(input);
         }
         finally {
             try {
@@ -136,9 +148,7 @@ public class StMain {
             throw new AssertionError(e);
         }
         try {
-            ObjectOutputStream out = new ObjectOutputStream(output);
-            out.writeObject(repo);
-            out.close();
+            repo.store(output);
         }
         finally {
             try {
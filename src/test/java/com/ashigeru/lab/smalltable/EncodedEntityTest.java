@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * {@link EncodedEntity}のテスト。
+ * @author ashigeru
+ */
+public class EncodedEntityTest {
+
+    private static final Entity SAMPLE = Entity.Builder.create(new Entity.Reference(300L))
+        .addInt("count", -7)
+        .add("label", "ラベル")
+        .add("next", new Entity.Reference(301L))
+        .addInt("zzz", Integer.MAX_VALUE)
+        .addInt("名前", 7)
+        .toEntity();
+
+    /**
+     * 符号化された内容を参照するエンティティは、元のエンティティと等価である。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void wrap() throws Exception {
+        Entity wrapped = EntityInput.wrapEntity(encode(SAMPLE, 5), 5);
+        assertThat(wrapped.getSelfReference(), is(SAMPLE.getSelfReference()));
+        assertThat(wrapped.getInt("count", 0), is(-7));
+        assertThat(wrapped.isInt("count"), is(true));
+        assertThat(wrapped.isInt("label"), is(false));
+        assertThat(wrapped.getProperty("label"), is((Object) "ラベル"));
+        assertThat(wrapped.getProperty("next"), is((Object) new Entity.Reference(301L)));
+        assertThat(wrapped.getInt("名前", 0), is(7));
+        assertThat(wrapped.getInt("zzz", 0), is(Integer.MAX_VALUE));
+        assertThat(wrapped.getProperty("missing"), is((Object) null));
+        assertThat(wrapped.getInt("missing", 42), is(42));
+
+        Map<String, Object> properties = wrapped.getPropertyMap();
+        assertThat(properties.size(), is(5));
+        assertThat(properties.containsKey("label"), is(true));
+        assertThat(properties.containsKey("labels"), is(false));
+        assertThat(properties.get("count"), is((Object) (-7)));
+        assertThat(properties, is(SAMPLE.getPropertyMap()));
+
+        assertThat(wrapped, is(SAMPLE));
+        assertThat(SAMPLE, is(wrapped));
+        assertThat(wrapped.hashCode(), is(SAMPLE.hashCode()));
+    }
+
+    /**
+     * ヒープ外のバッファに符号化された内容も参照できる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void wrap_direct() throws Exception {
+        ByteBuffer heap = encode(SAMPLE, 0);
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.capacity());
+        direct.put(heap);
+        Entity wrapped = EntityInput.wrapEntity(direct, 0);
+        assertThat(wrapped.getProperty("label"), is((Object) "ラベル"));
+        assertThat(wrapped.getProperty("名前"), is((Object) 7));
+        assertThat(wrapped, is(SAMPLE));
+    }
+
+    /**
+     * プロパティは参照されたものより前の値のみを走査し、参照されない値は復号しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void lazy() throws Exception {
+        ByteBuffer buffer = encode(SAMPLE, 0);
+
+        // 名前の昇順で最後となるプロパティの、値のタグを壊す
+        int last = buffer.capacity() - 1;
+        while ((buffer.get(last - 1) & 0x80) != 0) {
+            last--;
+        }
+        buffer.put(last - 1, (byte) 0x7f);
+
+        Entity wrapped = EntityInput.wrapEntity(buffer, 0);
+        assertThat(wrapped.getInt("count", 0), is(-7));
+        assertThat(wrapped.getInt("zzz", 0), is(Integer.MAX_VALUE));
+        assertThat(wrapped.getPropertyMap().containsKey("名前"), is(true));
+        try {
+            wrapped.getProperty("名前");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+        try {
+            wrapped.equals(SAMPLE);
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+    }
+
+    /**
+     * 直列化すると、展開した内容が書き出される。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void serialize() throws Exception {
+        Entity wrapped = EntityInput.wrapEntity(encode(SAMPLE, 0), 0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(wrapped);
+        output.close();
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object restored = input.readObject();
+        input.close();
+        assertThat(restored.getClass(), is((Object) Entity.class));
+        assertThat(restored, is((Object) SAMPLE));
+    }
+
+    /**
+     * 途中で途切れた内容は、途切れた位置より後ろのプロパティを参照した時点で失敗する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void truncated() throws Exception {
+        ByteBuffer whole = encode(SAMPLE, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(whole.capacity() - 1);
+        whole.limit(buffer.capacity());
+        buffer.put(whole);
+
+        Entity wrapped = EntityInput.wrapEntity(buffer, 0);
+        assertThat(wrapped.getInt("zzz", 0), is(Integer.MAX_VALUE));
+        try {
+            wrapped.getInt("名前", 0);
+            fail();
+        }
+        catch (IndexOutOfBoundsException e) {
+            // ok.
+        }
+    }
+
+    /**
+     * 他のエンティティと形状を共有するエンティティは参照できない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IOException.class)
+    public void wrap_sharedShape() throws Exception {
+        Entity other = Entity.Builder.create(new Entity.Reference(1L))
+            .addInt("count", 1)
+            .add("label", "other")
+            .add("next", new Entity.Reference(2L))
+            .addInt("zzz", 0)
+            .addInt("名前", 0)
+            .toEntity();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EntityOutput output = new EntityOutput(new DataOutputStream(bytes));
+        output.writeEntity(other);
+        int offset = bytes.size();
+        output.writeEntity(SAMPLE);
+        EntityInput.wrapEntity(ByteBuffer.wrap(bytes.toByteArray()), offset);
+    }
+
+    /**
+     * バッファの外の位置は参照できない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void wrap_outOfRange() throws Exception {
+        ByteBuffer buffer = encode(SAMPLE, 0);
+        EntityInput.wrapEntity(buffer, buffer.capacity());
+    }
+
+    /**
+     * 指定の長さの詰め物に続けて、新しい出力にエンティティを符号化する。
+     */
+    private static ByteBuffer encode(Entity entity, int padding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < padding; i++) {
+            bytes.write(0xff);
+        }
+        new EntityOutput(new DataOutputStream(bytes)).writeEntity(entity);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link EntityOutput}および{@link EntityInput}のテスト。
+ * @author ashigeru
+ */
+public class EntityOutputTest {
+
+    private ByteArrayOutputStream buffer;
+
+    private EntityOutput output;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        buffer = new ByteArrayOutputStream();
+        output = new EntityOutput(new DataOutputStream(buffer));
+    }
+
+    /**
+     * 可変長の符号なし整数の境界値。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void varLong() throws Exception {
+        long[] values = {
+                0L, 1L, 0x7fL, 0x80L, 0x3fffL, 0x4000L,
+                Integer.MAX_VALUE, 0xffffffffL, 1L << 56, Long.MAX_VALUE,
+                -1L, Long.MIN_VALUE,
+        };
+        for (long value : values) {
+            output.writeVarLong(value);
+        }
+        EntityInput input = input();
+        for (long value : values) {
+            assertThat(input.readVarLong(), is(value));
+        }
+    }
+
+    /**
+     * 可変長の符号なし整数の長さ。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void varLong_length() throws Exception {
+        assertThat(lengthOf(0L), is(1));
+        assertThat(lengthOf(0x7fL), is(1));
+        assertThat(lengthOf(0x80L), is(2));
+        assertThat(lengthOf(0x3fffL), is(2));
+        assertThat(lengthOf(0x4000L), is(3));
+        assertThat(lengthOf(Long.MAX_VALUE), is(9));
+        assertThat(lengthOf(-1L), is(10));
+    }
+
+    /**
+     * 符号つきの整数の境界値。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void varInt() throws Exception {
+        int[] values = {
+                0, 1, -1, 63, -64, 64, -65,
+                Short.MAX_VALUE, Short.MIN_VALUE,
+                Integer.MAX_VALUE, Integer.MIN_VALUE,
+        };
+        for (int value : values) {
+            output.writeVarInt(value);
+        }
+        EntityInput input = input();
+        for (int value : values) {
+            assertThat(input.readVarInt(), is(value));
+        }
+    }
+
+    /**
+     * 絶対値の小さい負の整数は短く書き出される。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void varInt_negative() throws Exception {
+        output.writeVarInt(-1);
+        output.writeVarInt(-64);
+        assertThat(buffer.size(), is(2));
+        output.writeVarInt(Integer.MIN_VALUE);
+        assertThat(buffer.size(), is(7));
+    }
+
+    /**
+     * 途中で途切れた可変長の整数。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = EOFException.class)
+    public void varLong_truncated() throws Exception {
+        output.writeVarLong(0x4000L);
+        byte[] bytes = buffer.toByteArray();
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        new EntityInput(new DataInputStream(new ByteArrayInputStream(truncated))).readVarLong();
+    }
+
+    /**
+     * 終端のない可変長の整数。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IOException.class)
+    public void varLong_malformed() throws Exception {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        new EntityInput(new DataInputStream(new ByteArrayInputStream(bytes))).readVarLong();
+    }
+
+    /**
+     * ASCII以外の文字を含む文字列と名前。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void string_nonAscii() throws Exception {
+        String[] values = {
+                "",
+                "hello",
+                "名前",
+                "café",
+                "\uD83D\uDE00",
+                "\u0000",
+        };
+        for (String value : values) {
+            output.writeString(value);
+            output.writeName(value);
+        }
+        for (String value : values) {
+            output.writeName(value);
+        }
+        EntityInput input = input();
+        for (String value : values) {
+            assertThat(input.readString(), is(value));
+            assertThat(input.readName(), is(value));
+        }
+        for (String value : values) {
+            assertThat(input.readName(), is(value));
+        }
+    }
+
+    /**
+     * 二回目以降の名前は番号のみを書き出す。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void name_shared() throws Exception {
+        output.writeName("名前");
+        int first = buffer.size();
+        output.writeName("名前");
+        assertThat(buffer.size() - first, is(1));
+    }
+
+    /**
+     * 参照。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void reference() throws Exception {
+        output.writeReference(null);
+        output.writeReference(new Entity.Reference(0L));
+        output.writeReference(new Entity.Reference(Long.MAX_VALUE - 1));
+        EntityInput input = input();
+        assertThat(input.readReference(), is((Entity.Reference) null));
+        assertThat(input.readReference(), is(new Entity.Reference(0L)));
+        assertThat(input.readReference(), is(new Entity.Reference(Long.MAX_VALUE - 1)));
+    }
+
+    /**
+     * エンティティ。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void entity() throws Exception {
+        Entity a = Entity.Builder.create(new Entity.Reference(1L))
+            .addInt("count", -5)
+            .addInt("max", Integer.MAX_VALUE)
+            .add("名前", "値")
+            .add("link", new Entity.Reference(2L))
+            .toEntity();
+        Entity b = Entity.Builder.create(new Entity.Reference(2L))
+            .add("link", new Entity.Reference(1L))
+            .add("名前", "")
+            .addInt("count", Integer.MIN_VALUE)
+            .addInt("max", 0)
+            .toEntity();
+        Entity empty = Entity.Builder.create(new Entity.Reference(3L)).toEntity();
+        output.writeEntity(a);
+        output.writeEntity(b);
+        output.writeEntity(empty);
+
+        EntityInput input = input();
+        Entity ra = input.readEntity();
+        Entity rb = input.readEntity();
+        Entity re = input.readEntity();
+        assertThat(ra, is(a));
+        assertThat(rb, is(b));
+        assertThat(re, is(empty));
+        assertThat(ra.getInt("count", 0), is(-5));
+        assertThat(rb.getInt("count", 0), is(Integer.MIN_VALUE));
+        assertThat(ra.getProperty("名前"), is((Object) "値"));
+    }
+
+    /**
+     * バッファから読み出す。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void buffer() throws Exception {
+        Entity entity = Entity.Builder.create(new Entity.Reference(10L))
+            .addInt("a", -1)
+            .add("b", "あ")
+            .toEntity();
+        output.writeVarInt(-300);
+        output.writeEntity(entity);
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        EntityInput input = new EntityInput(bytes);
+        assertThat(input.readVarInt(), is(-300));
+        assertThat(input.readEntity(), is(entity));
+        assertThat(bytes.hasRemaining(), is(false));
+    }
+
+    private int lengthOf(long value) throws IOException {
+        int before = buffer.size();
+        output.writeVarLong(value);
+        return buffer.size() - before;
+    }
+
+    private EntityInput input() {
+        return new EntityInput(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * {@link Entity}および{@link Shape}のテスト。
+ * @author ashigeru
+ */
+public class EntityTest {
+
+    /**
+     * 同じプロパティ名の組は、並び順によらず同一の形状を共有する。
+     */
+    @Test
+    public void shape_shared() {
+        Shape ab = Shape.of(Arrays.asList("a", "b"));
+        assertThat(Shape.of(Arrays.asList("b", "a")), sameInstance(ab));
+        assertThat(ab.size(), is(2));
+        assertThat(ab.getName(0), is("a"));
+        assertThat(ab.indexOf("b"), is(1));
+        assertThat(ab.indexOf("c"), lessThan(0));
+        assertThat(ab.indexOf(1), lessThan(0));
+        assertThat(ab.isCompatible(Shape.of(Arrays.asList("a", "c"))), is(false));
+        assertThat(Shape.of(Arrays.<String>asList()), sameInstance(Shape.EMPTY));
+    }
+
+    /**
+     * 共有する形状の上限を超えた後に作成された形状も、同じプロパティ名の組どうしは等価となる。
+     */
+    @Test
+    public void shape_unshared() {
+        // 上限に達するまで形状を作成する
+        for (int i = 0; i < 5000; i++) {
+            Shape.of(Arrays.asList("filler", "f" + i));
+        }
+        Shape first = Shape.of(Arrays.asList("unshared", "p"));
+        Shape second = Shape.of(Arrays.asList("p", "unshared"));
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second, is(first));
+        assertThat(second.hashCode(), is(first.hashCode()));
+        assertThat(second.isCompatible(first), is(true));
+
+        Entity a = Entity.Builder.create(new Entity.Reference(1)).add("unshared", "x").add("p", 1).toEntity();
+        Entity b = Entity.Builder.create(new Entity.Reference(1)).add("p", 1).add("unshared", "x").toEntity();
+        assertThat(b, is(a));
+        assertThat(b.hashCode(), is(a.hashCode()));
+        assertThat(b.getProperty("unshared"), is((Object) "x"));
+    }
+
+    /**
+     * 等価性とハッシュ値は、プロパティを追加した順序によらない。
+     */
+    @Test
+    public void equals() {
+        Entity a = Entity.Builder.create(new Entity.Reference(1))
+            .add("name", "a")
+            .add("count", 1)
+            .add("next", new Entity.Reference(2))
+            .toEntity();
+        Entity b = Entity.Builder.create(new Entity.Reference(1))
+            .add("next", new Entity.Reference(2))
+            .add("count", 1)
+            .add("name", "a")
+            .toEntity();
+        assertThat(b, is(a));
+        assertThat(b.hashCode(), is(a.hashCode()));
+
+        assertThat(a, not(Entity.Builder.create(new Entity.Reference(2))
+                .add("name", "a")
+                .add("count", 1)
+                .add("next", new Entity.Reference(2))
+                .toEntity()));
+        assertThat(a, not(Entity.Builder.create(new Entity.Reference(1))
+                .add("name", "a")
+                .add("count", 2)
+                .add("next", new Entity.Reference(2))
+                .toEntity()));
+        assertThat(a, not(Entity.Builder.create(new Entity.Reference(1))
+                .add("name", "a")
+                .add("count", "1")
+                .add("next", new Entity.Reference(2))
+                .toEntity()));
+        assertThat(a, not(Entity.Builder.create(new Entity.Reference(1))
+                .add("name", "a")
+                .add("count", 1)
+                .toEntity()));
+    }
+
+    /**
+     * プロパティの一覧は、追加したプロパティをすべて含む変更できないビューとなる。
+     */
+    @Test
+    public void getPropertyMap() {
+        Entity entity = Entity.Builder.create(new Entity.Reference(1))
+            .add("b", "text")
+            .add("a", 1)
+            .toEntity();
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("a", 1);
+        expected.put("b", "text");
+
+        Map<String, Object> properties = entity.getPropertyMap();
+        assertThat(properties, is(expected));
+        assertThat(properties.size(), is(2));
+        assertThat(properties.containsKey("a"), is(true));
+        assertThat(properties.containsKey("c"), is(false));
+        assertThat(properties.containsKey(1), is(false));
+        assertThat(properties.get("c"), is((Object) null));
+        assertThat(entity.getProperty("a"), is((Object) 1));
+        assertThat(entity.getProperty("c"), is((Object) null));
+
+        try {
+            properties.put("c", "other");
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // ok.
+        }
+        Iterator<Map.Entry<String, Object>> iter = properties.entrySet().iterator();
+        Map.Entry<String, Object> first = iter.next();
+        try {
+            first.setValue("other");
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // ok.
+        }
+        try {
+            iter.remove();
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // ok.
+        }
+        assertThat(entity.getPropertyMap(), is(expected));
+    }
+
+    /**
+     * 同じ名前のプロパティは追加できない。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void builder_duplicate() {
+        Entity.Builder.create(new Entity.Reference(1)).add("a", 1).add("a", 2);
+    }
+}
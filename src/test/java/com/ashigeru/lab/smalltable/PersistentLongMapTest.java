@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * {@link PersistentLongMap}のテスト。
+ * @author ashigeru
+ */
+public class PersistentLongMapTest {
+
+    /**
+     * 符号や上位のビットのみが異なるキーを区別する。
+     */
+    @Test
+    public void keys() {
+        long[] keys = {
+                0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE,
+                1L << 32, (1L << 32) | 1L, 1L << 63 | 1L, 0x00000000ffffffffL,
+        };
+        PersistentLongMap map = PersistentLongMap.empty();
+        for (int i = 0; i < keys.length; i++) {
+            map = map.with(keys[i], i);
+        }
+        assertThat(map.size(), is(keys.length));
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(map.containsKey(keys[i]), is(true));
+            assertThat(map.get(keys[i], -1L), is((long) i));
+        }
+        assertThat(map.containsKey(2L), is(false));
+        assertThat(map.get(1L << 33, -1L), is(-1L));
+    }
+
+    /**
+     * 変更を重ねても以前の版はそれぞれの内容を保ち、内容の変わらない変更は版自身を返す。
+     */
+    @Test
+    public void versions() {
+        List<PersistentLongMap> versions = new ArrayList<PersistentLongMap>();
+        PersistentLongMap current = PersistentLongMap.empty();
+        versions.add(current);
+        for (long i = 1; i <= 200; i++) {
+            current = current.with(i % 50, i);
+            versions.add(current);
+        }
+        for (int v = 0; v < versions.size(); v++) {
+            PersistentLongMap version = versions.get(v);
+            assertThat(version.size(), is(Math.min(v, 50)));
+            for (long key = 0; key < 50; key++) {
+                long expected = -1L;
+                for (long i = v; i >= 1; i--) {
+                    if (i % 50 == key) {
+                        expected = i;
+                        break;
+                    }
+                }
+                assertThat(version.get(key, -1L), is(expected));
+            }
+        }
+        assertThat(current.with(0L, 200L), sameInstance(current));
+        assertThat(current.without(50L), sameInstance(current));
+        assertThat(PersistentLongMap.empty().with(7L, 7L).without(7L), sameInstance(PersistentLongMap.empty()));
+    }
+
+    /**
+     * カーソルは、無作為な順序で要素を取り除く途中の各時点で、すべての要素を一度ずつ列挙する。
+     */
+    @Test
+    public void cursor() {
+        List<Long> keys = new ArrayList<Long>();
+        PersistentLongMap map = PersistentLongMap.empty();
+        for (long i = 0; i < 20000; i++) {
+            long key = i * 0x9E3779B97F4A7C15L;
+            keys.add(key);
+            map = map.with(key, i);
+        }
+        Collections.shuffle(keys, new Random(2468));
+        TreeMap<Long, Long> expected = toMap(map);
+        assertThat(expected.size(), is(20000));
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.without(keys.get(i));
+            expected.remove(keys.get(i));
+            if (i % 1000 == 0) {
+                assertThat(toMap(map), is(expected));
+            }
+        }
+        assertThat(map.size(), is(0));
+        assertThat(map.cursor().next(), is(false));
+    }
+
+    /**
+     * 無作為な操作を{@link TreeMap}と比較する。
+     */
+    @Test
+    public void random() {
+        Random random = new Random(6789);
+        TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+        PersistentLongMap map = PersistentLongMap.empty();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(5000) * 0x100000001L;
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            }
+            else {
+                expected.put(key, (long) i);
+                map = map.with(key, i);
+            }
+        }
+        assertThat(map.size(), is(expected.size()));
+        assertThat(toMap(map), is(expected));
+    }
+
+    /**
+     * 直列化した表を読み出しても同じ内容をもち、空の表は唯一のインスタンスに戻る。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void serialize() throws Exception {
+        PersistentLongMap map = PersistentLongMap.empty();
+        for (long i = 0; i < 1000; i++) {
+            map = map.with(-i * 31, i);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(buffer);
+        output.writeObject(new Object[] { map, PersistentLongMap.empty() });
+        output.close();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        Object[] restored = (Object[]) input.readObject();
+        input.close();
+        assertThat(toMap((PersistentLongMap) restored[0]), is(toMap(map)));
+        assertThat(restored[1], sameInstance((Object) PersistentLongMap.empty()));
+    }
+
+    private static TreeMap<Long, Long> toMap(PersistentLongMap map) {
+        TreeMap<Long, Long> results = new TreeMap<Long, Long>();
+        PersistentLongMap.Cursor cursor = map.cursor();
+        while (cursor.next()) {
+            Long last = results.put(cursor.getKey(), cursor.getValue());
+            assertThat(last, is((Long) null));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link PersistentMap}のテスト。
+ * @author ashigeru
+ */
+public class PersistentMapTest {
+
+    /**
+     * 単純な追加と参照。
+     */
+    @Test
+    public void simple() {
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        assertThat(map.isEmpty(), is(true));
+
+        PersistentMap<String, Integer> a = map.with("a", 1);
+        PersistentMap<String, Integer> ab = a.with("b", 2);
+        assertThat(ab.size(), is(2));
+        assertThat(ab.get("a"), is(1));
+        assertThat(ab.get("b"), is(2));
+        assertThat(ab.get("c"), is((Integer) null));
+        assertThat(ab.containsKey("a"), is(true));
+        assertThat(ab.containsKey("c"), is(false));
+    }
+
+    /**
+     * 変更前の表が変更の影響を受けない。
+     */
+    @Test
+    public void persistent() {
+        PersistentMap<String, Integer> a = PersistentMap.<String, Integer>empty().with("a", 1);
+        PersistentMap<String, Integer> replaced = a.with("a", 2);
+        PersistentMap<String, Integer> added = a.with("b", 3);
+        PersistentMap<String, Integer> removed = a.without("a");
+
+        assertThat(a.size(), is(1));
+        assertThat(a.get("a"), is(1));
+        assertThat(a.get("b"), is((Integer) null));
+
+        assertThat(replaced.size(), is(1));
+        assertThat(replaced.get("a"), is(2));
+        assertThat(added.size(), is(2));
+        assertThat(added.get("b"), is(3));
+        assertThat(removed.size(), is(0));
+    }
+
+    /**
+     * 内容の変わらない変更は、表自身を返す。
+     */
+    @Test
+    public void sharing() {
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.with(String.valueOf(i), i);
+        }
+        assertThat(map.with("10", 10), sameInstance(map));
+        assertThat(map.without("missing"), sameInstance(map));
+        assertThat(PersistentMap.of(map), sameInstance(map));
+
+        PersistentMap<String, Integer> changed = map.with("10", -10);
+        assertThat(changed, not(sameInstance(map)));
+        assertThat(changed.without("10").with("10", 10), is((Map<String, Integer>) map));
+    }
+
+    /**
+     * ハッシュ値が完全に衝突するキー。
+     */
+    @Test
+    public void collisions() {
+        PersistentMap<Collide, String> map = PersistentMap.empty();
+        for (int i = 0; i < 10; i++) {
+            map = map.with(new Collide(i), "v" + i);
+        }
+        assertThat(map.size(), is(10));
+        for (int i = 0; i < 10; i++) {
+            assertThat(map.get(new Collide(i)), is("v" + i));
+        }
+        assertThat(map.get(new Collide(10)), is((String) null));
+
+        PersistentMap<Collide, String> replaced = map.with(new Collide(3), "w");
+        assertThat(replaced.size(), is(10));
+        assertThat(replaced.get(new Collide(3)), is("w"));
+        assertThat(map.get(new Collide(3)), is("v3"));
+
+        PersistentMap<Collide, String> rest = map;
+        for (int i = 0; i < 10; i++) {
+            rest = rest.without(new Collide(i));
+            assertThat(rest.size(), is(9 - i));
+            assertThat(rest.get(new Collide(i)), is((String) null));
+            for (int j = i + 1; j < 10; j++) {
+                assertThat(rest.get(new Collide(j)), is("v" + j));
+            }
+        }
+        assertThat(rest, sameInstance(PersistentMap.<Collide, String>empty()));
+        assertThat(map.size(), is(10));
+    }
+
+    /**
+     * 衝突するキーと衝突しないキーの混在。
+     */
+    @Test
+    public void collisions_mixed() {
+        PersistentMap<Object, String> map = PersistentMap.empty();
+        map = map.with(new Collide(0), "c0");
+        map = map.with(Collide.HASH, "i");
+        map = map.with(new Collide(1), "c1");
+        assertThat(map.size(), is(3));
+        assertThat(map.get(Collide.HASH), is("i"));
+        assertThat(map.get(new Collide(1)), is("c1"));
+
+        map = map.without(new Collide(0));
+        assertThat(map.size(), is(2));
+        assertThat(map.get(Collide.HASH), is("i"));
+        assertThat(map.get(new Collide(1)), is("c1"));
+    }
+
+    /**
+     * すべての要素を取り除く。
+     */
+    @Test
+    public void remove_all() {
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 5000; i++) {
+            map = map.with(i, i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            map = map.without(i);
+            assertThat(map.size(), is(4999 - i));
+        }
+        assertThat(map.isEmpty(), is(true));
+        assertThat(map.entrySet().iterator().hasNext(), is(false));
+    }
+
+    /**
+     * 無作為な操作を{@link HashMap}と比較する。
+     */
+    @Test
+    public void random() {
+        Random random = new Random(12345);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 50000; i++) {
+            Integer key = random.nextInt(3000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.without(key);
+            }
+            else {
+                expected.put(key, i);
+                map = map.with(key, i);
+            }
+        }
+        assertThat(map.size(), is(expected.size()));
+        assertThat((Map<Integer, Integer>) map, is(expected));
+        assertThat(new HashMap<Integer, Integer>(map), is(expected));
+    }
+
+    /**
+     * 直列化。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void serialize() throws Exception {
+        PersistentMap<Object, String> map = PersistentMap.empty();
+        for (int i = 0; i < 100; i++) {
+            map = map.with(i, "v" + i);
+            map = map.with(new Collide(i), "c" + i);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(buffer);
+        output.writeObject(map);
+        output.writeObject(PersistentMap.empty());
+        output.close();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        Object restored = input.readObject();
+        Object empty = input.readObject();
+        input.close();
+        assertThat(restored, is((Object) map));
+        assertThat(empty, sameInstance((Object) PersistentMap.empty()));
+    }
+
+    /**
+     * {@code null}は格納できない。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void null_value() {
+        PersistentMap.<String, String>empty().with("a", null);
+    }
+
+    /**
+     * 常に同じハッシュ値をもつキー。
+     */
+    private static final class Collide implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        static final Integer HASH = 42;
+
+        private final int value;
+
+        Collide(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return HASH;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            return value == ((Collide) obj).value;
+        }
+
+        @Override
+        public String toString() {
+            return "Collide(" + value + ")";
+        }
+    }
+}
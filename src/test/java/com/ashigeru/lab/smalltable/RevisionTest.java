@@ -0,0 +1,347 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * {@link Revision}および{@link Revision.Delta}のテスト。
+ * @author ashigeru
+ */
+public class RevisionTest {
+
+    /**
+     * 子孫のリビジョンへの変更は間の変更を合成して作成し、内容をすべて比較した場合と同じ変更となる。
+     */
+    @Test
+    public void createDeltaTo_descendant() {
+        Revision<Long> base = revision(NO_BINDINGS, 1, 1, 2, 2, 3, 3);
+        Revision<Long> first = base.apply(change(1, 11, 4, 4));
+        Revision<Long> second = first.apply(rebind("x", 4));
+        Revision<Long> third = second.apply(change(1, 21, 2, -1));
+        assertThat(third.getGeneration(), is(base.getGeneration() + 3));
+        assertThat(third.getParent(), sameInstance(second));
+        assertThat(third.getDelta(), not((Revision.Delta<Long>) null));
+
+        Revision<Long> expected = revision(Collections.singletonMap("x", new Entity.Reference(4)), 1, 21, 3, 3, 4, 4);
+        Revision.Delta<Long> chained = base.createDeltaTo(third);
+        Revision.Delta<Long> full = revision(NO_BINDINGS, 1, 1, 2, 2, 3, 3).createDeltaTo(expected);
+        assertThat(changed(chained), is(changed(full)));
+        assertThat(rebound(chained), is(rebound(full)));
+        assertThat(changed(chained), is(references(1, 2, 4)));
+        assertSameContents(base.apply(chained), expected);
+        assertSameContents(base.apply(full), expected);
+
+        // 途中のリビジョンからは、それ以降の変更のみを合成する
+        Revision.Delta<Long> partial = second.createDeltaTo(third);
+        assertThat(changed(partial), is(references(1, 2)));
+        assertThat(rebound(partial).isEmpty(), is(true));
+        assertSameContents(second.apply(partial), expected);
+        assertThat(changed(third.createDeltaTo(third)).isEmpty(), is(true));
+    }
+
+    /**
+     * 祖先のリビジョンへの変更は、内容をすべて比較して作成する。
+     */
+    @Test
+    public void createDeltaTo_ancestor() {
+        Revision<Long> base = revision(NO_BINDINGS, 1, 1, 2, 2, 3, 3);
+        Revision<Long> first = base.apply(change(1, 11, 4, 4));
+        Revision<Long> second = first.apply(rebind("x", 4));
+        Revision<Long> third = second.apply(change(1, 21, 2, -1));
+
+        Revision.Delta<Long> delta = third.createDeltaTo(base);
+        assertThat(changed(delta), is(references(1, 2, 4)));
+        assertThat(rebound(delta), is(Collections.singleton("x")));
+        assertSameContents(third.apply(delta), base);
+        assertSameContents(third.apply(third.createDeltaTo(first)), first);
+    }
+
+    /**
+     * 子孫でないリビジョンへの変更は、内容をすべて比較して作成する。
+     */
+    @Test
+    public void createDeltaTo_unrelated() {
+        Revision<Long> base = revision(NO_BINDINGS, 1, 1, 2, 2, 3, 3);
+        Revision<Long> left = base.apply(change(1, 11)).apply(rebind("x", 1));
+        Revision<Long> right = base.apply(change(2, 12)).apply(change(3, -1));
+        assertThat(left.getGeneration(), is(right.getGeneration()));
+
+        Revision.Delta<Long> delta = left.createDeltaTo(right);
+        assertThat(changed(delta), is(references(1, 2, 3)));
+        assertThat(rebound(delta), is(Collections.singleton("x")));
+        assertSameContents(left.apply(delta), right);
+
+        // 別に作成した同じ内容のリビジョンとの間には変更がない
+        Revision<Long> copy = revision(NO_BINDINGS, 1, 1, 2, 12);
+        assertThat(changed(copy.createDeltaTo(right)).isEmpty(), is(true));
+        assertThat(changed(right.createDeltaTo(copy)).isEmpty(), is(true));
+    }
+
+    /**
+     * 履歴を切り離したリビジョンをまたぐ変更は、内容をすべて比較して作成する。
+     */
+    @Test
+    public void createDeltaTo_truncated() {
+        Revision<Long> base = revision(NO_BINDINGS, 1, 1, 2, 2, 3, 3);
+        Revision<Long> first = base.apply(change(1, 11, 4, 4));
+        Revision<Long> second = first.apply(rebind("x", 4));
+        Revision<Long> third = second.apply(change(1, 21, 2, -1));
+
+        second.truncateHistory();
+        assertThat(second.getParent(), is((Revision<Long>) null));
+        assertThat(second.getDelta(), is((Revision.Delta<Long>) null));
+        assertThat(second.getGeneration(), is(base.getGeneration() + 2));
+
+        Revision.Delta<Long> delta = base.createDeltaTo(third);
+        assertThat(changed(delta), is(references(1, 2, 4)));
+        assertThat(rebound(delta), is(Collections.singleton("x")));
+        assertSameContents(base.apply(delta), third);
+
+        // 切り離した後の変更は、引き続き合成して作成する
+        assertThat(changed(second.createDeltaTo(third)), is(references(1, 2)));
+        assertSameContents(first.apply(first.createDeltaTo(third)), third);
+    }
+
+    /**
+     * 互いに素な変更は衝突しない。
+     */
+    @Test
+    public void conflictsWith() {
+        Revision.Delta<Long> a = delta(1, 2, 3);
+        assertThat(a.conflictsWith(delta(4, 5)), is(false));
+        assertThat(a.conflictsWith(delta(5, 3)), is(true));
+        assertThat(a.conflictsWith(bind("x")), is(false));
+        assertThat(bind("x").conflictsWith(bind("x")), is(true));
+    }
+
+    /**
+     * 同じエンティティへの変更は、変更したプロパティが重なる場合のみ衝突する。
+     */
+    @Test
+    public void conflictsWith_properties() {
+        Revision.Delta<Long> ab = properties(1, "a", "b");
+        assertThat(ab.conflictsWith(properties(1, "c")), is(false));
+        assertThat(ab.conflictsWith(properties(2, "a")), is(false));
+        assertThat(ab.conflictsWith(properties(1, "b", "c")), is(true));
+
+        // エンティティ全体の変更は、いずれのプロパティの変更とも衝突する
+        assertThat(ab.conflictsWith(delta(1)), is(true));
+        assertThat(delta(1).conflictsWith(ab), is(true));
+    }
+
+    /**
+     * 同じプロパティへの加算どうしは衝突しないが、加算と変更は衝突する。
+     */
+    @Test
+    public void conflictsWith_additions() {
+        Revision.Delta<Long> count = additions(1, "count");
+        assertThat(count.conflictsWith(additions(1, "count")), is(false));
+        assertThat(count.conflictsWith(properties(1, "label")), is(false));
+        assertThat(count.conflictsWith(properties(1, "count")), is(true));
+        assertThat(properties(1, "count").conflictsWith(count), is(true));
+        assertThat(count.conflictsWith(delta(1)), is(true));
+    }
+
+    /**
+     * 多数の要素をもつ変更どうしでも、ブルームフィルタによって取りこぼさない。
+     */
+    @Test
+    public void conflictsWith_large() {
+        Map<Entity.Reference, Long> entities = new HashMap<Entity.Reference, Long>();
+        for (long i = 0; i < 10000; i += 2) {
+            entities.put(new Entity.Reference(i), i);
+        }
+        Revision.Delta<Long> large = new Revision.Delta<Long>(
+                Collections.<String, Entity.Reference>emptyMap(),
+                entities);
+        for (long i = 0; i < 10000; i++) {
+            assertThat(large.conflictsWith(delta(i)), is(i % 2 == 0));
+        }
+    }
+
+    /**
+     * 生成に利用した表を後から変更しても、変更の内容と衝突の判定は変わらない。
+     */
+    @Test
+    public void delta_copied() {
+        Map<String, Entity.Reference> bindings = new HashMap<String, Entity.Reference>();
+        Map<Entity.Reference, Long> entities = new HashMap<Entity.Reference, Long>();
+        Map<Entity.Reference, Set<String>> properties = new HashMap<Entity.Reference, Set<String>>();
+        Set<String> names = new HashSet<String>();
+        names.add("a");
+        entities.put(new Entity.Reference(1), 1L);
+        properties.put(new Entity.Reference(1), names);
+        Revision.Delta<Long> delta = new Revision.Delta<Long>(bindings, entities, properties);
+
+        // フィルタを計算させてから、元の表を変更する
+        assertThat(delta.conflictsWith(delta(2)), is(false));
+        bindings.put("x", new Entity.Reference(9));
+        entities.put(new Entity.Reference(2), 2L);
+        names.add("b");
+
+        assertThat(delta.getBindingMap().isEmpty(), is(true));
+        assertThat(delta.getEntityMap().keySet(), is(Collections.singleton(new Entity.Reference(1))));
+        assertThat(delta.getChangedProperties(new Entity.Reference(1)), is(Collections.singleton("a")));
+        assertThat(delta.conflictsWith(delta(2)), is(false));
+        assertThat(delta.conflictsWith(bind("x")), is(false));
+    }
+
+    /**
+     * 変更の表は変更できない。
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void delta_unmodifiable() {
+        Revision.Delta<Long> delta = delta(1);
+        delta.getEntityMap().put(new Entity.Reference(2), 2L);
+    }
+
+    /**
+     * 合成した変更にも、合成前の変更の要素がすべて含まれる。
+     */
+    @Test
+    public void merge() {
+        Revision.Delta<Long> merged = delta(1, 2).merge(delta(3));
+        assertThat(merged, not((Revision.Delta<Long>) null));
+        assertThat(merged.getEntityMap().size(), is(3));
+        assertThat(merged.conflictsWith(delta(3)), is(true));
+        assertThat(merged.conflictsWith(delta(4)), is(false));
+        assertThat(delta(1, 2).merge(delta(2)), is((Revision.Delta<Long>) null));
+    }
+
+    private static final Map<String, Entity.Reference> NO_BINDINGS = Collections.emptyMap();
+
+    private static final int MAX_REFERENCE = 8;
+
+    private static final List<String> NAMES = Arrays.asList("x", "y");
+
+    private static Revision<Long> revision(Map<String, Entity.Reference> bindings, long... pairs) {
+        return new Revision<Long>(bindings, entities(pairs));
+    }
+
+    /**
+     * 参照と識別子の組を並べた変更を返す。識別子が負の場合は削除を表す。
+     */
+    private static Revision.Delta<Long> change(long... pairs) {
+        return new Revision.Delta<Long>(NO_BINDINGS, entities(pairs));
+    }
+
+    /**
+     * 名前つき参照の変更を返す。参照が負の場合は削除を表す。
+     */
+    private static Revision.Delta<Long> rebind(String name, long reference) {
+        Map<String, Entity.Reference> bindings = new HashMap<String, Entity.Reference>();
+        bindings.put(name, reference < 0 ? null : new Entity.Reference(reference));
+        return new Revision.Delta<Long>(bindings, Collections.<Entity.Reference, Long>emptyMap());
+    }
+
+    private static Map<Entity.Reference, Long> entities(long... pairs) {
+        Map<Entity.Reference, Long> results = new HashMap<Entity.Reference, Long>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            results.put(new Entity.Reference(pairs[i]), pairs[i + 1] < 0 ? null : pairs[i + 1]);
+        }
+        return results;
+    }
+
+    private static Set<Entity.Reference> references(long... references) {
+        Set<Entity.Reference> results = new HashSet<Entity.Reference>();
+        for (long reference : references) {
+            results.add(new Entity.Reference(reference));
+        }
+        return results;
+    }
+
+    /**
+     * 指定の変更に含まれるエンティティへの参照を返す。
+     */
+    private static Set<Entity.Reference> changed(Revision.Delta<Long> delta) {
+        Set<Entity.Reference> results = new HashSet<Entity.Reference>();
+        for (long i = 0; i <= MAX_REFERENCE; i++) {
+            Set<Entity.Reference> probe = Collections.singleton(new Entity.Reference(i));
+            if (delta.conflictsWith(Collections.<String>emptySet(), probe)) {
+                results.addAll(probe);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 指定の変更に含まれる名前つき参照の名前を返す。
+     */
+    private static Set<String> rebound(Revision.Delta<Long> delta) {
+        Set<String> results = new HashSet<String>();
+        for (String name : NAMES) {
+            if (delta.conflictsWith(Collections.singleton(name), Collections.<Entity.Reference>emptySet())) {
+                results.add(name);
+            }
+        }
+        return results;
+    }
+
+    private static void assertSameContents(Revision<Long> actual, Revision<Long> expected) {
+        for (long i = 0; i <= MAX_REFERENCE; i++) {
+            Entity.Reference reference = new Entity.Reference(i);
+            assertThat(reference.toString(), actual.getId(reference), is(expected.getId(reference)));
+        }
+        for (String name : NAMES) {
+            assertThat(name, actual.getBinding(name), is(expected.getBinding(name)));
+        }
+    }
+
+    private static Revision.Delta<Long> delta(long... references) {
+        Map<Entity.Reference, Long> entities = new HashMap<Entity.Reference, Long>();
+        for (long reference : references) {
+            entities.put(new Entity.Reference(reference), reference);
+        }
+        return new Revision.Delta<Long>(Collections.<String, Entity.Reference>emptyMap(), entities);
+    }
+
+    private static Revision.Delta<Long> properties(long reference, String... names) {
+        Entity.Reference target = new Entity.Reference(reference);
+        return new Revision.Delta<Long>(
+                Collections.<String, Entity.Reference>emptyMap(),
+                Collections.singletonMap(target, reference),
+                Collections.<Entity.Reference, Set<String>>singletonMap(
+                        target,
+                        new HashSet<String>(Arrays.asList(names))));
+    }
+
+    private static Revision.Delta<Long> additions(long reference, String name) {
+        Entity.Reference target = new Entity.Reference(reference);
+        return new Revision.Delta<Long>(
+                Collections.<String, Entity.Reference>emptyMap(),
+                Collections.singletonMap(target, reference),
+                Collections.singletonMap(target, Collections.<String>emptySet()),
+                Collections.singletonMap(target, Collections.singletonMap(name, 1)));
+    }
+
+    private static Revision.Delta<Long> bind(String name) {
+        return new Revision.Delta<Long>(
+                Collections.singletonMap(name, new Entity.Reference(0)),
+                Collections.<Entity.Reference, Long>emptyMap());
+    }
+}
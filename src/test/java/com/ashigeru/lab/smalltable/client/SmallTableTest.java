@@ -0,0 +1,406 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.client;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.local.CommitStatistics;
+import com.ashigeru.lab.smalltable.local.LocalRepository;
+
+/**
+ * {@link SmallTable}と{@link StObject}のテスト。
+ * @author ashigeru
+ */
+public class SmallTableTest {
+
+    private LocalRepository repository;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        repository = new LocalRepository();
+        SmallTable table = open();
+        StObject counter = table.newObject();
+        counter.setInt("count", 0);
+        counter.setProperty("label", "counter");
+        table.setRootObject("counter", counter);
+        table.save();
+        table.close();
+    }
+
+    /**
+     * テストの後始末を行う。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        repository.close();
+    }
+
+    /**
+     * 同じプロパティへの加算どうしは衝突せず、保存時の最新の値に加算される。
+     */
+    @Test
+    public void addToProperty() {
+        SmallTable first = open();
+        SmallTable second = open();
+        first.getRootObject("counter").addToProperty("count", 1);
+        second.getRootObject("counter").addToProperty("count", 2);
+        first.save();
+        second.save();
+        assertThat(second.getRootObject("counter").getInt("count"), is(3));
+        first.close();
+        second.close();
+        assertThat(count(), is(3));
+    }
+
+    /**
+     * 加算は、同じプロパティへの値の設定とは衝突する。
+     */
+    @Test
+    public void addToProperty_conflict() {
+        SmallTable first = open();
+        SmallTable second = open();
+        first.getRootObject("counter").setInt("count", 10);
+        second.getRootObject("counter").addToProperty("count", 1);
+        first.save();
+        try {
+            second.save();
+            fail();
+        }
+        catch (ConcurrentModificationException e) {
+            // ok.
+        }
+        first.close();
+        second.close();
+        assertThat(count(), is(10));
+    }
+
+    /**
+     * 値を設定した後の加算は、設定した値に対して行われる。
+     */
+    @Test
+    public void addToProperty_afterSet() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        counter.setInt("count", 5);
+        counter.addToProperty("count", 2);
+        assertThat(counter.getInt("count"), is(7));
+        table.save();
+        table.close();
+        assertThat(count(), is(7));
+    }
+
+    /**
+     * 整数以外のプロパティには加算できない。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void addToProperty_notInteger() {
+        SmallTable table = open();
+        try {
+            table.getRootObject("counter").addToProperty("label", 1);
+        }
+        finally {
+            table.close();
+        }
+    }
+
+    /**
+     * 多数のスレッドが並行して同じプロパティに加算しても、衝突せずにすべて取り込まれる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void addToProperty_concurrent() throws Exception {
+        final int threadCount = 8;
+        final int perThread = 300;
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            SmallTable table = open();
+                            table.getRootObject("counter").addToProperty("count", 1);
+                            table.save();
+                            table.close();
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        assertThat(count(), is(threadCount * perThread));
+        CommitStatistics statistics = repository.getCommitStatistics();
+        assertThat(statistics.getConflicts(), is(0L));
+    }
+
+    /**
+     * 保存した後もテーブルを継続して利用でき、変更されていないオブジェクトはそのまま再利用される。
+     */
+    @Test
+    public void save_continue() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        StObject created = table.newObject();
+        created.setInt("value", 1);
+        table.setRootObject("created", created);
+        table.save();
+
+        // 保存したオブジェクトも、保存していないオブジェクトも同じインスタンスのまま利用できる
+        assertThat(table.getRootObject("counter"), sameInstance(counter));
+        assertThat(table.getRootObject("created"), sameInstance(created));
+        assertThat(created.getInt("value"), is(1));
+
+        created.addToProperty("value", 1);
+        table.save();
+        assertThat(created.getInt("value"), is(2));
+        table.close();
+
+        SmallTable reader = open();
+        assertThat(reader.getRootObject("created").getInt("value"), is(2));
+        reader.close();
+    }
+
+    /**
+     * 保存した時点で、他のテーブルが変更していたオブジェクトは最新の内容に更新される。
+     */
+    @Test
+    public void save_refresh() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        assertThat(counter.getInt("count"), is(0));
+
+        SmallTable other = open();
+        other.getRootObject("counter").setInt("count", 5);
+        other.save();
+        other.close();
+        assertThat(counter.getInt("count"), is(0));
+
+        StObject created = table.newObject();
+        table.setRootObject("created", created);
+        table.save();
+        assertThat(table.getRootObject("counter"), sameInstance(counter));
+        assertThat(counter.getInt("count"), is(5));
+        assertThat(counter.isModified(), is(false));
+
+        // 更新されたオブジェクトへの変更も、以降の保存で衝突しない
+        counter.addToProperty("count", 1);
+        counter.setProperty("label", "changed");
+        table.save();
+        table.close();
+        assertThat(count(), is(6));
+    }
+
+    /**
+     * 継続して利用する多数のテーブルから並行して保存しても、
+     * それぞれのテーブルは他のテーブルが保存した内容を順に取り込み続ける。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void save_continue_concurrent() throws Exception {
+        final int threadCount = 8;
+        final int perThread = 300;
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final String name = "worker" + i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        SmallTable table = open();
+                        StObject counter = table.getRootObject("counter");
+                        int last = counter.getInt("count");
+                        for (int j = 1; j <= perThread; j++) {
+                            counter.addToProperty("count", 1);
+                            counter.setInt(name, j);
+                            table.save();
+
+                            // 他のテーブルの加算を取り込むため、少なくとも自身の加算の分は増え続ける
+                            assertThat(table.getRootObject("counter"), sameInstance(counter));
+                            int current = counter.getInt("count");
+                            assertThat(current, greaterThan(last));
+                            assertThat(counter.getInt(name), is(j));
+                            last = current;
+                        }
+                        table.close();
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        assertThat(count(), is(threadCount * perThread));
+        SmallTable reader = open();
+        for (int i = 0; i < threadCount; i++) {
+            assertThat(reader.getRootObject("counter").getInt("worker" + i), is(perThread));
+        }
+        reader.close();
+    }
+
+    /**
+     * {@code Integer}で設定した値も、整数として取り出せる。
+     */
+    @Test
+    public void getInt() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        counter.setProperty("boxed", Integer.valueOf(3));
+        assertThat(counter.getInt("boxed"), is(3));
+        assertThat(counter.getProperty("boxed"), is((Object) 3));
+        assertThat(counter.getInt("missing"), is(0));
+        table.save();
+        table.close();
+
+        SmallTable reader = open();
+        assertThat(reader.getRootObject("counter").getInt("boxed"), is(3));
+        assertThat(reader.getRootObject("counter").getInt("count"), is(0));
+        reader.close();
+    }
+
+    /**
+     * 整数以外のプロパティは、整数として取り出せない。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void getInt_notInteger() {
+        SmallTable table = open();
+        try {
+            table.getRootObject("counter").getInt("label");
+        }
+        finally {
+            table.close();
+        }
+    }
+
+    /**
+     * 文字列のプロパティを取り出す。
+     */
+    @Test
+    public void getString() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        assertThat(counter.getString("label"), is("counter"));
+        assertThat(counter.getString("missing"), is((String) null));
+        counter.setProperty("label", "changed");
+        assertThat(counter.getString("label"), is("changed"));
+        counter.setProperty("label", null);
+        assertThat(counter.getString("label"), is((String) null));
+        try {
+            counter.getString("count");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+        table.close();
+    }
+
+    /**
+     * オブジェクトを参照するプロパティから、参照先のオブジェクトを取り出す。
+     */
+    @Test
+    public void getObject() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        StObject child = table.newObject();
+        child.setProperty("label", "child");
+        counter.setProperty("child", child);
+        assertThat(counter.getObject("child").getString("label"), is("child"));
+        assertThat(counter.getObject("missing"), is((StObject) null));
+        table.save();
+        table.close();
+
+        SmallTable reader = open();
+        StObject restored = reader.getRootObject("counter");
+        assertThat(restored.getObject("child").getString("label"), is("child"));
+        try {
+            restored.getObject("label");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+        try {
+            restored.getObject("count");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+        reader.close();
+    }
+
+    /**
+     * 削除したプロパティへの加算は、{@code 0}に対して行われる。
+     */
+    @Test
+    public void addToProperty_afterDelete() {
+        SmallTable table = open();
+        StObject counter = table.getRootObject("counter");
+        counter.setProperty("count", null);
+        assertThat(counter.getProperty("count"), is((Object) null));
+        counter.addToProperty("count", 4);
+        assertThat(counter.getInt("count"), is(4));
+        table.save();
+        table.close();
+        assertThat(count(), is(4));
+    }
+
+    private SmallTable open() {
+        return new SmallTable(repository.createSession());
+    }
+
+    private int count() {
+        SmallTable table = open();
+        try {
+            return table.getRootObject("counter").getInt("count");
+        }
+        finally {
+            table.close();
+        }
+    }
+}
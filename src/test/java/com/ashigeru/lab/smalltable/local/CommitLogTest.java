@@ -0,0 +1,389 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+
+/**
+ * {@link CommitLog}のテスト。
+ * @author ashigeru
+ */
+public class CommitLogTest {
+
+    /**
+     * 一時フォルダ。
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File logFile;
+
+    private File checkpoint;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        logFile = new File(folder.getRoot(), "commit.log");
+        checkpoint = new File(folder.getRoot(), "checkpoint");
+    }
+
+    /**
+     * ログのみから復元する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void recover() throws Exception {
+        LocalRepository repository = open();
+        Entity.Reference a = put(repository, null, "a", "1");
+        put(repository, null, "b", "2");
+        put(repository, a, "a", "3");
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        put(repository, "dev", a, "a", "4");
+        repository.close();
+
+        LocalRepository restored = open();
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "3"));
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "b"), is((Object) "2"));
+        assertThat(get(restored, "dev", "a"), is((Object) "4"));
+        restored.close();
+    }
+
+    /**
+     * 書き込みの途中で途切れた末尾のレコードは切り詰められる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void torn_tail() throws Exception {
+        LocalRepository repository = open();
+        Entity.Reference a = put(repository, null, "a", "1");
+        repository.close();
+        long committed = logFile.length();
+
+        repository = open();
+        put(repository, a, "a", "2");
+        repository.close();
+        assertThat(logFile.length(), greaterThan(committed));
+
+        // 最後のレコードの途中で途切れさせる
+        truncate(logFile.length() - 3);
+
+        LocalRepository restored = open();
+        assertThat(logFile.length(), is(committed));
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "1"));
+
+        // 切り詰めた後に追記したレコードも復元できる
+        put(restored, a, "a", "3");
+        restored.close();
+
+        LocalRepository again = open();
+        assertThat(get(again, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "3"));
+        again.close();
+    }
+
+    /**
+     * 検査に失敗する末尾の内容は切り詰められる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void corrupt_tail() throws Exception {
+        LocalRepository repository = open();
+        put(repository, null, "a", "1");
+        repository.close();
+        long committed = logFile.length();
+
+        OutputStream output = new FileOutputStream(logFile, true);
+        try {
+            output.write(new byte[] { 0, 0, 0, 4, 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 9, 1, 2, 3, 4 });
+        }
+        finally {
+            output.close();
+        }
+
+        LocalRepository restored = open();
+        assertThat(logFile.length(), is(committed));
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "1"));
+        restored.close();
+    }
+
+    /**
+     * チェックポイントに含まれるレコードはログから取り除かれ、それ以降のレコードのみが適用される。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void checkpoint_cutoff() throws Exception {
+        LocalRepository repository = open();
+        Entity.Reference a = put(repository, null, "a", "1");
+        put(repository, a, "a", "2");
+        long before = logFile.length();
+        repository.checkpoint(checkpoint);
+        assertThat(checkpoint.exists(), is(true));
+        assertThat(logFile.length(), lessThan(before));
+
+        put(repository, a, "a", "3");
+        put(repository, null, "b", "4");
+        repository.close();
+
+        LocalRepository restored = open();
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "3"));
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "b"), is((Object) "4"));
+        restored.close();
+    }
+
+    /**
+     * チェックポイントより前のレコードがログに残っていても、重ねて適用しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void checkpoint_stale_log() throws Exception {
+        LocalRepository repository = open();
+        Entity.Reference a = put(repository, null, "a", "1");
+        put(repository, a, "a", "2");
+        repository.close();
+        File saved = new File(folder.getRoot(), "saved.log");
+        copy(logFile, saved);
+
+        repository = open();
+        put(repository, a, "a", "3");
+        repository.checkpoint(checkpoint);
+        repository.close();
+
+        // チェックポイントに含まれる古いレコードのみを残したログに戻す
+        copy(saved, logFile);
+        LocalRepository restored = open();
+        assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "3"));
+        put(restored, a, "a", "4");
+        restored.close();
+
+        LocalRepository again = open();
+        assertThat(get(again, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "4"));
+        again.close();
+    }
+
+    /**
+     * 同じログから繰り返し復元しても、同じ結果となる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void replay_idempotent() throws Exception {
+        LocalRepository repository = open();
+        Entity.Reference a = put(repository, null, "a", "1");
+        put(repository, a, "a", "2");
+        put(repository, null, "b", "3");
+        repository.close();
+        long length = logFile.length();
+
+        for (int i = 0; i < 3; i++) {
+            LocalRepository restored = open();
+            assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "2"));
+            assertThat(get(restored, LocalRepository.DEFAULT_BRANCH, "b"), is((Object) "3"));
+            restored.close();
+            assertThat(logFile.length(), is(length));
+        }
+    }
+
+    /**
+     * 永続化された格納先に、ログの内容がすでに書き出されている状態から復元する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void replay_into_persisted_store() throws Exception {
+        File directory = new File(folder.getRoot(), "repository");
+        LocalRepository repository = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        Entity.Reference a = put(repository, null, "a", "1");
+        put(repository, a, "a", "2");
+        repository.close();
+
+        // 閉じずに異常終了した状態を繰り返す
+        LocalRepository crashed = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        assertThat(get(crashed, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "2"));
+        put(crashed, a, "a", "3");
+
+        LocalRepository again = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        assertThat(get(again, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "3"));
+        put(again, null, "b", "4");
+
+        LocalRepository last = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        assertThat(get(last, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "3"));
+        assertThat(get(last, LocalRepository.DEFAULT_BRANCH, "b"), is((Object) "4"));
+        last.close();
+    }
+
+    /**
+     * 書き出しに失敗した後は追記しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void sync_failure() throws Exception {
+        CommitLog log = CommitLog.open(logFile, CommitLog.Sync.PERIODIC, 1, TimeUnit.HOURS);
+        LocalRepository repository = LocalRepository.recover(checkpoint, log);
+        Entity.Reference a = put(repository, null, "a", "1");
+
+        // 割り込まれたスレッドでの書き出しは失敗する
+        IOException failure = null;
+        Thread.currentThread().interrupt();
+        try {
+            log.flush();
+            fail();
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        finally {
+            Thread.interrupted();
+        }
+        try {
+            put(repository, a, "a", "2");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getCause(), sameInstance((Throwable) failure));
+        }
+        assertThat(get(repository, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "1"));
+        try {
+            repository.close();
+        }
+        catch (IOException e) {
+            // ok.
+        }
+    }
+
+    /**
+     * ログの形式でないファイル。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IOException.class)
+    public void not_a_log() throws Exception {
+        OutputStream output = new FileOutputStream(logFile);
+        try {
+            output.write("this is not a commit log".getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+        CommitLog.open(logFile, CommitLog.Sync.COMMIT);
+    }
+
+    private LocalRepository open() throws IOException {
+        CommitLog log = CommitLog.open(logFile, CommitLog.Sync.COMMIT);
+        boolean succeed = false;
+        try {
+            LocalRepository repository = LocalRepository.recover(checkpoint, log);
+            succeed = true;
+            return repository;
+        }
+        finally {
+            if (succeed == false) {
+                log.close();
+            }
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.setLength(length);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[4096];
+                while (true) {
+                    int read = input.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    output.write(buffer, 0, read);
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private static Entity.Reference put(
+            LocalRepository repository,
+            Entity.Reference reference,
+            String name,
+            String value) {
+        return put(repository, LocalRepository.DEFAULT_BRANCH, reference, name, value);
+    }
+
+    private static Entity.Reference put(
+            LocalRepository repository,
+            String branch,
+            Entity.Reference reference,
+            String name,
+            String value) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity.Reference target = reference;
+            if (target == null) {
+                target = session.allocateReference();
+                session.bind(name, target);
+            }
+            session.save(Collections.singleton(new Modification(
+                    Entity.Builder.create(target).add("value", value).toEntity())));
+            return target;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static Object get(LocalRepository repository, String branch, String name) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity.Reference reference = session.getBound(name);
+            assertThat(reference, not((Entity.Reference) null));
+            return session.resolve(reference).getProperty("value");
+        }
+        finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+
+/**
+ * {@link EntityIndex}のテスト。
+ * @author ashigeru
+ */
+public class EntityIndexTest {
+
+    private LocalEntityStore store;
+
+    private EntityIndex index;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        store = new LocalEntityStore();
+        index = new EntityIndex(store);
+    }
+
+    /**
+     * 登録したエンティティと同一の内容をもつエンティティに対して、その識別子を返す。
+     */
+    @Test
+    public void acquire() {
+        synchronized (index) {
+            assertThat(index.isEmpty(), is(true));
+            assertThat(index.acquire(entity(1, "a")), is((LocalEntityId) null));
+
+            LocalEntityId id = register(10, entity(1, "a"));
+            assertThat(index.isEmpty(), is(false));
+            assertThat(index.contains(id), is(true));
+            assertThat(index.contains(new LocalEntityId(11)), is(false));
+
+            assertThat(index.acquire(entity(1, "a")), is(id));
+            assertThat(index.acquire(entity(1, "b")), is((LocalEntityId) null));
+            assertThat(index.acquire(entity(2, "a")), is((LocalEntityId) null));
+        }
+    }
+
+    /**
+     * ハッシュ値が衝突しても、内容が同一のエンティティのみを返す。
+     */
+    @Test
+    public void acquire_collision() {
+        synchronized (index) {
+            // "Aa" と "BB" は同じハッシュ値をもつ
+            assertThat("Aa".hashCode(), is("BB".hashCode()));
+            LocalEntityId aa = register(10, entity(1, "Aa"));
+            LocalEntityId bb = register(11, entity(1, "BB"));
+            assertThat(entity(1, "Aa").hashCode(), is(entity(1, "BB").hashCode()));
+            assertThat(index.acquire(entity(1, "Aa")), is(aa));
+            assertThat(index.acquire(entity(1, "BB")), is(bb));
+        }
+    }
+
+    /**
+     * 利用者がすべて利用を終了するまで、エンティティは利用中となる。
+     */
+    @Test
+    public void release() {
+        synchronized (index) {
+            LocalEntityId id = register(10, entity(1, "a"));
+            assertThat(index.acquire(entity(1, "a")), is(id));
+            assertThat(index.isUsed(id), is(true));
+
+            // 利用者は 2 つ
+            assertThat(index.release(id, true), is(false));
+            assertThat(index.isUsed(id), is(true));
+            assertThat(index.release(id, false), is(false));
+            assertThat(index.isUsed(id), is(false));
+
+            // 一度コミットされたエンティティは、利用者がいなくなっても索引に残る
+            assertThat(index.contains(id), is(true));
+            assertThat(index.acquire(entity(1, "a")), is(id));
+            assertThat(index.isUsed(id), is(true));
+            assertThat(index.release(id, false), is(false));
+            assertThat(index.contains(id), is(true));
+        }
+    }
+
+    /**
+     * 一度もコミットされずに利用者がいなくなったエンティティは、索引から取り除かれる。
+     */
+    @Test
+    public void release_discard() {
+        synchronized (index) {
+            LocalEntityId id = register(10, entity(1, "a"));
+            assertThat(index.acquire(entity(1, "a")), is(id));
+            assertThat(index.release(id, false), is(false));
+            assertThat(index.release(id, false), is(true));
+            assertThat(index.contains(id), is(false));
+            assertThat(index.isUsed(id), is(false));
+            assertThat(index.isEmpty(), is(true));
+            assertThat(index.acquire(entity(1, "a")), is((LocalEntityId) null));
+        }
+    }
+
+    /**
+     * 回収したエンティティを索引から取り除く。
+     */
+    @Test
+    public void remove() {
+        synchronized (index) {
+            LocalEntityId first = register(10, entity(1, "a"));
+            LocalEntityId second = register(11, entity(2, "a"));
+            index.release(first, true);
+            index.release(second, true);
+
+            index.remove(first);
+            assertThat(index.contains(first), is(false));
+            assertThat(index.acquire(entity(1, "a")), is((LocalEntityId) null));
+            assertThat(index.isEmpty(), is(false));
+
+            // 登録されていない識別子は無視する
+            index.remove(first);
+            index.remove(new LocalEntityId(99));
+
+            assertThat(index.acquire(entity(2, "a")), is(second));
+            index.release(second, false);
+            index.remove(second);
+            assertThat(index.isEmpty(), is(true));
+        }
+    }
+
+    private LocalEntityId register(long id, Entity entity) {
+        store.put(id, entity);
+        LocalEntityId result = new LocalEntityId(id);
+        index.register(result, entity);
+        return result;
+    }
+
+    private static Entity entity(long reference, String value) {
+        return Entity.Builder.create(new Entity.Reference(reference)).add("value", value).toEntity();
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link GroupCommitter}のテスト。
+ * @author ashigeru
+ */
+public class GroupCommitterTest {
+
+    private AtomicReference<Revision<LocalEntityId>> head;
+
+    private AtomicInteger failures;
+
+    private volatile Revision<LocalEntityId> intruder;
+
+    private volatile Entity.Reference unresolvable;
+
+    private List<LocalEntityId> resolved;
+
+    private List<LocalEntityId> discarded;
+
+    private GroupCommitter committer;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        head = new AtomicReference<Revision<LocalEntityId>>(new Revision<LocalEntityId>(
+                Collections.<String, Entity.Reference>emptyMap(),
+                LocalReferenceTable.empty()));
+        failures = new AtomicInteger();
+        resolved = Collections.synchronizedList(new ArrayList<LocalEntityId>());
+        discarded = Collections.synchronizedList(new ArrayList<LocalEntityId>());
+        final AtomicLong nextId = new AtomicLong(10000);
+        committer = new GroupCommitter(head, new GroupCommitter.Resolver() {
+            @Override
+            public LocalEntityId rebase(
+                    Entity.Reference reference,
+                    LocalEntityId base,
+                    LocalEntityId modified,
+                    Set<String> properties,
+                    Map<String, Integer> additions) {
+                if (reference.equals(unresolvable)) {
+                    throw new IllegalStateException("rebase");
+                }
+                LocalEntityId result = new LocalEntityId(nextId.incrementAndGet());
+                resolved.add(result);
+                return result;
+            }
+            @Override
+            public void discard(List<LocalEntityId> ids) {
+                discarded.addAll(ids);
+            }
+        }, new GroupCommitter.Listener() {
+            @Override
+            public void committing(Revision<LocalEntityId> revision) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("committing");
+                }
+                Revision<LocalEntityId> other = intruder;
+                if (other != null) {
+                    // 代表者以外が最新のリビジョンを書き換えた状態にする
+                    head.set(other);
+                }
+            }
+            @Override
+            public void committed(Revision<LocalEntityId> revision) {
+                return;
+            }
+        });
+    }
+
+    /**
+     * 単純なコミット。
+     */
+    @Test
+    public void commit() {
+        Revision<LocalEntityId> source = head.get();
+        Revision<LocalEntityId> result = committer.commit(source, delta(1, 100));
+        assertThat(result, not((Revision<LocalEntityId>) null));
+        assertThat(head.get(), sameInstance(result));
+        assertThat(result.getId(new Entity.Reference(1)), is(new LocalEntityId(100)));
+
+        // 同じ開始リビジョンからの同じ参照への変更は衝突する
+        assertThat(committer.commit(source, delta(1, 101)), is((Revision<LocalEntityId>) null));
+        assertThat(committer.getStatistics().getConflicts(), is(1L));
+    }
+
+    /**
+     * 同時に到着したコミット要求は、ひとつのリビジョンにまとめられる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void commit_batch() throws Exception {
+        Revision<LocalEntityId> source = head.get();
+        List<Committer> threads = new ArrayList<Committer>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Committer(source, delta(i, 100 + i)));
+        }
+        List<Committer> conflicted = new ArrayList<Committer>();
+        for (int i = 0; i < 8; i++) {
+            conflicted.add(new Committer(source, delta(i, 200 + i)));
+        }
+        runBatch(threads, conflicted);
+
+        // 先に積まれた要求はすべて同じリビジョンとなり、後から積まれた同じ参照への変更は衝突する
+        Revision<LocalEntityId> result = head.get();
+        for (int i = 0; i < 8; i++) {
+            assertThat(threads.get(i).result, sameInstance(result));
+            assertThat(conflicted.get(i).result, is((Revision<LocalEntityId>) null));
+            assertThat(conflicted.get(i).failure, is((Throwable) null));
+        }
+        CommitStatistics statistics = committer.getStatistics();
+        assertThat(statistics.getCommits(), is(8L));
+        assertThat(statistics.getConflicts(), is(8L));
+        assertThat(statistics.getRevisions(), is(1L));
+    }
+
+    /**
+     * 登録前の通知に失敗した場合は、まだ完了していない要求のみを失敗させる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void commit_committing_failure() throws Exception {
+        Revision<LocalEntityId> stale = head.get();
+        committer.commit(stale, delta(1, 100));
+        Revision<LocalEntityId> current = head.get();
+
+        // 代表者がどちらになっても、衝突した要求は衝突として、受理した要求は失敗として返る
+        for (int i = 0; i < 20; i++) {
+            failures.set(1);
+            Committer conflicted = new Committer(stale, delta(1, 101));
+            Committer failed = new Committer(current, delta(2, 102));
+            runBatch(Collections.singletonList(conflicted), Collections.singletonList(failed));
+            assertThat(conflicted.failure, is((Throwable) null));
+            assertThat(conflicted.result, is((Revision<LocalEntityId>) null));
+            assertThat(failed.failure, not((Throwable) null));
+            assertThat(failed.failure.getMessage(), is("committing"));
+            assertThat(head.get(), sameInstance(current));
+        }
+
+        // 失敗した後も、引き続きコミットできる
+        assertThat(committer.commit(current, delta(2, 102)), not((Revision<LocalEntityId>) null));
+    }
+
+    /**
+     * 代表者以外に最新のリビジョンを書き換えられた場合は、登録せずにすべての要求を失敗させる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void commit_lost_cas() throws Exception {
+        Revision<LocalEntityId> source = head.get();
+        Revision<LocalEntityId> other = source.apply(delta(9, 900));
+        intruder = other;
+        List<Committer> threads = new ArrayList<Committer>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Committer(source, delta(i, 100 + i)));
+        }
+        runBatch(threads, Collections.<Committer>emptyList());
+        for (Committer thread : threads) {
+            assertThat(thread.result, is((Revision<LocalEntityId>) null));
+            assertThat(thread.failure, not((Throwable) null));
+            assertThat(thread.failure instanceof IllegalStateException, is(true));
+        }
+        assertThat(head.get(), sameInstance(other));
+        assertThat(committer.getStatistics().getCommits(), is(0L));
+    }
+
+    /**
+     * 変更の取り込みに失敗した場合は、その要求のみを失敗させ、取り込みかけたエンティティを破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void commit_rebase_failure() throws Exception {
+        Revision<LocalEntityId> original = committer.commit(head.get(), delta(new long[] { 3, 4 }, new long[] { 30, 40 }));
+        Revision<LocalEntityId> current = committer.commit(original, properties(new long[] { 3, 4 }, new long[] { 31, 41 }, "a"));
+        unresolvable = new Entity.Reference(4);
+
+        // 参照3の取り込みに成功した後、参照4の取り込みに失敗する
+        Committer first = new Committer(current, delta(5, 105));
+        Committer failed = new Committer(original, properties(new long[] { 3, 4 }, new long[] { 32, 42 }, "b"));
+        Committer last = new Committer(current, delta(6, 106));
+        runBatch(Collections.singletonList(first), Arrays.asList(failed, last));
+
+        assertThat(failed.result, is((Revision<LocalEntityId>) null));
+        assertThat(failed.failure, not((Throwable) null));
+        assertThat(failed.failure.getMessage(), is("rebase"));
+        assertThat(resolved.size(), is(1));
+        assertThat(discarded, is(resolved));
+
+        Revision<LocalEntityId> result = head.get();
+        assertThat(first.failure, is((Throwable) null));
+        assertThat(first.result, sameInstance(result));
+        assertThat(last.failure, is((Throwable) null));
+        assertThat(last.result, sameInstance(result));
+        assertThat(result.getId(new Entity.Reference(3)), is(new LocalEntityId(31)));
+        assertThat(result.getId(new Entity.Reference(4)), is(new LocalEntityId(41)));
+        assertThat(result.getId(new Entity.Reference(5)), is(new LocalEntityId(105)));
+        assertThat(result.getId(new Entity.Reference(6)), is(new LocalEntityId(106)));
+        assertThat(committer.getStatistics().getCommits(), is(4L));
+    }
+
+    /**
+     * 多数のスレッドから並行してコミットしても、受理された変更はすべて最新のリビジョンに含まれる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void commit_concurrent() throws Exception {
+        final int threadCount = 8;
+        final int perThread = 500;
+        final AtomicInteger conflicts = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            // 共有の参照と自身の参照を同時に変更し、共有の参照で衝突させる
+                            long id = (long) index * perThread + j + 1;
+                            while (true) {
+                                Revision<LocalEntityId> source = head.get();
+                                Revision<LocalEntityId> result = committer.commit(source, delta(
+                                        new long[] { 1000 + id, 0 },
+                                        new long[] { id, id }));
+                                if (result != null) {
+                                    assertThat(result.getId(new Entity.Reference(1000 + id)), is(new LocalEntityId(id)));
+                                    break;
+                                }
+                                conflicts.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        Revision<LocalEntityId> result = head.get();
+        for (long id = 1; id <= threadCount * perThread; id++) {
+            assertThat(result.getId(new Entity.Reference(1000 + id)), is(new LocalEntityId(id)));
+        }
+        CommitStatistics statistics = committer.getStatistics();
+        assertThat(statistics.getCommits(), is((long) threadCount * perThread));
+        assertThat(statistics.getConflicts(), is((long) conflicts.get()));
+        assertThat(statistics.getRevisions(), is((long) threadCount * perThread));
+    }
+
+    /**
+     * 代表者を締め出した状態で指定のスレッドにコミット要求を積ませ、締め出しを解除してまとめて処理させる。
+     */
+    private void runBatch(List<Committer> first, List<Committer> second) throws InterruptedException {
+        List<Committer> all = new ArrayList<Committer>(first);
+        all.addAll(second);
+        committer.lock();
+        try {
+            for (Committer thread : first) {
+                thread.start();
+                awaitParked(thread);
+            }
+            for (Committer thread : second) {
+                thread.start();
+                awaitParked(thread);
+            }
+        }
+        finally {
+            committer.unlock();
+        }
+        for (Committer thread : all) {
+            thread.join(10000);
+            assertThat(thread.isAlive(), is(false));
+        }
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static Revision.Delta<LocalEntityId> delta(long reference, long id) {
+        return delta(new long[] { reference }, new long[] { id });
+    }
+
+    private static Revision.Delta<LocalEntityId> delta(long[] references, long[] ids) {
+        Map<Entity.Reference, LocalEntityId> entities = new HashMap<Entity.Reference, LocalEntityId>();
+        for (int i = 0; i < references.length; i++) {
+            entities.put(new Entity.Reference(references[i]), new LocalEntityId(ids[i]));
+        }
+        return new Revision.Delta<LocalEntityId>(Collections.<String, Entity.Reference>emptyMap(), entities);
+    }
+
+    private static Revision.Delta<LocalEntityId> properties(long[] references, long[] ids, String name) {
+        Map<Entity.Reference, LocalEntityId> entities = new HashMap<Entity.Reference, LocalEntityId>();
+        Map<Entity.Reference, Set<String>> properties = new HashMap<Entity.Reference, Set<String>>();
+        for (int i = 0; i < references.length; i++) {
+            entities.put(new Entity.Reference(references[i]), new LocalEntityId(ids[i]));
+            properties.put(new Entity.Reference(references[i]), Collections.singleton(name));
+        }
+        return new Revision.Delta<LocalEntityId>(
+                Collections.<String, Entity.Reference>emptyMap(),
+                entities,
+                properties);
+    }
+
+    private class Committer extends Thread {
+
+        private final Revision<LocalEntityId> source;
+
+        private final Revision.Delta<LocalEntityId> delta;
+
+        volatile Revision<LocalEntityId> result;
+
+        volatile Throwable failure;
+
+        Committer(Revision<LocalEntityId> source, Revision.Delta<LocalEntityId> delta) {
+            this.source = source;
+            this.delta = delta;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = committer.commit(source, delta);
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+
+/**
+ * {@link IncrementalCheckpoint}のテスト。
+ * @author ashigeru
+ */
+public class IncrementalCheckpointTest {
+
+    /**
+     * 一時フォルダ。
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File logFile;
+
+    private File base;
+
+    private File increments;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        logFile = new File(folder.getRoot(), "commit.log");
+        base = new File(folder.getRoot(), "checkpoint");
+        increments = IncrementalCheckpoint.getFile(base);
+    }
+
+    /**
+     * 二回目以降のチェックポイントは基点を書き換えず、変更のみを差分のファイルに追記する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void append() throws Exception {
+        LocalRepository repository = recover();
+        List<Entity.Reference> counters = create(repository, 50);
+        repository.checkpoint(base);
+        byte[] written = read(base);
+        assertThat(increments.exists(), is(false));
+
+        set(repository, counters.get(3), 100);
+        repository.checkpoint(base);
+        long first = increments.length();
+        assertThat(first, greaterThan(0L));
+        assertThat(first, lessThan((long) written.length));
+
+        set(repository, counters.get(4), 200);
+        repository.checkpoint(base);
+        assertThat(increments.length(), greaterThan(first));
+        assertThat(Arrays.equals(read(base), written), is(true));
+
+        // 差分を書き出した後の変更は、ログから復元される
+        set(repository, counters.get(5), 300);
+        repository.close();
+
+        LocalRepository restored = recover();
+        try {
+            for (int i = 0; i < counters.size(); i++) {
+                int expected = i == 3 ? 100 : i == 4 ? 200 : i == 5 ? 300 : i;
+                assertThat(valueOf(restored, counters.get(i)), is(expected));
+            }
+        }
+        finally {
+            restored.close();
+        }
+    }
+
+    /**
+     * 差分には、前回のチェックポイント以降に作成したブランチと取り込みの基点も含まれる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void append_branches() throws Exception {
+        LocalRepository repository = recover();
+        List<Entity.Reference> counters = create(repository, 10);
+        repository.checkpoint(base);
+
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        set(repository, "dev", counters.get(0), 10);
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+        set(repository, "dev", counters.get(1), 11);
+        repository.checkpoint(base);
+        assertThat(increments.length(), greaterThan(0L));
+        repository.close();
+
+        LocalRepository restored = recover();
+        try {
+            assertThat(restored.getBranchNames().contains("dev"), is(true));
+            assertThat(valueOf(restored, counters.get(0)), is(10));
+            assertThat(valueOf(restored, counters.get(1)), is(1));
+            assertThat(valueOf(restored, "dev", counters.get(1)), is(11));
+
+            // 復元した取り込みの基点により、前回の取り込み以降の変更のみを取り込む
+            set(restored, counters.get(2), 12);
+            assertThat(restored.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+            assertThat(valueOf(restored, counters.get(1)), is(11));
+            assertThat(valueOf(restored, counters.get(2)), is(12));
+        }
+        finally {
+            restored.close();
+        }
+    }
+
+    /**
+     * 差分の合計が基点より大きくなると、基点を書き出しなおして差分を破棄する。
+     * 破棄した古い差分が残っていても、新しい基点には適用しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void consolidate() throws Exception {
+        LocalRepository repository = recover();
+        List<Entity.Reference> counters = create(repository, 20);
+        repository.checkpoint(base);
+
+        File stale = new File(folder.getRoot(), "stale");
+        boolean consolidated = false;
+        for (int round = 1; round <= 100 && consolidated == false; round++) {
+            long before = increments.exists() ? increments.length() : 0L;
+            if (before > 0) {
+                copy(increments, stale, before);
+            }
+            for (Entity.Reference counter : counters) {
+                set(repository, counter, round * 1000 + valueOf(repository, counter) % 1000);
+            }
+            repository.checkpoint(base);
+            consolidated = increments.exists() == false;
+            if (consolidated == false) {
+                assertThat(increments.length(), greaterThan(before));
+            }
+        }
+        assertThat(consolidated, is(true));
+        List<Integer> expected = new ArrayList<Integer>();
+        for (Entity.Reference counter : counters) {
+            expected.add(valueOf(repository, counter));
+        }
+        repository.close();
+
+        // 書き出しなおす前の差分を戻しても、刻印が異なるため無視される
+        copy(stale, increments, stale.length());
+        LocalRepository restored = recover();
+        try {
+            for (int i = 0; i < counters.size(); i++) {
+                assertThat(valueOf(restored, counters.get(i)), is(expected.get(i)));
+            }
+        }
+        finally {
+            restored.close();
+        }
+    }
+
+    /**
+     * 途中で途切れた末尾の差分は無視し、それ以降の差分は正しく書き出された位置から追記する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void truncated() throws Exception {
+        LocalRepository repository = recover();
+        List<Entity.Reference> counters = create(repository, 10);
+        repository.checkpoint(base);
+        set(repository, counters.get(0), 100);
+        repository.checkpoint(base);
+        long valid = increments.length();
+        set(repository, counters.get(1), 101);
+        repository.checkpoint(base);
+        repository.close();
+
+        // 最後の差分の途中で途切れさせる (ログからは取り除かれているため、その変更は失われる)
+        truncate(increments, increments.length() - 3);
+
+        LocalRepository restored = recover();
+        assertThat(valueOf(restored, counters.get(0)), is(100));
+        assertThat(valueOf(restored, counters.get(1)), is(1));
+        set(restored, counters.get(2), 102);
+        restored.checkpoint(base);
+        assertThat(increments.length(), greaterThan(valid));
+        restored.close();
+
+        LocalRepository again = recover();
+        try {
+            assertThat(valueOf(again, counters.get(0)), is(100));
+            assertThat(valueOf(again, counters.get(1)), is(1));
+            assertThat(valueOf(again, counters.get(2)), is(102));
+        }
+        finally {
+            again.close();
+        }
+    }
+
+    /**
+     * 差分のファイルでないものは適用できない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IOException.class)
+    public void invalid() throws Exception {
+        LocalRepository repository = recover();
+        create(repository, 1);
+        repository.checkpoint(base);
+        repository.close();
+
+        RandomAccessFile file = new RandomAccessFile(increments, "rw");
+        try {
+            file.write(new byte[] { 'N', 'O', 'P', 'E', 1, 0, 0, 0, 0, 0, 0, 0, 0 });
+        }
+        finally {
+            file.close();
+        }
+        recover();
+    }
+
+    private LocalRepository recover() throws IOException {
+        CommitLog log = CommitLog.open(logFile, CommitLog.Sync.COMMIT);
+        boolean succeed = false;
+        try {
+            LocalRepository repository = LocalRepository.recover(base, log);
+            succeed = true;
+            return repository;
+        }
+        finally {
+            if (succeed == false) {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * 自身の番号を値にもつカウンタを指定の個数だけ作成する。
+     */
+    private static List<Entity.Reference> create(LocalRepository repository, int count) {
+        List<Entity.Reference> results = new ArrayList<Entity.Reference>();
+        LocalSession session = repository.createSession();
+        try {
+            List<Modification> modifications = new ArrayList<Modification>();
+            for (int i = 0; i < count; i++) {
+                Entity.Reference counter = session.allocateReference();
+                results.add(counter);
+                modifications.add(counter(counter, i));
+            }
+            session.save(modifications);
+            return results;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static void set(LocalRepository repository, Entity.Reference counter, int value) {
+        set(repository, LocalRepository.DEFAULT_BRANCH, counter, value);
+    }
+
+    private static void set(LocalRepository repository, String branch, Entity.Reference counter, int value) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            session.save(Arrays.asList(counter(counter, value)));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static int valueOf(LocalRepository repository, Entity.Reference counter) {
+        return valueOf(repository, LocalRepository.DEFAULT_BRANCH, counter);
+    }
+
+    private static int valueOf(LocalRepository repository, String branch, Entity.Reference counter) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            return session.resolve(counter).getInt("count", -1);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static Modification counter(Entity.Reference counter, int value) {
+        return new Modification(Entity.Builder.create(counter).addInt("count", value).toEntity());
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            byte[] results = new byte[(int) source.length()];
+            source.readFully(results);
+            return results;
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    private static void copy(File source, File destination, long length) throws IOException {
+        byte[] contents = read(source);
+        RandomAccessFile output = new RandomAccessFile(destination, "rw");
+        try {
+            output.setLength(0);
+            output.write(contents, 0, (int) length);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        try {
+            target.setLength(length);
+        }
+        finally {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+
+/**
+ * {@link LocalEntityStore}のテスト。
+ * @author ashigeru
+ */
+public class LocalEntityStoreTest {
+
+    /**
+     * チャンクをまたいで格納し、取り出し、取り除く。
+     */
+    @Test
+    public void put() {
+        LocalEntityStore store = new LocalEntityStore();
+        long[] ids = { 0L, 1L, 1023L, 1024L, 5000L, 100000L };
+        for (long id : ids) {
+            store.put(id, entity(id));
+        }
+        assertThat(store.size(), is(ids.length));
+        for (long id : ids) {
+            assertThat(store.get(id), is(entity(id)));
+        }
+        assertThat(store.get(2L), is((Entity) null));
+        assertThat(store.get(1L << 40), is((Entity) null));
+
+        assertThat(store.remove(1023L), is(entity(1023L)));
+        assertThat(store.remove(1023L), is((Entity) null));
+        assertThat(store.remove(1L << 40), is((Entity) null));
+        assertThat(store.get(1023L), is((Entity) null));
+        assertThat(store.size(), is(ids.length - 1));
+    }
+
+    /**
+     * 直列化しても、格納したエンティティをすべて復元する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void serialize() throws Exception {
+        LocalEntityStore store = new LocalEntityStore();
+        for (long id = 0; id < 3000; id += 7) {
+            store.put(id, entity(id));
+        }
+        store.remove(7L);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(buffer);
+        output.writeObject(store);
+        output.close();
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        LocalEntityStore restored = (LocalEntityStore) input.readObject();
+        input.close();
+
+        assertThat(restored.size(), is(store.size()));
+        for (long id = 0; id < 3000; id++) {
+            assertThat(restored.get(id), is(store.get(id)));
+        }
+        restored.put(7L, entity(7L));
+        assertThat(restored.get(7L), is(entity(7L)));
+    }
+
+    /**
+     * 同じチャンクへの格納と取り除きを並行して繰り返しても、格納したエンティティを失わない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void put_concurrent() throws Exception {
+        final LocalEntityStore store = new LocalEntityStore();
+        final int threadCount = 8;
+        final int rounds = 20000;
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            // すべてのスレッドが同じチャンク内の識別子を利用し、チャンクが空になる瞬間を作る
+            final long id = 1024L + i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < rounds; j++) {
+                            Entity entity = entity(id);
+                            store.put(id, entity);
+                            if (store.get(id) != entity) {
+                                throw new AssertionError("lost: " + id + " at " + j);
+                            }
+                            if (store.remove(id) != entity) {
+                                throw new AssertionError("not removed: " + id + " at " + j);
+                            }
+                        }
+                        store.put(id, entity(id));
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        assertThat(store.size(), is(threadCount));
+        for (int i = 0; i < threadCount; i++) {
+            assertThat(store.get(1024L + i), is(entity(1024L + i)));
+        }
+    }
+
+    /**
+     * エンティティがすべて取り除かれたチャンクを読み飛ばし、再び格納できる。
+     */
+    @Test
+    public void nextId() {
+        LocalEntityStore store = new LocalEntityStore();
+        store.put(1L, entity(1L));
+        store.put(1500L, entity(1500L));
+        store.put(1501L, entity(1501L));
+        store.put(5000L, entity(5000L));
+        assertThat(ids(store), is(new long[] { 1L, 1500L, 1501L, 5000L }));
+        assertThat(store.getLastId(), greaterThanOrEqualTo(5000L));
+
+        // 中間のチャンクを空にする
+        store.remove(1500L);
+        store.remove(1501L);
+        assertThat(ids(store), is(new long[] { 1L, 5000L }));
+        assertThat(store.get(1500L), is((Entity) null));
+
+        // 末尾のチャンクを空にすると、上限も小さくなる
+        store.remove(5000L);
+        assertThat(ids(store), is(new long[] { 1L }));
+        assertThat(store.getLastId(), lessThan(5000L));
+        assertThat(store.getLastId(), greaterThanOrEqualTo(1L));
+
+        // 外したチャンクにも格納しなおせる
+        store.put(1502L, entity(1502L));
+        store.put(5001L, entity(5001L));
+        assertThat(ids(store), is(new long[] { 1L, 1502L, 5001L }));
+        assertThat(store.getLastId(), greaterThanOrEqualTo(5001L));
+        assertThat(store.size(), is(3));
+    }
+
+    private static long[] ids(LocalEntityStore store) {
+        List<Long> results = new ArrayList<Long>();
+        for (long id = store.nextId(0); id >= 0; id = store.nextId(id)) {
+            results.add(id);
+        }
+        long[] array = new long[results.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = results.get(i);
+        }
+        return array;
+    }
+
+    private static Entity entity(long id) {
+        return Entity.Builder.create(new Entity.Reference(id)).add("id", String.valueOf(id)).toEntity();
+    }
+}
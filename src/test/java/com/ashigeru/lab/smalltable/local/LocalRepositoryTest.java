@@ -0,0 +1,1076 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link LocalRepository}のテスト。
+ * @author ashigeru
+ */
+public class LocalRepositoryTest {
+
+    private LocalRepository repository;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        repository = new LocalRepository();
+    }
+
+    /**
+     * テストの後始末を行う。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        repository.close();
+    }
+
+    /**
+     * 名前つき参照から到達できない参照を取り除く。
+     */
+    @Test
+    public void collectGarbage() {
+        LocalSession session = repository.createSession();
+        Entity.Reference root = session.allocateReference();
+        Entity.Reference child = session.allocateReference();
+        Entity.Reference orphan = session.allocateReference();
+        session.bind("root", root);
+        session.save(Arrays.asList(
+                new Modification(Entity.Builder.create(root).add("child", child).toEntity()),
+                new Modification(Entity.Builder.create(child).addInt("value", 1).toEntity()),
+                new Modification(Entity.Builder.create(orphan).addInt("value", 2).toEntity())));
+        session.close();
+
+        CollectionReport report = repository.collectGarbage();
+        assertThat(report.getMarkedReferences(), is(2));
+        assertThat(report.getSweptReferences(), is(1));
+        assertThat(report.getReclaimedEntities(), is(1));
+
+        assertThat(resolvable(root, child, orphan), is(Arrays.asList(root, child)));
+    }
+
+    /**
+     * 利用中のリビジョンから到達できる参照は取り除かない。
+     */
+    @Test
+    public void collectGarbage_live() {
+        LocalSession session = repository.createSession();
+        Entity.Reference root = session.allocateReference();
+        Entity.Reference child = session.allocateReference();
+        session.bind("root", root);
+        session.save(Arrays.asList(
+                new Modification(Entity.Builder.create(root).add("child", child).toEntity()),
+                new Modification(Entity.Builder.create(child).addInt("value", 1).toEntity())));
+
+        // 古いセッションからはまだ到達できる
+        LocalSession reader = repository.createSession();
+        session.save(Arrays.asList(new Modification(Entity.Builder.create(root).toEntity())));
+        session.close();
+
+        repository.collectGarbage();
+        assertThat(resolvable(child), is(Arrays.asList(child)));
+        assertThat(reader.resolve(child), not((Entity) null));
+        reader.close();
+
+        repository.collectGarbage();
+        assertThat(resolvable(child).isEmpty(), is(true));
+    }
+
+    /**
+     * 他のブランチから到達できる参照は取り除かず、どのブランチからも到達できない参照はすべてのブランチから取り除く。
+     */
+    @Test
+    public void collectGarbage_branches() {
+        LocalSession session = repository.createSession();
+        Entity.Reference root = session.allocateReference();
+        Entity.Reference child = session.allocateReference();
+        Entity.Reference orphan = session.allocateReference();
+        session.bind("root", root);
+        session.save(Arrays.asList(
+                new Modification(Entity.Builder.create(root).add("child", child).toEntity()),
+                new Modification(Entity.Builder.create(child).addInt("value", 1).toEntity()),
+                new Modification(Entity.Builder.create(orphan).addInt("value", 2).toEntity())));
+        session.close();
+
+        // 開発用のブランチでは子を切り離し、どこからも参照されないエンティティを追加する
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        LocalSession dev = repository.createSession("dev");
+        Entity.Reference local = dev.allocateReference();
+        dev.save(Arrays.asList(
+                new Modification(Entity.Builder.create(root).toEntity()),
+                new Modification(Entity.Builder.create(local).addInt("value", 3).toEntity())));
+        dev.close();
+
+        CollectionReport report = repository.collectGarbage();
+        assertThat(report.getMarkedReferences(), is(2));
+        assertThat(report.getSweptReferences(), is(3));
+        assertThat(resolvable(LocalRepository.DEFAULT_BRANCH, root, child, orphan, local),
+                is(Arrays.asList(root, child)));
+        assertThat(resolvable("dev", root, child, orphan, local),
+                is(Arrays.asList(root, child)));
+    }
+
+    /**
+     * コミットとコンパクションと並行して実行しても、到達可能な参照を取り除かない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void collectGarbage_concurrent() throws Exception {
+        LocalSession setup = repository.createSession();
+        final Entity.Reference root = setup.allocateReference();
+        final Entity.Reference child = setup.allocateReference();
+        final Entity.Reference leaf = setup.allocateReference();
+        setup.bind("root", root);
+        setup.save(Arrays.asList(
+                new Modification(Entity.Builder.create(root).add("child", child).addInt("version", 0).toEntity()),
+                new Modification(Entity.Builder.create(child).add("child", leaf).toEntity()),
+                new Modification(Entity.Builder.create(leaf).addInt("value", 0).toEntity())));
+        setup.close();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        // 根のエンティティを置き換え続け、到達できないエンティティを作り続ける
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    LocalSession session = repository.createSession();
+                    for (int i = 1; running.get(); i++) {
+                        Entity.Reference garbage = session.allocateReference();
+                        session.save(Arrays.asList(
+                                new Modification(Entity.Builder.create(root)
+                                        .add("child", child)
+                                        .addInt("version", i)
+                                        .toEntity()),
+                                new Modification(Entity.Builder.create(garbage).toEntity())));
+                    }
+                    session.close();
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+
+        // 置き換えられたエンティティを回収し続ける
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        repository.compact();
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (int i = 0; i < 3000 && errors.isEmpty(); i++) {
+                repository.collectGarbage();
+                assertThat("iteration " + i, resolvable(root, child, leaf), is(Arrays.asList(root, child, leaf)));
+            }
+        }
+        finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+    }
+
+    /**
+     * 利用中のセッションの開始リビジョンが参照するエンティティは、セッションが終了するまで回収しない。
+     */
+    @Test
+    public void compact_pinned() {
+        Entity.Reference target = put(null, "a");
+        LocalSession reader = repository.createSession();
+        put(target, "b");
+        put(target, "c");
+        assertThat(repository.compact(), is(0));
+        assertThat(reader.resolve(target).getProperty("value"), is((Object) "a"));
+
+        reader.close();
+        assertThat(repository.compact(), is(2));
+        assertThat(valueOf(target), is((Object) "c"));
+        assertThat(countEntities(), is(1));
+    }
+
+    /**
+     * もっとも古い利用中のリビジョンより前の履歴を切り離す。
+     */
+    @Test
+    public void compact_truncate() {
+        Entity.Reference target = put(null, "a");
+        put(target, "b");
+        LocalSession reader = repository.createSession();
+        Revision<LocalEntityId> pinned = repository.getHeadRevision();
+        put(target, "c");
+        put(target, "d");
+        assertThat(pinned.getParent(), not((Revision<LocalEntityId>) null));
+
+        repository.compact();
+        assertThat(pinned.getParent(), is((Revision<LocalEntityId>) null));
+        assertThat(repository.getHeadRevision().getParent().getParent(), sameInstance(pinned));
+
+        reader.close();
+        repository.compact();
+        assertThat(repository.getHeadRevision().getParent(), is((Revision<LocalEntityId>) null));
+    }
+
+    /**
+     * 読み出しとコミットとコンパクションを並行して実行しても、
+     * セッションは開始リビジョンの内容を最後まで読み出せ、終了後には置き換えられたエンティティがすべて回収される。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void compact_concurrent() throws Exception {
+        LocalSession setup = repository.createSession();
+        final Entity.Reference left = setup.allocateReference();
+        final Entity.Reference right = setup.allocateReference();
+        setup.save(Arrays.asList(
+                new Modification(Entity.Builder.create(left).addInt("version", 0).toEntity()),
+                new Modification(Entity.Builder.create(right).addInt("version", 0).toEntity())));
+        setup.close();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        // 2つのエンティティを常に同じ版に置き換え続ける
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    LocalSession session = repository.createSession();
+                    for (int i = 1; running.get(); i++) {
+                        session.save(Arrays.asList(
+                                new Modification(Entity.Builder.create(left).addInt("version", i).toEntity()),
+                                new Modification(Entity.Builder.create(right).addInt("version", i).toEntity())));
+                    }
+                    session.close();
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+
+        // 置き換えられたエンティティを回収し続ける
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        repository.compact();
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (int i = 0; i < 2000 && errors.isEmpty(); i++) {
+                LocalSession reader = repository.createSession();
+                try {
+                    Entity first = reader.resolve(left);
+                    // 読み出しの間に、後続のコミットと回収を進ませる
+                    Thread.yield();
+                    Entity second = reader.resolve(right);
+                    assertThat("iteration " + i, first, not((Entity) null));
+                    assertThat("iteration " + i, second, not((Entity) null));
+                    assertThat("iteration " + i, second.getProperty("version"), is(first.getProperty("version")));
+                }
+                finally {
+                    reader.close();
+                }
+            }
+        }
+        finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        repository.compact();
+        assertThat(countEntities(), is(2));
+    }
+
+    /**
+     * 閉じる際に、定期的な回収を停止する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void close_compaction() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        repository.close();
+        repository = new LocalRepository() {
+            @Override
+            public int compact() {
+                running.incrementAndGet();
+                calls.incrementAndGet();
+                try {
+                    // 閉じる時点で回収を実行中となるように、しばらく回収を続ける
+                    int count = 0;
+                    long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2);
+                    while (System.nanoTime() < until) {
+                        count += super.compact();
+                    }
+                    return count;
+                }
+                finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        repository.startCompaction(1, TimeUnit.MILLISECONDS);
+        Entity.Reference target = put(null, "0");
+        for (int i = 1; calls.get() < 10; i++) {
+            put(target, String.valueOf(i));
+        }
+        repository.close();
+        assertThat(running.get(), is(0));
+        int closed = calls.get();
+        Thread.sleep(20);
+        assertThat(calls.get(), is(closed));
+    }
+
+    /**
+     * 同じエンティティの互いに異なるプロパティへの変更は衝突せず、最新のエンティティに取り込まれる。
+     */
+    @Test
+    public void save_properties() {
+        LocalSession setup = repository.createSession();
+        Entity.Reference target = setup.allocateReference();
+        setup.save(Arrays.asList(new Modification(Entity.Builder.create(target)
+                .addInt("a", 0)
+                .addInt("b", 0)
+                .addInt("c", 0)
+                .toEntity())));
+        setup.close();
+
+        LocalSession first = repository.createSession();
+        LocalSession second = repository.createSession();
+        first.save(Arrays.asList(update(first.resolve(target), "a", 1)));
+        second.save(Arrays.asList(update(second.resolve(target), "b", 2)));
+        first.close();
+        second.close();
+
+        LocalSession reader = repository.createSession();
+        Entity merged = reader.resolve(target);
+        reader.close();
+        assertThat(merged.getProperty("a"), is((Object) 1));
+        assertThat(merged.getProperty("b"), is((Object) 2));
+        assertThat(merged.getProperty("c"), is((Object) 0));
+    }
+
+    /**
+     * 同じプロパティへの変更は衝突する。
+     */
+    @Test
+    public void save_properties_conflict() {
+        LocalSession setup = repository.createSession();
+        Entity.Reference target = setup.allocateReference();
+        setup.save(Arrays.asList(new Modification(Entity.Builder.create(target)
+                .addInt("a", 0)
+                .addInt("b", 0)
+                .toEntity())));
+        setup.close();
+
+        LocalSession first = repository.createSession();
+        LocalSession second = repository.createSession();
+        first.save(Arrays.asList(update(first.resolve(target), "a", 1)));
+        try {
+            second.save(Arrays.asList(update(second.resolve(target), "a", 2)));
+            fail();
+        }
+        catch (ConcurrentModificationException e) {
+            // ok.
+        }
+
+        // エンティティ全体の変更は、プロパティの変更とも衝突する
+        LocalSession third = repository.createSession();
+        first.save(Arrays.asList(update(first.resolve(target), "b", 1)));
+        try {
+            third.save(Arrays.asList(new Modification(Entity.Builder.create(target).toEntity())));
+            fail();
+        }
+        catch (ConcurrentModificationException e) {
+            // ok.
+        }
+        first.close();
+        second.close();
+        third.close();
+        assertThat(valueOf(target, "a"), is((Object) 1));
+        assertThat(valueOf(target, "b"), is((Object) 1));
+    }
+
+    /**
+     * 多数のスレッドが同じエンティティの互いに異なるプロパティを並行して変更しても、衝突せずにすべて取り込まれる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void save_properties_concurrent() throws Exception {
+        final int threadCount = 8;
+        final int perThread = 300;
+        LocalSession setup = repository.createSession();
+        final Entity.Reference target = setup.allocateReference();
+        Entity.Builder builder = Entity.Builder.create(target);
+        for (int i = 0; i < threadCount; i++) {
+            builder.addInt("p" + i, 0);
+        }
+        setup.save(Arrays.asList(new Modification(builder.toEntity())));
+        setup.close();
+
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final String name = "p" + i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        LocalSession session = repository.createSession();
+                        for (int j = 1; j <= perThread; j++) {
+                            session.save(Arrays.asList(update(session.resolve(target), name, j)));
+                        }
+                        session.close();
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        for (int i = 0; i < threadCount; i++) {
+            assertThat(valueOf(target, "p" + i), is((Object) perThread));
+        }
+        CommitStatistics statistics = repository.getCommitStatistics();
+        assertThat(statistics.getCommits(), is(1L + threadCount * perThread));
+        assertThat(statistics.getConflicts(), is(0L));
+    }
+
+    /**
+     * ブランチへのコミットは他のブランチに影響せず、取り込みによって反映される。
+     */
+    @Test
+    public void merge() {
+        Entity.Reference shared = put(null, "base");
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        Entity.Reference local = put("dev", null, "dev");
+        put("dev", shared, "changed");
+        Entity.Reference other = put(null, "main");
+        assertThat(valueOf(shared), is((Object) "base"));
+        assertThat(valueOf(local), is((Object) null));
+
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Revision<LocalEntityId>) null));
+        assertThat(valueOf(shared), is((Object) "changed"));
+        assertThat(valueOf(local), is((Object) "dev"));
+        assertThat(valueOf(other), is((Object) "main"));
+
+        // 取り込んだ変更は、逆方向の取り込みで元のブランチに戻されない
+        Revision<LocalEntityId> head = repository.getHeadRevision("dev");
+        put("dev", shared, "again");
+        assertThat(repository.merge(LocalRepository.DEFAULT_BRANCH, "dev"), not((Revision<LocalEntityId>) null));
+        assertThat(idOf("dev", other), is(idOf(LocalRepository.DEFAULT_BRANCH, other)));
+        assertThat(head.createDeltaTo(repository.getHeadRevision("dev")).getEntityMap().keySet(),
+                is((Set<Entity.Reference>) new HashSet<Entity.Reference>(Arrays.asList(shared, other))));
+        assertThat(valueOf("dev", shared), is((Object) "again"));
+    }
+
+    /**
+     * 前回の取り込み以降に、両方のブランチで同じエンティティを変更していれば衝突する。
+     */
+    @Test
+    public void merge_conflict() {
+        Entity.Reference target = put(null, "base");
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        put("dev", target, "dev");
+        put(target, "main");
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), is((Revision<LocalEntityId>) null));
+        assertThat(valueOf(target), is((Object) "main"));
+
+        // 共有によって同じエンティティに変更していれば衝突しない
+        repository.setDeduplication(true);
+        put("dev", target, "shared");
+        put(target, "shared");
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Revision<LocalEntityId>) null));
+    }
+
+    /**
+     * 取り込んだ時点までの履歴がコンパクションによって切り離されても、取り込み元の変更のみを取り込む。
+     */
+    @Test
+    public void merge_compaction() {
+        Entity.Reference target = put(null, "0");
+        Entity.Reference unchanged = put(null, "unchanged");
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        for (int i = 1; i <= 5; i++) {
+            put(target, String.valueOf(i));
+            put("dev", unchanged, "dev" + i);
+        }
+        repository.compact();
+        repository.compact();
+
+        // 取り込み先で変更したエンティティは、取り込み元の変更として扱われない
+        assertThat(repository.merge(LocalRepository.DEFAULT_BRANCH, "dev"), not((Revision<LocalEntityId>) null));
+        assertThat(valueOf("dev", target), is((Object) "5"));
+        assertThat(valueOf("dev", unchanged), is((Object) "dev5"));
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Revision<LocalEntityId>) null));
+        assertThat(valueOf(target), is((Object) "5"));
+        assertThat(valueOf(unchanged), is((Object) "dev5"));
+
+        // 取り込んだ時点は固定されず、置き換えられたエンティティはすぐに回収される
+        repository.compact();
+        assertThat(countEntities(), is(2));
+        put(target, "6");
+        assertThat(repository.merge(LocalRepository.DEFAULT_BRANCH, "dev"), not((Revision<LocalEntityId>) null));
+        assertThat(valueOf("dev", target), is((Object) "6"));
+        assertThat(valueOf("dev", unchanged), is((Object) "dev5"));
+        repository.compact();
+        assertThat(countEntities(), is(2));
+    }
+
+    /**
+     * ブランチの作成や取り込みの後も、取り込み先へのコミットで置き換えられたエンティティが回収される。
+     */
+    @Test
+    public void merge_compact_reclaim() {
+        Entity.Reference target = put(null, "0");
+        Entity.Reference other = put(null, "a");
+        repository.createBranch("batch", LocalRepository.DEFAULT_BRANCH);
+        put("batch", target, "batch");
+        assertThat(repository.merge("batch", LocalRepository.DEFAULT_BRANCH), not((Revision<LocalEntityId>) null));
+        repository.compact();
+
+        int reclaimed = 0;
+        for (int i = 1; i <= 10; i++) {
+            put(other, String.valueOf(i));
+            reclaimed += repository.compact();
+        }
+        // 最初の値は取り込み元のブランチが参照し続けている
+        assertThat(reclaimed, is(9));
+        assertThat(valueOf(other), is((Object) "10"));
+        assertThat(valueOf("batch", other), is((Object) "a"));
+    }
+
+    /**
+     * それぞれのブランチへのコミットと取り込みとコンパクションを並行して実行しても、
+     * 取り込み元の変更はすべて取り込み先に反映される。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void merge_concurrent() throws Exception {
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        final ConcurrentLinkedQueue<Entity.Reference> created = new ConcurrentLinkedQueue<Entity.Reference>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String branch : Arrays.asList(LocalRepository.DEFAULT_BRANCH, "dev")) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // それぞれのブランチで、自身が作成したエンティティのみを更新し続ける
+                        Entity.Reference target = put(branch, null, branch + 0);
+                        created.add(target);
+                        for (int i = 1; running.get(); i++) {
+                            if (i % 10 == 0) {
+                                target = put(branch, null, branch + i);
+                                created.add(target);
+                            }
+                            else {
+                                put(branch, target, branch + i);
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        repository.compact();
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (int i = 0; i < 500 && errors.isEmpty(); i++) {
+                String from = i % 2 == 0 ? "dev" : LocalRepository.DEFAULT_BRANCH;
+                String into = i % 2 == 0 ? LocalRepository.DEFAULT_BRANCH : "dev";
+                assertThat("iteration " + i, repository.merge(from, into), not((Revision<LocalEntityId>) null));
+            }
+        }
+        finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Revision<LocalEntityId>) null));
+        assertThat(repository.merge(LocalRepository.DEFAULT_BRANCH, "dev"), not((Revision<LocalEntityId>) null));
+        repository.compact();
+        for (Entity.Reference reference : created) {
+            assertThat(valueOf(reference), not((Object) null));
+            assertThat(valueOf("dev", reference), is(valueOf(reference)));
+        }
+    }
+
+    /**
+     * 保存に成功したセッションは保存したリビジョンに移り、その間に変更された参照の一覧を返す。
+     */
+    @Test
+    public void save_rebase() {
+        Entity.Reference mine = put(null, "a");
+        Entity.Reference theirs = put(null, "b");
+        Entity.Reference untouched = put(null, "c");
+
+        LocalSession session = repository.createSession();
+        put(theirs, "B");
+        Set<Entity.Reference> changed = session.save(Arrays.asList(
+                new Modification(Entity.Builder.create(mine).add("value", "A").toEntity())));
+        assertThat(changed, is((Set<Entity.Reference>) new HashSet<Entity.Reference>(Arrays.asList(mine, theirs))));
+        assertThat(changed.contains(untouched), is(false));
+        assertThat(session.getStart(), sameInstance(repository.getHeadRevision()));
+        assertThat(session.resolve(theirs).getProperty("value"), is((Object) "B"));
+
+        // 保存したリビジョンからの変更として、続けて保存できる
+        session.save(Arrays.asList(new Modification(Entity.Builder.create(mine).add("value", "AA").toEntity())));
+        session.save(Arrays.asList(new Modification(Entity.Builder.create(theirs).add("value", "BB").toEntity())));
+        session.close();
+        assertThat(valueOf(mine), is((Object) "AA"));
+        assertThat(valueOf(theirs), is((Object) "BB"));
+
+        // 以前の開始リビジョンは、固定が移されたため回収の対象となる
+        repository.compact();
+        assertThat(countEntities(), is(3));
+    }
+
+    /**
+     * セッションは参照の番号をまとめて借り受け、使い切らなかった番号を終了時に返却する。
+     */
+    @Test
+    public void allocateReference() {
+        repository.setAllocationBlockSize(4);
+        long base = repository.getReferenceSequence();
+        LocalSession session = repository.createSession();
+        for (int i = 1; i <= 4; i++) {
+            assertThat(session.allocateReference(), is(new Entity.Reference(base + i)));
+            assertThat(repository.getReferenceSequence(), is(base + 4));
+        }
+        assertThat(session.allocateReference(), is(new Entity.Reference(base + 5)));
+        assertThat(repository.getReferenceSequence(), is(base + 8));
+
+        session.close();
+        assertThat(repository.getReferenceSequence(), is(base + 5));
+        LocalSession next = repository.createSession();
+        assertThat(next.allocateReference(), is(new Entity.Reference(base + 6)));
+        next.close();
+    }
+
+    /**
+     * 後から別の範囲が借り受けられている場合、使い切らなかった番号は放棄され、二度と払い出されない。
+     */
+    @Test
+    public void allocateReference_abandoned() {
+        repository.setAllocationBlockSize(4);
+        long base = repository.getReferenceSequence();
+        LocalSession first = repository.createSession();
+        LocalSession second = repository.createSession();
+        assertThat(first.allocateReference(), is(new Entity.Reference(base + 1)));
+        assertThat(second.allocateReference(), is(new Entity.Reference(base + 5)));
+        first.close();
+        assertThat(repository.getReferenceSequence(), is(base + 8));
+
+        LocalSession third = repository.createSession();
+        assertThat(third.allocateReference(), is(new Entity.Reference(base + 9)));
+        assertThat(second.allocateReference(), is(new Entity.Reference(base + 6)));
+        second.close();
+        third.close();
+    }
+
+    /**
+     * 多数のセッションが並行して番号を借り受けても、参照とエンティティの識別子は重複しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void allocateReference_concurrent() throws Exception {
+        repository.setAllocationBlockSize(16);
+        final ConcurrentLinkedQueue<Entity.Reference> allocated = new ConcurrentLinkedQueue<Entity.Reference>();
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int index = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            // 借り受けた範囲を使い切るセッションと、途中で終了するセッションを混在させる
+                            LocalSession session = repository.createSession();
+                            try {
+                                List<Modification> modifications = new ArrayList<Modification>();
+                                for (int k = 0, n = (index + j) % 40; k < n; k++) {
+                                    Entity.Reference reference = session.allocateReference();
+                                    allocated.add(reference);
+                                    modifications.add(new Modification(Entity.Builder.create(reference).toEntity()));
+                                }
+                                session.save(modifications);
+                            }
+                            finally {
+                                session.close();
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        Set<Entity.Reference> references = new HashSet<Entity.Reference>(allocated);
+        assertThat(references.size(), is(allocated.size()));
+
+        Map<Entity.Reference, LocalEntityId> entities = repository.getHeadRevision().getEntityMap();
+        assertThat(entities.keySet(), is(references));
+        assertThat(new HashSet<LocalEntityId>(entities.values()).size(), is(entities.size()));
+    }
+
+    /**
+     * 同一の内容をもつエンティティは、過去のリビジョンや他のブランチのものでも識別子を共有する。
+     */
+    @Test
+    public void deduplication() {
+        repository.setDeduplication(true);
+        Entity.Reference target = put(null, "a");
+        LocalEntityId first = idOf(LocalRepository.DEFAULT_BRANCH, target);
+        put(target, "b");
+        assertThat(idOf(LocalRepository.DEFAULT_BRANCH, target), not(first));
+
+        // 開始リビジョン以外にある同一の内容
+        put(target, "a");
+        assertThat(idOf(LocalRepository.DEFAULT_BRANCH, target), is(first));
+
+        // 他のブランチにある同一の内容
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        put(target, "c");
+        LocalEntityId third = idOf(LocalRepository.DEFAULT_BRANCH, target);
+        LocalSession session = repository.createSession("dev");
+        session.save(Arrays.asList(new Modification(Entity.Builder.create(target).add("value", "c").toEntity())));
+        session.close();
+        assertThat(idOf("dev", target), is(third));
+    }
+
+    /**
+     * 共有していない場合は、同一の内容にも新しい識別子を割り当てる。
+     */
+    @Test
+    public void deduplication_disabled() {
+        Entity.Reference target = put(null, "a");
+        LocalEntityId first = idOf(LocalRepository.DEFAULT_BRANCH, target);
+        put(target, "b");
+        put(target, "a");
+        assertThat(idOf(LocalRepository.DEFAULT_BRANCH, target), not(first));
+    }
+
+    /**
+     * 置き換えられた後に再び利用されたエンティティは、置き換えられた時点の記録では回収されない。
+     */
+    @Test
+    public void deduplication_reused() {
+        repository.setDeduplication(true);
+        Entity.Reference target = put(null, "a");
+        LocalEntityId first = idOf(LocalRepository.DEFAULT_BRANCH, target);
+        put(target, "b");
+        put(target, "a");
+        assertThat(repository.compact(), is(1));
+        assertThat(repository.getEntity(first), not((Entity) null));
+        assertThat(valueOf(target), is((Object) "a"));
+
+        // 再び置き換えられた後は回収される
+        put(target, "c");
+        assertThat(repository.compact(), is(1));
+        assertThat(repository.getEntity(first), is((Entity) null));
+    }
+
+    /**
+     * 回収したエンティティは、索引からも取り除かれる。
+     */
+    @Test
+    public void deduplication_reclaimed() {
+        repository.setDeduplication(true);
+        Entity.Reference target = put(null, "a");
+        LocalEntityId first = idOf(LocalRepository.DEFAULT_BRANCH, target);
+        put(target, "b");
+        assertThat(repository.compact(), is(1));
+        assertThat(repository.getEntity(first), is((Entity) null));
+
+        put(target, "a");
+        assertThat(idOf(LocalRepository.DEFAULT_BRANCH, target), not(first));
+        assertThat(valueOf(target), is((Object) "a"));
+    }
+
+    /**
+     * コミットに失敗しても、共有したエンティティは破棄しない。
+     */
+    @Test
+    public void deduplication_conflict() {
+        repository.setDeduplication(true);
+        Entity.Reference target = put(null, "a");
+        LocalEntityId first = idOf(LocalRepository.DEFAULT_BRANCH, target);
+        put(target, "b");
+
+        LocalSession winner = repository.createSession();
+        LocalSession loser = repository.createSession();
+        winner.save(Arrays.asList(new Modification(Entity.Builder.create(target).add("value", "a").toEntity())));
+        try {
+            loser.save(Arrays.asList(new Modification(Entity.Builder.create(target).add("value", "a").toEntity())));
+            fail();
+        }
+        catch (ConcurrentModificationException e) {
+            // ok.
+        }
+        winner.close();
+        loser.close();
+        assertThat(idOf(LocalRepository.DEFAULT_BRANCH, target), is(first));
+        assertThat(repository.getEntity(first), not((Entity) null));
+    }
+
+    /**
+     * 同じ内容を行き来するコミットとコンパクションを並行して実行しても、最新のエンティティを回収しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void deduplication_concurrent() throws Exception {
+        repository.setDeduplication(true);
+        final Entity.Reference target = put(null, "0");
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; running.get(); j++) {
+                            try {
+                                put(target, String.valueOf(j % 3));
+                            }
+                            catch (ConcurrentModificationException e) {
+                                // 衝突した場合はやり直す
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        repository.compact();
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (int i = 0; i < 20000 && errors.isEmpty(); i++) {
+                assertThat("iteration " + i, valueOf(target), not((Object) null));
+            }
+        }
+        finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        repository.compact();
+        assertThat(valueOf(target), not((Object) null));
+    }
+
+    private Entity.Reference put(Entity.Reference reference, String value) {
+        return put(LocalRepository.DEFAULT_BRANCH, reference, value);
+    }
+
+    private Entity.Reference put(String branch, Entity.Reference reference, String value) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity.Reference target = reference;
+            if (target == null) {
+                target = session.allocateReference();
+            }
+            session.save(Arrays.asList(new Modification(Entity.Builder.create(target).add("value", value).toEntity())));
+            return target;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private Object valueOf(Entity.Reference reference) {
+        return valueOf(reference, "value");
+    }
+
+    private Object valueOf(Entity.Reference reference, String name) {
+        return valueOf(LocalRepository.DEFAULT_BRANCH, reference, name);
+    }
+
+    private Object valueOf(String branch, Entity.Reference reference) {
+        return valueOf(branch, reference, "value");
+    }
+
+    private Object valueOf(String branch, Entity.Reference reference, String name) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity entity = session.resolve(reference);
+            return entity == null ? null : entity.getProperty(name);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    /**
+     * 指定のエンティティのプロパティをひとつだけ置き換えた変更を返す。
+     */
+    private static Modification update(Entity entity, String name, Object value) {
+        Entity.Builder builder = Entity.Builder.create(entity.getSelfReference());
+        for (Map.Entry<String, Object> entry : entity.getPropertyMap().entrySet()) {
+            if (entry.getKey().equals(name) == false) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
+        }
+        builder.add(name, value);
+        return new Modification(builder.toEntity(), Collections.singleton(name));
+    }
+
+    private int countEntities() {
+        EntityStore store = repository.getEntityStore();
+        int count = 0;
+        for (long id = store.nextId(0); id >= 0; id = store.nextId(id)) {
+            count++;
+        }
+        return count;
+    }
+
+    private LocalEntityId idOf(String branch, Entity.Reference reference) {
+        return repository.getHeadRevision(branch).getId(reference);
+    }
+
+    /**
+     * 最新のリビジョンで、指定の参照のうちエンティティが存在するものを返す。
+     */
+    private List<Entity.Reference> resolvable(Entity.Reference... references) {
+        return resolvable(LocalRepository.DEFAULT_BRANCH, references);
+    }
+
+    /**
+     * 指定のブランチの最新のリビジョンで、指定の参照のうちエンティティが存在するものを返す。
+     */
+    private List<Entity.Reference> resolvable(String branch, Entity.Reference... references) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            List<Entity.Reference> results = new ArrayList<Entity.Reference>();
+            for (Entity.Reference reference : references) {
+                if (session.resolve(reference) != null) {
+                    results.add(reference);
+                }
+            }
+            return results;
+        }
+        finally {
+            session.close();
+        }
+    }
+}
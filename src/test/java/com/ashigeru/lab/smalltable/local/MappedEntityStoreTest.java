@@ -0,0 +1,256 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ashigeru.lab.smalltable.Entity;
+
+/**
+ * {@link MappedEntityStore}のテスト。
+ * @author ashigeru
+ */
+public class MappedEntityStoreTest {
+
+    /**
+     * 一時フォルダ。
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "entities");
+    }
+
+    /**
+     * 格納したエンティティを、開きなおした後に読み出す。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void reopen() throws Exception {
+        MappedEntityStore store = MappedEntityStore.open(directory, 256);
+        assertThat(store.isPersistent(), is(true));
+        assertThat(store.getLastId(), is(0L));
+        for (long id = 1; id <= 100; id++) {
+            store.put(id, entity(id));
+        }
+        store.remove(50);
+        store.close();
+
+        // セグメントを使い切るたびに追加される
+        assertThat(new File(directory, "segment-00000001").isFile(), is(true));
+
+        MappedEntityStore reopened = MappedEntityStore.open(directory, 256);
+        assertThat(reopened.getLastId(), is(100L));
+        for (long id = 1; id <= 100; id++) {
+            if (id == 50) {
+                assertThat(reopened.get(id), is((Entity) null));
+            }
+            else {
+                assertThat(reopened.get(id), is(entity(id)));
+            }
+        }
+        assertThat(reopened.nextId(49), is(51L));
+        assertThat(reopened.nextId(100), is(-1L));
+
+        // 追記した内容は既存の内容を上書きしない
+        reopened.put(101, entity(101));
+        assertThat(reopened.get(100), is(entity(100)));
+        assertThat(reopened.get(101), is(entity(101)));
+        reopened.close();
+    }
+
+    /**
+     * 同じ識別子に同じ内容を格納しなおしても、新たな領域を消費しない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void put_same() throws Exception {
+        MappedEntityStore store = MappedEntityStore.open(directory, 256);
+        store.put(1, entity(1));
+        store.close();
+        long used = readLong(segment(0), 0);
+
+        MappedEntityStore reopened = MappedEntityStore.open(directory, 256);
+        reopened.put(1, entity(1));
+        reopened.close();
+        assertThat(readLong(segment(0), 0), is(used));
+    }
+
+    /**
+     * 閉じずに終了した後に開くと、索引が指す領域の末尾まで使用済みとし、その後ろに追記する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void recover() throws Exception {
+        MappedEntityStore store = MappedEntityStore.open(directory, 4096);
+        for (long id = 1; id <= 10; id++) {
+            store.put(id, entity(id));
+        }
+        store.sync();
+
+        // 書き出した後に格納したエンティティの、セグメントの使用済みの大きさのみが失われた状態にする
+        long synced = readLong(segment(0), 0);
+        for (long id = 11; id <= 20; id++) {
+            store.put(id, entity(id));
+        }
+        store.sync();
+        writeLong(segment(0), 0, synced);
+
+        MappedEntityStore recovered = MappedEntityStore.open(directory, 4096);
+        assertThat(recovered.getLastId(), is(20L));
+        for (long id = 1; id <= 20; id++) {
+            assertThat(recovered.get(id), is(entity(id)));
+        }
+        recovered.put(21, entity(21));
+        for (long id = 1; id <= 21; id++) {
+            assertThat(recovered.get(id), is(entity(id)));
+        }
+        recovered.close();
+
+        MappedEntityStore reopened = MappedEntityStore.open(directory, 4096);
+        assertThat(reopened.get(21), is(entity(21)));
+        reopened.close();
+    }
+
+    /**
+     * 閉じずに終了した後に開くと、途中で切り詰められたセグメントの領域を指す索引の要素を取り除く。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void recover_truncated() throws Exception {
+        MappedEntityStore store = MappedEntityStore.open(directory, 4096);
+        for (long id = 1; id <= 10; id++) {
+            store.put(id, entity(id));
+        }
+        store.sync();
+        long synced = readLong(segment(0), 0);
+        for (long id = 11; id <= 20; id++) {
+            store.put(id, entity(id));
+        }
+        store.sync();
+
+        // 書き出す前のセグメントの内容が失われた状態にする (以降、元のオブジェクトには触れない)
+        truncate(segment(0), synced);
+
+        MappedEntityStore recovered = MappedEntityStore.open(directory, 4096);
+        for (long id = 1; id <= 10; id++) {
+            assertThat(recovered.get(id), is(entity(id)));
+        }
+        for (long id = 11; id <= 20; id++) {
+            assertThat(recovered.get(id), is((Entity) null));
+        }
+        assertThat(recovered.nextId(10), is(-1L));
+
+        // 失われた識別子は、ログから格納しなおせる
+        for (long id = 11; id <= 20; id++) {
+            recovered.put(id, entity(id));
+        }
+        recovered.close();
+
+        MappedEntityStore reopened = MappedEntityStore.open(directory, 4096);
+        for (long id = 1; id <= 20; id++) {
+            assertThat(reopened.get(id), is(entity(id)));
+        }
+        reopened.close();
+    }
+
+    /**
+     * 閉じずに終了した後に開くと、書き込まれなかった領域を指す索引の要素を取り除く。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void recover_dangling() throws Exception {
+        MappedEntityStore store = MappedEntityStore.open(directory, 4096);
+        store.put(1, entity(1));
+        store.sync();
+        long used = readLong(segment(0), 0);
+
+        // 索引のみが書き出され、エンティティの内容が書き出されなかった状態にする
+        File index = new File(directory, MappedEntityStore.INDEX_FILE);
+        writeLong(index, 2 * 8, used + 16);
+        writeLong(index, 3 * 8, (5L << 32) | 8);
+
+        MappedEntityStore recovered = MappedEntityStore.open(directory, 4096);
+        assertThat(recovered.get(1), is(entity(1)));
+        assertThat(recovered.get(2), is((Entity) null));
+        assertThat(recovered.get(3), is((Entity) null));
+        assertThat(recovered.getLastId(), is(1L));
+        recovered.put(2, entity(2));
+        assertThat(recovered.get(1), is(entity(1)));
+        assertThat(recovered.get(2), is(entity(2)));
+        recovered.close();
+    }
+
+    private File segment(int number) {
+        return new File(directory, String.format("segment-%08d", number));
+    }
+
+    private static long readLong(File file, long position) throws IOException {
+        RandomAccessFile target = new RandomAccessFile(file, "r");
+        try {
+            target.seek(position);
+            return target.readLong();
+        }
+        finally {
+            target.close();
+        }
+    }
+
+    private static void writeLong(File file, long position, long value) throws IOException {
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        try {
+            target.seek(position);
+            target.writeLong(value);
+        }
+        finally {
+            target.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        try {
+            target.setLength(length);
+        }
+        finally {
+            target.close();
+        }
+    }
+
+    private static Entity entity(long id) {
+        return Entity.Builder.create(new Entity.Reference(id))
+            .add("name", "entity-" + id)
+            .addInt("value", (int) id)
+            .toEntity();
+    }
+}
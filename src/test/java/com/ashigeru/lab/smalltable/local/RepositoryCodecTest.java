@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+
+/**
+ * {@link RepositoryCodec}のテスト。
+ * @author ashigeru
+ */
+public class RepositoryCodecTest {
+
+    /**
+     * 空のリポジトリ。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void empty() throws Exception {
+        LocalRepository restored = restore(new LocalRepository());
+        assertThat(restored.getBranchNames(), is(Collections.singleton(LocalRepository.DEFAULT_BRANCH)));
+        LocalSession session = restored.createSession();
+        assertThat(session.getBound("root"), is((Entity.Reference) null));
+        session.close();
+    }
+
+    /**
+     * 単純なリポジトリ。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void simple() throws Exception {
+        LocalRepository repository = new LocalRepository();
+        Entity.Reference root = create(repository, LocalRepository.DEFAULT_BRANCH, "root", "最初");
+        update(repository, LocalRepository.DEFAULT_BRANCH, root, "次");
+        Entity.Reference other = create(repository, LocalRepository.DEFAULT_BRANCH, "other", "別");
+
+        for (LocalRepository restored : restoreAll(repository)) {
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "root"), is("次"));
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "other"), is("別"));
+
+            // 読み出したリポジトリでも、既存の参照は再利用されない
+            LocalSession session = restored.createSession();
+            Entity.Reference next = session.allocateReference();
+            session.close();
+            assertThat(next, not(root));
+            assertThat(next, not(other));
+        }
+    }
+
+    /**
+     * ブランチと取り込みの時点を含むリポジトリ。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void branches() throws Exception {
+        LocalRepository repository = new LocalRepository();
+        Entity.Reference root = create(repository, LocalRepository.DEFAULT_BRANCH, "root", "a");
+        repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+        update(repository, "dev", root, "b");
+        create(repository, "dev", "extra", "x");
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+        update(repository, "dev", root, "c");
+
+        for (LocalRepository restored : restoreAll(repository)) {
+            assertThat(restored.getBranchNames(), is(
+                    (Object) new HashSet<String>(Arrays.asList(LocalRepository.DEFAULT_BRANCH, "dev"))));
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "root"), is("b"));
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "extra"), is("x"));
+            assertThat(textOf(restored, "dev", "root"), is("c"));
+
+            // 取り込みの時点が復元されていれば、前回以降の変更のみを取り込める
+            assertThat(restored.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "root"), is("c"));
+        }
+    }
+
+    /**
+     * コンパクションで履歴を切り詰めた後のリポジトリ。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void compacted() throws Exception {
+        LocalRepository repository = new LocalRepository();
+        Entity.Reference root = create(repository, LocalRepository.DEFAULT_BRANCH, "root", "0");
+        for (int i = 1; i < 100; i++) {
+            update(repository, LocalRepository.DEFAULT_BRANCH, root, String.valueOf(i));
+        }
+        repository.compact();
+
+        for (LocalRepository restored : restoreAll(repository)) {
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "root"), is("99"));
+            update(restored, LocalRepository.DEFAULT_BRANCH, root, "100");
+            assertThat(textOf(restored, LocalRepository.DEFAULT_BRANCH, "root"), is("100"));
+        }
+    }
+
+    /**
+     * 読み出したリポジトリを、再び書き出す。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void restore_twice() throws Exception {
+        LocalRepository repository = new LocalRepository();
+        Entity.Reference root = create(repository, LocalRepository.DEFAULT_BRANCH, "root", "a");
+        LocalRepository restored = restore(repository);
+        update(restored, LocalRepository.DEFAULT_BRANCH, root, "b");
+        LocalRepository again = restore(restored);
+        assertThat(textOf(again, LocalRepository.DEFAULT_BRANCH, "root"), is("b"));
+    }
+
+    /**
+     * 形式が正しくない内容。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IOException.class)
+    public void invalid() throws Exception {
+        LocalRepository.load(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }));
+    }
+
+    private static LocalRepository restore(LocalRepository repository) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        repository.store(output);
+        return LocalRepository.load(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static LocalRepository[] restoreAll(LocalRepository repository) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        repository.store(output);
+        byte[] bytes = output.toByteArray();
+        return new LocalRepository[] {
+                LocalRepository.load(new ByteArrayInputStream(bytes)),
+                LocalRepository.load(new ByteArrayInputStream(bytes), 4),
+        };
+    }
+
+    private static Entity.Reference create(LocalRepository repository, String branch, String name, String text) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity.Reference created = session.allocateReference();
+            session.bind(name, created);
+            session.save(Collections.singleton(text(created, text)));
+            return created;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static void update(LocalRepository repository, String branch, Entity.Reference target, String text) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            session.save(Collections.singleton(text(target, text)));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static String textOf(LocalRepository repository, String branch, String name) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity.Reference bound = session.getBound(name);
+            assertThat(name, bound, not((Entity.Reference) null));
+            return (String) session.resolve(bound).getProperty("text");
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static Modification text(Entity.Reference target, String text) {
+        return new Modification(Entity.Builder.create(target).add("text", text).toEntity());
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+
+/**
+ * {@link RepositoryImage}のテスト。
+ * @author ashigeru
+ */
+public class RepositoryImageTest {
+
+    /**
+     * 一時フォルダ。
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private File checkpoint;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "repository");
+        checkpoint = new File(directory, "checkpoint");
+    }
+
+    /**
+     * イメージを開く際にはエンティティを読み出さず、参照された時点で読み出す。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void read_lazy() throws Exception {
+        prepare();
+
+        CountingStore store = new CountingStore(MappedEntityStore.open(
+                new File(directory, "entities"),
+                MappedEntityStore.DEFAULT_SEGMENT_SIZE));
+        LocalRepository repository = RepositoryImage.read(checkpoint, store);
+        try {
+            assertThat(store.reads.get(), is(0));
+            assertThat(repository.getBranchNames(),
+                    is((Set<String>) new HashSet<String>(Arrays.asList(LocalRepository.DEFAULT_BRANCH, "dev"))));
+            assertThat(store.reads.get(), is(0));
+
+            assertThat(get(repository, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "a2"));
+            assertThat(store.reads.get(), is(1));
+            assertThat(get(repository, LocalRepository.DEFAULT_BRANCH, "b"), is((Object) "b1"));
+            assertThat(get(repository, "dev", "a"), is((Object) "dev"));
+            assertThat(get(repository, "dev", "c"), is((Object) "c1"));
+        }
+        finally {
+            repository.close();
+        }
+    }
+
+    /**
+     * イメージから開いたリポジトリは、引き続きコミットや取り込みに利用できる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void reopen() throws Exception {
+        prepare();
+
+        LocalRepository repository = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        long references = repository.getReferenceSequence();
+        Entity.Reference created = put(repository, LocalRepository.DEFAULT_BRANCH, "d", "d1");
+        assertThat(created.value, greaterThan(references));
+        put(repository, "dev", "c", "c2");
+
+        // 取り込みの基点も復元されているため、前回の取り込み以降の変更のみを取り込む
+        assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+        assertThat(get(repository, LocalRepository.DEFAULT_BRANCH, "a"), is((Object) "a2"));
+        assertThat(get(repository, LocalRepository.DEFAULT_BRANCH, "c"), is((Object) "c2"));
+        repository.checkpoint();
+        repository.close();
+
+        LocalRepository again = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        try {
+            assertThat(get(again, LocalRepository.DEFAULT_BRANCH, "c"), is((Object) "c2"));
+            assertThat(get(again, LocalRepository.DEFAULT_BRANCH, "d"), is((Object) "d1"));
+            assertThat(get(again, "dev", "a"), is((Object) "dev"));
+        }
+        finally {
+            again.close();
+        }
+    }
+
+    /**
+     * 末尾が欠けたイメージは開けない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void read_truncated() throws Exception {
+        prepare();
+        long length = checkpoint.length();
+        for (long cut : new long[] { 1, 8, length / 2 }) {
+            File copy = folder.newFile("truncated-" + cut);
+            copy(checkpoint, copy, length - cut);
+            MappedEntityStore store = MappedEntityStore.open(
+                    new File(directory, "entities"),
+                    MappedEntityStore.DEFAULT_SEGMENT_SIZE);
+            try {
+                RepositoryImage.read(copy, store);
+                fail();
+            }
+            catch (IOException e) {
+                // ok.
+            }
+            finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * 組の配列の位置が不正なイメージは開けない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void read_invalid_footer() throws Exception {
+        prepare();
+        File copy = folder.newFile("invalid");
+        copy(checkpoint, copy, checkpoint.length());
+
+        // フッタの位置をファイルの末尾より後ろにする
+        RandomAccessFile file = new RandomAccessFile(copy, "rw");
+        try {
+            file.seek(file.length() - 12);
+            file.writeLong(file.length());
+        }
+        finally {
+            file.close();
+        }
+        MappedEntityStore store = MappedEntityStore.open(
+                new File(directory, "entities"),
+                MappedEntityStore.DEFAULT_SEGMENT_SIZE);
+        try {
+            RepositoryImage.read(copy, store);
+            fail();
+        }
+        catch (IOException e) {
+            // ok.
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * 2つのブランチと取り込みの基点をもつリポジトリを作成し、イメージ形式のチェックポイントを書き出す。
+     */
+    private void prepare() throws IOException {
+        LocalRepository repository = LocalRepository.open(directory, CommitLog.Sync.COMMIT);
+        try {
+            Entity.Reference a = put(repository, LocalRepository.DEFAULT_BRANCH, "a", "a1");
+            put(repository, LocalRepository.DEFAULT_BRANCH, "b", "b1");
+            repository.createBranch("dev", LocalRepository.DEFAULT_BRANCH);
+            put(repository, "dev", a, "dev");
+            put(repository, "dev", "c", "c1");
+            assertThat(repository.merge("dev", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+            put(repository, LocalRepository.DEFAULT_BRANCH, a, "a2");
+            repository.checkpoint();
+        }
+        finally {
+            repository.close();
+        }
+    }
+
+    private static Entity.Reference put(LocalRepository repository, String branch, String name, String value) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            Entity.Reference target = session.allocateReference();
+            session.bind(name, target);
+            save(session, target, value);
+            return target;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static void put(LocalRepository repository, String branch, Entity.Reference target, String value) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            save(session, target, value);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static void save(LocalSession session, Entity.Reference target, String value) {
+        session.save(Arrays.asList(new Modification(Entity.Builder.create(target).add("value", value).toEntity())));
+    }
+
+    private static Object get(LocalRepository repository, String branch, String name) {
+        LocalSession session = repository.createSession(branch);
+        try {
+            return session.resolve(session.getBound(name)).getProperty("value");
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static void copy(File source, File destination, long length) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(source, "r");
+        try {
+            byte[] bytes = new byte[(int) length];
+            input.readFully(bytes);
+            RandomAccessFile output = new RandomAccessFile(destination, "rw");
+            try {
+                output.setLength(0);
+                output.write(bytes);
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * エンティティを読み出した回数を数える格納先。
+     */
+    private static class CountingStore implements EntityStore {
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        private final EntityStore delegate;
+
+        CountingStore(EntityStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Entity get(long id) {
+            reads.incrementAndGet();
+            return delegate.get(id);
+        }
+
+        @Override
+        public void put(long id, Entity entity) {
+            delegate.put(id, entity);
+        }
+
+        @Override
+        public Entity remove(long id) {
+            return delegate.remove(id);
+        }
+
+        @Override
+        public long nextId(long id) {
+            return delegate.nextId(id);
+        }
+
+        @Override
+        public long getLastId() {
+            return delegate.getLastId();
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return delegate.isPersistent();
+        }
+
+        @Override
+        public void sync() throws IOException {
+            delegate.sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
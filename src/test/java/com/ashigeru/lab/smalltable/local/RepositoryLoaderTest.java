@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+
+/**
+ * {@link RepositoryLoader}のテスト。
+ * @author ashigeru
+ */
+public class RepositoryLoaderTest {
+
+    private static final int ITEM_COUNT = RepositoryCodec.ENTITY_CHUNK_SIZE * 2 + 100;
+
+    private LocalRepository repository;
+
+    private List<Entity.Reference> items;
+
+    /**
+     * テストを初期化する。
+     * <p>
+     * 複数のチャンクにまたがるエンティティと、取り込みの基点をもつ2つのブランチを作成する。
+     * </p>
+     */
+    @Before
+    public void setUp() {
+        repository = new LocalRepository();
+        items = new ArrayList<Entity.Reference>();
+        LocalSession session = repository.createSession();
+        try {
+            for (int offset = 0; offset < ITEM_COUNT; offset += 1000) {
+                List<Modification> batch = new ArrayList<Modification>();
+                for (int i = offset, n = Math.min(offset + 1000, ITEM_COUNT); i < n; i++) {
+                    Entity.Reference item = session.allocateReference();
+                    items.add(item);
+                    batch.add(item(item, "main", i));
+                }
+                session.save(batch);
+            }
+            session.bind("first", items.get(0));
+            session.save(new ArrayList<Modification>());
+        }
+        finally {
+            session.close();
+        }
+        repository.createBranch("side", LocalRepository.DEFAULT_BRANCH);
+        update("side", 1, "side", -1);
+        assertThat(repository.merge("side", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+        update("side", 2, "side", -2);
+    }
+
+    /**
+     * 並行して読み出した結果は、逐次読み出した結果と一致する。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void load() throws Exception {
+        byte[] bytes = store(repository);
+        LocalRepository sequential = LocalRepository.load(new ByteArrayInputStream(bytes));
+        LocalRepository parallel = LocalRepository.load(new ByteArrayInputStream(bytes), 4);
+
+        LoadReport report = parallel.getLoadReport();
+        assertThat(report, not((LoadReport) null));
+        assertThat(report.getParallelism(), is(4));
+        assertThat(report.getEntityChunks(), greaterThan(2));
+
+        for (String branch : Arrays.asList(LocalRepository.DEFAULT_BRANCH, "side")) {
+            LocalSession expected = sequential.createSession(branch);
+            LocalSession actual = parallel.createSession(branch);
+            try {
+                assertThat(expected.getBound("first"), is(items.get(0)));
+                assertThat(actual.getBound("first"), is(items.get(0)));
+                for (Entity.Reference item : items) {
+                    assertThat(actual.resolve(item), is(expected.resolve(item)));
+                }
+            }
+            finally {
+                expected.close();
+                actual.close();
+            }
+        }
+        assertThat(parallel.getNextReference(), is(sequential.getNextReference()));
+    }
+
+    /**
+     * 並行して読み出したリポジトリも、取り込みの基点を引き継いで利用を継続できる。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void load_continue() throws Exception {
+        LocalRepository loaded = LocalRepository.load(new ByteArrayInputStream(store(repository)), 3);
+        update(loaded, LocalRepository.DEFAULT_BRANCH, 3, "main", -3);
+        assertThat(loaded.merge("side", LocalRepository.DEFAULT_BRANCH), not((Object) null));
+
+        LocalSession session = loaded.createSession();
+        try {
+            assertThat(session.resolve(items.get(1)).getInt("index", 0), is(-1));
+            assertThat(session.resolve(items.get(2)).getInt("index", 0), is(-2));
+            assertThat(session.resolve(items.get(3)).getInt("index", 0), is(-3));
+            Entity.Reference created = session.allocateReference();
+            assertThat(created.value, greaterThan(items.get(items.size() - 1).value));
+        }
+        finally {
+            session.close();
+        }
+
+        // 読み出したリポジトリを書き出しなおしても、同じ内容となる
+        LocalRepository again = LocalRepository.load(new ByteArrayInputStream(store(loaded)), 2);
+        LocalSession reader = again.createSession();
+        try {
+            assertThat(reader.resolve(items.get(3)).getInt("index", 0), is(-3));
+            assertThat(reader.resolve(items.get(ITEM_COUNT - 1)).getInt("index", 0), is(ITEM_COUNT - 1));
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 途中で途切れた内容は読み出せない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void load_truncated() throws Exception {
+        byte[] bytes = store(repository);
+        for (int length : new int[] { 16, bytes.length / 3, bytes.length / 2, bytes.length - 1 }) {
+            try {
+                LocalRepository.load(new ByteArrayInputStream(bytes, 0, length), 4);
+                fail(String.valueOf(length));
+            }
+            catch (IOException e) {
+                // ok.
+            }
+        }
+    }
+
+    /**
+     * 並行度が正でない場合は読み出さない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void load_invalid_parallelism() throws Exception {
+        LocalRepository.load(new ByteArrayInputStream(store(repository)), 0);
+    }
+
+    private void update(String branch, int index, String owner, int value) {
+        update(repository, branch, index, owner, value);
+    }
+
+    private void update(LocalRepository target, String branch, int index, String owner, int value) {
+        LocalSession session = target.createSession(branch);
+        try {
+            session.save(Arrays.asList(item(items.get(index), owner, value)));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static Modification item(Entity.Reference reference, String owner, int index) {
+        return new Modification(Entity.Builder.create(reference)
+            .add("owner", owner)
+            .addInt("index", index)
+            .toEntity());
+    }
+
+    private static byte[] store(LocalRepository target) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        target.store(output);
+        return output.toByteArray();
+    }
+}
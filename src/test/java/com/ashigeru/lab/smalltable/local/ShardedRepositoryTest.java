@@ -0,0 +1,329 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.lab.smalltable.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ashigeru.lab.smalltable.Entity;
+import com.ashigeru.lab.smalltable.Modification;
+import com.ashigeru.lab.smalltable.Revision;
+
+/**
+ * {@link ShardedRepository}と{@link ShardedSession}のテスト。
+ * @author ashigeru
+ */
+public class ShardedRepositoryTest {
+
+    private ShardedRepository repository;
+
+    /**
+     * テストを初期化する。
+     */
+    @Before
+    public void setUp() {
+        repository = new ShardedRepository(4);
+    }
+
+    /**
+     * 参照や名前つき参照は、それぞれが属するシャードに振り分けられる。
+     */
+    @Test
+    public void save_single() {
+        Revision<LocalEntityId> other = repository.getShard(2).getHeadRevision();
+        ShardedSession session = repository.createSession(1);
+        Entity.Reference reference = session.allocateReference();
+        assertThat(repository.getShardOf(reference), is(1));
+        session.save(Arrays.asList(balance(reference, 10)));
+        session.close();
+
+        assertThat(repository.getShard(1).getHeadRevision().getId(reference), not((LocalEntityId) null));
+        assertThat(repository.getShard(2).getHeadRevision(), sameInstance(other));
+        assertThat(balanceOf(reference), is(10));
+    }
+
+    /**
+     * シャードをまたぐ保存は、すべてのシャードに登録される。
+     */
+    @Test
+    public void save_across() {
+        Entity.Reference left = create(0, 10);
+        Entity.Reference right = create(3, 20);
+        ShardedSession session = repository.createSession();
+        session.bind("root", left);
+        session.save(Arrays.asList(balance(left, 5), balance(right, 25)));
+        session.close();
+        assertThat(balanceOf(left), is(5));
+        assertThat(balanceOf(right), is(25));
+
+        ShardedSession reader = repository.createSession();
+        assertThat(reader.getBound("root"), is(left));
+        reader.close();
+    }
+
+    /**
+     * シャードをまたぐ保存は、いずれかのシャードで衝突した場合にどのシャードにも登録されない。
+     */
+    @Test
+    public void save_across_conflict() {
+        Entity.Reference left = create(0, 10);
+        Entity.Reference right = create(1, 20);
+        Revision<LocalEntityId> leftHead = repository.getShard(0).getHeadRevision();
+        long leftIds = repository.getShard(0).getEntityIdSequence();
+
+        ShardedSession loser = repository.createSession();
+        assertThat(loser.resolve(left), not((Entity) null));
+        assertThat(loser.resolve(right), not((Entity) null));
+        ShardedSession winner = repository.createSession();
+        winner.save(Arrays.asList(balance(right, 0)));
+        winner.close();
+        try {
+            loser.save(Arrays.asList(balance(left, 0), balance(right, 30)));
+            fail();
+        }
+        catch (ConcurrentModificationException e) {
+            // ok.
+        }
+        loser.close();
+
+        // 衝突しなかったシャードにも登録されず、登録しかけたエンティティは破棄される
+        assertThat(repository.getShard(0).getHeadRevision(), sameInstance(leftHead));
+        assertThat(balanceOf(left), is(10));
+        assertThat(balanceOf(right), is(0));
+        for (long id = leftIds + 1; id <= repository.getShard(0).getEntityIdSequence(); id++) {
+            assertThat(repository.getShard(0).getEntity(new LocalEntityId(id)), is((Entity) null));
+        }
+    }
+
+    /**
+     * シャードをまたぐ保存が検査の途中で失敗した場合も、いずれのシャードにも登録されず、
+     * 登録しかけたエンティティは破棄される。
+     */
+    @Test
+    public void save_across_failure() {
+        Entity.Reference left = create(0, 10);
+        Entity.Reference right = create(1, 20);
+        ShardedSession setup = repository.createSession();
+        setup.save(Arrays.asList(new Modification(Entity.Builder.create(left).add("balance", "closed").toEntity())));
+        setup.close();
+
+        ShardedSession loser = repository.createSession();
+        assertThat(loser.resolve(left), not((Entity) null));
+        assertThat(loser.resolve(right), not((Entity) null));
+        ShardedSession winner = repository.createSession();
+        winner.save(Arrays.asList(new Modification(
+                Entity.Builder.create(left).add("balance", "closed").add("note", "x").toEntity(),
+                Collections.singleton("note"))));
+        winner.close();
+        Revision<LocalEntityId> leftHead = repository.getShard(0).getHeadRevision();
+        Revision<LocalEntityId> rightHead = repository.getShard(1).getHeadRevision();
+        long leftIds = repository.getShard(0).getEntityIdSequence();
+        long rightIds = repository.getShard(1).getEntityIdSequence();
+
+        // 整数でないプロパティへの加算は、最新のエンティティに取り込む際に失敗する
+        try {
+            loser.save(Arrays.asList(
+                    new Modification(
+                            Entity.Builder.create(left).addInt("balance", 1).toEntity(),
+                            Collections.<String>emptySet(),
+                            Collections.singletonMap("balance", 1)),
+                    balance(right, 30)));
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+        loser.close();
+
+        assertThat(repository.getShard(0).getHeadRevision(), sameInstance(leftHead));
+        assertThat(repository.getShard(1).getHeadRevision(), sameInstance(rightHead));
+        for (long id = leftIds + 1; id <= repository.getShard(0).getEntityIdSequence(); id++) {
+            assertThat(repository.getShard(0).getEntity(new LocalEntityId(id)), is((Entity) null));
+        }
+        for (long id = rightIds + 1; id <= repository.getShard(1).getEntityIdSequence(); id++) {
+            assertThat(repository.getShard(1).getEntity(new LocalEntityId(id)), is((Entity) null));
+        }
+
+        // 締め出しは解除されている
+        ShardedSession next = repository.createSession();
+        next.save(Arrays.asList(balance(left, 5), balance(right, 25)));
+        next.close();
+        assertThat(balanceOf(left), is(5));
+        assertThat(balanceOf(right), is(25));
+    }
+
+    /**
+     * 保存に成功したセッションは、変更しなかったシャードも最新のリビジョンに移す。
+     */
+    @Test
+    public void save_refresh() {
+        Entity.Reference left = create(0, 10);
+        Entity.Reference right = create(1, 20);
+        ShardedSession session = repository.createSession();
+        assertThat(balanceOf(session, right), is(20));
+
+        ShardedSession other = repository.createSession();
+        other.save(Arrays.asList(balance(right, 21)));
+        other.close();
+        assertThat(balanceOf(session, right), is(20));
+
+        assertThat(session.save(Arrays.asList(balance(left, 11))).contains(right), is(true));
+        assertThat(balanceOf(session, right), is(21));
+        session.close();
+    }
+
+    /**
+     * シャードをまたぐ保存を多数のスレッドから並行して行っても、一部のシャードにのみ登録されることはない。
+     * @throws Exception 例外が発生した場合
+     */
+    @Test
+    public void save_across_concurrent() throws Exception {
+        final int accountCount = 16;
+        final int initial = 1000;
+        final List<Entity.Reference> accounts = new ArrayList<Entity.Reference>();
+        for (int i = 0; i < accountCount; i++) {
+            accounts.add(create(i % repository.getShardCount(), initial));
+        }
+        final AtomicInteger transfers = new AtomicInteger();
+        final AtomicInteger conflicts = new AtomicInteger();
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final long seed = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int j = 0; j < 500; j++) {
+                            // 異なるシャードに属する口座の間で残高を移す
+                            int from = random.nextInt(accountCount);
+                            int to = (from + 1 + random.nextInt(accountCount / 4 - 1) * 4) % accountCount;
+                            ShardedSession session = repository.createSession();
+                            try {
+                                Entity.Reference source = accounts.get(from);
+                                Entity.Reference target = accounts.get(to);
+                                int amount = random.nextInt(10) + 1;
+                                session.save(Arrays.asList(
+                                        balance(source, balanceOf(session, source) - amount),
+                                        balance(target, balanceOf(session, target) + amount)));
+                                transfers.incrementAndGet();
+                            }
+                            catch (ConcurrentModificationException e) {
+                                conflicts.incrementAndGet();
+                            }
+                            finally {
+                                session.close();
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors.toString(), errors.isEmpty(), is(true));
+        assertThat(transfers.get(), greaterThan(0));
+        assertThat(transfers.get() + conflicts.get(), is(8 * 500));
+
+        int total = 0;
+        for (Entity.Reference account : accounts) {
+            total += balanceOf(account);
+        }
+        assertThat(total, is(accountCount * initial));
+
+        // 移すたびに2つのシャードへコミットしている
+        assertThat(repository.getCommitStatistics().getCommits(), is((long) accountCount + transfers.get() * 2));
+    }
+
+    /**
+     * 他のシャードの名前つき参照から到達できる参照は取り除かず、どのシャードからも到達できない参照を取り除く。
+     */
+    @Test
+    public void collectGarbage_across() {
+        int bound = repository.getShardOf("root");
+        int home = (bound + 1) % repository.getShardCount();
+        Entity.Reference child = create((home + 1) % repository.getShardCount(), 1);
+        Entity.Reference orphan = create(bound, 2);
+        ShardedSession session = repository.createSession(home);
+        Entity.Reference root = session.allocateReference();
+        session.bind("root", root);
+        session.save(Arrays.asList(new Modification(Entity.Builder.create(root).add("child", child).toEntity())));
+        session.close();
+        assertThat(repository.getShardOf(root), not(bound));
+
+        CollectionReport report = repository.collectGarbage();
+        assertThat(report.getMarkedReferences(), is(2));
+        assertThat(report.getSweptReferences(), is(1));
+        assertThat(report.getReclaimedEntities(), is(1));
+
+        ShardedSession reader = repository.createSession();
+        assertThat(reader.getBound("root"), is(root));
+        assertThat(reader.resolve(root), not((Entity) null));
+        assertThat(balanceOf(reader, child), is(1));
+        assertThat(reader.resolve(orphan), is((Entity) null));
+        reader.close();
+    }
+
+    private Entity.Reference create(int shard, int value) {
+        ShardedSession session = repository.createSession(shard);
+        try {
+            Entity.Reference reference = session.allocateReference();
+            session.save(Arrays.asList(balance(reference, value)));
+            return reference;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private int balanceOf(Entity.Reference reference) {
+        ShardedSession session = repository.createSession();
+        try {
+            return balanceOf(session, reference);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static int balanceOf(ShardedSession session, Entity.Reference reference) {
+        return session.resolve(reference).getInt("balance", 0);
+    }
+
+    private static Modification balance(Entity.Reference reference, int value) {
+        return new Modification(Entity.Builder.create(reference).addInt("balance", value).toEntity());
+    }
+}